@@ -52,6 +52,7 @@ import edu.ucsf.valelab.gaussianfit.datasettransformations.CoordinateMapper;
 import edu.ucsf.valelab.gaussianfit.spotoperations.NearestPoint2D;
 import edu.ucsf.valelab.gaussianfit.utils.DisplayUtils;
 import edu.ucsf.valelab.gaussianfit.data.SpotData;
+import edu.ucsf.valelab.gaussianfit.data.SpotTable;
 import edu.ucsf.valelab.gaussianfit.fitting.ZCalibrator;
 import edu.ucsf.valelab.gaussianfit.data.LoadAndSave;
 import edu.ucsf.valelab.gaussianfit.spotoperations.SpotLinker;
@@ -104,6 +105,7 @@ import javax.swing.AbstractAction;
 import javax.swing.DefaultComboBoxModel;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JCheckBoxMenuItem;
 import javax.swing.JComboBox;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
@@ -171,6 +173,7 @@ public class DataCollectionForm extends JFrame {
    private static final String PAIRMAXSIGMA = "DCPairSigma";
    private static final String PAIRNRQUADRANTS = "DCPairNrQuadrants";
    private static final String LOADTSFDIR = "TSFDir";
+   private static final String MEMORYMAPTSF = "MemoryMapTSF";
    private static final String RENDERMAG = "VisualizationMagnification";
    private static final String PAIRSMAXDISTANCE = "PairsMaxDistance";
    private static final String METHOD2C = "MethodFor2CCorrection";
@@ -1028,6 +1031,17 @@ public class DataCollectionForm extends JFrame {
             }
          });
          super.add(selectAllRowsItem);
+         
+         final JCheckBoxMenuItem memoryMapItem = 
+                 new JCheckBoxMenuItem("Memory Map TSF Files");
+         memoryMapItem.setSelected(settings_.getBoolean(MEMORYMAPTSF, false));
+         memoryMapItem.addActionListener(new java.awt.event.ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent ae) {
+               settings_.putBoolean(MEMORYMAPTSF, memoryMapItem.isSelected());
+            }
+         });
+         super.add(memoryMapItem);
       }
       
    }
@@ -1122,7 +1136,8 @@ public class DataCollectionForm extends JFrame {
          if (selectedFile.getName().endsWith(".txt")) {
             LoadAndSave.loadText(selectedFile, this);
          } else if (selectedFile.getName().endsWith(".tsf")) {
-            LoadAndSave.loadTSF(selectedFile, this);
+            LoadAndSave.loadTSF(selectedFile, this,
+                    settings_.getBoolean(MEMORYMAPTSF, false));
          } else if (selectedFile.getName().endsWith(".bin")) {
             LoadAndSave.loadBin(selectedFile, this);
          } else {
@@ -2547,10 +2562,12 @@ public class DataCollectionForm extends JFrame {
       final int[] rows = mainTable_.getSelectedRowsSorted();
       for (int i = 0; i < rows.length; i++) {
          RowData rowData = mainTableModel_.getRow(rows[i]);
+         SpotTable table = rowData.getSpotTable();
+         boolean[] accepted = sf.filter(table);
          List<SpotData> filteredData = new ArrayList<SpotData>();
-         for (SpotData spot : rowData.spotList_) {
-            if (sf.filter(spot)) {
-               filteredData.add(new SpotData(spot));
+         for (int row = 0; row < accepted.length; row++) {
+            if (accepted[row]) {
+               filteredData.add(new SpotData(table.getSpot(row)));
             }
          }
          // Add transformed data to data overview window
@@ -32,6 +32,8 @@ either expressed or implied, of the FreeBSD Project.
 package edu.ucsf.valelab.gaussianfit.algorithm;
 
 import edu.ucsf.valelab.gaussianfit.utils.GaussianUtils;
+import edu.ucsf.valelab.gaussianfit.fitting.FittingException;
+import edu.ucsf.valelab.gaussianfit.fitting.GaussianMLEFitter;
 import edu.ucsf.valelab.gaussianfit.fitting.MultiVariateGaussianFunction;
 import edu.ucsf.valelab.gaussianfit.fitting.MultiVariateGaussianMLE;
 import edu.ucsf.valelab.gaussianfit.fitting.ParametricGaussianFunction;
@@ -91,6 +93,7 @@ public class GaussianFit {
    public static final int LEVENBERGMARQUARD = 2;
    public static final int NELDERMEADMLE = 3;
    public static final int LEVENBERGMARQUARDMLE = 4;
+   public static final int LEVENBERGMARQUARDPOISSONMLE = 5;
    public static final int CIRCLE = 1;
    public static final int ASYMMETRIC = 2;
    public static final int ELLIPSE = 3;
@@ -115,6 +118,9 @@ public class GaussianFit {
    MultiVariateGaussianMLE mGFMLE_;
    NonLinearConjugateGradientOptimizer nlcgo_;
    LevenbergMarquardtOptimizer lMO_;
+   CurveFitter cF_;
+   ParametricGaussianFunction pGF_;
+   GaussianMLEFitter mleFitter_;
 
    
    /**
@@ -123,7 +129,8 @@ public class GaussianFit {
     * 
     * @param shape - fit circle (1) ellipse(2), or ellipse with varying angle (3)
     * @param fitMode - algorithm use: NelderMead (1), Levenberg Marquard (2), 
-    *                   NelderMean MLE (3), LevenberMarquard MLE(4)
+    *                   NelderMean MLE (3), LevenberMarquard MLE(4),
+    *                   LevenbergMarquard Poisson MLE (5)
     * @param fixWidth - if true, do not fit the width
     * @param fixedWidth - width of the Gaussian in pixels
     */
@@ -169,12 +176,16 @@ public class GaussianFit {
          lMO_ = new LevenbergMarquardtOptimizer();
          LMChecker lmChecker = new LMChecker();
          lMO_.setConvergenceChecker(lmChecker);
+         cF_ = new CurveFitter(lMO_);
       }
       if (fitMode_ == NELDERMEADMLE) {
          nm_ = new NelderMead();
          convergedChecker_ = new SimpleScalarValueChecker(1e-9,-1);
          mGFMLE_ = new MultiVariateGaussianMLE(shape_, fixedWidth_);
       }
+      if (fitMode_ == LEVENBERGMARQUARDPOISSONMLE) {
+         mleFitter_ = new GaussianMLEFitter(shape_, fixedWidth_);
+      }
       /*
        * Gradient MLE, not working very well
        *
@@ -237,23 +248,26 @@ public class GaussianFit {
       if (fitMode_ == LEVENBERGMARQUARD || fitMode_ == LEVENBERGMARQUARDMLE) {
          
          // lMO_.setMaxIterations(maxIterations);
-         CurveFitter cF = new CurveFitter(lMO_);
+         // The fitter and function are re-used for all spots of this size
+         cF_.clearObservations();
          short[] pixels = (short[]) siProc.getPixels();
          if (fitMode_ == LEVENBERGMARQUARD) {
             for (int i = 0; i < pixels.length; i++) {
-               cF.addObservedPoint(i, (int) pixels[i] & 0xffff);
+               cF_.addObservedPoint(i, (int) pixels[i] & 0xffff);
             }
          }
          if (fitMode_ == LEVENBERGMARQUARDMLE) {
             for (int i = 0; i < pixels.length; i++) {
                double factor = ((int) pixels[i] & 0xffff) ;
-               cF.addObservedPoint(1 / factor, i, (int) pixels[i] & 0xffff);
+               cF_.addObservedPoint(1 / factor, i, (int) pixels[i] & 0xffff);
             }
          }
+         if (pGF_ == null || pGF_.getImageWidth() != siProc.getWidth()) {
+            pGF_ = new ParametricGaussianFunction(
+                    shape_, siProc.getWidth(), fixedWidth_);
+         }
          try {
-            paramsOut = cF.fit(new ParametricGaussianFunction( 
-                    shape_, siProc.getWidth(), fixedWidth_), 
-                  estimate.getParms());
+            paramsOut = cF_.fit(pGF_, estimate.getParms());
          } catch (FunctionEvaluationException ex) {
             ReportingUtils.logError(ex.getMessage());
          } catch (OptimizationException ex) {
@@ -286,6 +300,17 @@ public class GaussianFit {
          }
       }
       
+      // Levenberg-Marquardt on the Poisson likelihood
+      if (fitMode_ == LEVENBERGMARQUARDPOISSONMLE) {
+         try {
+            paramsOut = mleFitter_.fit((short[]) siProc.getPixels(),
+                    siProc.getWidth(), siProc.getHeight(), estimate.getParms(),
+                    maxIterations);
+         } catch (FittingException fe) {
+            ReportingUtils.logError(fe.getMessage());
+         }
+      }
+      
       /*
        * not working very well....
       // gradient-MLE
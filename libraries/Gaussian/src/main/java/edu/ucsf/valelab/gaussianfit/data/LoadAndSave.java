@@ -29,20 +29,18 @@ either expressed or implied, of the FreeBSD Project.
 
 package edu.ucsf.valelab.gaussianfit.data;
 
-import com.google.protobuf.ExtensionRegistry;
-import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.CodedOutputStream;
 import edu.ucsf.valelab.tsf.MMLocM;
 import edu.ucsf.valelab.tsf.TaggedSpotsProtos;
 import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
 import static edu.ucsf.valelab.gaussianfit.DataCollectionForm.EXTENSION;
 import static edu.ucsf.valelab.gaussianfit.DataCollectionForm.getInstance;
 import edu.ucsf.valelab.gaussianfit.LittleEndianDataInputStream;
-import ij.process.ImageProcessor;
 import java.awt.Cursor;
 import java.awt.FileDialog;
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -246,56 +244,64 @@ public class LoadAndSave {
 
          String head = fr.readLine();
          String[] headers = head.split("\t");
+         // columns past the fixed ones are looked up by name once
+         int apertureIntensityColumn = indexOf(headers, "intensity_aperture");
+         int apertureBackgroundColumn = indexOf(headers, "background_aperture");
+         int intensityRatioColumn = indexOf(headers, "intensity_ratio");
+         int mSigmaColumn = indexOf(headers, "m_sigma");
+         int integralApertureSigmaColumn = indexOf(headers, "integral_aperture_sigma");
+         int zColumn = indexOf(headers, "z");
+         if ((appId == MMAPPID && (apertureIntensityColumn < 0 || 
+                 apertureBackgroundColumn < 0 || intensityRatioColumn < 0 ||
+                 mSigmaColumn < 0)) || (hasZ && zColumn < 0)) {
+            throw new NumberFormatException("Missing column");
+         }
+         TabSeparatedParser parser = new TabSeparatedParser();
          String spot;
          List<SpotData> spotList = new ArrayList<SpotData>();
          double maxZ = Double.NEGATIVE_INFINITY;
          double minZ = Double.POSITIVE_INFINITY;
 
          while ((spot = fr.readLine()) != null) {
-            String[] spotTags = spot.split("\t");
-            if (spotTags.length != headers.length) {
-               ReportingUtils.logError("Failed to import spot " + spotTags[0]);
+            if (parser.split(spot) != headers.length) {
+               ReportingUtils.logError("Failed to import spot " + parser.getString(0));
                continue;
             }
-            HashMap<String, String> k = new HashMap<String, String>();
-            for (int i = 0; i < headers.length; i++) {
-               k.put(headers[i], spotTags[i]);
-            }
 
             SpotData gsd = new SpotData(null,
-                    Integer.parseInt(k.get(headers[3])),
-                    Integer.parseInt(k.get(headers[2])),
-                    Integer.parseInt(k.get(headers[1])),
-                    Integer.parseInt(k.get(headers[4])),
-                    Integer.parseInt(k.get(headers[0])),
-                    Integer.parseInt(k.get(headers[5])),
-                    Integer.parseInt(k.get(headers[6]))
+                    parser.getInt(3),
+                    parser.getInt(2),
+                    parser.getInt(1),
+                    parser.getInt(4),
+                    parser.getInt(0),
+                    parser.getInt(5),
+                    parser.getInt(6)
             );
-            gsd.setData(Double.parseDouble(k.get(headers[9])),
-                    Double.parseDouble(k.get(headers[10])),
-                    Double.parseDouble(k.get(headers[7])),
-                    Double.parseDouble(k.get(headers[8])), 0.0,
-                    Double.parseDouble(k.get(headers[11])),
-                    Double.parseDouble(k.get(headers[12])),
-                    Double.parseDouble(k.get(headers[13])),
-                    Double.parseDouble(k.get(headers[14]))
+            gsd.setData(parser.getDouble(9),
+                    parser.getDouble(10),
+                    parser.getDouble(7),
+                    parser.getDouble(8), 0.0,
+                    parser.getDouble(11),
+                    parser.getDouble(12),
+                    parser.getDouble(13),
+                    parser.getDouble(14)
             );
             if (appId == MMAPPID) {
                gsd.addKeyValue(SpotData.Keys.APERTUREINTENSITY, 
-                       Double.parseDouble(k.get("intensity_aperture")));
+                       parser.getDouble(apertureIntensityColumn));
                gsd.addKeyValue(SpotData.Keys.APERTUREBACKGROUND, 
-                       Double.parseDouble(k.get("background_aperture")));
+                       parser.getDouble(apertureBackgroundColumn));
                gsd.addKeyValue(SpotData.Keys.INTENSITYRATIO, 
-                       Double.parseDouble(k.get("intensity_ratio")));
+                       parser.getDouble(intensityRatioColumn));
                gsd.addKeyValue(SpotData.Keys.MSIGMA, 
-                       Double.parseDouble(k.get("m_sigma")));
-               if (k.containsKey("integral_aperture_sigma")) {
+                       parser.getDouble(mSigmaColumn));
+               if (integralApertureSigmaColumn >= 0) {
                   gsd.addKeyValue(SpotData.Keys.INTEGRALAPERTURESIGMA,
-                          Double.parseDouble(k.get("integral_aperture_sigma")));
+                          parser.getDouble(integralApertureSigmaColumn));
                }
             }
             if (hasZ) {
-               double zc = Double.parseDouble(k.get("z"));
+               double zc = parser.getDouble(zColumn);
                gsd.setZCenter(zc);
                if (zc > maxZ) {
                   maxZ = zc;
@@ -343,6 +349,19 @@ public class LoadAndSave {
 
    }
 
+   /**
+    * @return index of the last header with this name, -1 if there is none
+    */
+   private static int indexOf(String[] headers, String name) {
+      int index = -1;
+      for (int i = 0; i < headers.length; i++) {
+         if (headers[i].equals(name)) {
+            index = i;
+         }
+      }
+      return index;
+   }
+
    /**
     * Load a .tsf file
     *
@@ -350,7 +369,21 @@ public class LoadAndSave {
     * @param caller - Calling GUI element, used to set WaitCursor
     */
    public static void loadTSF(File selectedFile, JFrame caller) {
-      TaggedSpotsProtos.SpotList psl;
+      loadTSF(selectedFile, caller, false);
+   }
+
+   /**
+    * Load a .tsf file.  The spots are decoded in parallel, in chunks, see
+    * TsfSpotReader.
+    *
+    * @param selectedFile - File to be loaded
+    * @param caller - Calling GUI element, used to set WaitCursor
+    * @param memoryMap - read the file through a memory mapping.  Faster for
+    *                  large files, but on Windows the file can not be 
+    *                  overwritten until the mapping is garbage collected
+    */
+   public static void loadTSF(File selectedFile, JFrame caller, 
+           boolean memoryMap) {
       long spotsMissedWithErrors = 0;
          
       try {
@@ -359,34 +392,15 @@ public class LoadAndSave {
 
          caller.setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
 
-         FileInputStream fi = new FileInputStream(selectedFile);
-         DataInputStream di = new DataInputStream(fi);
-
-         // the new file format has an initial 0, then the offset (in long)
-         // to the position of spotList
-         int magic = di.readInt();
-         if (magic != 0) {
-            // reset and mark do not seem to work on my computer
-            fi.close();
-            fi = new FileInputStream(selectedFile);
-            psl = TaggedSpotsProtos.SpotList.parseDelimitedFrom(fi);
-         } else {
-            // TODO: evaluate after creating code writing this format
-            long offset = di.readLong();
-            fi.skip(offset);
-            psl = TaggedSpotsProtos.SpotList.parseDelimitedFrom(fi);
-            fi.close();
-            fi = new FileInputStream(selectedFile);
-            fi.skip(12); // size of int + size of long
-         }
-         ExtensionRegistry registry = ExtensionRegistry.newInstance();
-         int appId = psl.getApplicationId();
-         if (appId == MMAPPID) {
-            registry.add(MMLocM.intensityAperture);
-            registry.add(MMLocM.intensityBackground);
-            registry.add(MMLocM.intensityRatio);
-            registry.add(MMLocM.mSigma);
-            registry.add(MMLocM.integralApertureSigma);
+         TaggedSpotsProtos.SpotList psl;
+         List<SpotData> spotList;
+         TsfSpotReader reader = new TsfSpotReader(selectedFile, memoryMap);
+         try {
+            psl = reader.getSpotList();
+            spotList = reader.readSpots();
+            spotsMissedWithErrors = reader.getNrErrors();
+         } finally {
+            reader.close();
          }
          String name = psl.getName();
          String title = psl.getName();
@@ -405,78 +419,27 @@ public class LoadAndSave {
          int nrSlices = psl.getNrSlices();
          int nrPositions = psl.getNrPos();
          boolean isTrack = psl.getIsTrack();
-         long expectedSpots = psl.getNrSpots();
-         long esf = expectedSpots / 100;
-         long maxNrSpots = 0;
-         boolean hasZ = false;
-         double maxZ = Double.NEGATIVE_INFINITY;
-         double minZ = Double.POSITIVE_INFINITY;
-
-         ArrayList<SpotData> spotList = new ArrayList<SpotData>();
-         TaggedSpotsProtos.Spot pSpot;
-         while (fi.available() > 0 && (expectedSpots == 0 || maxNrSpots < expectedSpots)) {
-        
-            try {
-               pSpot = TaggedSpotsProtos.Spot.parseDelimitedFrom(fi, registry);
-
-               SpotData gSpot = new SpotData((ImageProcessor) null, pSpot.getChannel(),
-                       pSpot.getSlice(), pSpot.getFrame(), pSpot.getPos(),
-                       pSpot.getMolecule(), pSpot.getXPosition(), pSpot.getYPosition());
-               gSpot.setData(pSpot.getIntensity(), pSpot.getBackground(), pSpot.getX(),
-                       pSpot.getY(), 0.0, pSpot.getWidth(), pSpot.getA(), pSpot.getTheta(),
-                       pSpot.getXPrecision());
-               if (appId == MMAPPID) {
-                  gSpot.addKeyValue(SpotData.Keys.APERTUREINTENSITY,
-                          pSpot.getExtension(MMLocM.intensityAperture));
-                  gSpot.addKeyValue(SpotData.Keys.APERTUREBACKGROUND,
-                          pSpot.getExtension(MMLocM.intensityBackground));
-                  gSpot.addKeyValue(SpotData.Keys.INTENSITYRATIO,
-                          pSpot.getExtension(MMLocM.intensityRatio));
-                  gSpot.addKeyValue(SpotData.Keys.MSIGMA,
-                          pSpot.getExtension(MMLocM.mSigma));
-                  if (pSpot.hasExtension(MMLocM.integralApertureSigma)) {
-                     gSpot.addKeyValue(SpotData.Keys.INTEGRALAPERTURESIGMA, 
-                             pSpot.getExtension(MMLocM.integralApertureSigma));
-                  }
-               }
-               if (pSpot.hasZ()) {
-                  double zc = pSpot.getZ();
-                  gSpot.setZCenter(zc);
-                  hasZ = true;
-                  if (zc > maxZ) {
-                     maxZ = zc;
-                  }
-                  if (zc < minZ) {
-                     minZ = zc;
-                  }
-               }
-               maxNrSpots++;
-               if ((esf > 0) && ((maxNrSpots % esf) == 0)) {
-                  ij.IJ.showProgress((double) maxNrSpots / (double) expectedSpots);
-               }
-
-               spotList.add(gSpot);
-            } catch (InvalidProtocolBufferException ipbe) {
-               spotsMissedWithErrors++;
-               ReportingUtils.logError("ProtocolBuffer Exception: " + ipbe.getMessage());
-            }
-         }
 
          RowData.Builder builder = new RowData.Builder();
          builder.setName(name).setTitle(title).setWidth(width).setHeight(height).
                  setPixelSizeNm(pixelSize).setZStackStepSizeNm(0.0f).setShape(shape).
                  setHalfSize(halfSize).setNrChannels(nrChannels).
                  setNrFrames(nrFrames).setNrSlices(nrSlices).
-                 setNrPositions(nrPositions).setMaxNrSpots(maxNrSpots).
+                 setNrPositions(nrPositions).setMaxNrSpots(spotList.size()).
                  setSpotList(spotList).setIsTrack(isTrack).
                  setCoordinate(DataCollectionForm.Coordinates.NM).
-                 setHasZ(hasZ).setMinZ(minZ).setMaxZ(maxZ);
+                 setHasZ(reader.hasZ()).setMinZ(reader.getMinZ()).
+                 setMaxZ(reader.getMaxZ());
          DataCollectionForm.getInstance().addSpotData(builder);
 
       } catch (FileNotFoundException ex) {
          JOptionPane.showMessageDialog(getInstance(), "File not found");
       } catch (IOException ex) {
          JOptionPane.showMessageDialog(getInstance(), "Error while reading file");
+      } catch (InterruptedException ex) {
+         Thread.currentThread().interrupt();
+      } catch (OutOfMemoryError ome) {
+         JOptionPane.showMessageDialog(getInstance(), "Out Of Memory");
       } finally {
          caller.setCursor(Cursor.getDefaultCursor());
          ij.IJ.showStatus("");
@@ -568,65 +531,70 @@ public class LoadAndSave {
                   String tmpName = nameParts[nameParts.length - 1];
                   fo = new FileOutputStream(new File(fdir + File.separator + tmpName + EXTENSION));
                }
+               // all spots go through one buffer instead of one write per spot
+               BufferedOutputStream bo = new BufferedOutputStream(fo, 1 << 20);
+               CodedOutputStream cos = CodedOutputStream.newInstance(bo, 1 << 16);
                // write space for magic nr and offset to spotList
                for (int i = 0; i < 12; i++) {
-                  fo.write(0);
+                  cos.writeRawByte(0);
                }
 
-               int counter = 0;
-               for (SpotData gd : rowData[rowNr].spotList_) {
+               SpotTable table = rowData[rowNr].getSpotTable();
+               TaggedSpotsProtos.Spot.Builder spotBuilder = TaggedSpotsProtos.Spot.newBuilder();
+               for (int counter = 0; counter < table.size(); counter++) {
 
                   if ((counter % 1000) == 0) {
                      ij.IJ.showStatus("Saving spotData...");
-                     ij.IJ.showProgress(counter, rowData[rowNr].spotList_.size());
+                     ij.IJ.showProgress(counter, table.size());
                   }
 
-                  if (gd != null) {
-                     TaggedSpotsProtos.Spot.Builder spotBuilder = TaggedSpotsProtos.Spot.newBuilder();
-                     // TODO: precede all these calls with check for presence of member
-                     // or be OK with default values?
-                     spotBuilder.setMolecule(counter).
-                             setFrame(gd.getFrame()).
-                             setChannel(gd.getChannel()).
-                             setPos(gd.getPosition()).
-                             setSlice(gd.getSlice()).
-                             setX((float) gd.getXCenter()).
-                             setY((float) gd.getYCenter()).
-                             setIntensity((float) gd.getIntensity()).
-                             setBackground((float) gd.getBackground()).
-                             setXPosition(gd.getX()).
-                             setYPosition(gd.getY()).
-                             setWidth((float) gd.getWidth()).
-                             setA((float) gd.getA()).
-                             setTheta((float) gd.getTheta()).
-                             setXPrecision((float) gd.getSigma()).
-                             setExtension(MMLocM.intensityAperture, 
-                                  gd.getValue(SpotData.Keys.APERTUREINTENSITY, -1.0).floatValue()).
-                             setExtension(MMLocM.intensityBackground, 
-                                  gd.getValue(SpotData.Keys.APERTUREBACKGROUND, -1.0).floatValue()).
-                             setExtension(MMLocM.intensityRatio, 
-                                  gd.getValue(SpotData.Keys.INTENSITYRATIO, -1.0).floatValue()).
-                             setExtension(MMLocM.mSigma, 
-                                  gd.getValue(SpotData.Keys.MSIGMA, -1.0).floatValue()).
-                             setExtension(MMLocM.integralApertureSigma,
-                                  gd.getValue(SpotData.Keys.INTEGRALAPERTURESIGMA, -1.0).floatValue()
-                     );
-                     
-                     if (rowData[rowNr].hasZ_) {
-                        spotBuilder.setZ((float) gd.getZCenter());
-                     }
-
-                     TaggedSpotsProtos.Spot spot = spotBuilder.build();
-                     
-                     // write message size and message
-                     spot.writeDelimitedTo(fo);
-                     counter++;
+                  // TODO: precede all these calls with check for presence of member
+                  // or be OK with default values?
+                  spotBuilder.clear();
+                  spotBuilder.setMolecule(counter).
+                          setFrame(table.getFrame(counter)).
+                          setChannel(table.getChannel(counter)).
+                          setPos(table.getPosition(counter)).
+                          setSlice(table.getSlice(counter)).
+                          setX((float) table.getXCenter(counter)).
+                          setY((float) table.getYCenter(counter)).
+                          setIntensity(table.getIntensity(counter)).
+                          setBackground(table.getBackground(counter)).
+                          setXPosition(table.getX(counter)).
+                          setYPosition(table.getY(counter)).
+                          setWidth(table.getWidth(counter)).
+                          setA(table.getA(counter)).
+                          setTheta(table.getTheta(counter)).
+                          setXPrecision(table.getSigma(counter)).
+                          setExtension(MMLocM.intensityAperture, 
+                               (float) table.getValue(SpotData.Keys.APERTUREINTENSITY, counter, -1.0)).
+                          setExtension(MMLocM.intensityBackground, 
+                               (float) table.getValue(SpotData.Keys.APERTUREBACKGROUND, counter, -1.0)).
+                          setExtension(MMLocM.intensityRatio, 
+                               (float) table.getValue(SpotData.Keys.INTENSITYRATIO, counter, -1.0)).
+                          setExtension(MMLocM.mSigma, 
+                               (float) table.getValue(SpotData.Keys.MSIGMA, counter, -1.0)).
+                          setExtension(MMLocM.integralApertureSigma,
+                               (float) table.getValue(SpotData.Keys.INTEGRALAPERTURESIGMA, counter, -1.0)
+                  );
+
+                  if (rowData[rowNr].hasZ_) {
+                     spotBuilder.setZ((float) table.getZCenter(counter));
                   }
+
+                  TaggedSpotsProtos.Spot spot = spotBuilder.build();
+
+                  // write message size and message
+                  cos.writeRawVarint32(spot.getSerializedSize());
+                  spot.writeTo(cos);
                }
+               cos.flush();
+               bo.flush();
 
                FileChannel fc = fo.getChannel();
                long offset = fc.position();
-               spotList.writeDelimitedTo(fo);
+               spotList.writeDelimitedTo(bo);
+               bo.flush();
 
                // now go back to write offset to the stream
                fc.position(4);
@@ -37,6 +37,7 @@ import edu.ucsf.valelab.gaussianfit.DataCollectionForm.Coordinates;
 import edu.ucsf.valelab.gaussianfit.utils.ListUtils;
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -188,9 +189,10 @@ public class RowData {
 
    }
 
-   public final List<SpotData> spotList_;
+   public final List<SpotData> spotList_;  // not modifiable
    private Map<Integer, List<SpotData>> frameIndexSpotList_;
    private Map<ImageIndex, List<SpotData>> indexedSpotList_;
+   private SpotTable spotTable_;
    public final ArrayList<Double> timePoints_;
    private String name_;             // name as it appears in the DataCollection table
    public final String title_;      // ImagePlus title of the image
@@ -237,7 +239,9 @@ public class RowData {
       nrSlices_ = b.nrSlices_;
       nrPositions_ = b.nrPositions_;
       maxNrSpots_ = b.maxNrSpots_;
-      spotList_ = new ArrayList<SpotData>(b.spotList_);
+      // Can not be modified, so that the indices built from it stay valid
+      spotList_ = Collections.unmodifiableList(
+              new ArrayList<SpotData>(b.spotList_));
       if (b.timePoints_ != null) {
          timePoints_ = new ArrayList<Double>(b.timePoints_);
       } else {
@@ -331,6 +335,21 @@ public class RowData {
       }
    }
    
+   /**
+    * Column-wise copy of spotList_, with its frame and region indices.  Built
+    * on first use and kept, as spotList_ can not be modified.  Spots should
+    * not be changed once they are part of a RowData (transformations copy
+    * them into a new RowData instead).
+    * 
+    * @return SpotTable with the spots of this row
+    */
+   public synchronized SpotTable getSpotTable() {
+      if (spotTable_ == null) {
+         spotTable_ = new SpotTable(spotList_);
+      }
+      return spotTable_;
+   }
+   
    public Map<Integer, List<SpotData>> getSpotListIndexedByFrame () {
       if (frameIndexSpotList_ == null) {
          index();
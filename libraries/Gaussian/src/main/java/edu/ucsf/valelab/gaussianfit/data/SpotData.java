@@ -102,7 +102,10 @@ public class SpotData implements PointData {
 
    public int nrLinks_;       // number of frames/slices in which this spot was found
    public int originalFrame_; // original first frame/slice in which this spot was found
-   private final Map<String, Double> keyValue_; // Map of keys/values that can be used to extend what we store in the SpotData
+   // Map of keys/values that can be used to extend what we store in the SpotData
+   // Only created when the first key is added, as most spots have none and
+   // data sets can hold millions of spots
+   private Map<String, Double> keyValue_;
 
    public SpotData(ImageProcessor ip, int channel, int slice, int frame, 
            int position, int nr, int x, int y) {
@@ -114,7 +117,6 @@ public class SpotData implements PointData {
       nr_ = nr;
       x_ = x;
       y_ = y;
-      keyValue_ = new HashMap<String, Double>();
    }
    
    
@@ -143,7 +145,9 @@ public class SpotData implements PointData {
       a_ = spot.a_;
       theta_ = spot.theta_;
       sigma_ = spot.sigma_;  
-      keyValue_ = new HashMap<String, Double>(spot.keyValue_);
+      if (spot.keyValue_ != null) {
+         keyValue_ = new HashMap<String, Double>(spot.keyValue_);
+      }
    }
 
    public void setData(double intensity, 
@@ -166,27 +170,36 @@ public class SpotData implements PointData {
    }
         
    public void addKeyValue(String key, double value) {
+      if (keyValue_ == null) {
+         keyValue_ = new HashMap<String, Double>(8);
+      }
       keyValue_.put(key, value);
    }
    
    public Double getValue(String key) {
+      if (keyValue_ == null) {
+         return null;
+      }
       return keyValue_.get(key);
    }
    
    public Double getValue(String key, double fallbackValue) {
-      if (keyValue_.containsKey(key)) {
+      if (keyValue_ != null && keyValue_.containsKey(key)) {
          return keyValue_.get(key);
       }
       return fallbackValue;
    }
    
    public String[] getKeys() {
+      if (keyValue_ == null) {
+         return new String[0];
+      }
       Set<String> keys = keyValue_.keySet();
       return  keys.toArray(new String[keys.size()]);
    }
    
    public boolean hasKey(String key) {
-      return keyValue_.containsKey(key);
+      return keyValue_ != null && keyValue_.containsKey(key);
    }
    
    public void setOriginalPosition(double xPos, double yPos, double zPos) {
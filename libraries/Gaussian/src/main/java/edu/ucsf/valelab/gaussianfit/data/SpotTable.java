@@ -0,0 +1,359 @@
+package edu.ucsf.valelab.gaussianfit.data;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Column-wise copy of a spot list, for code that walks over all spots of a
+ * (possibly very large) data set and only needs a few of their values.
+ *
+ * Each value of the spots is stored in a primitive array with one entry
+ * per spot ("row"), so that a pass over one value does not have to visit
+ * every SpotData object and its map of key values.  Positions are kept as
+ * doubles, as are the values of the SpotData keys, so that filters on them
+ * compare the same values as on the SpotData; the other fitted values are
+ * kept as floats.
+ *
+ * Two indices are built once, together with the columns: rows sorted by
+ * frame, to look up a range of frames, and a uniform grid over the xy
+ * positions, to look up the spots in a region.
+ *
+ * The table is a snapshot; it does not follow later changes to the spots.
+ * getSpot() gives access to the original SpotData for callers that need
+ * the full object.
+ *
+ * @author Nico Stuurman
+ */
+public final class SpotTable {
+   // aim for this many spots per cell of the spatial grid
+   private static final int SPOTS_PER_CELL = 4;
+   private static final int MAX_CELLS = 1 << 22;
+
+   private final List<SpotData> spots_;
+   private final int size_;
+
+   private final int[] frames_;
+   private final int[] slices_;
+   private final int[] channels_;
+   private final int[] positions_;
+   private final int[] xs_;
+   private final int[] ys_;
+   private final double[] xCenters_;
+   private final double[] yCenters_;
+   private final double[] zCenters_;
+   private final float[] intensities_;
+   private final float[] backgrounds_;
+   private final float[] widths_;
+   private final float[] as_;
+   private final float[] thetas_;
+   private final float[] sigmas_;
+   private final Map<String, double[]> keyColumns_ = new HashMap<String, double[]>();
+   private final Map<String, BitSet> keyPresent_ = new HashMap<String, BitSet>();
+
+   // rows ordered by frame; rows of frame f are
+   // frameOrder_[frameStarts_[f - minFrame_]] until frameStarts_[f - minFrame_ + 1]
+   private int minFrame_;
+   private int[] frameOrder_;
+   private int[] frameStarts_;
+
+   // rows ordered by grid cell, in the same way as the frames
+   private double gridX_;
+   private double gridY_;
+   private double cellSize_;
+   private int gridWidth_;
+   private int gridHeight_;
+   private int[] cellOrder_;
+   private int[] cellStarts_;
+
+   /**
+    * Copies the values of all spots into columns and builds the indices.
+    * Null entries in the list are skipped.
+    *
+    * @param spotList spots to copy
+    */
+   public SpotTable(List<SpotData> spotList) {
+      spots_ = new ArrayList<SpotData>(spotList.size());
+      for (SpotData spot : spotList) {
+         if (spot != null) {
+            spots_.add(spot);
+         }
+      }
+      size_ = spots_.size();
+      frames_ = new int[size_];
+      slices_ = new int[size_];
+      channels_ = new int[size_];
+      positions_ = new int[size_];
+      xs_ = new int[size_];
+      ys_ = new int[size_];
+      xCenters_ = new double[size_];
+      yCenters_ = new double[size_];
+      zCenters_ = new double[size_];
+      intensities_ = new float[size_];
+      backgrounds_ = new float[size_];
+      widths_ = new float[size_];
+      as_ = new float[size_];
+      thetas_ = new float[size_];
+      sigmas_ = new float[size_];
+      for (int row = 0; row < size_; row++) {
+         SpotData spot = spots_.get(row);
+         frames_[row] = spot.getFrame();
+         slices_[row] = spot.getSlice();
+         channels_[row] = spot.getChannel();
+         positions_[row] = spot.getPosition();
+         xs_[row] = spot.getX();
+         ys_[row] = spot.getY();
+         xCenters_[row] = spot.getXCenter();
+         yCenters_[row] = spot.getYCenter();
+         zCenters_[row] = spot.getZCenter();
+         intensities_[row] = (float) spot.getIntensity();
+         backgrounds_[row] = (float) spot.getBackground();
+         widths_[row] = (float) spot.getWidth();
+         as_[row] = (float) spot.getA();
+         thetas_[row] = (float) spot.getTheta();
+         sigmas_[row] = (float) spot.getSigma();
+         for (String key : spot.getKeys()) {
+            double[] column = keyColumns_.get(key);
+            if (column == null) {
+               column = new double[size_];
+               keyColumns_.put(key, column);
+               keyPresent_.put(key, new BitSet(size_));
+            }
+            column[row] = spot.getValue(key);
+            keyPresent_.get(key).set(row);
+         }
+      }
+      indexFrames();
+      indexRegions();
+   }
+
+   public int size() {
+      return size_;
+   }
+
+   /**
+    * @param row row in this table
+    * @return the spot that this row was copied from
+    */
+   public SpotData getSpot(int row) {
+      return spots_.get(row);
+   }
+
+   public int getFrame(int row) {
+      return frames_[row];
+   }
+   public int getSlice(int row) {
+      return slices_[row];
+   }
+   public int getChannel(int row) {
+      return channels_[row];
+   }
+   public int getPosition(int row) {
+      return positions_[row];
+   }
+   public int getX(int row) {
+      return xs_[row];
+   }
+   public int getY(int row) {
+      return ys_[row];
+   }
+   public double getXCenter(int row) {
+      return xCenters_[row];
+   }
+   public double getYCenter(int row) {
+      return yCenters_[row];
+   }
+   public double getZCenter(int row) {
+      return zCenters_[row];
+   }
+   public float getIntensity(int row) {
+      return intensities_[row];
+   }
+   public float getBackground(int row) {
+      return backgrounds_[row];
+   }
+   public float getWidth(int row) {
+      return widths_[row];
+   }
+   public float getA(int row) {
+      return as_[row];
+   }
+   public float getTheta(int row) {
+      return thetas_[row];
+   }
+   public float getSigma(int row) {
+      return sigmas_[row];
+   }
+
+   public boolean hasKey(String key, int row) {
+      BitSet present = keyPresent_.get(key);
+      return present != null && present.get(row);
+   }
+
+   /**
+    * @param key one of the SpotData.Keys
+    * @param row row in this table
+    * @param fallbackValue returned when the spot has no value for this key
+    * @return value of the key for this spot
+    */
+   public double getValue(String key, int row, double fallbackValue) {
+      if (!hasKey(key, row)) {
+         return fallbackValue;
+      }
+      return keyColumns_.get(key)[row];
+   }
+
+   /**
+    * @param key one of the SpotData.Keys
+    * @return column of values for the key, or null when no spot has the key.
+    *         Only entries for which hasKey() is true are meaningful.  Do not
+    *         modify.
+    */
+   public double[] getKeyColumn(String key) {
+      return keyColumns_.get(key);
+   }
+
+   /**
+    * @param firstFrame first frame to include
+    * @param lastFrame last frame to include
+    * @return rows of the spots in these frames, in order of frame
+    */
+   public int[] getRowsInFrameRange(int firstFrame, int lastFrame) {
+      int first = Math.max(firstFrame - minFrame_, 0);
+      int last = Math.min(lastFrame - minFrame_, frameStarts_.length - 2);
+      if (first > last) {
+         return new int[0];
+      }
+      int start = frameStarts_[first];
+      int end = frameStarts_[last + 1];
+      int[] rows = new int[end - start];
+      System.arraycopy(frameOrder_, start, rows, 0, rows.length);
+      return rows;
+   }
+
+   /**
+    * @return rows of the spots whose center lies within the given rectangle
+    * (inclusive), in the units of the spot centers
+    */
+   public int[] getRowsInRegion(double minX, double minY, double maxX,
+           double maxY) {
+      int firstCol = Math.max(cell(minX, gridX_), 0);
+      int lastCol = Math.min(cell(maxX, gridX_), gridWidth_ - 1);
+      int firstRow = Math.max(cell(minY, gridY_), 0);
+      int lastRow = Math.min(cell(maxY, gridY_), gridHeight_ - 1);
+      int[] rows = new int[0];
+      if (firstCol > lastCol || firstRow > lastRow) {
+         return rows;
+      }
+      int count = 0;
+      for (int gy = firstRow; gy <= lastRow; gy++) {
+         int rowStart = gy * gridWidth_;
+         count += cellStarts_[rowStart + lastCol + 1] -
+                 cellStarts_[rowStart + firstCol];
+      }
+      rows = new int[count];
+      int n = 0;
+      for (int gy = firstRow; gy <= lastRow; gy++) {
+         int rowStart = gy * gridWidth_;
+         for (int i = cellStarts_[rowStart + firstCol];
+                 i < cellStarts_[rowStart + lastCol + 1]; i++) {
+            int row = cellOrder_[i];
+            if (xCenters_[row] >= minX && xCenters_[row] <= maxX &&
+                    yCenters_[row] >= minY && yCenters_[row] <= maxY) {
+               rows[n++] = row;
+            }
+         }
+      }
+      if (n < count) {
+         int[] tmp = new int[n];
+         System.arraycopy(rows, 0, tmp, 0, n);
+         rows = tmp;
+      }
+      return rows;
+   }
+
+   private int cell(double value, double origin) {
+      double c = Math.floor((value - origin) / cellSize_);
+      return (int) Math.max(Math.min(c, Integer.MAX_VALUE - 1), -1);
+   }
+
+   // Counting sort of the rows by frame
+   private void indexFrames() {
+      int minFrame = Integer.MAX_VALUE;
+      int maxFrame = Integer.MIN_VALUE;
+      for (int row = 0; row < size_; row++) {
+         minFrame = Math.min(minFrame, frames_[row]);
+         maxFrame = Math.max(maxFrame, frames_[row]);
+      }
+      if (size_ == 0) {
+         minFrame = 0;
+         maxFrame = -1;
+      }
+      minFrame_ = minFrame;
+      int[] keys = new int[size_];
+      for (int row = 0; row < size_; row++) {
+         keys[row] = frames_[row] - minFrame;
+      }
+      frameStarts_ = new int[maxFrame - minFrame + 2];
+      frameOrder_ = countingSort(keys, frameStarts_);
+   }
+
+   // Counting sort of the rows by cell of a uniform grid over the positions
+   private void indexRegions() {
+      double minX = Double.POSITIVE_INFINITY;
+      double minY = Double.POSITIVE_INFINITY;
+      double maxX = Double.NEGATIVE_INFINITY;
+      double maxY = Double.NEGATIVE_INFINITY;
+      for (int row = 0; row < size_; row++) {
+         if (!Double.isNaN(xCenters_[row]) && !Double.isNaN(yCenters_[row])) {
+            minX = Math.min(minX, xCenters_[row]);
+            maxX = Math.max(maxX, xCenters_[row]);
+            minY = Math.min(minY, yCenters_[row]);
+            maxY = Math.max(maxY, yCenters_[row]);
+         }
+      }
+      if (minX > maxX) {
+         minX = maxX = minY = maxY = 0.0;
+      }
+      double area = Math.max(maxX - minX, 1.0) * Math.max(maxY - minY, 1.0);
+      long nrCells = Math.min(Math.max(size_ / SPOTS_PER_CELL, 1), MAX_CELLS);
+      gridX_ = minX;
+      gridY_ = minY;
+      cellSize_ = Math.sqrt(area / nrCells);
+      gridWidth_ = (int) Math.min((maxX - minX) / cellSize_, MAX_CELLS) + 1;
+      gridHeight_ = (int) Math.min((maxY - minY) / cellSize_,
+              MAX_CELLS / gridWidth_) + 1;
+      int[] keys = new int[size_];
+      for (int row = 0; row < size_; row++) {
+         // positions that are NaN end up in cell 0; the exact test in
+         // getRowsInRegion() excludes them
+         int gx = Math.min(Math.max(cell(xCenters_[row], gridX_), 0), gridWidth_ - 1);
+         int gy = Math.min(Math.max(cell(yCenters_[row], gridY_), 0), gridHeight_ - 1);
+         keys[row] = gy * gridWidth_ + gx;
+      }
+      cellStarts_ = new int[gridWidth_ * gridHeight_ + 1];
+      cellOrder_ = countingSort(keys, cellStarts_);
+   }
+
+   /**
+    * @param keys bucket of each row, from 0 until starts.length - 1
+    * @param starts filled with the offset of each bucket in the result
+    * @return rows ordered by bucket
+    */
+   private static int[] countingSort(int[] keys, int[] starts) {
+      for (int key : keys) {
+         starts[key + 1]++;
+      }
+      for (int i = 1; i < starts.length; i++) {
+         starts[i] += starts[i - 1];
+      }
+      int[] next = starts.clone();
+      int[] order = new int[keys.length];
+      for (int row = 0; row < keys.length; row++) {
+         order[next[keys[row]]++] = row;
+      }
+      return order;
+   }
+}
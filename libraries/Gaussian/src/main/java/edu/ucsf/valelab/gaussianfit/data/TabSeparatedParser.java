@@ -0,0 +1,139 @@
+package edu.ucsf.valelab.gaussianfit.data;
+
+import java.util.Arrays;
+
+/**
+ * Splits a line of tab separated values and parses its fields as numbers,
+ * without creating a String for every field.
+ *
+ * Numbers with at most 15 significant digits and no exponent (as written by
+ * LoadAndSave) are parsed directly from the characters of the line; the
+ * result is the same as Double.parseDouble, since both the digits and the
+ * power of ten are exact doubles and a single division rounds correctly.
+ * Anything else is passed on to Double.parseDouble or Integer.parseInt, so
+ * malformed fields throw the same NumberFormatException as before.
+ *
+ * Not thread-safe; re-use one instance for all lines of a file.
+ *
+ * @author nico
+ */
+final class TabSeparatedParser {
+   private static final double[] POWERS_OF_TEN = new double[23];
+   static {
+      POWERS_OF_TEN[0] = 1.0;
+      for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+         POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10.0;
+      }
+   }
+   private static final int MAX_FAST_DIGITS = 15;
+
+   private String line_;
+   private int[] starts_ = new int[32];
+   private int[] ends_ = new int[32];
+   private int nrFields_;
+
+   /**
+    * Finds the fields of a new line.  As with String.split("\t"), empty
+    * fields at the end of the line are not counted.
+    *
+    * @param line line to split
+    * @return number of fields
+    */
+   int split(String line) {
+      line_ = line;
+      nrFields_ = 0;
+      int start = 0;
+      int length = line.length();
+      while (true) {
+         int end = line.indexOf('\t', start);
+         if (end < 0) {
+            end = length;
+         }
+         if (nrFields_ == starts_.length) {
+            starts_ = Arrays.copyOf(starts_, 2 * nrFields_);
+            ends_ = Arrays.copyOf(ends_, 2 * nrFields_);
+         }
+         starts_[nrFields_] = start;
+         ends_[nrFields_] = end;
+         nrFields_++;
+         if (end == length) {
+            break;
+         }
+         start = end + 1;
+      }
+      while (nrFields_ > 1 && starts_[nrFields_ - 1] == ends_[nrFields_ - 1]) {
+         nrFields_--;
+      }
+      return nrFields_;
+   }
+
+   int getNrFields() {
+      return nrFields_;
+   }
+
+   String getString(int field) {
+      return line_.substring(starts_[field], ends_[field]);
+   }
+
+   int getInt(int field) {
+      int start = starts_[field];
+      int end = ends_[field];
+      int i = start;
+      boolean negative = false;
+      if (i < end && (line_.charAt(i) == '-' || line_.charAt(i) == '+')) {
+         negative = line_.charAt(i) == '-';
+         i++;
+      }
+      // up to 9 digits can not overflow
+      if (i == end || end - i > 9) {
+         return Integer.parseInt(getString(field));
+      }
+      int value = 0;
+      for (; i < end; i++) {
+         int digit = line_.charAt(i) - '0';
+         if (digit < 0 || digit > 9) {
+            return Integer.parseInt(getString(field));
+         }
+         value = value * 10 + digit;
+      }
+      return negative ? -value : value;
+   }
+
+   double getDouble(int field) {
+      int start = starts_[field];
+      int end = ends_[field];
+      int i = start;
+      boolean negative = false;
+      if (i < end && (line_.charAt(i) == '-' || line_.charAt(i) == '+')) {
+         negative = line_.charAt(i) == '-';
+         i++;
+      }
+      long mantissa = 0;
+      int significantDigits = 0;
+      int fractionDigits = 0;
+      boolean hasDigits = false;
+      boolean afterPoint = false;
+      for (; i < end; i++) {
+         char c = line_.charAt(i);
+         if (c >= '0' && c <= '9') {
+            hasDigits = true;
+            mantissa = mantissa * 10 + (c - '0');
+            if (mantissa != 0 && ++significantDigits > MAX_FAST_DIGITS) {
+               return Double.parseDouble(getString(field));
+            }
+            if (afterPoint && ++fractionDigits >= POWERS_OF_TEN.length) {
+               return Double.parseDouble(getString(field));
+            }
+         } else if (c == '.' && !afterPoint) {
+            afterPoint = true;
+         } else {
+            return Double.parseDouble(getString(field));
+         }
+      }
+      if (!hasDigits) {
+         return Double.parseDouble(getString(field));
+      }
+      double value = mantissa / POWERS_OF_TEN[fractionDigits];
+      return negative ? -value : value;
+   }
+}
@@ -0,0 +1,382 @@
+package edu.ucsf.valelab.gaussianfit.data;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.ExtensionRegistry;
+import com.google.protobuf.InvalidProtocolBufferException;
+import edu.ucsf.valelab.tsf.MMLocM;
+import edu.ucsf.valelab.tsf.TaggedSpotsProtos;
+import ij.process.ImageProcessor;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads the spots of a .tsf (Tagged Spot File) in chunks that are decoded
+ * in parallel.
+ *
+ * The spots in a TSF file are length-delimited protocol buffer messages.
+ * Only the length prefixes need to be read in order, so this reader takes
+ * chunks of a few MB that end on a message boundary and hands them to a
+ * pool of threads for decoding.  At most a few chunks per thread are in
+ * memory at any time; the decoded chunks are joined in file order.
+ *
+ * The file is read either through ordinary reads or through a memory
+ * mapping.  Mapping saves copying the file through the kernel, but on
+ * Windows a mapped file can not be overwritten or deleted until the
+ * mapping is garbage collected.
+ *
+ * @author nico
+ */
+final class TsfSpotReader implements Closeable {
+   private static final int CHUNK_SIZE = 4 << 20;
+   // mapped windows are remapped at a message boundary when they run out
+   private static final long MAP_WINDOW_SIZE = 256L << 20;
+   private static final int NUM_THREADS =
+         Runtime.getRuntime().availableProcessors();
+   private static final ExecutorService EXECUTOR =
+         Executors.newFixedThreadPool(NUM_THREADS, r -> {
+            Thread thread = new Thread(r, "TSF decoder");
+            thread.setDaemon(true);
+            return thread;
+         });
+
+   private final RandomAccessFile file_;
+   private final FileChannel channel_;
+   private final boolean memoryMap_;
+   private final int chunkSize_;
+   private final TaggedSpotsProtos.SpotList spotList_;
+   private final ExtensionRegistry registry_;
+   // the spot messages lie between these file positions
+   private final long spotsStart_;
+   private final long spotsEnd_;
+
+   private MappedByteBuffer window_;
+   private long windowStart_;
+
+   private boolean hasZ_ = false;
+   private double minZ_ = Double.POSITIVE_INFINITY;
+   private double maxZ_ = Double.NEGATIVE_INFINITY;
+   private long nrErrors_ = 0;
+
+   /**
+    * Opens the file and reads its SpotList header.
+    *
+    * @param selectedFile .tsf file
+    * @param memoryMap when true, the file is memory mapped
+    * @throws IOException when the file can not be read or has no header
+    */
+   TsfSpotReader(File selectedFile, boolean memoryMap) throws IOException {
+      this(selectedFile, memoryMap, CHUNK_SIZE);
+   }
+
+   /**
+    * @param selectedFile .tsf file
+    * @param memoryMap when true, the file is memory mapped
+    * @param chunkSize number of bytes to read at a time, cut back to a
+    *                  message boundary
+    * @throws IOException when the file can not be read or has no header
+    */
+   TsfSpotReader(File selectedFile, boolean memoryMap, int chunkSize) 
+           throws IOException {
+      file_ = new RandomAccessFile(selectedFile, "r");
+      channel_ = file_.getChannel();
+      memoryMap_ = memoryMap;
+      chunkSize_ = chunkSize;
+      try {
+         // the new file format has an initial 0, then the offset (in long)
+         // to the position of spotList, which follows the spots
+         int magic = file_.readInt();
+         if (magic != 0) {
+            byte[] header = readDelimited(0);
+            spotList_ = TaggedSpotsProtos.SpotList.parseFrom(header);
+            spotsStart_ = CodedOutputStream.computeRawVarint32Size(header.length)
+                    + header.length;
+            spotsEnd_ = channel_.size();
+         } else {
+            long offset = file_.readLong();
+            spotsStart_ = 12;
+            spotsEnd_ = Math.min(spotsStart_ + offset, channel_.size());
+            spotList_ = TaggedSpotsProtos.SpotList.parseFrom(
+                    readDelimited(spotsEnd_));
+         }
+      } catch (IOException ex) {
+         file_.close();
+         throw ex;
+      }
+      registry_ = ExtensionRegistry.newInstance();
+      if (spotList_.getApplicationId() == LoadAndSave.MMAPPID) {
+         registry_.add(MMLocM.intensityAperture);
+         registry_.add(MMLocM.intensityBackground);
+         registry_.add(MMLocM.intensityRatio);
+         registry_.add(MMLocM.mSigma);
+         registry_.add(MMLocM.integralApertureSigma);
+      }
+   }
+
+   TaggedSpotsProtos.SpotList getSpotList() {
+      return spotList_;
+   }
+
+   boolean hasZ() {
+      return hasZ_;
+   }
+
+   double getMinZ() {
+      return minZ_;
+   }
+
+   double getMaxZ() {
+      return maxZ_;
+   }
+
+   /**
+    * @return number of spot messages that could not be decoded
+    */
+   long getNrErrors() {
+      return nrErrors_;
+   }
+
+   /**
+    * Reads and decodes all spots, showing progress in the ImageJ progress
+    * bar.  Spots that can not be decoded are counted and skipped, like
+    * before.
+    *
+    * @return spots in the order of the file
+    * @throws IOException when the file can not be read
+    * @throws InterruptedException when interrupted while decoding
+    */
+   List<SpotData> readSpots() throws IOException, InterruptedException {
+      final boolean mmApp = spotList_.getApplicationId() == LoadAndSave.MMAPPID;
+      long expectedSpots = spotList_.getNrSpots();
+      // do not trust the header with more than a moderate allocation
+      List<SpotData> spots = new ArrayList<SpotData>(
+              (int) Math.min(expectedSpots, 1 << 24));
+      Deque<Future<DecodedChunk>> pending = new ArrayDeque<Future<DecodedChunk>>();
+      long position = spotsStart_;
+      try {
+         while (position < spotsEnd_ &&
+                 (expectedSpots == 0 || spots.size() < expectedSpots)) {
+            final byte[] chunk = readChunk(position);
+            if (chunk == null) {
+               // truncated file, the last spot is lost
+               nrErrors_++;
+               break;
+            }
+            position += chunk.length;
+            pending.add(EXECUTOR.submit(() -> decode(chunk, mmApp)));
+            if (pending.size() >= 2 * NUM_THREADS) {
+               collect(pending.poll(), spots);
+               ij.IJ.showProgress((double) (position - spotsStart_)
+                       / (spotsEnd_ - spotsStart_));
+            }
+         }
+         while (!pending.isEmpty()) {
+            collect(pending.poll(), spots);
+         }
+      } finally {
+         for (Future<DecodedChunk> future : pending) {
+            future.cancel(true);
+         }
+      }
+      if (expectedSpots > 0 && spots.size() > expectedSpots) {
+         spots.subList((int) expectedSpots, spots.size()).clear();
+      }
+      return spots;
+   }
+
+   @Override
+   public void close() throws IOException {
+      window_ = null;
+      file_.close();
+   }
+
+   private void collect(Future<DecodedChunk> future, List<SpotData> spots)
+           throws InterruptedException {
+      DecodedChunk decoded;
+      try {
+         decoded = future.get();
+      } catch (ExecutionException e) {
+         throw new RuntimeException(e.getCause());
+      }
+      spots.addAll(decoded.spots_);
+      nrErrors_ += decoded.nrErrors_;
+      if (decoded.hasZ_) {
+         hasZ_ = true;
+         minZ_ = Math.min(minZ_, decoded.minZ_);
+         maxZ_ = Math.max(maxZ_, decoded.maxZ_);
+      }
+   }
+
+   /**
+    * Reads about chunkSize_ bytes from position, cut back to the end of the
+    * last complete message.  A chunk always holds at least one message.
+    *
+    * @return the chunk, or null if the file ends in the middle of a message
+    */
+   private byte[] readChunk(long position) throws IOException {
+      int length = (int) Math.min(chunkSize_, spotsEnd_ - position);
+      byte[] bytes = read(position, length);
+      int end = 0;
+      while (true) {
+         int messageEnd = messageEnd(bytes, end);
+         if (messageEnd > bytes.length || messageEnd < 0) {
+            break;
+         }
+         end = messageEnd;
+         if (end == bytes.length) {
+            break;
+         }
+      }
+      if (end == 0) {
+         // a single message larger than the chunk, which may not even hold
+         // all of its length prefix
+         byte[] prefix = bytes.length >= 5 ? bytes :
+                 read(position, (int) Math.min(5, spotsEnd_ - position));
+         int messageEnd = messageEnd(prefix, 0);
+         if (messageEnd < 0 || position + messageEnd > spotsEnd_) {
+            return null;
+         }
+         return read(position, messageEnd);
+      }
+      if (end < bytes.length) {
+         byte[] trimmed = new byte[end];
+         System.arraycopy(bytes, 0, trimmed, 0, end);
+         return trimmed;
+      }
+      return bytes;
+   }
+
+   /**
+    * @return position after the delimited message that starts at offset,
+    *         or -1 if its length prefix does not fit in the bytes
+    */
+   private static int messageEnd(byte[] bytes, int offset) throws IOException {
+      long size = 0;
+      for (int shift = 0; shift < 35; shift += 7) {
+         if (offset >= bytes.length) {
+            return -1;
+         }
+         byte b = bytes[offset++];
+         size |= (long) (b & 0x7f) << shift;
+         if (b >= 0) {
+            if (size > Integer.MAX_VALUE - offset) {
+               throw new IOException("Invalid spot size in TSF file");
+            }
+            return offset + (int) size;
+         }
+      }
+      throw new IOException("Invalid spot size in TSF file");
+   }
+
+   private static int prefixLength(byte[] bytes, int offset) {
+      int length = 1;
+      while (bytes[offset + length - 1] < 0) {
+         length++;
+      }
+      return length;
+   }
+
+   private byte[] readDelimited(long position) throws IOException {
+      byte[] prefix = read(position, (int) Math.min(5, channel_.size() - position));
+      int end = messageEnd(prefix, 0);
+      if (end < 0 || position + end > channel_.size()) {
+         throw new EOFException("Truncated TSF file");
+      }
+      int prefixLength = prefixLength(prefix, 0);
+      return read(position + prefixLength, end - prefixLength);
+   }
+
+   private byte[] read(long position, int length) throws IOException {
+      byte[] bytes = new byte[length];
+      if (memoryMap_) {
+         if (window_ == null || position < windowStart_ ||
+                 position + length > windowStart_ + window_.capacity()) {
+            long size = Math.min(Math.max(MAP_WINDOW_SIZE, length),
+                    channel_.size() - position);
+            window_ = channel_.map(FileChannel.MapMode.READ_ONLY, position, size);
+            windowStart_ = position;
+         }
+         ByteBuffer view = window_.duplicate();
+         view.position((int) (position - windowStart_));
+         view.get(bytes);
+      } else {
+         ByteBuffer buffer = ByteBuffer.wrap(bytes);
+         while (buffer.hasRemaining()) {
+            if (channel_.read(buffer, position + buffer.position()) < 0) {
+               throw new EOFException("Unexpected end of TSF file");
+            }
+         }
+      }
+      return bytes;
+   }
+
+   private static final class DecodedChunk {
+      final List<SpotData> spots_ = new ArrayList<SpotData>();
+      long nrErrors_ = 0;
+      boolean hasZ_ = false;
+      double minZ_ = Double.POSITIVE_INFINITY;
+      double maxZ_ = Double.NEGATIVE_INFINITY;
+   }
+
+   // readChunk() made sure that the chunk holds complete messages only
+   private DecodedChunk decode(byte[] chunk, boolean mmApp) throws IOException {
+      DecodedChunk decoded = new DecodedChunk();
+      int offset = 0;
+      while (offset < chunk.length) {
+         int end = messageEnd(chunk, offset);
+         int start = offset + prefixLength(chunk, offset);
+         int size = end - start;
+         offset = end;
+         TaggedSpotsProtos.Spot pSpot;
+         try {
+            pSpot = TaggedSpotsProtos.Spot.PARSER.parseFrom(chunk, start, size,
+                    registry_);
+         } catch (InvalidProtocolBufferException ipbe) {
+            decoded.nrErrors_++;
+            continue;
+         }
+         SpotData gSpot = new SpotData((ImageProcessor) null, pSpot.getChannel(),
+                 pSpot.getSlice(), pSpot.getFrame(), pSpot.getPos(),
+                 pSpot.getMolecule(), pSpot.getXPosition(), pSpot.getYPosition());
+         gSpot.setData(pSpot.getIntensity(), pSpot.getBackground(), pSpot.getX(),
+                 pSpot.getY(), 0.0, pSpot.getWidth(), pSpot.getA(), pSpot.getTheta(),
+                 pSpot.getXPrecision());
+         if (mmApp) {
+            gSpot.addKeyValue(SpotData.Keys.APERTUREINTENSITY,
+                    pSpot.getExtension(MMLocM.intensityAperture));
+            gSpot.addKeyValue(SpotData.Keys.APERTUREBACKGROUND,
+                    pSpot.getExtension(MMLocM.intensityBackground));
+            gSpot.addKeyValue(SpotData.Keys.INTENSITYRATIO,
+                    pSpot.getExtension(MMLocM.intensityRatio));
+            gSpot.addKeyValue(SpotData.Keys.MSIGMA,
+                    pSpot.getExtension(MMLocM.mSigma));
+            if (pSpot.hasExtension(MMLocM.integralApertureSigma)) {
+               gSpot.addKeyValue(SpotData.Keys.INTEGRALAPERTURESIGMA,
+                       pSpot.getExtension(MMLocM.integralApertureSigma));
+            }
+         }
+         if (pSpot.hasZ()) {
+            double zc = pSpot.getZ();
+            gSpot.setZCenter(zc);
+            decoded.hasZ_ = true;
+            decoded.minZ_ = Math.min(decoded.minZ_, zc);
+            decoded.maxZ_ = Math.max(decoded.maxZ_, zc);
+         }
+         decoded.spots_.add(gSpot);
+      }
+      return decoded;
+   }
+}
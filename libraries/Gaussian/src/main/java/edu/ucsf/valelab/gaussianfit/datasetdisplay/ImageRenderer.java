@@ -33,7 +33,7 @@ either expressed or implied, of the FreeBSD Project.
 package edu.ucsf.valelab.gaussianfit.datasetdisplay;
 
 import edu.ucsf.valelab.gaussianfit.datasettransformations.SpotDataFilter;
-import edu.ucsf.valelab.gaussianfit.data.SpotData;
+import edu.ucsf.valelab.gaussianfit.data.SpotTable;
 import edu.ucsf.valelab.gaussianfit.utils.GaussianUtils;
 import edu.ucsf.valelab.gaussianfit.data.RowData;
 import ij.ImageStack;
@@ -92,6 +92,13 @@ public class ImageRenderer {
       int endy = rect.y + rect.height;
       final int size = width * height;
       double factor = magnification / rowData.pixelSizeNm_;
+      
+      // Only visit the spots inside the rendered area (in nm, with a margin
+      // of one rendered pixel for rounding), and filter them all at once
+      final SpotTable table = rowData.getSpotTable();
+      final boolean[] accepted = sf.filter(table);
+      final int[] rows = table.getRowsInRegion((rect.x - 1) / factor, 
+              (rect.y - 1) / factor, (endx + 1) / factor, (endy + 1) / factor);
 
 
       try {
@@ -100,10 +107,10 @@ public class ImageRenderer {
                ip = new ShortProcessor(width, height);
                short pixels[] = new short[size];
                ip.setPixels(pixels);
-               for (SpotData spot : rowData.spotList_) {
-                  if (sf.filter(spot)) {
-                     int x = (int) (factor * spot.getXCenter());
-                     int y = (int) (factor * spot.getYCenter());
+               for (int row : rows) {
+                  if (accepted[row]) {
+                     int x = (int) (factor * table.getXCenter(row));
+                     int y = (int) (factor * table.getYCenter(row));
                      if (x > rect.x && x < endx && y > rect.y && y < endy) {
                         x -= rect.x;
                         y -= rect.y;
@@ -124,16 +131,16 @@ public class ImageRenderer {
                   sp[i].setPixels(pixels[i]);
                }
                double spread = rowData.maxZ_ - rowData.minZ_;
-               for (SpotData spot : rowData.spotList_) {
-                  if (sf.filter(spot)) {
-                     int x = (int) (factor * spot.getXCenter());
-                     int y = (int) (factor * spot.getYCenter());
+               for (int row : rows) {
+                  if (accepted[row]) {
+                     int x = (int) (factor * table.getXCenter(row));
+                     int y = (int) (factor * table.getYCenter(row));
                      if (x > rect.x && x < endx && y > rect.y && y < endy) {
                         x -= rect.x;
                         y -= rect.y;
                         int index = (y * width) + x;
                         if (index < size && index > 0) {
-                           int zIndex = (int) (256 * (spot.getZCenter() - rowData.minZ_) / spread);
+                           int zIndex = (int) (256 * (table.getZCenter(row) - rowData.minZ_) / spread);
                            if (zIndex < 0) {
                               zIndex = 0;
                            }
@@ -184,20 +191,22 @@ public class ImageRenderer {
             ip.setPixels(pixels);
 
             ij.IJ.showStatus("Rendering Image...");
-            int updateQuantum = rowData.spotList_.size() / 100;
+            int updateQuantum = Math.max(rows.length / 100, 1);
             int counter = 0;
             int spotsUsed = 0;
-            for (SpotData spot : rowData.spotList_) {
+            for (int row : rows) {
                if (counter % updateQuantum == 0) {
-                  ij.IJ.showProgress(counter, rowData.spotList_.size());
+                  ij.IJ.showProgress(counter, rows.length);
                }
 
 
-               if (sf.filter(spot)) {
-
+               if (accepted[row]) {
+                  final double xCenter = table.getXCenter(row);
+                  final double yCenter = table.getYCenter(row);
+                  final double sigma = table.getSigma(row);
 
                   // cover 3 * precision
-                  int halfWidth = (int) (2 * spot.getSigma() / renderedPixelInNm);
+                  int halfWidth = (int) (2 * sigma / renderedPixelInNm);
                   if (halfWidth == 0) {
                      halfWidth = 2;
                   }
@@ -211,8 +220,8 @@ public class ImageRenderer {
                    * sig = params[S]
                    * 
                    */
-                  int xc = (int) (factor * spot.getXCenter());
-                  int yc = (int) (factor * spot.getYCenter());
+                  int xc = (int) (factor * xCenter);
+                  int yc = (int) (factor * yCenter);
                   //int xc = (int) Math.round(spot.getXCenter() / renderedPixelInNm);
                   //int yc = (int) Math.round(spot.getYCenter() / renderedPixelInNm);
 
@@ -233,9 +242,9 @@ public class ImageRenderer {
                         for (int x = xStart; x < xEnd; x++) {
                            for (int y = yStart; y < yEnd; y++) {
                               double[] parms = {1.0, 0.0,
-                                 spot.getXCenter() / renderedPixelInNm,
-                                 spot.getYCenter() / renderedPixelInNm,
-                                 spot.getSigma() / renderedPixelInNm};
+                                 xCenter / renderedPixelInNm,
+                                 yCenter / renderedPixelInNm,
+                                 sigma / renderedPixelInNm};
                               double val = GaussianUtils.gaussian(parms, x, y);
                               totalInt += val;
                               if (normalize) {
@@ -345,11 +354,14 @@ public class ImageRenderer {
             is.addSlice(ip[i]);
          }
 
-         for (SpotData spot : rowData.spotList_) {
-            if (sf.filter(spot)) {
-               int x = (int) (factor * spot.getXCenter());
-               int y = (int) (factor * spot.getYCenter());
-               int z = (int) (factor * (spot.getZCenter() - rowData.minZ_) * 500.0);
+         final SpotTable table = rowData.getSpotTable();
+         final boolean[] accepted = sf.filter(table);
+         for (int row : table.getRowsInRegion((rect.x - 1) / factor, 
+                 (rect.y - 1) / factor, (endx + 1) / factor, (endy + 1) / factor)) {
+            if (accepted[row]) {
+               int x = (int) (factor * table.getXCenter(row));
+               int y = (int) (factor * table.getYCenter(row));
+               int z = (int) (factor * (table.getZCenter(row) - rowData.minZ_) * 500.0);
                if (x > rect.x && x < endx && y > rect.y && y < endy) {
                   x -= rect.x;
                   y -= rect.y;
@@ -34,11 +34,13 @@ import edu.ucsf.valelab.gaussianfit.data.SpotData;
 import edu.ucsf.valelab.gaussianfit.algorithm.JitterDetector;
 import static edu.ucsf.valelab.gaussianfit.DataCollectionForm.getInstance;
 import edu.ucsf.valelab.gaussianfit.data.RowData;
+import edu.ucsf.valelab.gaussianfit.data.SpotTable;
 import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
 import java.awt.Point;
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
@@ -202,21 +204,14 @@ public class DriftCorrector {
 
 
                // take the first image as reference
-               for (SpotData spot : rowData.spotList_) {
-                  int j;
-                  if (useSlices) {
-                     j = (spot.getSlice() - 1) / framesToCombine;
-                  } else {
-                     j = (spot.getFrame() - 1) / framesToCombine;
-                  }
-                  if (j == 0) {
-                     int x = (int) (factor * spot.getXCenter());
-                     int y = (int) (factor * spot.getYCenter());
-                     int index = (y * width) + x;
-                     if (index < size && index > 0) {
-                        if (pixelsRef[index] != -1) {
-                           pixelsRef[index] += 1;
-                        }
+               SpotTable table = rowData.getSpotTable();
+               for (int row : rowsOfTest(table, useSlices, 0, framesToCombine)) {
+                  int x = (int) (factor * table.getXCenter(row));
+                  int y = (int) (factor * table.getYCenter(row));
+                  int index = (y * width) + x;
+                  if (index < size && index > 0) {
+                     if (pixelsRef[index] != -1) {
+                        pixelsRef[index] += 1;
                      }
                   }
                }
@@ -238,21 +233,13 @@ public class DriftCorrector {
                      ipTest.set(p, 0);
                   }
                   
-                  for (SpotData spot : rowData.spotList_) {
-                     int j;
-                     if (useSlices) {
-                        j = (spot.getSlice() - 1) / framesToCombine;
-                     } else {
-                        j = (spot.getFrame() - 1) / framesToCombine;
-                     }
-                     if (j == i) {
-                        int x = (int) (factor * spot.getXCenter());
-                        int y = (int) (factor * spot.getYCenter());
-                        int index = (y * width) + x;
-                        if (index < size && index > 0) {
-                           if (pixelsTest[index] != -1) {
-                              pixelsTest[index] += 1;
-                           }
+                  for (int row : rowsOfTest(table, useSlices, i, framesToCombine)) {
+                     int x = (int) (factor * table.getXCenter(row));
+                     int y = (int) (factor * table.getYCenter(row));
+                     int index = (y * width) + x;
+                     if (index < size && index > 0) {
+                        if (pixelsTest[index] != -1) {
+                           pixelsTest[index] += 1;
                         }
                      }
                   }
@@ -386,6 +373,32 @@ public class DriftCorrector {
       (new Thread(doWorkRunnable)).start();
    }
    
+   /**
+    * Finds the spots that go into one of the images used for jitter
+    * correction.  Frames are looked up in the frame index of the table,
+    * slices are scanned.
+    * 
+    * @param table spots of the data set
+    * @param useSlices whether to group spots by slice instead of by frame
+    * @param test index of the image
+    * @param framesToCombine nr of frames or slices in each image
+    * @return rows of the table with the spots in this image
+    */
+   private static int[] rowsOfTest(SpotTable table, boolean useSlices, 
+           int test, int framesToCombine) {
+      if (!useSlices) {
+         return table.getRowsInFrameRange(test * framesToCombine + 1, 
+                 (test + 1) * framesToCombine);
+      }
+      int[] rows = new int[table.size()];
+      int n = 0;
+      for (int row = 0; row < table.size(); row++) {
+         if ((table.getSlice(row) - 1) / framesToCombine == test) {
+            rows[n++] = row;
+         }
+      }
+      return Arrays.copyOf(rows, n);
+   }
 
    
    /**
@@ -30,6 +30,8 @@ either expressed or implied, of the FreeBSD Project.
 package edu.ucsf.valelab.gaussianfit.datasettransformations;
 
 import edu.ucsf.valelab.gaussianfit.data.SpotData;
+import edu.ucsf.valelab.gaussianfit.data.SpotTable;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -95,8 +97,8 @@ public class SpotDataFilter {
       final String INTEGRALSIGMA = SpotData.Keys.INTEGRALSIGMA;
       if (useSigma_) {
          if (spot.hasKey(INTEGRALSIGMA) && (  // return false if no IntegralSigma found?
-                 spot.getValue(INTEGRALSIGMA)) < sigmaMin_ || 
-                 spot.getValue(INTEGRALSIGMA) > sigmaMax_)
+                 spot.getValue(INTEGRALSIGMA) < sigmaMin_ || 
+                 spot.getValue(INTEGRALSIGMA) > sigmaMax_) )
             return false;
       }
       if (useIntensity_) {
@@ -121,6 +123,46 @@ public class SpotDataFilter {
       return true;
    }
    
+   /**
+    * Applies the filter to all spots of a table, one value at a time.
+    * Spots without a value for a filtered key are accepted.
+    * 
+    * @param table - spots to be filtered
+    * @return array with, for each row of the table, true if the spot is
+    *         acceptable
+    */
+   public boolean[] filter (SpotTable table) {
+      boolean[] accepted = new boolean[table.size()];
+      Arrays.fill(accepted, true);
+      if (useSigma_) {
+         reject(table, SpotData.Keys.INTEGRALSIGMA, sigmaMin_, sigmaMax_, 
+                 accepted);
+      }
+      if (useIntensity_) {
+         reject(table, SpotData.Keys.APERTUREINTENSITY, intensityMin_, 
+                 intensityMax_, accepted);
+      }
+      for (Map.Entry<String, Extremes> entry : itemFilter_.entrySet()) {
+         reject(table, entry.getKey(), entry.getValue().minimum_, 
+                 entry.getValue().maximum_, accepted);
+      }
+      return accepted;
+   }
+   
+   private static void reject(SpotTable table, String key, double min, 
+           double max, boolean[] accepted) {
+      double[] column = table.getKeyColumn(key);
+      if (column == null) {
+         return;
+      }
+      for (int row = 0; row < accepted.length; row++) {
+         if (accepted[row] && table.hasKey(key, row) && 
+                 (column[row] < min || column[row] > max)) {
+            accepted[row] = false;
+         }
+      }
+   }
+   
    
    
 }
@@ -66,6 +66,7 @@ import java.util.List;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import org.micromanager.Studio;
 import org.micromanager.data.Coords;
 import org.micromanager.data.Coords.CoordsBuilder;
@@ -77,6 +78,9 @@ import org.micromanager.display.DisplayWindow;
  * @author nico
  */
 public class FitAllThread extends GaussianInfo implements Runnable  {
+   // Spots waiting to be fitted.  Peak finding blocks when this many are
+   // queued, to avoid running out of memory.
+   private static final int MAX_QUEUED_SPOTS = 100000;
    double[] params0_;
    double[] steps_ = new double[5];
    GaussianFitStackThread[] gfsThreads_;
@@ -145,7 +149,7 @@ public class FitAllThread extends GaussianInfo implements Runnable  {
    public void run() {
 
       // List with spot positions found through the Find Maxima command
-      sourceList_ = new LinkedBlockingQueue<SpotData>();
+      sourceList_ = new LinkedBlockingQueue<SpotData>(MAX_QUEUED_SPOTS);
       resultList_ = Collections.synchronizedList(new ArrayList<SpotData>());
 
       // take the active ImageJ image
@@ -300,7 +304,8 @@ public class FitAllThread extends GaussianInfo implements Runnable  {
       DecimalFormat df0 = new DecimalFormat("#");
       studio_.alerts().postAlert("Spot analysis results", FitAllThread.class, 
               "Analyzed " + resultList_.size() + " spots in " + df2.format(took)
-              + " seconds (" + df0.format(rate) + " spots/sec.)");
+              + " seconds (" + df0.format(rate) + " spots/sec., " 
+              + df0.format(rate / nrThreads_) + " per thread)");
 
       running_ = false;
    }
@@ -346,17 +351,6 @@ public class FitAllThread extends GaussianInfo implements Runnable  {
                      if (!running_) {
                         break;
                      }
-                     // to avoid making a gigantic sourceList and running out of memory
-                     // sleep a bit when the sourcesize gets too big
-                     // once we have very fast multi-core computers, this constant can be increased
-                     if (sourceList_.size() > 100000) {
-                        try {
-                           Thread.sleep(1000);
-                        } catch (InterruptedException ex) {
-                           // not sure what to do
-                        }
-                     }
-
                      imageCount++;
                      ij.IJ.showStatus("Processing image " + imageCount);
 
@@ -403,7 +397,7 @@ public class FitAllThread extends GaussianInfo implements Runnable  {
 
                      Arrays.sort(sC, new SpotSortComparator());
 
-                     for (int j = 0; j < sC.length; j++) {
+                     for (int j = 0; j < sC.length && running_; j++) {
                         // filter out spots too close to the edge
                         if (sC[j][0] > halfSize && sC[j][0] < siPlus.getWidth() - halfSize
                                 && sC[j][1] > halfSize && sC[j][1] < siPlus.getHeight() - halfSize) {
@@ -417,7 +411,13 @@ public class FitAllThread extends GaussianInfo implements Runnable  {
                            SpotData thisSpot = new SpotData(sp, channel, z, f,
                                    position, j, sC[j][0], sC[j][1]);
                            try {
-                              sourceList_.put(thisSpot);
+                              // blocks while the fitters catch up
+                              while (!sourceList_.offer(thisSpot, 100, 
+                                      TimeUnit.MILLISECONDS)) {
+                                 if (!running_) {
+                                    break;
+                                 }
+                              }
                            } catch (InterruptedException iex) {
                               Thread.currentThread().interrupt();
                               throw new RuntimeException("Unexpected interruption");
@@ -440,7 +440,12 @@ public class FitAllThread extends GaussianInfo implements Runnable  {
       // Send working threads signal that we are done:
       SpotData lastSpot = new SpotData(null, -1, 1, -1, -1, -1, -1, -1);
       try {
-         sourceList_.put(lastSpot);
+         while (!sourceList_.offer(lastSpot, 100, TimeUnit.MILLISECONDS)) {
+            if (!running_) {
+               // fitters were stopped and will not empty the queue
+               sourceList_.clear();
+            }
+         }
       } catch (InterruptedException iex) {
          Thread.currentThread().interrupt();
          throw new RuntimeException("Unexpected interruption");
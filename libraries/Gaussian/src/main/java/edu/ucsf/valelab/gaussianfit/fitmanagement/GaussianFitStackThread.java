@@ -39,6 +39,7 @@ import edu.ucsf.valelab.gaussianfit.data.SpotData;
 import edu.ucsf.valelab.gaussianfit.fitting.ZCalibrator;
 import ij.ImagePlus;
 import ij.process.ImageProcessor;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import edu.ucsf.valelab.gaussianfit.utils.ReportingUtils;
@@ -49,6 +50,8 @@ import edu.ucsf.valelab.gaussianfit.utils.ReportingUtils;
  * @author nico
  */
 public class GaussianFitStackThread extends GaussianInfo implements Runnable {
+   // Spots taken from the queue at once, to reduce contention on GFSLOCK
+   private static final int BATCH_SIZE = 64;
 
    Thread t_;
    boolean stopNow_ = false;
@@ -85,15 +88,20 @@ public class GaussianFitStackThread extends GaussianInfo implements Runnable {
             super.getUseFixedWidth(), super.getFixedWidthNm() / super.getPixelSize() / 2);
       ZCalibrator zc = DataCollectionForm.zc_;
 
-      while (!stopNow_) {
-         SpotData spot;
+      List<SpotData> batch = new ArrayList<SpotData>(BATCH_SIZE);
+      boolean lastBatch = false;
+      while (!stopNow_ && !lastBatch) {
+         batch.clear();
          synchronized (GFSLOCK) {
             try {
-               spot = sourceList_.take();
+               batch.add(sourceList_.take());
+               sourceList_.drainTo(batch, BATCH_SIZE - 1);
                // Look for signal that we are done, add back to queue if found
-               if (spot.getFrame() == -1) {
-                  sourceList_.add(spot);
-                  return;
+               SpotData last = batch.get(batch.size() - 1);
+               if (last.getFrame() == -1) {
+                  batch.remove(batch.size() - 1);
+                  sourceList_.add(last);
+                  lastBatch = true;
                }
             } catch (InterruptedException iExp) {
                ij.IJ.log("Thread interruped  " + Thread.currentThread().getName());
@@ -101,30 +109,35 @@ public class GaussianFitStackThread extends GaussianInfo implements Runnable {
             }
          }
 
-         try {
-            // Note: the implementation will try to return a cached version of the ImageProcessor
-            ImageProcessor ip = spot.getSpotProcessor(siPlus_, super.getHalfBoxSize());
-            GaussianFit.Data fitResult = gs_.dogaussianfit(ip, maxIterations_);
-            // Note that the copy constructor will not copy pixel data, so we loose 
-            // those when spot goes out of scope
-            SpotData spotData = SpotDataConverter.convert(spot, fitResult, this, zc);
-            
-            if ( fitResult.getParms().length > 1 &&
-                    (!useWidthFilter_ || 
-                    (spotData.getWidth() > widthMin_ && spotData.getWidth() < widthMax_))
-                    && (!useNrPhotonsFilter_ || 
-                    (spotData.getIntensity() > nrPhotonsMin_ && spotData.getIntensity() < nrPhotonsMax_))) {
-               resultList_.add(spotData);
+         for (SpotData spot : batch) {
+            if (stopNow_) {
+               return;
             }
+            try {
+               // Note: the implementation will try to return a cached version of the ImageProcessor
+               ImageProcessor ip = spot.getSpotProcessor(siPlus_, super.getHalfBoxSize());
+               GaussianFit.Data fitResult = gs_.dogaussianfit(ip, maxIterations_);
+               // Note that the copy constructor will not copy pixel data, so we loose 
+               // those when spot goes out of scope
+               SpotData spotData = SpotDataConverter.convert(spot, fitResult, this, zc);
+
+               if ( fitResult.getParms().length > 1 &&
+                       (!useWidthFilter_ || 
+                       (spotData.getWidth() > widthMin_ && spotData.getWidth() < widthMax_))
+                       && (!useNrPhotonsFilter_ || 
+                       (spotData.getIntensity() > nrPhotonsMin_ && spotData.getIntensity() < nrPhotonsMax_))) {
+                  resultList_.add(spotData);
+               }
 
 
-         } catch (Exception ex) {
-            ReportingUtils.logError(ex);
-            ReportingUtils.logError("Thread run out of memory  " + 
-                    Thread.currentThread().getName());
-            ReportingUtils.showError("Fitter out of memory.\n" +
-                    "Out of memory error");
-            return;
+            } catch (Exception ex) {
+               ReportingUtils.logError(ex);
+               ReportingUtils.logError("Thread run out of memory  " + 
+                       Thread.currentThread().getName());
+               ReportingUtils.showError("Fitter out of memory.\n" +
+                       "Out of memory error");
+               return;
+            }
          }
       }
    }
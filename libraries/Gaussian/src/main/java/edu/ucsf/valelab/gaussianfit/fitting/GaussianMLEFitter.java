@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2020, Regents the University of California
+ * Author: Nico Stuurman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * * Redistributions of source code must retain the above copyright notice, this
+ *   list of conditions and the following disclaimer.
+ * * Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package edu.ucsf.valelab.gaussianfit.fitting;
+
+import edu.ucsf.valelab.gaussianfit.utils.GaussianUtils;
+
+/**
+ * Maximum likelihood fit of a Gaussian to a spot with Poisson noise, using
+ * Levenberg-Marquardt with the analytic Jacobians in GaussianUtils.
+ *
+ * Minimizes chi2 = 2 * sum(mu - n) - 2 * sum(n * ln(mu / n)), with mu the
+ * expected and n the observed value of each pixel, as described in
+ *         http://dx.doi.org/10.1038/nmeth0510-338
+ * The gradient is 2 * sum((1 - n / mu) * dmu), and the curvature is
+ * approximated by 2 * sum(n / mu^2 * dmu * dmu).
+ *
+ * All work arrays are kept between fits, so one instance should be used
+ * per thread and re-used for all spots of the same box size.
+ *
+ * @author nico
+ */
+public class GaussianMLEFitter {
+   private static final double START_LAMBDA = 0.001;
+   private static final double MAX_LAMBDA = 1.0e10;
+   private static final double RELATIVE_TOLERANCE = 1.0e-9;
+
+   private final int shape_;
+   private final double s_;     // width of Gaussian in pixels, negative if it will be estimated
+   private final boolean fitWidth_;
+
+   private int[] data_;
+   private int nx_;
+   private int ny_;
+   // work arrays, sized for the number of parameters
+   private double[] gradient_;
+   private double[][] curvature_;
+   private double[][] system_;
+   private double[] step_;
+   private double[] trial_;
+   // derivatives of one pixel, large enough for all shapes
+   private final double[] jacobian_ = new double[7];
+
+   /**
+    * @param shape 1=circle, 2=width varies in x and y, 3=ellipse
+    * @param s  width of Gaussian in pixels, negative if it should be fitted
+    */
+   public GaussianMLEFitter(int shape, double s) {
+      shape_ = shape;
+      s_ = s;
+      fitWidth_ = s_ <= 0.0;
+   }
+
+   /**
+    * Fits the Gaussian to the given pixels.
+    *
+    * @param pixels unsigned 16-bit pixels of the spot, row by row
+    * @param width width of the spot in pixels
+    * @param height height of the spot in pixels
+    * @param start initial estimate of the parameters, as in GaussianFit
+    * @param maxIterations maximum number of Levenberg-Marquardt steps
+    * @return fitted parameters
+    * @throws FittingException when no valid fit could be found
+    */
+   public double[] fit(short[] pixels, int width, int height, double[] start,
+           int maxIterations) throws FittingException {
+      setImage(pixels, width, height);
+      int n = start.length;
+      if (gradient_ == null || gradient_.length != n) {
+         gradient_ = new double[n];
+         curvature_ = new double[n][n];
+         system_ = new double[n][n + 1];
+         step_ = new double[n];
+         trial_ = new double[n];
+      }
+      double[] params = start.clone();
+      double chi2 = chi2(params);
+      if (Double.isInfinite(chi2) || Double.isNaN(chi2)) {
+         throw new FittingException("Invalid start parameters for MLE fit");
+      }
+      double lambda = START_LAMBDA;
+      for (int iteration = 0; iteration < maxIterations; iteration++) {
+         computeGradientAndCurvature(params);
+         double trialChi2 = Double.POSITIVE_INFINITY;
+         while (lambda < MAX_LAMBDA) {
+            if (solveStep(lambda)) {
+               for (int k = 0; k < n; k++) {
+                  trial_[k] = params[k] + step_[k];
+               }
+               trialChi2 = chi2(trial_);
+               if (trialChi2 < chi2) {
+                  break;
+               }
+            }
+            lambda *= 10.0;
+         }
+         if (!(trialChi2 < chi2)) {
+            // no step improves the fit, we are at the minimum
+            break;
+         }
+         System.arraycopy(trial_, 0, params, 0, n);
+         double improvement = chi2 - trialChi2;
+         chi2 = trialChi2;
+         lambda = Math.max(lambda / 10.0, 1.0e-10);
+         if (improvement <= RELATIVE_TOLERANCE * Math.abs(chi2)) {
+            break;
+         }
+      }
+      for (double param : params) {
+         if (Double.isNaN(param)) {
+            throw new FittingException("MLE fit did not converge");
+         }
+      }
+      return params;
+   }
+
+   private void setImage(short[] data, int width, int height) {
+      if (data_ == null || data_.length != data.length) {
+         data_ = new int[data.length];
+      }
+      for (int i = 0; i < data.length; i++) {
+         data_[i] = (int) data[i] & 0xffff;
+      }
+      nx_ = width;
+      ny_ = height;
+   }
+
+   private double chi2(double[] params) {
+      double chi2 = 0.0;
+      for (int j = 0; j < ny_; j++) {
+         for (int i = 0; i < nx_; i++) {
+            double mu = expectation(params, i, j);
+            if (!(mu > 0.0)) {
+               return Double.POSITIVE_INFINITY;
+            }
+            int observed = data_[(j * nx_) + i];
+            chi2 += mu - observed;
+            if (observed > 0) {
+               chi2 -= observed * Math.log(mu / observed);
+            }
+         }
+      }
+      return 2.0 * chi2;
+   }
+
+   private void computeGradientAndCurvature(double[] params) {
+      int n = params.length;
+      for (int k = 0; k < n; k++) {
+         gradient_[k] = 0.0;
+         for (int l = 0; l < n; l++) {
+            curvature_[k][l] = 0.0;
+         }
+      }
+      for (int j = 0; j < ny_; j++) {
+         for (int i = 0; i < nx_; i++) {
+            double mu = expectation(params, i, j);
+            jacobian(params, i, j);
+            int observed = data_[(j * nx_) + i];
+            double g = 2.0 * (1.0 - observed / mu);
+            double c = 2.0 * observed / (mu * mu);
+            for (int k = 0; k < n; k++) {
+               gradient_[k] += g * jacobian_[k];
+               for (int l = 0; l <= k; l++) {
+                  curvature_[k][l] += c * jacobian_[k] * jacobian_[l];
+               }
+            }
+         }
+      }
+      for (int k = 0; k < n; k++) {
+         for (int l = k + 1; l < n; l++) {
+            curvature_[k][l] = curvature_[l][k];
+         }
+      }
+   }
+
+   /**
+    * Solves (curvature + lambda * diag(curvature)) * step = -gradient by
+    * Gaussian elimination with partial pivoting.
+    *
+    * @return false if the system is singular
+    */
+   private boolean solveStep(double lambda) {
+      int n = step_.length;
+      for (int k = 0; k < n; k++) {
+         for (int l = 0; l < n; l++) {
+            system_[k][l] = curvature_[k][l];
+         }
+         // keep the diagonal positive for pixels that are all zero
+         system_[k][k] = curvature_[k][k] * (1.0 + lambda) + lambda * 1.0e-12;
+         system_[k][n] = -gradient_[k];
+      }
+      for (int col = 0; col < n; col++) {
+         int pivot = col;
+         for (int row = col + 1; row < n; row++) {
+            if (Math.abs(system_[row][col]) > Math.abs(system_[pivot][col])) {
+               pivot = row;
+            }
+         }
+         if (system_[pivot][col] == 0.0) {
+            return false;
+         }
+         double[] tmp = system_[col];
+         system_[col] = system_[pivot];
+         system_[pivot] = tmp;
+         for (int row = col + 1; row < n; row++) {
+            double factor = system_[row][col] / system_[col][col];
+            for (int l = col; l <= n; l++) {
+               system_[row][l] -= factor * system_[col][l];
+            }
+         }
+      }
+      for (int row = n - 1; row >= 0; row--) {
+         double sum = system_[row][n];
+         for (int l = row + 1; l < n; l++) {
+            sum -= system_[row][l] * step_[l];
+         }
+         step_[row] = sum / system_[row][row];
+         if (Double.isNaN(step_[row]) || Double.isInfinite(step_[row])) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   private double expectation(double[] params, int x, int y) {
+      switch (shape_) {
+         case 2:
+            return GaussianUtils.gaussian2DXY(params, x, y);
+         case 3:
+            return GaussianUtils.gaussian2DEllips(params, x, y);
+         default:
+            if (fitWidth_) {
+               return GaussianUtils.gaussian(params, x, y);
+            }
+            return GaussianUtils.gaussianFixS(params, s_, x, y);
+      }
+   }
+
+   /**
+    * Fills jacobian_ with the derivatives at the given pixel.
+    */
+   private void jacobian(double[] params, int x, int y) {
+      switch (shape_) {
+         case 2:
+            GaussianUtils.gaussianJ2DXY(params, x, y, jacobian_);
+            break;
+         case 3:
+            GaussianUtils.gaussianJ2DEllips(params, x, y, jacobian_);
+            break;
+         default:
+            if (fitWidth_) {
+               GaussianUtils.gaussianJ(params, x, y, jacobian_);
+            } else {
+               GaussianUtils.gaussianJFixS(params, s_, x, y, jacobian_);
+            }
+      }
+   }
+}
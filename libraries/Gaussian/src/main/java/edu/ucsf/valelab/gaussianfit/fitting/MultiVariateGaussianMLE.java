@@ -71,7 +71,9 @@ public class MultiVariateGaussianMLE implements DifferentiableMultivariateRealFu
    }
 
    public void setImage(short[] data, int width, int height) {
-      data_ = new int[data.length];
+      if (data_ == null || data_.length != data.length) {
+         data_ = new int[data.length];
+      }
       for (int i=0; i < data.length; i++) {
          data_[i] = (int) data [i] & 0xffff;
       }
@@ -58,6 +58,10 @@ public class ParametricGaussianFunction implements ParametricRealFunction{
       s_ = s;
       fitWidth_ = s <= 0.0; 
    }
+   
+   public int getImageWidth() {
+      return imageWidth_;
+   }
 
    /**
     * 
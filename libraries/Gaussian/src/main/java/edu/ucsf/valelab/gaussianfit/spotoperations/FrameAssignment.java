@@ -0,0 +1,339 @@
+package edu.ucsf.valelab.gaussianfit.spotoperations;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Assigns the spots of one frame to the ends of the tracks that are still
+ * active, so that the total squared distance is minimal.
+ *
+ * A track can only be linked to spots closer than maxDistance.  Tracks and
+ * spots that can reach each other, directly or through other tracks and
+ * spots, form a cluster; every cluster is solved on its own.  Clusters of
+ * one track or one spot are trivial.  Other clusters are solved with the
+ * Hungarian algorithm on a cost matrix in which every track and every spot
+ * can also stay unlinked (Jaqaman et al., 2008,
+ * http://dx.doi.org/10.1038/nmeth.1237).  Not linking costs a bit more than
+ * the largest allowed link, so as many links are made as possible.  Very
+ * large clusters are linked greedily, shortest distance first.
+ *
+ * @author nico
+ */
+final class FrameAssignment {
+   // larger clusters (tracks + spots) are not solved exactly
+   private static final int MAX_HUNGARIAN_SIZE = 400;
+
+   private FrameAssignment() {
+   }
+
+   /**
+    * @param xs x position of the last spot of each track
+    * @param ys y position of the last spot of each track
+    * @param frame spots of the next frame
+    * @param maxDistance maximum distance between linked spots
+    * @return for each track the index in frame of the spot linked to it, or
+    *         -1 if the track is not linked
+    */
+   static int[] assign(double[] xs, double[] ys, SpotGridIndex frame,
+           double maxDistance) {
+      final int nrTracks = xs.length;
+      final int nrSpots = frame.size();
+      int[] result = new int[nrTracks];
+      Arrays.fill(result, -1);
+      if (nrTracks == 0 || nrSpots == 0) {
+         return result;
+      }
+
+      // visit the tracks in the order of the grid cells their ends are in,
+      // so that consecutive searches look at the same part of the index
+      int[] visitOrder = tracksByCell(xs, ys, frame);
+      // candidate links of track t are spots[k] for k from
+      // candidateStarts[t] until candidateStarts[t + 1]
+      SpotGridIndex.Neighbours neighbours = new SpotGridIndex.Neighbours();
+      int[] candidateStarts = new int[nrTracks + 1];
+      int[] starts = new int[nrTracks];
+      int[] ends = new int[nrTracks];
+      for (int t : visitOrder) {
+         starts[t] = neighbours.size;
+         frame.within(xs[t], ys[t], neighbours);
+         ends[t] = neighbours.size;
+      }
+      if (neighbours.size == 0) {
+         return result;
+      }
+      // copy the candidates into track order
+      int[] spots = new int[neighbours.size];
+      double[] costs = new double[neighbours.size];
+      // union-find over tracks (0 .. nrTracks - 1) and spots (nrTracks ..)
+      int[] parents = new int[nrTracks + nrSpots];
+      for (int i = 0; i < parents.length; i++) {
+         parents[i] = i;
+      }
+      int next = 0;
+      for (int t = 0; t < nrTracks; t++) {
+         candidateStarts[t] = next;
+         for (int n = starts[t]; n < ends[t]; n++, next++) {
+            spots[next] = neighbours.indices[n];
+            costs[next] = neighbours.squaredDistances[n];
+            union(parents, t, nrTracks + spots[next]);
+         }
+      }
+      candidateStarts[nrTracks] = next;
+
+      // number the clusters with at least one link, and sort their tracks
+      // and spots by cluster
+      int[] clusterOfRoot = new int[parents.length];
+      Arrays.fill(clusterOfRoot, -1);
+      int nrClusters = 0;
+      int[] trackClusters = new int[nrTracks];
+      for (int t = 0; t < nrTracks; t++) {
+         trackClusters[t] = -1;
+         if (candidateStarts[t] < candidateStarts[t + 1]) {
+            int root = find(parents, t);
+            if (clusterOfRoot[root] == -1) {
+               clusterOfRoot[root] = nrClusters++;
+            }
+            trackClusters[t] = clusterOfRoot[root];
+         }
+      }
+      int[] spotClusters = new int[nrSpots];
+      for (int i = 0; i < nrSpots; i++) {
+         spotClusters[i] = clusterOfRoot[find(parents, nrTracks + i)];
+      }
+      int[] trackStarts = new int[nrClusters + 1];
+      int[] clusterTracks = sortByCluster(trackClusters, trackStarts);
+      int[] spotStarts = new int[nrClusters + 1];
+      int[] clusterSpots = sortByCluster(spotClusters, spotStarts);
+
+      double noLink = 1.05 * maxDistance * maxDistance;
+      // column of each spot in the cost matrix of its cluster
+      int[] columns = new int[nrSpots];
+      for (int c = 0; c < nrClusters; c++) {
+         int[] tracks = Arrays.copyOfRange(clusterTracks, trackStarts[c],
+                 trackStarts[c + 1]);
+         int[] clusterSpotList = Arrays.copyOfRange(clusterSpots, spotStarts[c],
+                 spotStarts[c + 1]);
+         if (tracks.length == 1 || clusterSpotList.length == 1) {
+            assignSingle(tracks, clusterSpotList.length == 1, spots, costs,
+                    candidateStarts, result);
+         } else if (tracks.length + clusterSpotList.length <= MAX_HUNGARIAN_SIZE) {
+            assignOptimal(tracks, clusterSpotList, spots, costs,
+                    candidateStarts, noLink, columns, result);
+         } else {
+            assignGreedy(tracks, spots, costs, candidateStarts, result);
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Counting sort of items by cluster; items in cluster -1 are left out.
+    *
+    * @param clusters cluster of each item
+    * @param starts filled with the offset of each cluster in the result
+    * @return items ordered by cluster
+    */
+   private static int[] sortByCluster(int[] clusters, int[] starts) {
+      for (int cluster : clusters) {
+         if (cluster >= 0) {
+            starts[cluster + 1]++;
+         }
+      }
+      for (int c = 1; c < starts.length; c++) {
+         starts[c] += starts[c - 1];
+      }
+      int[] next = starts.clone();
+      int[] items = new int[starts[starts.length - 1]];
+      for (int i = 0; i < clusters.length; i++) {
+         if (clusters[i] >= 0) {
+            items[next[clusters[i]]++] = i;
+         }
+      }
+      return items;
+   }
+
+   // Counting sort of the tracks by the cell of their last spot
+   private static int[] tracksByCell(double[] xs, double[] ys,
+           SpotGridIndex frame) {
+      int[] cells = new int[xs.length];
+      int[] starts = new int[frame.nrCells() + 1];
+      for (int t = 0; t < xs.length; t++) {
+         cells[t] = frame.cellOf(xs[t], ys[t]);
+         starts[cells[t] + 1]++;
+      }
+      for (int c = 1; c < starts.length; c++) {
+         starts[c] += starts[c - 1];
+      }
+      int[] order = new int[xs.length];
+      for (int t = 0; t < xs.length; t++) {
+         order[starts[cells[t]]++] = t;
+      }
+      return order;
+   }
+
+   /**
+    * One track, or one spot: the shortest link in the cluster wins.
+    */
+   private static void assignSingle(int[] tracks, boolean singleSpot,
+           int[] spots, double[] costs, int[] candidateStarts, int[] result) {
+      if (!singleSpot) {
+         int t = tracks[0];
+         int best = candidateStarts[t];
+         for (int k = best + 1; k < candidateStarts[t + 1]; k++) {
+            if (costs[k] < costs[best]) {
+               best = k;
+            }
+         }
+         result[t] = spots[best];
+         return;
+      }
+      int bestTrack = -1;
+      int best = -1;
+      for (int t : tracks) {
+         // all candidates of these tracks are the single spot
+         int k = candidateStarts[t];
+         if (best == -1 || costs[k] < costs[best]) {
+            best = k;
+            bestTrack = t;
+         }
+      }
+      result[bestTrack] = spots[best];
+   }
+
+   private static void assignGreedy(int[] tracks, int[] spots,
+           final double[] costs, int[] candidateStarts, int[] result) {
+      List<int[]> links = new ArrayList<int[]>();
+      for (int t : tracks) {
+         for (int k = candidateStarts[t]; k < candidateStarts[t + 1]; k++) {
+            links.add(new int[] {t, k});
+         }
+      }
+      links.sort((a, b) -> Double.compare(costs[a[1]], costs[b[1]]));
+      Set<Integer> takenSpots = new HashSet<Integer>();
+      for (int[] link : links) {
+         if (result[link[0]] == -1 && takenSpots.add(spots[link[1]])) {
+            result[link[0]] = spots[link[1]];
+         }
+      }
+   }
+
+   /**
+    * Solves the cluster exactly.  Rows are the tracks followed by one
+    * "new track" row per spot, columns the spots followed by one "end of
+    * track" column per track.
+    */
+   private static void assignOptimal(int[] tracks, int[] spotList,
+           int[] spots, double[] costs, int[] candidateStarts, double noLink,
+           int[] columns, int[] result) {
+      int r = tracks.length;
+      int c = spotList.length;
+      int n = r + c;
+      double blocked = noLink * (n + 1);
+      for (int j = 0; j < c; j++) {
+         columns[spotList[j]] = j;
+      }
+      double[][] matrix = new double[n][n];
+      for (int i = 0; i < n; i++) {
+         Arrays.fill(matrix[i], 0, c, blocked);
+         if (i < r) {
+            Arrays.fill(matrix[i], c, n, blocked);
+            matrix[i][c + i] = noLink;
+         } else {
+            // "new track" rows pair with "end of track" columns for free
+            matrix[i][i - r] = noLink;
+         }
+      }
+      for (int i = 0; i < r; i++) {
+         int t = tracks[i];
+         for (int k = candidateStarts[t]; k < candidateStarts[t + 1]; k++) {
+            matrix[i][columns[spots[k]]] = costs[k];
+         }
+      }
+      int[] rowOfColumn = hungarian(matrix);
+      for (int j = 0; j < c; j++) {
+         int i = rowOfColumn[j];
+         if (i < r && matrix[i][j] < blocked) {
+            result[tracks[i]] = spotList[j];
+         }
+      }
+   }
+
+   /**
+    * Hungarian algorithm with potentials, O(n^3).
+    *
+    * @param a square cost matrix
+    * @return for each column the row assigned to it
+    */
+   private static int[] hungarian(double[][] a) {
+      int n = a.length;
+      double[] u = new double[n + 1];
+      double[] v = new double[n + 1];
+      int[] p = new int[n + 1];
+      int[] way = new int[n + 1];
+      double[] minv = new double[n + 1];
+      boolean[] used = new boolean[n + 1];
+      for (int i = 1; i <= n; i++) {
+         p[0] = i;
+         int j0 = 0;
+         Arrays.fill(minv, Double.POSITIVE_INFINITY);
+         Arrays.fill(used, false);
+         do {
+            used[j0] = true;
+            int i0 = p[j0];
+            double delta = Double.POSITIVE_INFINITY;
+            int j1 = 0;
+            for (int j = 1; j <= n; j++) {
+               if (!used[j]) {
+                  double cur = a[i0 - 1][j - 1] - u[i0] - v[j];
+                  if (cur < minv[j]) {
+                     minv[j] = cur;
+                     way[j] = j0;
+                  }
+                  if (minv[j] < delta) {
+                     delta = minv[j];
+                     j1 = j;
+                  }
+               }
+            }
+            for (int j = 0; j <= n; j++) {
+               if (used[j]) {
+                  u[p[j]] += delta;
+                  v[j] -= delta;
+               } else {
+                  minv[j] -= delta;
+               }
+            }
+            j0 = j1;
+         } while (p[j0] != 0);
+         do {
+            int j1 = way[j0];
+            p[j0] = p[j1];
+            j0 = j1;
+         } while (j0 != 0);
+      }
+      int[] rowOfColumn = new int[n];
+      for (int j = 1; j <= n; j++) {
+         rowOfColumn[j - 1] = p[j] - 1;
+      }
+      return rowOfColumn;
+   }
+
+   private static int find(int[] parents, int node) {
+      while (parents[node] != node) {
+         parents[node] = parents[parents[node]];
+         node = parents[node];
+      }
+      return node;
+   }
+
+   private static void union(int[] parents, int a, int b) {
+      int rootA = find(parents, a);
+      int rootB = find(parents, b);
+      if (rootA != rootB) {
+         parents[rootB] = rootA;
+      }
+   }
+}
@@ -0,0 +1,216 @@
+package edu.ucsf.valelab.gaussianfit.spotoperations;
+
+import edu.ucsf.valelab.gaussianfit.data.SpotData;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Finds the spots of one frame that lie within a maximum distance of a given
+ * point.
+ *
+ * The spot centers are copied into arrays and sorted into a uniform grid
+ * whose cells are at least maxDistance wide, so that a search only needs to
+ * look at the 3 x 3 cells around the point.  The grid has about as many
+ * cells as there are spots.  Unlike NearestPointByData, the index is built
+ * completely in the constructor and never changes, so it can be built on
+ * another thread and shared.
+ *
+ * @author nico
+ */
+final class SpotGridIndex {
+   private static final ExecutorService EXECUTOR =
+         Executors.newFixedThreadPool(
+               Runtime.getRuntime().availableProcessors(), r -> {
+                  Thread thread = new Thread(r, "Spot index builder");
+                  thread.setDaemon(true);
+                  return thread;
+               });
+
+   private final List<SpotData> spots_;
+   // the positions again, ordered like order_, so that a search reads the
+   // spots of a cell from consecutive memory
+   private final double[] cellXs_;
+   private final double[] cellYs_;
+   private final double maxDistanceSquared_;
+   private final double originX_;
+   private final double originY_;
+   private final double cellSize_;
+   private final int gridWidth_;
+   private final int gridHeight_;
+   // indices of the spots ordered by cell; the spots in cell c are
+   // order_[cellStarts_[c]] until order_[cellStarts_[c + 1]]
+   private final int[] order_;
+   private final int[] cellStarts_;
+
+   /**
+    * @param spots spots of one frame
+    * @param maxDistance largest distance at which spots will be searched
+    */
+   SpotGridIndex(List<SpotData> spots, double maxDistance) {
+      spots_ = spots;
+      int n = spots.size();
+      double[] xs = new double[n];
+      double[] ys = new double[n];
+      maxDistanceSquared_ = maxDistance * maxDistance;
+      double minX = Double.POSITIVE_INFINITY;
+      double minY = Double.POSITIVE_INFINITY;
+      double maxX = Double.NEGATIVE_INFINITY;
+      double maxY = Double.NEGATIVE_INFINITY;
+      for (int i = 0; i < n; i++) {
+         xs[i] = spots.get(i).getXCenter();
+         ys[i] = spots.get(i).getYCenter();
+         minX = Math.min(minX, xs[i]);
+         minY = Math.min(minY, ys[i]);
+         maxX = Math.max(maxX, xs[i]);
+         maxY = Math.max(maxY, ys[i]);
+      }
+      if (n == 0 || !(minX <= maxX) || !(minY <= maxY)) {
+         minX = maxX = minY = maxY = 0.0;
+      }
+      double area = Math.max(maxX - minX, 1.0) * Math.max(maxY - minY, 1.0);
+      originX_ = minX;
+      originY_ = minY;
+      cellSize_ = Math.max(Math.max(maxDistance, Math.sqrt(area / Math.max(n, 1))),
+              Double.MIN_NORMAL);
+      gridWidth_ = (int) Math.min((maxX - minX) / cellSize_, n) + 1;
+      gridHeight_ = (int) Math.min((maxY - minY) / cellSize_, n) + 1;
+
+      int[] cells = new int[n];
+      cellStarts_ = new int[gridWidth_ * gridHeight_ + 1];
+      for (int i = 0; i < n; i++) {
+         cells[i] = cellOf(xs[i], ys[i]);
+         cellStarts_[cells[i] + 1]++;
+      }
+      for (int c = 1; c < cellStarts_.length; c++) {
+         cellStarts_[c] += cellStarts_[c - 1];
+      }
+      int[] next = cellStarts_.clone();
+      order_ = new int[n];
+      cellXs_ = new double[n];
+      cellYs_ = new double[n];
+      for (int i = 0; i < n; i++) {
+         int k = next[cells[i]]++;
+         order_[k] = i;
+         cellXs_[k] = xs[i];
+         cellYs_[k] = ys[i];
+      }
+   }
+
+   /**
+    * Spots found by within(), as parallel arrays that grow as needed.
+    */
+   static final class Neighbours {
+      int[] indices = new int[16];
+      double[] squaredDistances = new double[16];
+      int size = 0;
+
+      private void add(int index, double squaredDistance) {
+         if (size == indices.length) {
+            indices = Arrays.copyOf(indices, 2 * size);
+            squaredDistances = Arrays.copyOf(squaredDistances, 2 * size);
+         }
+         indices[size] = index;
+         squaredDistances[size] = squaredDistance;
+         size++;
+      }
+   }
+
+   /**
+    * Builds the indices of several frames at once, using all processors.
+    *
+    * @param frames spots of each frame, may contain null for frames without
+    *               spots
+    * @param maxDistance largest distance at which spots will be searched
+    * @return index for each frame, null where frames was null
+    * @throws InterruptedException when interrupted while waiting
+    */
+   static SpotGridIndex[] buildAll(List<List<SpotData>> frames,
+           final double maxDistance) throws InterruptedException {
+      SpotGridIndex[] indices = new SpotGridIndex[frames.size()];
+      List<Callable<SpotGridIndex>> tasks = new ArrayList<>(frames.size());
+      for (final List<SpotData> frame : frames) {
+         tasks.add(() -> frame == null ? null :
+                 new SpotGridIndex(frame, maxDistance));
+      }
+      List<Future<SpotGridIndex>> futures = EXECUTOR.invokeAll(tasks);
+      for (int f = 0; f < indices.length; f++) {
+         try {
+            indices[f] = futures.get(f).get();
+         } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+         }
+      }
+      return indices;
+   }
+
+   int size() {
+      return spots_.size();
+   }
+
+   SpotData get(int index) {
+      return spots_.get(index);
+   }
+
+   /**
+    * Adds the indices of all spots closer than maxDistance to (x, y), and
+    * their squared distances, to neighbours.
+    *
+    * @return number of spots added
+    */
+   int within(double x, double y, Neighbours neighbours) {
+      int found = 0;
+      int column = cellColumn(x);
+      int row = cellRow(y);
+      for (int gy = Math.max(row - 1, 0); gy <= Math.min(row + 1, gridHeight_ - 1); gy++) {
+         // the cells of a grid row are consecutive in order_
+         int rowStart = gy * gridWidth_;
+         int first = cellStarts_[rowStart + Math.max(column - 1, 0)];
+         int last = cellStarts_[rowStart + Math.min(column + 1, gridWidth_ - 1) + 1];
+         for (int k = first; k < last; k++) {
+            double distance = squaredDistance(k, x, y);
+            if (distance < maxDistanceSquared_) {
+               neighbours.add(order_[k], distance);
+               found++;
+            }
+         }
+      }
+      return found;
+   }
+
+   /**
+    * @return cell of the grid that (x, y) falls in, useful to visit points
+    *         in an order that keeps searches close together in memory
+    */
+   int cellOf(double x, double y) {
+      return cellRow(y) * gridWidth_ + cellColumn(x);
+   }
+
+   int nrCells() {
+      return gridWidth_ * gridHeight_;
+   }
+
+   // k is a position in order_
+   private double squaredDistance(int k, double x, double y) {
+      double dx = cellXs_[k] - x;
+      double dy = cellYs_[k] - y;
+      return dx * dx + dy * dy;
+   }
+
+   // Clamping keeps neighbouring cells neighbours, so points outside the
+   // grid are still found by the 3 x 3 search; NaN maps to cell 0
+   private int cellColumn(double x) {
+      double c = Math.floor((x - originX_) / cellSize_);
+      return (int) Math.max(Math.min(c, gridWidth_ - 1), 0);
+   }
+
+   private int cellRow(double y) {
+      double c = Math.floor((y - originY_) / cellSize_);
+      return (int) Math.max(Math.min(c, gridHeight_ - 1), 0);
+   }
+}
@@ -35,10 +35,8 @@ package edu.ucsf.valelab.gaussianfit.spotoperations;
 import edu.ucsf.valelab.gaussianfit.DataCollectionForm;
 import static edu.ucsf.valelab.gaussianfit.DataCollectionForm.getInstance;
 import edu.ucsf.valelab.gaussianfit.data.SpotData;
-import edu.ucsf.valelab.gaussianfit.data.GsSpotPair;
 import edu.ucsf.valelab.gaussianfit.data.RowData;
 import edu.ucsf.valelab.gaussianfit.data.TrackData;
-import java.awt.geom.Point2D;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -67,6 +65,10 @@ public class SpotLinker {
     * and the linked (averaged) spot is added to the destination list 
     * through the function linkSpots.  This code could also be used for spot tracking
     * 
+    * Spots are assigned to tracks so that the total distance over all links
+    * in a frame is minimal (see FrameAssignment), and each spot is linked to
+    * at most one track.
+    * 
     * @param rowData
     * @param maxDistance 
     */
@@ -74,10 +76,6 @@ public class SpotLinker {
       try {
          ij.IJ.showStatus("Linking spotData...");
          boolean useFrames = rowData.nrFrames_ > rowData.nrSlices_;
-         int nr = rowData.nrSlices_;
-         if (useFrames) {
-            nr = rowData.nrFrames_;
-         }
 
          // linked spots go here:
          List<SpotData> destList = new ArrayList<SpotData>();
@@ -87,52 +85,37 @@ public class SpotLinker {
          for (int pos = 1; pos <= rowData.nrPositions_; pos++) {
             for (int ch = 1; ch <= rowData.nrChannels_; ch++) {
                for (int s = 1; s <= rowData.nrSlices_; s++) {
-                  for (int f = 1; f <= rowData.nrFrames_; f++) {
-                     List<SpotData> spots = rowData.get(f, s, ch, pos);
-                     if (spots != null) {
-                        // keep track of spots in this frame added to tracks 
-                        List<SpotData> markedSpots = new ArrayList<SpotData>();
-                        // go through all tracks to see if they can be extended
-                        if (tracks.size() > 0) {
-                           ArrayList<GsSpotPair> gsSpots = new ArrayList<GsSpotPair>();
-                           for (SpotData spot : spots) {
-                              gsSpots.add(new GsSpotPair(spot, null,
-                                      new Point2D.Double(spot.getXCenter(), spot.getYCenter()),
-                                      new Point2D.Double(0.0, 0.0)));
-                           }
-                           NearestPointByData nsp = new NearestPointByData(gsSpots, maxDistance);
-                           List<List<SpotData>> removedTracks = 
-                                   new ArrayList<List<SpotData>>();
-                           for (List<SpotData> track : tracks) {
-                              SpotData tSpot = track.get(track.size() - 1);
-                              // TODO: do we really need a copy here?
-                              GsSpotPair newSpot = ((GsSpotPair) nsp.findKDWSE(new Point2D.Double(
-                                      tSpot.getXCenter(), tSpot.getYCenter()))).copy();
-                              if (newSpot == null) {
-                                 // track could not be extended, finalize it
-                                 linkSpots(track, destList, useFrames);
-                                 // and remove from the list of tracks
-                                 // to avoid a concurrent modification exception
-                                 // the removal needs to be a two step process
-                                 removedTracks.add(track);
-                              } else {
-                                 track.add(newSpot.getFirstSpot());
-                                 markedSpots.add(newSpot.getFirstSpot());
-                              }
-                           }
-                           // second part of removing tracks
-                           for (List<SpotData> track : removedTracks) {
-                              tracks.remove(track);
-                           }
+                  SpotGridIndex[] frames = indexFrames(rowData, pos, ch, s,
+                          maxDistance);
+                  for (SpotGridIndex frame : frames) {
+                     if (frame == null) {
+                        continue;
+                     }
+                     int[] links = FrameAssignment.assign(lastXs(tracks),
+                             lastYs(tracks), frame, maxDistance);
+                     // keep track of spots in this frame added to tracks 
+                     boolean[] markedSpots = new boolean[frame.size()];
+                     List<List<SpotData>> extendedTracks = 
+                             new ArrayList<List<SpotData>>(tracks.size());
+                     for (int t = 0; t < links.length; t++) {
+                        List<SpotData> track = tracks.get(t);
+                        if (links[t] < 0) {
+                           // track could not be extended, finalize it
+                           linkSpots(track, destList, useFrames);
+                        } else {
+                           track.add(frame.get(links[t]));
+                           markedSpots[links[t]] = true;
+                           extendedTracks.add(track);
                         }
-                        // go through spots and start a new track with any spot 
-                        // that was not part of a track
-                        for (SpotData spot : spots) {
-                           if (!markedSpots.contains(spot)) {
-                              List<SpotData> track = new ArrayList<SpotData>();
-                              track.add(spot);
-                              tracks.add(track);
-                           }
+                     }
+                     tracks = extendedTracks;
+                     // go through spots and start a new track with any spot 
+                     // that was not part of a track
+                     for (int i = 0; i < frame.size(); i++) {
+                        if (!markedSpots[i]) {
+                           List<SpotData> track = new ArrayList<SpotData>();
+                           track.add(frame.get(i));
+                           tracks.add(track);
                         }
                      }
                   }
@@ -155,7 +138,43 @@ public class SpotLinker {
 
       } catch (OutOfMemoryError oome) {
          JOptionPane.showMessageDialog(getInstance(), "Out of memory");
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+         ij.IJ.showStatus("Linking interrupted");
+      }
+   }
+
+   /**
+    * Builds the spot indices of all frames of one position, channel and
+    * slice, in parallel.
+    * 
+    * @return index for each frame, null for frames without spots
+    */
+   private static SpotGridIndex[] indexFrames(RowData rowData, int pos, int ch,
+           int s, double maxDistance) throws InterruptedException {
+      List<List<SpotData>> frames = new ArrayList<List<SpotData>>(rowData.nrFrames_);
+      for (int f = 1; f <= rowData.nrFrames_; f++) {
+         frames.add(rowData.get(f, s, ch, pos));
       }
+      return SpotGridIndex.buildAll(frames, maxDistance);
+   }
+
+   private static double[] lastXs(List<List<SpotData>> tracks) {
+      double[] xs = new double[tracks.size()];
+      for (int t = 0; t < xs.length; t++) {
+         List<SpotData> track = tracks.get(t);
+         xs[t] = track.get(track.size() - 1).getXCenter();
+      }
+      return xs;
+   }
+
+   private static double[] lastYs(List<List<SpotData>> tracks) {
+      double[] ys = new double[tracks.size()];
+      for (int t = 0; t < ys.length; t++) {
+         List<SpotData> track = tracks.get(t);
+         ys[t] = track.get(track.size() - 1).getYCenter();
+      }
+      return ys;
    }
 
    /**
@@ -251,7 +270,9 @@ public class SpotLinker {
     * @param rowData - input Spot data (obtained through the "Fit" function
     * @param minNr - track needs to be larger than this or it will not be saved
     * @param nrMissing - Continue searching for this many frames if no spot was
-    *                  - found.
+    *                  - found.  Tracks that missed frames compete for spots
+    *                  - with all other active tracks, the assignment with the
+    *                  - smallest total distance wins.
     * @param maxDistance - Maximum distance between spot in consecutive frames
     *                    - if larger, it will not be added to the tracks
     * @param minTotalDistance - Minimum distance between first and last point 
@@ -280,55 +301,57 @@ public class SpotLinker {
                   trackIndex = Collections.unmodifiableList(Arrays.asList(pos, ch, s));
                   List<TrackData> tracks = 
                         new ArrayList<TrackData>();
-                  for (int f = 1; f <= rowData.nrFrames_; f++) {
-                     List<SpotData> spots = rowData.get(f, s, ch, pos);
-                     if (spots != null) {
-                        // keep track of spots in this frame added to tracks 
-                        List<SpotData> markedSpots = new ArrayList<SpotData>();
-                        // go through all tracks to see if they can be extended
-                        if (tracks.size() > 0) {
-                           NearestPointByData nsp = new NearestPointByData(spots, maxDistance);
-                           List<TrackData> removedTracks = 
-                                   new ArrayList<TrackData>();
-                           for (TrackData track : tracks) {
-                              SpotData tSpot = track.get(track.size() - 1);
-                              // TODO: do we really need a copy here?
-                              SpotData newSpot = (SpotData) nsp.findKDWSE(new Point2D.Double(
-                                      tSpot.getXCenter(), tSpot.getYCenter()));
-                              if (newSpot == null || markedSpots.contains(newSpot)) {
-                                 track.addMissing();
-                                 if (track.missingMoreThan(nrMissing)) {
-                                    // track could not be extended, finalize it
-                                    // Write out the track:
-                                    if (track.size() > minNr && 
-                                             track.get(0).distance(track.get(track.size() - 1)) > minTotalDistance)  {
-                                       writeTrack(rowData, track.getList(), trackNr);
-                                       trackNr++;
-                                       // and remove from the list of tracks
-                                       // to avoid a concurrent modification exception
-                                       // the removal needs to be a two step process
-                                       removedTracks.add(track);
-                                    }
-                                 }
-                              } else {
-                                 track.resetMissing();
-                                 track.add(newSpot);
-                                 markedSpots.add(newSpot);
+                  SpotGridIndex[] frames = indexFrames(rowData, pos, ch, s,
+                          maxDistance);
+                  for (SpotGridIndex frame : frames) {
+                     if (frame == null) {
+                        continue;
+                     }
+                     // tracks that missed up to nrMissing frames compete
+                     // for the spots of this frame with the other tracks
+                     double[] xs = new double[tracks.size()];
+                     double[] ys = new double[tracks.size()];
+                     for (int t = 0; t < xs.length; t++) {
+                        TrackData track = tracks.get(t);
+                        xs[t] = track.get(track.size() - 1).getXCenter();
+                        ys[t] = track.get(track.size() - 1).getYCenter();
+                     }
+                     int[] links = FrameAssignment.assign(xs, ys, frame, 
+                             maxDistance);
+                     // keep track of spots in this frame added to tracks 
+                     boolean[] markedSpots = new boolean[frame.size()];
+                     List<TrackData> activeTracks = 
+                             new ArrayList<TrackData>(tracks.size());
+                     for (int t = 0; t < links.length; t++) {
+                        TrackData track = tracks.get(t);
+                        if (links[t] < 0) {
+                           track.addMissing();
+                           if (track.missingMoreThan(nrMissing)) {
+                              // track could not be extended, finalize it
+                              // Write out the track if it is long enough,
+                              // otherwise drop it
+                              if (track.size() > minNr && 
+                                       track.get(0).distance(track.get(track.size() - 1)) > minTotalDistance)  {
+                                 writeTrack(rowData, track.getList(), trackNr);
+                                 trackNr++;
                               }
+                              continue;
                            }
-                           // second part of removing tracks
-                           for (TrackData track : removedTracks) {
-                              tracks.remove(track);
-                           }
+                        } else {
+                           track.resetMissing();
+                           track.add(frame.get(links[t]));
+                           markedSpots[links[t]] = true;
                         }
-                        // go through spots and start a new track with any spot 
-                        // that was not part of a previous track
-                        for (SpotData spot : spots) {
-                           if (!markedSpots.contains(spot)) {
-                              TrackData track = new TrackData();
-                              track.add(spot);
-                              tracks.add(track);
-                           }
+                        activeTracks.add(track);
+                     }
+                     tracks = activeTracks;
+                     // go through spots and start a new track with any spot 
+                     // that was not part of a previous track
+                     for (int i = 0; i < frame.size(); i++) {
+                        if (!markedSpots[i]) {
+                           TrackData track = new TrackData();
+                           track.add(frame.get(i));
+                           tracks.add(track);
                         }
                      }
                   }
@@ -403,6 +426,9 @@ public class SpotLinker {
          ij.IJ.showStatus("Extracted " + trackNr + " tracks");
       } catch (OutOfMemoryError oome) {
          JOptionPane.showMessageDialog(getInstance(), "Out of memory");
+      } catch (InterruptedException ie) {
+         Thread.currentThread().interrupt();
+         ij.IJ.showStatus("Track extraction interrupted");
       }
       
       return trackNr;
@@ -577,17 +577,26 @@ public class GaussianUtils {
     * @return - array with the derivates for each of the parameters
     */
    public static double[] gaussianJ(double[] params, int x, int y) {
+      double[] result = new double[5];
+      gaussianJ(params, x, y, result);
+      return result;
+   }
+
+   /**
+    * As gaussianJ, but fills the given array instead of allocating a new one
+    *
+    * @param result - array of at least 5 elements to receive the derivatives
+    */
+   public static void gaussianJ(double[] params, int x, int y,
+           double[] result) {
       double q = gaussian(params, x, y) - params[BGR];
       double dx = x - params[XC];
       double dy = y - params[YC];
-      double[] result = {
-         q/params[INT],
-         1.0,
-         dx * q/sqr(params[S]),
-         dy * q/sqr(params[S]),
-         (sqr(dx) + sqr(dy)) * q/cube(params[S])
-      };
-      return result;
+      result[0] = q/params[INT];
+      result[1] = 1.0;
+      result[2] = dx * q/sqr(params[S]);
+      result[3] = dy * q/sqr(params[S]);
+      result[4] = (sqr(dx) + sqr(dy)) * q/cube(params[S]);
    }
 
    
@@ -602,17 +611,26 @@ public class GaussianUtils {
     */
    public static double[] gaussianJFixS(double[] params, final double s, 
            final int x, final int y) {
+      double[] result = new double[5];
+      gaussianJFixS(params, s, x, y, result);
+      return result;
+   }
+
+   /**
+    * As gaussianJFixS, but fills the given array instead of allocating a new one
+    *
+    * @param result - array of at least 5 elements to receive the derivatives
+    */
+   public static void gaussianJFixS(double[] params, final double s,
+           final int x, final int y, double[] result) {
       double q = gaussianFixS(params, s, x, y) - params[BGR];
       double dx = x - params[XC];
       double dy = y - params[YC];
-      double[] result = {
-         q/params[INT],
-         1.0,
-         dx * q/sqr(s),
-         dy * q/sqr(s),
-         (sqr(dx) + sqr(dy)) * q/cube(s)
-      };
-      return result;
+      result[0] = q/params[INT];
+      result[1] = 1.0;
+      result[2] = dx * q/sqr(s);
+      result[3] = dy * q/sqr(s);
+      result[4] = (sqr(dx) + sqr(dy)) * q/cube(s);
    }
 
 
@@ -664,18 +682,27 @@ public class GaussianUtils {
     * @return - array with the derivates for each of the parameters
     */
    public static double[] gaussianJ2DXY(double[] params, int x, int y) {
+      double[] result = new double[6];
+      gaussianJ2DXY(params, x, y, result);
+      return result;
+   }
+
+   /**
+    * As gaussianJ2DXY, but fills the given array instead of allocating a new one
+    *
+    * @param result - array of at least 6 elements to receive the derivatives
+    */
+   public static void gaussianJ2DXY(double[] params, int x, int y,
+           double[] result) {
       double q = gaussian2DXY(params, x, y) - params[BGR];
       double dx = x - params[XC];
       double dy = y - params[YC];
-      double[] result = {
-         q/params[INT],
-         1.0,
-         dx * q/sqr(params[S1]),
-         dy * q/sqr(params[S2]),
-         sqr(dx) * q /cube(params[S1]),
-         sqr(dy) * q /cube(params[S2])
-      };
-      return result;
+      result[0] = q/params[INT];
+      result[1] = 1.0;
+      result[2] = dx * q/sqr(params[S1]);
+      result[3] = dy * q/sqr(params[S2]);
+      result[4] = sqr(dx) * q /cube(params[S1]);
+      result[5] = sqr(dy) * q /cube(params[S2]);
    }
 
    /**
@@ -727,19 +754,28 @@ public class GaussianUtils {
     * @return - array with the derivates for each of the parameters
     */
    public static double[] gaussianJ2DEllips(double[] params, int x, int y) {
+      double[] result = new double[7];
+      gaussianJ2DEllips(params, x, y, result);
+      return result;
+   }
+
+   /**
+    * As gaussianJ2DEllips, but fills the given array instead of allocating a new one
+    *
+    * @param result - array of at least 7 elements to receive the derivatives
+    */
+   public static void gaussianJ2DEllips(double[] params, int x, int y,
+           double[] result) {
       double q = gaussian2DEllips(params, x, y) - params[BGR];
       double dx = x - params[XC];
       double dy = y - params[YC];
-      double[] result = {
-         q/params[INT],
-         1.0,
-         (params[S1] * dx + params[S2] * dy) * q,
-         (params[S2] * dx + params[S3] * dy) * q,
-         -0.5 * sqr(dx) * q,
-         -dx * dy * q,
-         -0.5 * sqr(dy) * q
-      };
-      return result;
+      result[0] = q/params[INT];
+      result[1] = 1.0;
+      result[2] = (params[S1] * dx + params[S2] * dy) * q;
+      result[3] = (params[S2] * dx + params[S3] * dy) * q;
+      result[4] = -0.5 * sqr(dx) * q;
+      result[5] = -dx * dy * q;
+      result[6] = -0.5 * sqr(dy) * q;
    }
 
    /**
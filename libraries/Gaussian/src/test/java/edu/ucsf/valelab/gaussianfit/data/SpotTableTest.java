@@ -0,0 +1,147 @@
+package edu.ucsf.valelab.gaussianfit.data;
+
+import edu.ucsf.valelab.gaussianfit.datasettransformations.SpotDataFilter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SpotTableTest {
+   private static final int NR_SPOTS = 5000;
+   private static final double SIZE_NM = 10000.0;
+
+   private List<SpotData> spots_;
+   private SpotTable table_;
+
+   @Before
+   public void setUp() {
+      Random random = new Random(1);
+      spots_ = new ArrayList<SpotData>();
+      for (int i = 0; i < NR_SPOTS; i++) {
+         SpotData spot = new SpotData(null, 1, 1, 1 + random.nextInt(50), 0,
+                 i, random.nextInt(512), random.nextInt(512));
+         spot.setData(100.0 + 900.0 * random.nextDouble(), 10.0,
+                 SIZE_NM * random.nextDouble(), SIZE_NM * random.nextDouble(),
+                 0.0, 200.0, 1.0, 0.0, 10.0);
+         if (i % 3 != 0) {
+            spot.addKeyValue(SpotData.Keys.INTEGRALSIGMA,
+                    5.0 + 20.0 * random.nextDouble());
+         }
+         if (i % 5 != 0) {
+            spot.addKeyValue(SpotData.Keys.APERTUREINTENSITY,
+                    50.0 + 500.0 * random.nextDouble());
+         }
+         spots_.add(spot);
+      }
+      // Values on the bounds of the filters below, which are not exactly
+      // representable as floats
+      spots_.get(1).addKeyValue(SpotData.Keys.INTEGRALSIGMA, 15.1);
+      spots_.get(2).addKeyValue(SpotData.Keys.INTEGRALSIGMA, 10.3);
+      spots_.get(4).addKeyValue(SpotData.Keys.APERTUREINTENSITY, 400.7);
+      spots_.get(1).addKeyValue(SpotData.Keys.APERTUREINTENSITY, 200.0);
+      spots_.get(2).addKeyValue(SpotData.Keys.APERTUREINTENSITY, 200.0);
+      spots_.get(4).addKeyValue(SpotData.Keys.INTEGRALSIGMA, 12.0);
+      table_ = new SpotTable(spots_);
+   }
+
+   @Test
+   public void testFilterMatchesSpotFilter() {
+      SpotDataFilter filter = new SpotDataFilter();
+      filter.setSigma(true, 10.3, 15.1);
+      filter.setIntensity(true, 100.0, 400.7);
+      boolean[] accepted = filter.filter(table_);
+      Assert.assertEquals(NR_SPOTS, accepted.length);
+      int nrAccepted = 0;
+      for (int row = 0; row < accepted.length; row++) {
+         Assert.assertEquals("row " + row,
+                 filter.filter(table_.getSpot(row)), accepted[row]);
+         if (accepted[row]) {
+            nrAccepted++;
+         }
+      }
+      Assert.assertTrue(accepted[1] && accepted[2] && accepted[4]);
+      Assert.assertTrue(nrAccepted > 0 && nrAccepted < NR_SPOTS);
+
+      filter = new SpotDataFilter();
+      filter.setItemFilter(SpotData.Keys.INTEGRALSIGMA, 12.0, 20.0);
+      accepted = filter.filter(table_);
+      for (int row = 0; row < accepted.length; row++) {
+         Assert.assertEquals("row " + row,
+                 filter.filter(table_.getSpot(row)), accepted[row]);
+      }
+   }
+
+   private int[] regionByScan(double minX, double minY, double maxX,
+           double maxY) {
+      List<Integer> rows = new ArrayList<Integer>();
+      for (int row = 0; row < table_.size(); row++) {
+         SpotData spot = table_.getSpot(row);
+         if (spot.getXCenter() >= minX && spot.getXCenter() <= maxX
+                 && spot.getYCenter() >= minY && spot.getYCenter() <= maxY) {
+            rows.add(row);
+         }
+      }
+      int[] result = new int[rows.size()];
+      for (int i = 0; i < result.length; i++) {
+         result[i] = rows.get(i);
+      }
+      return result;
+   }
+
+   @Test
+   public void testRegionMatchesScan() {
+      double[][] regions = {
+         {0.0, 0.0, SIZE_NM, SIZE_NM},
+         {1234.5, 2345.6, 3456.7, 2400.0},
+         {-500.0, -500.0, 100.0, 100.0},
+         {9000.0, 5000.0, 20000.0, 5001.0},
+         {20000.0, 20000.0, 30000.0, 30000.0},
+         {5000.0, 5000.0, 4000.0, 6000.0}};
+      for (double[] r : regions) {
+         int[] rows = table_.getRowsInRegion(r[0], r[1], r[2], r[3]);
+         Arrays.sort(rows);
+         Assert.assertArrayEquals(Arrays.toString(r),
+                 regionByScan(r[0], r[1], r[2], r[3]), rows);
+      }
+      // Bounds are inclusive
+      SpotData spot = table_.getSpot(10);
+      int[] rows = table_.getRowsInRegion(spot.getXCenter(),
+              spot.getYCenter(), spot.getXCenter(), spot.getYCenter());
+      Assert.assertTrue(Arrays.toString(rows), rows.length >= 1);
+   }
+
+   @Test
+   public void testFrameRange() {
+      int[] rows = table_.getRowsInFrameRange(10, 12);
+      int count = 0;
+      for (int row = 0; row < table_.size(); row++) {
+         int frame = table_.getFrame(row);
+         if (frame >= 10 && frame <= 12) {
+            count++;
+         }
+      }
+      Assert.assertEquals(count, rows.length);
+      int lastFrame = 10;
+      for (int row : rows) {
+         Assert.assertTrue(table_.getFrame(row) >= lastFrame);
+         Assert.assertTrue(table_.getFrame(row) <= 12);
+         lastFrame = table_.getFrame(row);
+      }
+      Assert.assertEquals(0, table_.getRowsInFrameRange(60, 70).length);
+   }
+
+   @Test
+   public void testRowDataKeepsTable() {
+      RowData rowData = new RowData.Builder().setSpotList(spots_).build();
+      Assert.assertSame(rowData.getSpotTable(), rowData.getSpotTable());
+      Assert.assertEquals(NR_SPOTS, rowData.getSpotTable().size());
+      try {
+         rowData.spotList_.add(spots_.get(0));
+         Assert.fail("spotList_ of a RowData should not be modifiable");
+      } catch (UnsupportedOperationException expected) {
+      }
+   }
+}
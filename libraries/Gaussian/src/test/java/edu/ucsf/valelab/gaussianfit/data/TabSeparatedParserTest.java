@@ -0,0 +1,121 @@
+package edu.ucsf.valelab.gaussianfit.data;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TabSeparatedParserTest {
+
+   private static void checkDoubles(List<String> fields) {
+      TabSeparatedParser parser = new TabSeparatedParser();
+      Assert.assertEquals(fields.size(), parser.split(String.join("\t", fields)));
+      for (int i = 0; i < fields.size(); i++) {
+         Assert.assertEquals(fields.get(i),
+                 Double.doubleToRawLongBits(Double.parseDouble(fields.get(i))),
+                 Double.doubleToRawLongBits(parser.getDouble(i)));
+      }
+   }
+
+   @Test
+   public void testDoublesAsParseDouble() {
+      Random random = new Random(13);
+      List<String> fields = new ArrayList<String>();
+      for (int i = 0; i < 100000; i++) {
+         double value = Math.pow(10.0, random.nextInt(16) - 6)
+                 * (random.nextDouble() - 0.3);
+         switch (i % 4) {
+            case 0:
+               // as written by LoadAndSave
+               fields.add(Double.toString(value));
+               break;
+            case 1:
+               fields.add(Float.toString((float) value));
+               break;
+            case 2:
+               // up to 22 decimals, and more than 15 significant digits
+               fields.add(new BigDecimal(value).setScale(random.nextInt(23),
+                       RoundingMode.HALF_EVEN).toPlainString());
+               break;
+            default:
+               fields.add(String.format(Locale.ROOT, "%.3f", value));
+         }
+         if (fields.size() == 50) {
+            checkDoubles(fields);
+            fields.clear();
+         }
+      }
+   }
+
+   @Test
+   public void testSpecialDoubles() {
+      List<String> fields = new ArrayList<String>();
+      for (String field : new String[] {"0", "-0", "-0.0", "+1.5", ".5", "5.",
+            "-.25", "000123.4500", "1e10", "1.5E-7", "NaN", "-Infinity",
+            "0.1", "0.30000000000000004", "123456789012345",
+            "1234567890123456", "9007199254740993", "0.0000000000000000000001",
+            "0.00000000000000000000001", "4.9E-324", "1.7976931348623157E308",
+            "99999999999999.99", " 1.0", "1.0 "}) {
+         fields.add(field);
+      }
+      checkDoubles(fields);
+   }
+
+   @Test
+   public void testMalformedDoubles() {
+      TabSeparatedParser parser = new TabSeparatedParser();
+      for (String field : new String[] {"", "-", ".", "1.2.3", "1,5", "abc",
+            "--1"}) {
+         parser.split("1\t" + field + "\t2");
+         try {
+            parser.getDouble(1);
+            Assert.fail("Parsed " + field);
+         } catch (NumberFormatException expected) {
+         }
+      }
+   }
+
+   @Test
+   public void testIntsAsParseInt() {
+      TabSeparatedParser parser = new TabSeparatedParser();
+      String[] fields = {"0", "-0", "+7", "42", "-42", "999999999",
+            "-999999999", "1000000000", "2147483647", "-2147483648",
+            "000000000012"};
+      parser.split(String.join("\t", fields));
+      for (int i = 0; i < fields.length; i++) {
+         Assert.assertEquals(fields[i], Integer.parseInt(fields[i]),
+                 parser.getInt(i));
+      }
+      Random random = new Random(14);
+      for (int i = 0; i < 10000; i++) {
+         int value = random.nextInt() >> random.nextInt(32);
+         parser.split("x\t" + value);
+         Assert.assertEquals(value, parser.getInt(1));
+      }
+      for (String field : new String[] {"", "-", "2147483648", "1.0", "12a"}) {
+         parser.split(field + "\t1");
+         try {
+            parser.getInt(0);
+            Assert.fail("Parsed " + field);
+         } catch (NumberFormatException expected) {
+         }
+      }
+   }
+
+   @Test
+   public void testSplitAsStringSplit() {
+      TabSeparatedParser parser = new TabSeparatedParser();
+      for (String line : new String[] {"a", "a\tb", "a\t\tb", "\ta", "a\t",
+            "a\t\t", "", "a\tb\t\t\tc\t\t"}) {
+         String[] expected = line.split("\t");
+         Assert.assertEquals(line, expected.length, parser.split(line));
+         for (int i = 0; i < expected.length; i++) {
+            Assert.assertEquals(expected[i], parser.getString(i));
+         }
+      }
+   }
+}
@@ -0,0 +1,153 @@
+package edu.ucsf.valelab.gaussianfit.data;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnknownFieldSet;
+import edu.ucsf.valelab.tsf.TaggedSpotsProtos;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TsfSpotReaderTest {
+   private static final int NR_SPOTS = 200;
+
+   private File file_;
+   // serialized, length delimited spots
+   private byte[] spots_;
+   // position of each spot in spots_, and the end of the last one
+   private int[] spotStarts_;
+
+   @Before
+   public void setUp() throws IOException {
+      file_ = File.createTempFile("TsfSpotReaderTest", ".tsf");
+      Random random = new Random(12);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      spotStarts_ = new int[NR_SPOTS + 1];
+      for (int i = 0; i < NR_SPOTS; i++) {
+         spotStarts_[i] = out.size();
+         // unknown fields of varying size give messages with one and two
+         // byte length prefixes; the last one has two
+         int paddingSize = i == NR_SPOTS - 1 ? 250 : random.nextInt(300);
+         UnknownFieldSet padding = UnknownFieldSet.newBuilder().addField(1000,
+                 UnknownFieldSet.Field.newBuilder().addLengthDelimited(
+                         ByteString.copyFrom(new byte[paddingSize]))
+                         .build()).build();
+         TaggedSpotsProtos.Spot.newBuilder().setMolecule(i).setChannel(1).
+                 setFrame(1 + i / 10).setX(1.5f * i).setY(2.5f * i).
+                 setIntensity(100.0f + i).setUnknownFields(padding).build().
+                 writeDelimitedTo(out);
+      }
+      spotStarts_[NR_SPOTS] = out.size();
+      spots_ = out.toByteArray();
+   }
+
+   @After
+   public void tearDown() {
+      file_.delete();
+   }
+
+   private static TaggedSpotsProtos.SpotList header() {
+      return TaggedSpotsProtos.SpotList.newBuilder().setApplicationId(1).
+              setNrSpots(NR_SPOTS).build();
+   }
+
+   // Header first, then the spots until the end of the file
+   private void writeOldFormat(int length) throws IOException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      header().writeDelimitedTo(out);
+      out.write(spots_, 0, length);
+      Files.write(file_.toPath(), out.toByteArray());
+   }
+
+   // 0, the length of the spots as a long, the spots, then the header
+   private void writeOffsetFormat() throws IOException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      DataOutputStream data = new DataOutputStream(out);
+      data.writeInt(0);
+      data.writeLong(spots_.length);
+      data.write(spots_);
+      header().writeDelimitedTo(data);
+      data.flush();
+      Files.write(file_.toPath(), out.toByteArray());
+   }
+
+   private void checkSpots(List<SpotData> spots, int nrSpots) {
+      Assert.assertEquals(nrSpots, spots.size());
+      for (int i = 0; i < nrSpots; i++) {
+         SpotData spot = spots.get(i);
+         Assert.assertEquals(i, spot.getNr());
+         Assert.assertEquals(1 + i / 10, spot.getFrame());
+         Assert.assertEquals(1.5f * i, spot.getXCenter(), 0.0);
+         Assert.assertEquals(2.5f * i, spot.getYCenter(), 0.0);
+         Assert.assertEquals(100.0f + i, spot.getIntensity(), 0.0);
+      }
+   }
+
+   private void checkAllChunkSizes() throws Exception {
+      // every length prefix straddles the end of a chunk for some of these,
+      // and most messages are larger than the smallest chunks
+      for (boolean memoryMap : new boolean[] {false, true}) {
+         for (int chunkSize = 1; chunkSize <= 700; chunkSize++) {
+            try (TsfSpotReader reader = new TsfSpotReader(file_, memoryMap,
+                    chunkSize)) {
+               Assert.assertEquals(NR_SPOTS, reader.getSpotList().getNrSpots());
+               checkSpots(reader.readSpots(), NR_SPOTS);
+               Assert.assertEquals(0, reader.getNrErrors());
+            }
+         }
+         try (TsfSpotReader reader = new TsfSpotReader(file_, memoryMap)) {
+            checkSpots(reader.readSpots(), NR_SPOTS);
+         }
+      }
+   }
+
+   @Test
+   public void testOldFormat() throws Exception {
+      writeOldFormat(spots_.length);
+      checkAllChunkSizes();
+   }
+
+   @Test
+   public void testOffsetFormat() throws Exception {
+      writeOffsetFormat();
+      checkAllChunkSizes();
+   }
+
+   @Test
+   public void testTruncated() throws Exception {
+      int lastStart = spotStarts_[NR_SPOTS - 1];
+      // cut in the length prefix and in the message of the last spot
+      for (int length : new int[] {lastStart + 1, spots_.length - 1}) {
+         writeOldFormat(length);
+         for (int chunkSize : new int[] {1, 100, 1 << 20}) {
+            for (boolean memoryMap : new boolean[] {false, true}) {
+               try (TsfSpotReader reader = new TsfSpotReader(file_, memoryMap,
+                       chunkSize)) {
+                  checkSpots(reader.readSpots(), NR_SPOTS - 1);
+                  Assert.assertEquals(1, reader.getNrErrors());
+               }
+            }
+         }
+      }
+   }
+
+   @Test
+   public void testTruncatedOffsetFormat() throws Exception {
+      writeOffsetFormat();
+      byte[] bytes = Files.readAllBytes(file_.toPath());
+      Files.write(file_.toPath(), Arrays.copyOf(bytes, 12 + spots_.length / 2));
+      try {
+         new TsfSpotReader(file_, false).close();
+         Assert.fail("Header of truncated file should not be found");
+      } catch (IOException expected) {
+      }
+   }
+}
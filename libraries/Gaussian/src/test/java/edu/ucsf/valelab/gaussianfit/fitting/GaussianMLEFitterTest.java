@@ -0,0 +1,115 @@
+package edu.ucsf.valelab.gaussianfit.fitting;
+
+import edu.ucsf.valelab.gaussianfit.algorithm.GaussianFit;
+import edu.ucsf.valelab.gaussianfit.utils.GaussianUtils;
+import ij.process.ShortProcessor;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GaussianMLEFitterTest {
+   private static final int BOX = 11;
+   private static final int NR_SPOTS = 50;
+   private static final int MAX_ITERATIONS = 250;
+
+   /**
+    * Poisson deviate; large means are split up, as a sum of Poisson
+    * deviates is again Poisson distributed.
+    */
+   private static int poisson(double mean, Random random) {
+      int result = 0;
+      while (mean > 0.0) {
+         double part = Math.min(mean, 30.0);
+         mean -= part;
+         double limit = Math.exp(-part);
+         double product = random.nextDouble();
+         while (product > limit) {
+            result++;
+            product *= random.nextDouble();
+         }
+      }
+      return result;
+   }
+
+   private static ShortProcessor spot(double[] params, Random random) {
+      short[] pixels = new short[BOX * BOX];
+      for (int y = 0; y < BOX; y++) {
+         for (int x = 0; x < BOX; x++) {
+            pixels[y * BOX + x] = (short) poisson(
+                    GaussianUtils.gaussian(params, x, y), random);
+         }
+      }
+      return new ShortProcessor(BOX, BOX, pixels, null);
+   }
+
+   @Test
+   public void testRecoversSpotsLikeLeastSquares() {
+      Random random = new Random(7);
+      GaussianFit mle = new GaussianFit(GaussianFit.CIRCLE,
+              GaussianFit.LEVENBERGMARQUARDPOISSONMLE);
+      GaussianFit leastSquares = new GaussianFit(GaussianFit.CIRCLE,
+              GaussianFit.LEVENBERGMARQUARD);
+      double mleSquaredError = 0.0;
+      double lsSquaredError = 0.0;
+      for (int i = 0; i < NR_SPOTS; i++) {
+         double[] truth = {
+            200.0 + 800.0 * random.nextDouble(),     // A
+            20.0 + 80.0 * random.nextDouble(),       // b
+            4.0 + 2.0 * random.nextDouble(),         // x_c
+            4.0 + 2.0 * random.nextDouble(),         // y_c
+            1.0 + 0.6 * random.nextDouble()};        // sigma
+         ShortProcessor sp = spot(truth, random);
+         double[] m = mle.dogaussianfit(sp, MAX_ITERATIONS).getParms();
+         double[] l = leastSquares.dogaussianfit(sp, MAX_ITERATIONS).getParms();
+         Assert.assertEquals(truth.length, m.length);
+
+         String spot = "spot " + i;
+         Assert.assertEquals(spot, l[GaussianFit.XC], m[GaussianFit.XC], 0.15);
+         Assert.assertEquals(spot, l[GaussianFit.YC], m[GaussianFit.YC], 0.15);
+         Assert.assertEquals(spot, l[GaussianFit.S], m[GaussianFit.S],
+                 0.1 * l[GaussianFit.S]);
+         Assert.assertEquals(spot, l[GaussianFit.INT], m[GaussianFit.INT],
+                 0.15 * l[GaussianFit.INT]);
+         Assert.assertEquals(spot, l[GaussianFit.BGR], m[GaussianFit.BGR],
+                 0.15 * l[GaussianFit.BGR]);
+
+         Assert.assertEquals(spot, truth[GaussianFit.XC], m[GaussianFit.XC], 0.3);
+         Assert.assertEquals(spot, truth[GaussianFit.YC], m[GaussianFit.YC], 0.3);
+         Assert.assertEquals(spot, truth[GaussianFit.S], m[GaussianFit.S],
+                 0.2 * truth[GaussianFit.S]);
+         for (int k = GaussianFit.XC; k <= GaussianFit.YC; k++) {
+            mleSquaredError += GaussianUtils.sqr(m[k] - truth[k]);
+            lsSquaredError += GaussianUtils.sqr(l[k] - truth[k]);
+         }
+      }
+      // The maximum likelihood estimate of the position should be at least
+      // about as precise as the least squares one
+      Assert.assertTrue(mleSquaredError + " vs " + lsSquaredError,
+              mleSquaredError < 1.2 * lsSquaredError);
+   }
+
+   @Test
+   public void testFixedWidthAndAsymmetric() throws Exception {
+      Random random = new Random(11);
+      double[] truth = {600.0, 50.0, 5.3, 4.8, 1.4};
+      short[] pixels = (short[]) spot(truth, random).getPixels();
+
+      GaussianMLEFitter fixedWidth = new GaussianMLEFitter(
+              GaussianFit.CIRCLE, 1.4);
+      double[] m = fixedWidth.fit(pixels, BOX, BOX,
+              new double[] {400.0, 40.0, 5.0, 5.0}, MAX_ITERATIONS);
+      Assert.assertEquals(4, m.length);
+      Assert.assertEquals(truth[GaussianFit.XC], m[GaussianFit.XC], 0.2);
+      Assert.assertEquals(truth[GaussianFit.YC], m[GaussianFit.YC], 0.2);
+      Assert.assertEquals(truth[GaussianFit.INT], m[GaussianFit.INT], 100.0);
+
+      GaussianMLEFitter asymmetric = new GaussianMLEFitter(
+              GaussianFit.ASYMMETRIC, -1.0);
+      m = asymmetric.fit(pixels, BOX, BOX,
+              new double[] {400.0, 40.0, 5.0, 5.0, 0.9, 0.9}, MAX_ITERATIONS);
+      Assert.assertEquals(truth[GaussianFit.XC], m[GaussianFit.XC], 0.2);
+      Assert.assertEquals(truth[GaussianFit.YC], m[GaussianFit.YC], 0.2);
+      Assert.assertEquals(1.4, m[GaussianFit.S1], 0.3);
+      Assert.assertEquals(1.4, m[GaussianFit.S2], 0.3);
+   }
+}
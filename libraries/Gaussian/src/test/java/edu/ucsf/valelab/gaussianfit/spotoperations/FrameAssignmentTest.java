@@ -0,0 +1,159 @@
+package edu.ucsf.valelab.gaussianfit.spotoperations;
+
+import edu.ucsf.valelab.gaussianfit.data.SpotData;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FrameAssignmentTest {
+
+   private static double squaredDistance(double x, double y, SpotData spot) {
+      double dx = spot.getXCenter() - x;
+      double dy = spot.getYCenter() - y;
+      return dx * dx + dy * dy;
+   }
+
+   /**
+    * Cost that assign() minimizes: the squared length of every link, plus
+    * a bit more than the largest allowed link for every track and every
+    * spot that is not linked.
+    */
+   private static double cost(double[] xs, double[] ys, List<SpotData> spots,
+           double maxDistance, int[] assignment) {
+      double noLink = 1.05 * maxDistance * maxDistance;
+      double cost = 0.0;
+      boolean[] taken = new boolean[spots.size()];
+      for (int t = 0; t < assignment.length; t++) {
+         if (assignment[t] == -1) {
+            cost += noLink;
+         } else {
+            Assert.assertFalse("spot linked twice", taken[assignment[t]]);
+            taken[assignment[t]] = true;
+            double d = squaredDistance(xs[t], ys[t], spots.get(assignment[t]));
+            Assert.assertTrue("link too long", d < maxDistance * maxDistance);
+            cost += d;
+         }
+      }
+      for (boolean t : taken) {
+         if (!t) {
+            cost += noLink;
+         }
+      }
+      return cost;
+   }
+
+   private static double bestCost(double[] xs, double[] ys,
+           List<SpotData> spots, double maxDistance, int track,
+           int[] assignment, boolean[] taken) {
+      if (track == xs.length) {
+         return cost(xs, ys, spots, maxDistance, assignment);
+      }
+      assignment[track] = -1;
+      double best = bestCost(xs, ys, spots, maxDistance, track + 1,
+              assignment, taken);
+      for (int s = 0; s < spots.size(); s++) {
+         if (!taken[s] && squaredDistance(xs[track], ys[track], spots.get(s))
+                 < maxDistance * maxDistance) {
+            taken[s] = true;
+            assignment[track] = s;
+            best = Math.min(best, bestCost(xs, ys, spots, maxDistance,
+                    track + 1, assignment, taken));
+            taken[s] = false;
+         }
+      }
+      assignment[track] = -1;
+      return best;
+   }
+
+   @Test
+   public void testMatchesBruteForce() {
+      Random random = new Random(8);
+      double maxDistance = 3.0;
+      for (int run = 0; run < 500; run++) {
+         int nrTracks = 1 + random.nextInt(6);
+         int nrSpots = 1 + random.nextInt(6);
+         // small enough area for most tracks and spots to compete
+         double size = 2.0 + 6.0 * random.nextDouble();
+         double[] xs = new double[nrTracks];
+         double[] ys = new double[nrTracks];
+         for (int t = 0; t < nrTracks; t++) {
+            xs[t] = size * random.nextDouble();
+            ys[t] = size * random.nextDouble();
+         }
+         List<SpotData> spots = SpotGridIndexTest.randomSpots(nrSpots, size,
+                 size, random);
+         int[] assignment = FrameAssignment.assign(xs, ys,
+                 new SpotGridIndex(spots, maxDistance), maxDistance);
+         Assert.assertEquals(nrTracks, assignment.length);
+         double best = bestCost(xs, ys, spots, maxDistance, 0,
+                 new int[nrTracks], new boolean[nrSpots]);
+         Assert.assertEquals("run " + run, best,
+                 cost(xs, ys, spots, maxDistance, assignment), 1.0e-9);
+      }
+   }
+
+   @Test
+   public void testMaxDistance() {
+      double maxDistance = 2.0;
+      List<SpotData> spots = new ArrayList<SpotData>();
+      spots.add(SpotGridIndexTest.spot(10.0, 10.0));
+      spots.add(SpotGridIndexTest.spot(20.0, 20.0));
+      spots.add(SpotGridIndexTest.spot(30.0, 30.0));
+      double[] xs = {10.0 + 1.999, 20.0 + 2.0, 30.0 + 2.001};
+      double[] ys = {10.0, 20.0, 30.0};
+      int[] assignment = FrameAssignment.assign(xs, ys,
+              new SpotGridIndex(spots, maxDistance), maxDistance);
+      Assert.assertArrayEquals(new int[] {0, -1, -1}, assignment);
+
+      Assert.assertArrayEquals(new int[] {-1, -1},
+              FrameAssignment.assign(new double[] {0.0, 1.0},
+                      new double[] {0.0, 1.0},
+                      new SpotGridIndex(new ArrayList<SpotData>(), maxDistance),
+                      maxDistance));
+   }
+
+   @Test
+   public void testGreedyAboveHungarianSize() {
+      // One cluster of 250 tracks and 250 spots, too large to be solved
+      // exactly, so it should be linked shortest distance first
+      Random random = new Random(9);
+      double maxDistance = 10.0;
+      int n = 250;
+      double[] xs = new double[n];
+      double[] ys = new double[n];
+      for (int t = 0; t < n; t++) {
+         xs[t] = 40.0 * random.nextDouble();
+         ys[t] = 40.0 * random.nextDouble();
+      }
+      List<SpotData> spots = SpotGridIndexTest.randomSpots(n, 40.0, 40.0,
+              random);
+      int[] assignment = FrameAssignment.assign(xs, ys,
+              new SpotGridIndex(spots, maxDistance), maxDistance);
+
+      List<double[]> links = new ArrayList<double[]>();
+      for (int t = 0; t < n; t++) {
+         for (int s = 0; s < n; s++) {
+            double d = squaredDistance(xs[t], ys[t], spots.get(s));
+            if (d < maxDistance * maxDistance) {
+               links.add(new double[] {d, t, s});
+            }
+         }
+      }
+      links.sort((a, b) -> Double.compare(a[0], b[0]));
+      int[] greedy = new int[n];
+      Arrays.fill(greedy, -1);
+      boolean[] taken = new boolean[n];
+      for (double[] link : links) {
+         int t = (int) link[1];
+         int s = (int) link[2];
+         if (greedy[t] == -1 && !taken[s]) {
+            greedy[t] = s;
+            taken[s] = true;
+         }
+      }
+      Assert.assertArrayEquals(greedy, assignment);
+   }
+}
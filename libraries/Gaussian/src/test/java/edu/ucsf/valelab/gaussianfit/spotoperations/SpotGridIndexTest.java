@@ -0,0 +1,115 @@
+package edu.ucsf.valelab.gaussianfit.spotoperations;
+
+import edu.ucsf.valelab.gaussianfit.data.SpotData;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SpotGridIndexTest {
+
+   static SpotData spot(double x, double y) {
+      SpotData spot = new SpotData(null, 1, 1, 1, 0, 0, 0, 0);
+      spot.setData(1000.0, 10.0, x, y, 0.0, 200.0, 1.0, 0.0, 10.0);
+      return spot;
+   }
+
+   static List<SpotData> randomSpots(int n, double width, double height,
+           Random random) {
+      List<SpotData> spots = new ArrayList<SpotData>(n);
+      for (int i = 0; i < n; i++) {
+         spots.add(spot(width * random.nextDouble(),
+                 height * random.nextDouble()));
+      }
+      return spots;
+   }
+
+   private static int[] withinByScan(List<SpotData> spots, double x, double y,
+           double maxDistance) {
+      List<Integer> found = new ArrayList<Integer>();
+      for (int i = 0; i < spots.size(); i++) {
+         double dx = spots.get(i).getXCenter() - x;
+         double dy = spots.get(i).getYCenter() - y;
+         if (dx * dx + dy * dy < maxDistance * maxDistance) {
+            found.add(i);
+         }
+      }
+      int[] result = new int[found.size()];
+      for (int i = 0; i < result.length; i++) {
+         result[i] = found.get(i);
+      }
+      return result;
+   }
+
+   private static void checkAgainstScan(List<SpotData> spots,
+           double maxDistance, double[][] points) {
+      SpotGridIndex index = new SpotGridIndex(spots, maxDistance);
+      Assert.assertEquals(spots.size(), index.size());
+      for (double[] p : points) {
+         SpotGridIndex.Neighbours neighbours = new SpotGridIndex.Neighbours();
+         int found = index.within(p[0], p[1], neighbours);
+         Assert.assertEquals(neighbours.size, found);
+         int[] indices = Arrays.copyOf(neighbours.indices, neighbours.size);
+         for (int k = 0; k < neighbours.size; k++) {
+            SpotData s = index.get(indices[k]);
+            double dx = s.getXCenter() - p[0];
+            double dy = s.getYCenter() - p[1];
+            Assert.assertEquals(dx * dx + dy * dy,
+                    neighbours.squaredDistances[k], 0.0);
+         }
+         Arrays.sort(indices);
+         Assert.assertArrayEquals(Arrays.toString(p),
+                 withinByScan(spots, p[0], p[1], maxDistance), indices);
+      }
+   }
+
+   private static double[][] queryPoints(double width, double height,
+           double maxDistance, Random random) {
+      List<double[]> points = new ArrayList<double[]>();
+      for (int i = 0; i < 500; i++) {
+         points.add(new double[] {width * random.nextDouble(),
+            height * random.nextDouble()});
+      }
+      // outside the grid: just outside, within reach of the edge spots, and
+      // far away
+      for (double d : new double[] {0.5 * maxDistance, 10 * maxDistance}) {
+         points.add(new double[] {-d, height / 2});
+         points.add(new double[] {width + d, height / 2});
+         points.add(new double[] {width / 2, -d});
+         points.add(new double[] {width / 2, height + d});
+         points.add(new double[] {-d, -d});
+         points.add(new double[] {width + d, height + d});
+      }
+      return points.toArray(new double[points.size()][]);
+   }
+
+   @Test
+   public void testWithinMatchesScan() {
+      Random random = new Random(3);
+      for (double maxDistance : new double[] {0.5, 5.0, 40.0}) {
+         List<SpotData> spots = randomSpots(2000, 512.0, 256.0, random);
+         checkAgainstScan(spots, maxDistance,
+                 queryPoints(512.0, 256.0, maxDistance, random));
+      }
+   }
+
+   @Test
+   public void testWithinOnLine() {
+      // spots along a line give a grid that is capped in width
+      Random random = new Random(4);
+      List<SpotData> spots = randomSpots(300, 10000.0, 0.0, random);
+      checkAgainstScan(spots, 2.0, queryPoints(10000.0, 0.0, 2.0, random));
+   }
+
+   @Test
+   public void testEmptyAndSingle() {
+      Random random = new Random(5);
+      checkAgainstScan(new ArrayList<SpotData>(), 3.0,
+              queryPoints(10.0, 10.0, 3.0, random));
+      List<SpotData> spots = new ArrayList<SpotData>();
+      spots.add(spot(5.0, 5.0));
+      checkAgainstScan(spots, 3.0, queryPoints(10.0, 10.0, 3.0, random));
+   }
+}
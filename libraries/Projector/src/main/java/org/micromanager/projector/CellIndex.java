@@ -0,0 +1,149 @@
+package org.micromanager.projector;
+
+import java.awt.Polygon;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.util.Map;
+
+/**
+ * Finds the calibration cell of a Mapping that contains a point.
+ *
+ * The bounding box of all cells is divided into a grid of about as many
+ * buckets as there are cells.  Each bucket lists the cells whose bounds
+ * touch it, so a lookup only tests the few cells of one bucket instead of
+ * all of them.  Cells are kept in the iteration order of the map, so the
+ * result is the same as testing all cells in that order.  Points that are
+ * in no cell get the cell with the nearest center, as before.
+ *
+ * The index is a snapshot of the map it was built from.
+ *
+ * @author Nico
+ */
+final class CellIndex {
+    private final Polygon[] cells_;
+    private final AffineTransform[] transforms_;
+    private final double[] centerXs_;
+    private final double[] centerYs_;
+    private final double originX_;
+    private final double originY_;
+    private final double bucketWidth_;
+    private final double bucketHeight_;
+    private final int columns_;
+    private final int rows_;
+    // cells in bucket b are bucketCells_[bucketStarts_[b]] until
+    // bucketCells_[bucketStarts_[b + 1]], in map order
+    private final int[] bucketStarts_;
+    private final int[] bucketCells_;
+
+    CellIndex(Map<Polygon, AffineTransform> transformMap) {
+        int n = transformMap.size();
+        cells_ = new Polygon[n];
+        transforms_ = new AffineTransform[n];
+        centerXs_ = new double[n];
+        centerYs_ = new double[n];
+        int minX = Integer.MAX_VALUE;
+        int minY = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int maxY = Integer.MIN_VALUE;
+        int i = 0;
+        for (Map.Entry<Polygon, AffineTransform> entry : transformMap.entrySet()) {
+            Polygon cell = entry.getKey();
+            cells_[i] = cell;
+            transforms_[i] = entry.getValue();
+            // mean of the vertices, as in Utils.meanPosition2D
+            double xSum = 0.0;
+            double ySum = 0.0;
+            for (int v = 0; v < cell.npoints; v++) {
+                xSum += cell.xpoints[v];
+                ySum += cell.ypoints[v];
+            }
+            centerXs_[i] = xSum / cell.npoints;
+            centerYs_[i] = ySum / cell.npoints;
+            Rectangle bounds = cell.getBounds();
+            minX = Math.min(minX, bounds.x);
+            minY = Math.min(minY, bounds.y);
+            maxX = Math.max(maxX, bounds.x + bounds.width);
+            maxY = Math.max(maxY, bounds.y + bounds.height);
+            i++;
+        }
+        if (n == 0) {
+            minX = minY = maxX = maxY = 0;
+        }
+        double width = Math.max(maxX - minX, 1);
+        double height = Math.max(maxY - minY, 1);
+        columns_ = (int) Math.max(1, Math.min(n, Math.round(Math.sqrt(n * width / height))));
+        rows_ = Math.max(1, (n + columns_ - 1) / columns_);
+        originX_ = minX;
+        originY_ = minY;
+        bucketWidth_ = width / columns_;
+        bucketHeight_ = height / rows_;
+
+        // counting sort of the (cell, bucket) pairs by bucket
+        int[][] ranges = new int[n][];
+        bucketStarts_ = new int[columns_ * rows_ + 1];
+        for (int c = 0; c < n; c++) {
+            Rectangle bounds = cells_[c].getBounds();
+            ranges[c] = new int[] {column(bounds.x), column(bounds.x + bounds.width),
+                    row(bounds.y), row(bounds.y + bounds.height)};
+            for (int r = ranges[c][2]; r <= ranges[c][3]; r++) {
+                for (int col = ranges[c][0]; col <= ranges[c][1]; col++) {
+                    bucketStarts_[r * columns_ + col + 1]++;
+                }
+            }
+        }
+        for (int b = 1; b < bucketStarts_.length; b++) {
+            bucketStarts_[b] += bucketStarts_[b - 1];
+        }
+        int[] next = bucketStarts_.clone();
+        bucketCells_ = new int[bucketStarts_[bucketStarts_.length - 1]];
+        for (int c = 0; c < n; c++) {
+            for (int r = ranges[c][2]; r <= ranges[c][3]; r++) {
+                for (int col = ranges[c][0]; col <= ranges[c][1]; col++) {
+                    bucketCells_[next[r * columns_ + col]++] = c;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return transform of the first cell that contains (x, y), or of the
+     *         cell with the nearest center if none does.  Null if there are
+     *         no cells.
+     */
+    AffineTransform find(double x, double y) {
+        if (cells_.length == 0) {
+            return null;
+        }
+        int bucket = row(y) * columns_ + column(x);
+        for (int k = bucketStarts_[bucket]; k < bucketStarts_[bucket + 1]; k++) {
+            int c = bucketCells_[k];
+            if (cells_[c].contains(x, y)) {
+                return transforms_[c];
+            }
+        }
+        double minDistance = Double.MAX_VALUE;
+        int best = 0;
+        for (int c = 0; c < cells_.length; c++) {
+            double dx = centerXs_[c] - x;
+            double dy = centerYs_[c] - y;
+            double distance = dx * dx + dy * dy;
+            if (minDistance > distance) {
+                minDistance = distance;
+                best = c;
+            }
+        }
+        return transforms_[best];
+    }
+
+    // Clamping is monotone, so a point inside a cell always maps to one of
+    // the buckets the cell was added to
+    private int column(double x) {
+        double c = Math.floor((x - originX_) / bucketWidth_);
+        return (int) Math.max(0, Math.min(columns_ - 1, c));
+    }
+
+    private int row(double y) {
+        double r = Math.floor((y - originY_) / bucketHeight_);
+        return (int) Math.max(0, Math.min(rows_ - 1, r));
+    }
+}
@@ -4,6 +4,7 @@ package org.micromanager.projector;
 import java.awt.Polygon;
 import java.awt.Rectangle;
 import java.awt.geom.AffineTransform;
+import java.util.Collections;
 import java.util.Map;
 
 /**
@@ -23,6 +24,8 @@ public class Mapping {
     private final Rectangle cameraROI_;
     // Binning of the camera when the mapping was generated
     private final int cameraBinning_;
+    // Lookup of the cells of transformMap_, built when first needed
+    private CellIndex cellIndex_;
     
     private Mapping(Map<Polygon, AffineTransform> transformMap, 
             AffineTransform approximateTransform, Rectangle cameraROI,
@@ -75,4 +78,47 @@ public class Mapping {
         return cameraBinning_;
     }
 
+    /**
+     * Finds the AffineTransform for a point, in the (full frame, calibration
+     * binning) camera coordinates of the mapping: the transform of the cell
+     * that contains the point, or of the cell whose center is closest.
+     * The map should not be changed after the first call.
+     * 
+     * @param x camera x coordinate
+     * @param y camera y coordinate
+     * @return AffineTransform for this point, null if the map has no cells
+     */
+    public AffineTransform getTransform(double x, double y) {
+        return getCellIndex().find(x, y);
+    }
+
+    /**
+     * Transforms an array of camera points to projector points, each with
+     * the transform of its own cell.  Points are stored as in 
+     * AffineTransform.transform(double[], int, double[], int, int): 
+     * x0, y0, x1, y1, ...  The arrays may be the same.
+     * 
+     * @param srcPts camera points, in the coordinates of the mapping
+     * @param dstPts receives the projector points
+     * @param numPts number of points to transform
+     */
+    public void transform(double[] srcPts, double[] dstPts, int numPts) {
+        CellIndex index = getCellIndex();
+        for (int i = 0; i < numPts; i++) {
+            AffineTransform transform = index.find(srcPts[2 * i], srcPts[2 * i + 1]);
+            if (transform == null) {
+                throw new RuntimeException("Unable to map point to device.");
+            }
+            transform.transform(srcPts, 2 * i, dstPts, 2 * i, 1);
+        }
+    }
+
+    private synchronized CellIndex getCellIndex() {
+        if (cellIndex_ == null) {
+            cellIndex_ = new CellIndex(transformMap_ == null
+                    ? Collections.<Polygon, AffineTransform>emptyMap() : transformMap_);
+        }
+        return cellIndex_;
+    }
+
 }
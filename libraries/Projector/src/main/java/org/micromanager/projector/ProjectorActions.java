@@ -8,16 +8,15 @@ import ij.gui.Roi;
 import ij.process.FloatPolygon;
 import java.awt.Polygon;
 import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
 import mmcorej.CMMCore;
 import org.micromanager.Studio;
 import org.micromanager.propertymap.MutablePropertyMapView;
 import org.micromanager.projector.internal.MappingStorage;
 import org.micromanager.projector.internal.ProjectorControlForm;
-import org.micromanager.projector.internal.Utils;
 import org.micromanager.projector.internal.devices.Galvo;
 import org.micromanager.projector.internal.devices.SLM;
 
@@ -132,19 +131,20 @@ public abstract class ProjectorActions {
            Polygon[] roiPolygons, Mapping mapping, Rectangle cameraROI, Integer cameraBinning) {
       ArrayList<FloatPolygon> transformedROIs = new ArrayList<>();
       for (Polygon roiPolygon : roiPolygons) {
-         FloatPolygon targeterPolygon = new FloatPolygon();
          try {
-            Point2D targeterPoint;
+            // all vertices of the polygon are transformed in one go
+            double[] points = new double[2 * roiPolygon.npoints];
             for (int i = 0; i < roiPolygon.npoints; ++i) {
-               Point2D.Double imagePoint = new Point2D.Double(
-                       roiPolygon.xpoints[i], roiPolygon.ypoints[i]);
-               // targeterPoint = transformAndMirrorPoint(mapping, imagePoint);
-               targeterPoint = transformPoint(mapping, imagePoint, cameraROI, cameraBinning);
-               if (targeterPoint == null) {
-                  throw new Exception();
-               }
-               targeterPolygon.addPoint( (float) targeterPoint.getX(), 
-                       (float) targeterPoint.getY() );
+               points[2 * i] = roiPolygon.xpoints[i];
+               points[2 * i + 1] = roiPolygon.ypoints[i];
+            }
+            toMappingCoordinates(mapping, points, roiPolygon.npoints,
+                    cameraROI, cameraBinning);
+            mapping.transform(points, points, roiPolygon.npoints);
+            FloatPolygon targeterPolygon = new FloatPolygon();
+            for (int i = 0; i < roiPolygon.npoints; ++i) {
+               targeterPolygon.addPoint( (float) points[2 * i], 
+                       (float) points[2 * i + 1] );
             }
             transformedROIs.add(targeterPolygon);
          } catch (Exception ex) {
@@ -193,29 +193,11 @@ public abstract class ProjectorActions {
          pt.x = (pt.x + cameraROI.x) * factor; 
          pt.y = (pt.y + cameraROI.y) * factor;
       }
-      Set<Polygon> set = mapping.getMap().keySet();
-      // First find out if the given point is inside a cell, and if so,
-      // transform it with that cell's AffineTransform.
-      for (Polygon poly : set) {
-         if (poly.contains(pt)) {
-            return (Point2D.Double) mapping.getMap().get(poly).transform(pt, null);
-         }
-      }
-      // The point isn't inside any cell, so search for the closest cell
-      // and use the AffineTransform from that.
-      double minDistance = Double.MAX_VALUE;
-      Polygon bestPoly = null;
-      for (Polygon poly : set) {
-         double distance = Utils.meanPosition2D(Utils.getVertices(poly)).distance(pt.x, pt.y);
-         if (minDistance > distance) {
-            bestPoly = poly;
-            minDistance = distance;
-         }
-      }
-      if (bestPoly == null) {
+      AffineTransform transform = mapping.getTransform(pt.x, pt.y);
+      if (transform == null) {
          throw new RuntimeException("Unable to map point to device.");
       }
-      return (Point2D.Double) mapping.getMap().get(bestPoly).transform(pt, null);
+      return (Point2D.Double) transform.transform(pt, null);
    }
    
    public static void transformAndSetMask(Mapping mapping, 
@@ -233,23 +215,53 @@ public abstract class ProjectorActions {
       int slmWidth = (int) slm.getXRange();
       int slmHeight = (int) slm.getYRange();
       byte[] outputImage = new byte[slmWidth * slmHeight];
-      for (int x = 0; x < width; x++) {
-         for (int y = 0; y < height; y++) {
+      int nrPoints = 0;
+      for (byte pixel : inputImage) {
+         if (pixel != 0) {
+            nrPoints++;
+         }
+      }
+      double[] points = new double[2 * nrPoints];
+      int n = 0;
+      for (int y = 0; y < height; y++) {
+         for (int x = 0; x < width; x++) {
             if (inputImage[x + y * width] != 0) {
-               Point2D.Double rp = transformPoint(mapping, 
-                       new Point2D.Double(x, y), cameraROI, cameraBinning);
-               int xt = (int) rp.x;
-               int yt = (int) rp.y;
-               if (0 <= xt && xt < slmWidth && 0 <= yt && yt < slmHeight) {
-                  outputImage[xt + yt * slmWidth] = -1;
-               }
+               points[2 * n] = x;
+               points[2 * n + 1] = y;
+               n++;
             }
          }
       }
+      toMappingCoordinates(mapping, points, nrPoints, cameraROI, cameraBinning);
+      mapping.transform(points, points, nrPoints);
+      for (int i = 0; i < nrPoints; i++) {
+         int xt = (int) points[2 * i];
+         int yt = (int) points[2 * i + 1];
+         if (0 <= xt && xt < slmWidth && 0 <= yt && yt < slmHeight) {
+            outputImage[xt + yt * slmWidth] = -1;
+         }
+      }
       slm.displaySLMImage(outputImage);
    }
    
    /************* Private methods **************/
+
+   // Converts points (x0, y0, x1, y1, ...) from the current camera ROI and
+   // binning to the coordinates of the mapping, as transformPoint() does
+   private static void toMappingCoordinates(Mapping mapping, double[] points,
+           int nrPoints, Rectangle cameraROI, Integer cameraBinning) {
+      if (cameraROI == null) {
+         return;
+      }
+      if (cameraBinning == null) { 
+         cameraBinning = 1; 
+      }
+      double factor = (double) cameraBinning / (double) mapping.getBinning();
+      for (int i = 0; i < nrPoints; i++) {
+         points[2 * i] = (points[2 * i] + cameraROI.x) * factor;
+         points[2 * i + 1] = (points[2 * i + 1] + cameraROI.y) * factor;
+      }
+   }
       
    // Converts an ROI to a Polygon.
    private static Polygon asPolygon(Roi roi) {
@@ -0,0 +1,146 @@
+package org.micromanager.projector;
+
+import java.awt.Polygon;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class CellIndexTest {
+
+    /**
+     * The search Mapping did before CellIndex: the first cell in map order
+     * that contains the point, else the cell with the nearest center.
+     */
+    private static AffineTransform findByScan(Map<Polygon, AffineTransform> map,
+            double x, double y) {
+        for (Polygon cell : map.keySet()) {
+            if (cell.contains(new Point2D.Double(x, y))) {
+                return map.get(cell);
+            }
+        }
+        double minDistance = Double.MAX_VALUE;
+        Polygon best = null;
+        for (Polygon cell : map.keySet()) {
+            double xSum = 0.0;
+            double ySum = 0.0;
+            for (int v = 0; v < cell.npoints; v++) {
+                xSum += cell.xpoints[v];
+                ySum += cell.ypoints[v];
+            }
+            double distance = Point2D.distance(xSum / cell.npoints,
+                    ySum / cell.npoints, x, y);
+            if (minDistance > distance) {
+                best = cell;
+                minDistance = distance;
+            }
+        }
+        return best == null ? null : map.get(best);
+    }
+
+    /**
+     * Cells of a grid whose corners are shifted at random, so that
+     * neighbouring cells share their edges, as the calibration makes them.
+     */
+    private static Map<Polygon, AffineTransform> jitteredGrid(int columns,
+            int rows, int size, Random random) {
+        int[][] xs = new int[columns + 1][rows + 1];
+        int[][] ys = new int[columns + 1][rows + 1];
+        for (int i = 0; i <= columns; i++) {
+            for (int j = 0; j <= rows; j++) {
+                xs[i][j] = 100 + i * size + random.nextInt(size / 3) - size / 6;
+                ys[i][j] = 50 + j * size + random.nextInt(size / 3) - size / 6;
+            }
+        }
+        Map<Polygon, AffineTransform> map = new HashMap<Polygon, AffineTransform>();
+        for (int i = 0; i < columns; i++) {
+            for (int j = 0; j < rows; j++) {
+                Polygon cell = new Polygon(
+                        new int[] {xs[i][j], xs[i + 1][j], xs[i + 1][j + 1], xs[i][j + 1]},
+                        new int[] {ys[i][j], ys[i + 1][j], ys[i + 1][j + 1], ys[i][j + 1]},
+                        4);
+                map.put(cell, AffineTransform.getTranslateInstance(i, j));
+            }
+        }
+        return map;
+    }
+
+    private static List<double[]> queryPoints(Map<Polygon, AffineTransform> map,
+            Random random) {
+        List<double[]> points = new ArrayList<double[]>();
+        double minX = Double.MAX_VALUE;
+        double minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE;
+        double maxY = -Double.MAX_VALUE;
+        for (Polygon cell : map.keySet()) {
+            for (int v = 0; v < cell.npoints; v++) {
+                double x = cell.xpoints[v];
+                double y = cell.ypoints[v];
+                double nextX = cell.xpoints[(v + 1) % cell.npoints];
+                double nextY = cell.ypoints[(v + 1) % cell.npoints];
+                // on the vertices, and on and next to the edges
+                points.add(new double[] {x, y});
+                points.add(new double[] {(x + nextX) / 2, (y + nextY) / 2});
+                points.add(new double[] {(x + nextX) / 2 + 1e-9, (y + nextY) / 2});
+                points.add(new double[] {(x + nextX) / 2, (y + nextY) / 2 - 1e-9});
+                minX = Math.min(minX, x);
+                minY = Math.min(minY, y);
+                maxX = Math.max(maxX, x);
+                maxY = Math.max(maxY, y);
+            }
+        }
+        double width = Math.max(maxX - minX, 1);
+        double height = Math.max(maxY - minY, 1);
+        for (int i = 0; i < 2000; i++) {
+            // inside the cells, and up to a cell grid away outside them
+            points.add(new double[] {minX - width + 3 * width * random.nextDouble(),
+                    minY - height + 3 * height * random.nextDouble()});
+            points.add(new double[] {minX + width * random.nextDouble(),
+                    minY + height * random.nextDouble()});
+        }
+        return points;
+    }
+
+    private static void checkAgainstScan(Map<Polygon, AffineTransform> map,
+            Random random) {
+        CellIndex index = new CellIndex(map);
+        for (double[] p : queryPoints(map, random)) {
+            Assert.assertSame(p[0] + ", " + p[1], findByScan(map, p[0], p[1]),
+                    index.find(p[0], p[1]));
+        }
+    }
+
+    @Test
+    public void testJitteredGridMatchesScan() {
+        Random random = new Random(1);
+        for (int[] size : new int[][] {{7, 7}, {12, 3}, {1, 9}, {1, 1}}) {
+            checkAgainstScan(jitteredGrid(size[0], size[1], 60, random), random);
+        }
+    }
+
+    @Test
+    public void testOverlappingCellsMatchScan() {
+        // where cells overlap, the first one in map order wins
+        Random random = new Random(2);
+        Map<Polygon, AffineTransform> map = jitteredGrid(5, 5, 40, random);
+        for (int i = 0; i < 10; i++) {
+            int x = 100 + random.nextInt(200);
+            int y = 50 + random.nextInt(200);
+            int w = 10 + random.nextInt(80);
+            int h = 10 + random.nextInt(80);
+            map.put(new Polygon(new int[] {x, x + w, x + w / 2}, new int[] {y, y, y + h}, 3),
+                    AffineTransform.getScaleInstance(i + 2, 1));
+        }
+        checkAgainstScan(map, random);
+    }
+
+    @Test
+    public void testEmpty() {
+        Assert.assertNull(new CellIndex(new HashMap<Polygon, AffineTransform>()).find(1, 2));
+    }
+}
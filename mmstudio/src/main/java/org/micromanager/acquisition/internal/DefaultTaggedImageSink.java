@@ -68,7 +68,8 @@ public final class DefaultTaggedImageSink  {
                         ++imageCount;
                         DefaultImage image = new DefaultImage(tagged);
                         try {
-                           pipeline_.insertImage(image);
+                           // Nothing else refers to the freshly converted image
+                           pipeline_.insertExclusiveImage(image);
                         }
                         catch (PipelineErrorException e) {
                            // TODO: make showing the dialog optional.
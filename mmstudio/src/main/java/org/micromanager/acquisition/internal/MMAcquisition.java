@@ -50,6 +50,7 @@ import org.micromanager.data.SummaryMetadata;
 import org.micromanager.data.internal.CommentsHelper;
 import org.micromanager.data.internal.DefaultDatastore;
 import org.micromanager.data.internal.DefaultSummaryMetadata;
+import org.micromanager.data.internal.StorageOffHeap;
 import org.micromanager.data.internal.StorageRAM;
 import org.micromanager.data.internal.StorageSinglePlaneTiffSeries;
 import org.micromanager.data.internal.multipagetiff.StorageMultipageTiff;
@@ -120,6 +121,8 @@ public final class MMAcquisition extends DataViewerListener {
                ReportingUtils.showError(e, "Unable to create directory for saving images.");
                eng.stop(true);
             }
+         } else if (StorageOffHeap.getShouldUseForAcquisitions()) {
+            store_.setStorage(new StorageOffHeap(store_));
          } else {
             store_.setStorage(new StorageRAM(store_));
          }
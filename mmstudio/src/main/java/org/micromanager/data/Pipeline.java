@@ -88,6 +88,25 @@ public interface Pipeline {
     */
    void insertImage(Image image) throws IOException, PipelineErrorException;
 
+   /**
+    * Insert an Image that nothing outside the Pipeline refers to.
+    * <p>
+    * As insertImage(), but the caller guarantees that it holds no other
+    * reference to the image or its pixel data, and will not use either after
+    * this call. Processors may then modify the pixels in place instead of
+    * copying them (see {@link ProcessorContext#getMutablePixels}).
+    * <p>
+    * The default implementation calls insertImage().
+    *
+    * @param image Image to be processed by the Pipeline.
+    * @throws IOException see insertImage()
+    * @throws PipelineErrorException see insertImage()
+    */
+   default void insertExclusiveImage(Image image)
+         throws IOException, PipelineErrorException {
+      insertImage(image);
+   }
+
    /**
     * Get the output Datastore for this Pipeline. This Datastore is the
     * ultimate recipient of Images that have been processed by the Pipeline.
@@ -52,6 +52,23 @@ public interface Processor {
     */
    void processImage(Image image, ProcessorContext context);
 
+   /**
+    * Whether this Processor may process several images at the same time.
+    * If true, an asynchronous Pipeline may call processImage() concurrently
+    * from multiple threads, each with its own ProcessorContext; the images
+    * output for each input image are still passed on in the order in which
+    * the input images arrived. Only return true if processImage() does not
+    * depend on or modify state shared between images (for example, a
+    * processor that transforms each image on its own, but not one that
+    * averages frames). cleanup() is always called on its own, after all
+    * images have been processed.
+    * The default implementation returns false.
+    * @return true if processImage() can be called concurrently
+    */
+   default boolean isParallelSafe() {
+      return false;
+   }
+
    /**
     * Clean up when processing is finished. At this time no more images are
     * going to be sent to the processImage method. The ProcessorContext is
@@ -39,4 +39,72 @@ public interface ProcessorContext {
     * @return the SummaryMetadata of the Datastore of processed images.
     */
    SummaryMetadata getSummaryMetadata();
+
+   /**
+    * Get pixel data of an input Image that the Processor may modify, for
+    * example to output a transformed copy of the image without allocating
+    * new pixels.
+    * <p>
+    * If the pipeline holds the only reference to the image's pixels (which is
+    * the case for images produced by the acquisition engine, or output by an
+    * earlier Processor from pixels it obtained through this context), the
+    * image's own pixel array is returned, and the input Image must not be
+    * used afterwards, except to be passed to {@link #recyclePixels}. Otherwise
+    * a copy is returned.
+    * <p>
+    * <strong>Warning</strong>: As with {@link Image#getRawPixels}, do not
+    * depend on the type of the returned object.
+    * <p>
+    * The default implementation returns {@link Image#getRawPixelsCopy}.
+    *
+    * @param image an Image passed to the Processor's processImage()
+    * @return pixel data that the Processor owns, laid out as in the image
+    */
+   default Object getMutablePixels(Image image) {
+      return image.getRawPixelsCopy();
+   }
+
+   /**
+    * Get a pixel array for an output image of the given size, with the same
+    * pixel type as the given image. The array may have been used before, so
+    * its contents are undefined.
+    * <p>
+    * The default implementation allocates a new array.
+    *
+    * @param image image whose pixel type to use
+    * @param width width of the output image, in pixels
+    * @param height height of the output image, in pixels
+    * @return a byte[], short[] or int[] array of width * height pixels
+    */
+   default Object allocatePixels(Image image, int width, int height) {
+      int length = width * height *
+            (image.getBytesPerPixel() / image.getBytesPerComponent());
+      switch (image.getBytesPerComponent()) {
+         case 1:
+            return new byte[length];
+         case 2:
+            return new short[length];
+         case 4:
+            return new int[length];
+         default:
+            throw new UnsupportedOperationException(
+                  "Unsupported bytes per component: " +
+                  image.getBytesPerComponent());
+      }
+   }
+
+   /**
+    * Hand back a pixel array that the Processor has not output and will not
+    * use again, so that later calls can reuse it. This may be an array
+    * obtained from {@link #getMutablePixels} or {@link #allocatePixels}, or
+    * the {@link Image#getRawPixels} of the input image once the Processor is
+    * done with it (in which case the input Image must not be used or output
+    * afterwards). Arrays the pipeline does not own are ignored.
+    * <p>
+    * The default implementation does nothing.
+    *
+    * @param pixels pixel array no longer used by the Processor
+    */
+   default void recyclePixels(Object pixels) {
+   }
 }
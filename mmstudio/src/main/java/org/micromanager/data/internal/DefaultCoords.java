@@ -21,10 +21,11 @@
 package org.micromanager.data.internal;
 
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 import org.apache.commons.lang3.ArrayUtils;
 import org.micromanager.PropertyMap;
@@ -32,22 +33,130 @@ import org.micromanager.PropertyMaps;
 import org.micromanager.data.Coords;
 
 
+/**
+ * Coords implementation storing the indices in an int array, laid out
+ * according to an interned AxisLayout.
+ *
+ * Coords are created and hashed for every image, so building them, looking
+ * up the standard axes, and comparing them should not allocate or compare
+ * strings.
+ */
 public final class DefaultCoords implements Coords {
 
+   // The standard axes, in sorted order; bit i of a layout mask stands for
+   // STANDARD_AXES[i]
+   private static final String[] STANDARD_AXES =
+         { CHANNEL, STAGE_POSITION, TIME_POINT, Z_SLICE };
+   private static final int C_BIT = 0;
+   private static final int P_BIT = 1;
+   private static final int T_BIT = 2;
+   private static final int Z_BIT = 3;
+
+   /**
+    * Sorted list of axis names shared by all Coords having exactly these
+    * axes. Instances are interned, so they can be compared by identity.
+    */
+   private static final class AxisLayout {
+      final String[] axes_;
+      // Position of each standard axis in axes_, or -1
+      final int[] standardSlots_ = { -1, -1, -1, -1 };
+      final int hashCode_;
+
+      AxisLayout(String[] sortedAxes) {
+         axes_ = sortedAxes;
+         for (int i = 0; i < axes_.length; i++) {
+            int bit = standardBit(axes_[i]);
+            if (bit >= 0) {
+               standardSlots_[bit] = i;
+            }
+         }
+         hashCode_ = Arrays.hashCode(axes_);
+      }
+
+      int slotOf(String axis) {
+         int bit = standardBit(axis);
+         if (bit >= 0) {
+            return standardSlots_[bit];
+         }
+         for (int i = 0; i < axes_.length; i++) {
+            if (axes_[i].equals(axis)) {
+               return i;
+            }
+         }
+         return -1;
+      }
+   }
+
+   private static final ConcurrentHashMap<List<String>, AxisLayout> LAYOUTS =
+         new ConcurrentHashMap<>();
+   // Layouts having only standard axes, indexed by mask
+   private static final AxisLayout[] STANDARD_LAYOUTS = new AxisLayout[16];
+   static {
+      for (int mask = 0; mask < STANDARD_LAYOUTS.length; mask++) {
+         List<String> axes = new ArrayList<>(4);
+         for (int bit = 0; bit < STANDARD_AXES.length; bit++) {
+            if ((mask & (1 << bit)) != 0) {
+               axes.add(STANDARD_AXES[bit]);
+            }
+         }
+         STANDARD_LAYOUTS[mask] = new AxisLayout(axes.toArray(new String[0]));
+         LAYOUTS.put(axes, STANDARD_LAYOUTS[mask]);
+      }
+   }
+
+   private static AxisLayout internLayout(String[] sortedAxes) {
+      AxisLayout layout = LAYOUTS.get(Arrays.asList(sortedAxes));
+      if (layout == null) {
+         layout = new AxisLayout(sortedAxes);
+         AxisLayout existing = LAYOUTS.putIfAbsent(
+               Arrays.asList(sortedAxes), layout);
+         if (existing != null) {
+            layout = existing;
+         }
+      }
+      return layout;
+   }
+
+   /**
+    * @return the bit of a standard axis, or -1 for other axes
+    */
+   private static int standardBit(String axis) {
+      // Identity checks catch the usual case of the constants being passed
+      if (axis == CHANNEL) { return C_BIT; }
+      if (axis == TIME_POINT) { return T_BIT; }
+      if (axis == Z_SLICE) { return Z_BIT; }
+      if (axis == STAGE_POSITION) { return P_BIT; }
+      if (axis == null) { return -1; }
+      switch (axis) {
+         case CHANNEL: return C_BIT;
+         case TIME_POINT: return T_BIT;
+         case Z_SLICE: return Z_BIT;
+         case STAGE_POSITION: return P_BIT;
+         default: return -1;
+      }
+   }
+
    public static class Builder implements Coords.Builder {
-      // Since we only hold several axes, array lists are likely more efficient
-      // than a LinkedHashMap
-      private final List<String> axes_;
-      private final List<Integer> indices_;
+      // Indices of the standard axes (0 if absent)
+      private final int[] standardIndices_ = new int[4];
+      // Other axes, rarely used; allocated on demand
+      private List<String> customAxes_;
+      private List<Integer> customIndices_;
 
       public Builder() {
-         axes_ = new ArrayList<>(5);
-         indices_ = new ArrayList<>(5);
       }
 
-      private Builder(List<String> axes, List<Integer> indices) {
-         axes_ = new ArrayList<>(axes);
-         indices_ = new ArrayList<>(indices);
+      private Builder(DefaultCoords coords) {
+         String[] axes = coords.layout_.axes_;
+         for (int i = 0; i < axes.length; i++) {
+            int bit = standardBit(axes[i]);
+            if (bit >= 0) {
+               standardIndices_[bit] = coords.indices_[i];
+            }
+            else {
+               setCustom(axes[i], coords.indices_[i]);
+            }
+         }
       }
 
       @Override
@@ -55,41 +164,63 @@ public final class DefaultCoords implements Coords {
          return new DefaultCoords(this);
       }
 
+      private void setCustom(String axis, int index) {
+         if (customAxes_ == null) {
+            customAxes_ = new ArrayList<>(2);
+            customIndices_ = new ArrayList<>(2);
+         }
+         int i = customAxes_.indexOf(axis);
+         if (i < 0) {
+            customAxes_.add(axis);
+            customIndices_.add(index);
+         } else {
+            customIndices_.set(i, index);
+         }
+      }
+
       @Override
       public Builder index(String axis, int index) {
+         int bit = standardBit(axis);
+         if (bit >= 0) {
+            standardIndices_[bit] = Math.max(index, 0);
+            return this;
+         }
          Preconditions.checkArgument(isValidAxis(axis), "Invalid axis name");
          if (index <= 0) {
             return removeAxis(axis);
          }
-         int i = axes_.indexOf(axis);
-         if (i < 0) {
-            axes_.add(axis);
-            indices_.add(index);
-         } else {
-            indices_.set(i, index);
-         }
+         setCustom(axis, index);
          return this;
       }
 
       @Override
       public Builder removeAxis(String axis) {
-         int i = axes_.indexOf(axis);
+         int bit = standardBit(axis);
+         if (bit >= 0) {
+            standardIndices_[bit] = 0;
+            return this;
+         }
+         int i = customAxes_ == null ? -1 : customAxes_.indexOf(axis);
          if (i >= 0) {
-            axes_.remove(i);
-            indices_.remove(i);
+            customAxes_.remove(i);
+            customIndices_.remove(i);
          }
          return this;
       }
 
+      private int getIndex(String axis) {
+         int bit = standardBit(axis);
+         if (bit >= 0) {
+            return standardIndices_[bit];
+         }
+         int i = customAxes_ == null ? -1 : customAxes_.indexOf(axis);
+         return i < 0 ? 0 : customIndices_.get(i);
+      }
+
       @Override
       public Builder offset(String axis, int offset)
               throws IllegalArgumentException, IndexOutOfBoundsException {
-         int i = axes_.indexOf(axis);
-         int oldIndex = 0;
-         if (i >= 0) {
-            oldIndex = indices_.get(i);
-         }
-         int newIndex = oldIndex + offset;
+         int newIndex = getIndex(axis) + offset;
          if (newIndex < 0) {
             throw new IndexOutOfBoundsException(
                     "Offset would make Coords have negative index for axis \"" +
@@ -101,7 +232,8 @@ public final class DefaultCoords implements Coords {
 
       @Override
       public Builder timePoint(int frame) {
-         return index(TIME_POINT, frame);
+         standardIndices_[T_BIT] = Math.max(frame, 0);
+         return this;
       }
 
       @Override
@@ -117,7 +249,8 @@ public final class DefaultCoords implements Coords {
 
       @Override
       public Builder stagePosition(int index) {
-         return index(STAGE_POSITION, index);
+         standardIndices_[P_BIT] = Math.max(index, 0);
+         return this;
       }
 
       @Override
@@ -127,7 +260,8 @@ public final class DefaultCoords implements Coords {
 
       @Override
       public Builder zSlice(int slice) {
-         return index(Z_SLICE, slice);
+         standardIndices_[Z_BIT] = Math.max(slice, 0);
+         return this;
       }
 
       @Override
@@ -137,7 +271,8 @@ public final class DefaultCoords implements Coords {
 
       @Override
       public Builder channel(int channel) {
-         return index(CHANNEL, channel);
+         standardIndices_[C_BIT] = Math.max(channel, 0);
+         return this;
       }
 
       @Override
@@ -146,37 +281,65 @@ public final class DefaultCoords implements Coords {
       }
    }
 
-   // Since we only hold several axes, array lists are likely more efficient
-   // than a LinkedHashMap
-   private final List<String> axes_;
-   private final List<Integer> indices_;
+   private final AxisLayout layout_;
+   // Index for each axis of layout_ (never 0, as zero axes are omitted)
+   private final int[] indices_;
+   private final int hashCode_;
 
    public DefaultCoords(Builder builder) {
-      // sort by axes name
-      List<String> axes = new ArrayList<>(builder.axes_);
-      Collections.sort(axes);
-      List<Integer> indices = new ArrayList<>(axes.size());
-      for (String axis : axes) {
-         int index = builder.axes_.indexOf(axis);
-         indices.add(builder.indices_.get(index));
+      int mask = 0;
+      int numStandard = 0;
+      for (int bit = 0; bit < 4; bit++) {
+         if (builder.standardIndices_[bit] > 0) {
+            mask |= 1 << bit;
+            numStandard++;
+         }
       }
-
-      axes_ = ImmutableList.copyOf(axes);
-      indices_ = ImmutableList.copyOf(indices);
+      if (builder.customAxes_ == null || builder.customAxes_.isEmpty()) {
+         layout_ = STANDARD_LAYOUTS[mask];
+         indices_ = new int[numStandard];
+         int i = 0;
+         for (int bit = 0; bit < 4; bit++) {
+            if ((mask & (1 << bit)) != 0) {
+               indices_[i++] = builder.standardIndices_[bit];
+            }
+         }
+      }
+      else {
+         // sort by axes name
+         List<String> axes = new ArrayList<>(builder.customAxes_);
+         for (int bit = 0; bit < 4; bit++) {
+            if ((mask & (1 << bit)) != 0) {
+               axes.add(STANDARD_AXES[bit]);
+            }
+         }
+         Collections.sort(axes);
+         layout_ = internLayout(axes.toArray(new String[axes.size()]));
+         indices_ = new int[axes.size()];
+         for (int i = 0; i < indices_.length; i++) {
+            indices_[i] = builder.getIndex(layout_.axes_[i]);
+         }
+      }
+      hashCode_ = 23 * (23 * 3 + layout_.hashCode_) + Arrays.hashCode(indices_);
    }
 
    @Override
    public int getIndex(String axis) {
-      int i = axes_.indexOf(axis);
+      int i = layout_.slotOf(axis);
       if (i < 0) {
          return 0;
       }
-      return indices_.get(i);
+      return indices_[i];
+   }
+
+   private int getStandardIndex(int bit) {
+      int i = layout_.standardSlots_[bit];
+      return i < 0 ? 0 : indices_[i];
    }
 
    @Override
    public int getTimePoint() {
-      return getIndex(TIME_POINT);
+      return getStandardIndex(T_BIT);
    }
 
    @Override
@@ -186,7 +349,7 @@ public final class DefaultCoords implements Coords {
 
    @Override
    public int getStagePosition() {
-      return getIndex(STAGE_POSITION);
+      return getStandardIndex(P_BIT);
    }
 
    @Override
@@ -196,7 +359,7 @@ public final class DefaultCoords implements Coords {
 
    @Override
    public int getZSlice() {
-      return getIndex(Z_SLICE);
+      return getStandardIndex(Z_BIT);
    }
 
    @Override
@@ -206,7 +369,7 @@ public final class DefaultCoords implements Coords {
 
    @Override
    public int getChannel() {
-      return getIndex(Coords.CHANNEL);
+      return getStandardIndex(C_BIT);
    }
 
    @Override
@@ -222,17 +385,17 @@ public final class DefaultCoords implements Coords {
 
    @Override
    public List<String> getAxes() {
-      return new ArrayList<>(axes_);
+      return new ArrayList<>(Arrays.asList(layout_.axes_));
    }
 
    @Override
    public boolean hasAxis(String axis) {
-      return axes_.contains(axis);
+      return layout_.slotOf(axis) >= 0;
    }
 
    @Override
    public boolean hasTimePointAxis() {
-      return hasAxis(TIME_POINT);
+      return layout_.standardSlots_[T_BIT] >= 0;
    }
 
    @Override
@@ -242,7 +405,7 @@ public final class DefaultCoords implements Coords {
 
    @Override
    public boolean hasStagePositionAxis() {
-      return hasAxis(STAGE_POSITION);
+      return layout_.standardSlots_[P_BIT] >= 0;
    }
 
    @Override
@@ -252,7 +415,7 @@ public final class DefaultCoords implements Coords {
 
    @Override
    public boolean hasZSliceAxis() {
-      return hasAxis(Z_SLICE);
+      return layout_.standardSlots_[Z_BIT] >= 0;
    }
 
    @Override
@@ -262,7 +425,7 @@ public final class DefaultCoords implements Coords {
 
    @Override
    public boolean hasChannelAxis() {
-      return hasAxis(Coords.CHANNEL);
+      return layout_.standardSlots_[C_BIT] >= 0;
    }
 
    @Override
@@ -279,7 +442,7 @@ public final class DefaultCoords implements Coords {
 
    @Override
    public Builder copyBuilder() {
-      return new Builder(axes_, indices_);
+      return new Builder(this);
    }
 
    @Override
@@ -300,9 +463,9 @@ public final class DefaultCoords implements Coords {
    @Override
    public Coords copyRetainingAxes(String... axes) {
       Builder b = new Builder();
-      for (String axis : axes_) {
-         if (ArrayUtils.contains(axes, axis)) {
-            b.index(axis, getIndex(axis));
+      for (int i = 0; i < layout_.axes_.length; i++) {
+         if (ArrayUtils.contains(axes, layout_.axes_[i])) {
+            b.index(layout_.axes_[i], indices_[i]);
          }
       }
       return b.build();
@@ -313,19 +476,27 @@ public final class DefaultCoords implements Coords {
       if (!(other instanceof Coords)) {
          return false;
       }
+      if (other instanceof DefaultCoords) {
+         // Layouts are interned
+         DefaultCoords theOther = (DefaultCoords) other;
+         return layout_ == theOther.layout_ &&
+               hashCode_ == theOther.hashCode_ &&
+               Arrays.equals(indices_, theOther.indices_);
+      }
       // Axis order is not considered for equality, but axes are sorted already
       // A zero index axis is no longer possible, so no need to remove zero axes
       Coords theOther = (Coords) other;
+      List<String> otherAxes = theOther.getAxes();
 
-      if (this.getAxes().size() != theOther.getAxes().size()) {
+      if (layout_.axes_.length != otherAxes.size()) {
          return false;
       }
-      for (int i = 0; i < this.getAxes().size(); i++) {
-         String axis = this.getAxes().get(i);
-         if (!axis.equals(theOther.getAxes().get(i))) {
+      for (int i = 0; i < layout_.axes_.length; i++) {
+         String axis = layout_.axes_[i];
+         if (!axis.equals(otherAxes.get(i))) {
             return false;
          }
-         if (this.getIndex(axis) != theOther.getIndex(axis)) {
+         if (indices_[i] != theOther.getIndex(axis)) {
             return false;
          }
       }
@@ -335,18 +506,14 @@ public final class DefaultCoords implements Coords {
 
    @Override
    public int hashCode() {
-      // Axis order is not considered for equality, but axes are sorted already
-      int hash = 3;
-      hash = 23 * hash + axes_.hashCode();
-      hash = 23 * hash + indices_.hashCode();
-      return hash;
+      return hashCode_;
    }
 
    @Override
    public String toString() {
       StringBuilder sb = new StringBuilder().append("<");
       boolean isFirst = true;
-      for (String axis : axes_) {
+      for (String axis : layout_.axes_) {
          if (!isFirst) {
             sb.append(" ");
          }
@@ -358,7 +525,7 @@ public final class DefaultCoords implements Coords {
 
    public PropertyMap toPropertyMap() {
       PropertyMap.Builder b = PropertyMaps.builder();
-      for (String axis : axes_) {
+      for (String axis : layout_.axes_) {
          b.putInteger(axis, getIndex(axis));
       }
       return b.build();
@@ -381,7 +548,7 @@ public final class DefaultCoords implements Coords {
    @Deprecated
    public String toNormalizedString() {
       StringBuilder sb = new StringBuilder();
-      for (String axis : axes_) {
+      for (String axis : layout_.axes_) {
          // Trailing commas are allowed
          sb.append(String.format("%s=%d,", axis, getIndex(axis)));
       }
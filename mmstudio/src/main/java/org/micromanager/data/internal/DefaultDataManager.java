@@ -350,7 +350,9 @@ public final class DefaultDataManager implements DataManager {
       for (ProcessorFactory factory : factories) {
          processors.add(factory.createProcessor());
       }
-      return new DefaultPipeline(processors, store, isSynchronous);
+      return new DefaultPipeline(processors, store, isSynchronous,
+            DefaultPipeline.getQueueDepth(studio_),
+            DefaultPipeline.getMaxWorkers(studio_));
    }
 
    @Override
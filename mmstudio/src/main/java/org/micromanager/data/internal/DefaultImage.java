@@ -23,9 +23,7 @@ package org.micromanager.data.internal;
 import com.google.common.base.Preconditions;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.ShortBuffer;
@@ -59,6 +57,9 @@ public final class DefaultImage implements Image {
    private DefaultMetadata metadata_;
    private Coords coords_;
    private Buffer rawPixels_;
+   // Array copy of rawPixels_ when that is not backed by an array (e.g. it
+   // maps a file), made on first call to getRawPixels()
+   private volatile Object materializedPixels_;
 
    // Width of the image, in pixels
    int pixelWidth_;
@@ -96,19 +97,11 @@ public final class DefaultImage implements Image {
     */
    public DefaultImage(TaggedImage tagged, Coords coords, Metadata metadata)
          throws IllegalArgumentException {
-      String json = tagged.tags.toString();
-      JsonElement je;
-      try {
-         je = new JsonParser().parse(json);
-      }
-      catch (Exception unlikely) {
-         throw new IllegalArgumentException("Failed to parse JSON created from TaggedImage tags", unlikely);
-      }
-
+      // Read the tags directly rather than through a JSON string; see
+      // TaggedImageConverter
       if (metadata == null) {
          try {
-            metadata = DefaultMetadata.fromPropertyMap(
-                    NonPropertyMapJSONFormats.metadata().fromGson(je));
+            metadata = TaggedImageConverter.metadataFromTags(tagged.tags);
          }
          catch (Exception e) {
             throw new IllegalArgumentException("Failed to convert TaggedImage tags to metadata", e);
@@ -117,32 +110,31 @@ public final class DefaultImage implements Image {
 
       if (coords == null) {
          try {
-            PropertyMap pmap = NonPropertyMapJSONFormats.coords().fromGson(je);
-            coords = Coordinates.fromPropertyMap(pmap);
+            coords = TaggedImageConverter.coordsFromTags(tagged.tags);
          }
          catch (Exception e) {
             throw new IllegalArgumentException("Failed to convert TaggedImage tags to coords", e);
          }
       }
 
-      PropertyMap formatPmap;
+      PixelType pixelType;
       try {
-         formatPmap = NonPropertyMapJSONFormats.imageFormat().fromGson(je);
+         pixelWidth_ = TaggedImageConverter.widthFromTags(tagged.tags);
+         pixelHeight_ = TaggedImageConverter.heightFromTags(tagged.tags);
+         pixelType = TaggedImageConverter.pixelTypeFromTags(tagged.tags);
       }
       catch (Exception e) {
-         throw new IllegalArgumentException("Failed to convert TaggedImage tags to image size and pixel format");
+         throw new IllegalArgumentException("Failed to convert TaggedImage tags to image size and pixel format", e);
       }
 
       metadata_ = (DefaultMetadata) metadata;
       coords_ = coords;
 
-      pixelWidth_ = formatPmap.getInteger(PropertyKey.WIDTH.key(), 0);
-      pixelHeight_ = formatPmap.getInteger(PropertyKey.HEIGHT.key(), 0);
       if (pixelWidth_ <= 0 || pixelHeight_ <= 0) {
          throw new IllegalArgumentException("Zero or negative image size");
       }
 
-      pixelType_ = formatPmap.getStringAsEnum(PropertyKey.PIXEL_TYPE.key(), PixelType.class, null);
+      pixelType_ = pixelType;
       if (pixelType_ == null) {
          throw new IllegalArgumentException("Missing pixel type");
       }
@@ -216,6 +208,46 @@ public final class DefaultImage implements Image {
       pixelType_ = PixelType.valueFor(bytesPerPixel, bpc, numComponents);
    }
 
+   /**
+    * Generates a DefaultImage whose pixels are an existing buffer, such as a
+    * view of a memory-mapped file.
+    *
+    * The buffer is used directly (i.e., it is not copied), and should not be
+    * modified afterwards; getRawPixels() returns a copy unless the buffer is
+    * backed by an array.
+    *
+    * @param pixels Image pixels: a ByteBuffer for 8-bit components or a
+    * ShortBuffer for 16-bit components, in native byte order (not null).
+    * @param width Image width.
+    * @param height Image height.
+    * @param pixelType Pixel type of the image (not null).
+    * @param coords Coords to be used for this new image (can be null).
+    * @param metadata Metadata to be used this new image (can be null).
+    * @throws IllegalArgumentException
+    */
+   public DefaultImage(Buffer pixels, int width, int height,
+         PixelType pixelType, Coords coords, Metadata metadata)
+         throws IllegalArgumentException {
+      Preconditions.checkNotNull(pixels);
+      Preconditions.checkNotNull(pixelType);
+      metadata_ = metadata == null ? new DefaultMetadata.Builder().build() :
+              (DefaultMetadata) metadata;
+      coords_ = coords == null ? Coordinates.builder().build() : coords;
+
+      int bpc = pixelType.getBytesPerComponent();
+      if (!(bpc == 1 && pixels instanceof ByteBuffer) &&
+            !(bpc == 2 && pixels instanceof ShortBuffer)) {
+         throw new UnsupportedOperationException("Unsupported pixel buffer type");
+      }
+      if (pixels.capacity() < width * height * pixelType.getNumberOfComponents()) {
+         throw new IllegalArgumentException("Invalid pixel data " + pixels);
+      }
+      rawPixels_ = pixels;
+      pixelWidth_ = width;
+      pixelHeight_ = height;
+      pixelType_ = pixelType;
+   }
+
    /**
     * Creates a new image object that shares the pixels of the source image
     * Attaches the provided coords and metadata
@@ -227,10 +259,17 @@ public final class DefaultImage implements Image {
       metadata_ = (DefaultMetadata) metadata;
       coords_ = coords;
 
-      int bytesPerComponent = 0;
-      if (source.getRawPixels() instanceof byte[]) { bytesPerComponent = 1; }
-      else if (source.getRawPixels() instanceof short[]) { bytesPerComponent = 2; }
-      rawPixels_ = BufferTools.wrapArray(source.getRawPixels(), bytesPerComponent);
+      if (source instanceof DefaultImage) {
+         // Share the buffer itself, which need not be backed by an array
+         rawPixels_ = ((DefaultImage) source).rawPixels_;
+         materializedPixels_ = ((DefaultImage) source).materializedPixels_;
+      }
+      else {
+         int bytesPerComponent = 0;
+         if (source.getRawPixels() instanceof byte[]) { bytesPerComponent = 1; }
+         else if (source.getRawPixels() instanceof short[]) { bytesPerComponent = 2; }
+         rawPixels_ = BufferTools.wrapArray(source.getRawPixels(), bytesPerComponent);
+      }
 
       if (rawPixels_.capacity() == 0) {
          throw new IllegalArgumentException("Pixel data has length 0.");
@@ -282,7 +321,14 @@ public final class DefaultImage implements Image {
       if (rawPixels_.hasArray()) {
           return rawPixels_.array();
       }
-      return BufferTools.arrayFromBuffer(rawPixels_);
+      // Copy only once, as the display and the stats ask for the pixels of
+      // the same image repeatedly
+      Object pixels = materializedPixels_;
+      if (pixels == null) {
+         pixels = BufferTools.arrayFromBuffer(rawPixels_);
+         materializedPixels_ = pixels;
+      }
+      return pixels;
    }
 
    @Override
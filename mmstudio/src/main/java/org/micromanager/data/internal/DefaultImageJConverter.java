@@ -52,10 +52,8 @@ public final class DefaultImageJConverter implements ImageJConverter {
       int height = image.getHeight();
       int bytesPerPixel = image.getBytesPerPixel();
       int numComponents = image.getNumComponents();
-      Object pixels = image.getRawPixels();
-      if (shouldCopy) {
-         pixels = image.getRawPixelsCopy();
-      }
+      Object pixels = shouldCopy ? image.getRawPixelsCopy() :
+            image.getRawPixels();
       if (bytesPerPixel == 4 && numComponents == 3) {
          // Micro-Manager RGB32 images are generally composed of byte
          // arrays, but ImageJ only takes int arrays.
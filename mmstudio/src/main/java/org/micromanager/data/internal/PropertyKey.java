@@ -171,13 +171,8 @@ public enum PropertyKey {
          if (jp.isNumber()) {
             dest.putInteger(key(), jp.getAsInt());
          }
-         if (jp.isString()) { // "1x1", "2x2", ...
-            String token = jp.getAsString().split("x", 2)[0];
-            if (token.length() < 3) {
-               dest.putInteger(key(), Integer.parseInt(token));
-            } else {  // another crazy format for binning, no way to figure this out
-               dest.putInteger(key(), 1);
-            }
+         if (jp.isString()) {
+            dest.putInteger(key(), parseBinningString(jp.getAsString()));
          }
       }
 
@@ -960,19 +955,10 @@ public enum PropertyKey {
 
       @Override
       protected void convertFromGson(JsonElement je, PropertyMap.Builder dest) {
-         // PixelSizeAffinString is a ';'-separated sequence of 6 integers
-         String s = je.getAsString();
-
-         String[] affNumbers = s.split(";");
-         if (affNumbers.length == 6) {  // TODO: handle other situations?
-            double[] atf = new double[6];
-            for (int i = 0; i < 6; i++) {
-               atf[i] = Double.parseDouble(affNumbers[i]);
-            }
-            // regretfully, the Core and Java representations are permuations
-            double[] flatMatrix = {atf[0], atf[3], atf[1], atf[4], atf[2], atf[5]};
-            dest.putAffineTransform(key(), new AffineTransform(flatMatrix));
-         }         
+         AffineTransform aff = parseAffineString(je.getAsString());
+         if (aff != null) {
+            dest.putAffineTransform(key(), aff);
+         }
       }
 
       @Override
@@ -1181,27 +1167,7 @@ public enum PropertyKey {
 
       @Override
       protected void convertFromGson(JsonElement je, PropertyMap.Builder dest) {
-         // roiString is a '-'-separated sequence of 4 integers (an unfortunate
-         // choice when the integers are negative). Although all 4 parameters
-         // are positive, negative numbers have been observed in the wild, and
-         // the best thing to do here is to preserve their value.
-         String s = je.getAsString();
-
-         // First change the separater to comma while preserving minus sign
-         s = s.replaceAll("-", "_");
-         s = s.replaceAll("__", ",-");
-         s = s.replaceFirst("^_", "-");
-         s = s.replaceAll("_", ",");
-
-         String[] xywh = s.split(",");
-         int x, y, w, h;
-         x = Integer.parseInt(xywh[0]);
-         y = Integer.parseInt(xywh[1]);
-         w = Integer.parseInt(xywh[2]);
-         h = Integer.parseInt(xywh[3]);
-         Rectangle roi = new Rectangle(x, y, w, h);
-
-         dest.putRectangle(key(), roi);
+         dest.putRectangle(key(), parseROIString(je.getAsString()));
       }
 
       @Override
@@ -1862,4 +1828,63 @@ public enum PropertyKey {
       return ALL_SPELLINGS.contains(key);
    }
 
+   /**
+    * Parse the string form of the binning ("1", "2x2", ...).
+    * @param s binning as written by the Core
+    * @return the (horizontal) binning factor
+    */
+   static int parseBinningString(String s) {
+      String token = s.split("x", 2)[0];
+      if (token.length() < 3) {
+         return Integer.parseInt(token);
+      }
+      // another crazy format for binning, no way to figure this out
+      return 1;
+   }
+
+   /**
+    * Parse the Core's string form of the ROI.
+    * @param s '-'-separated x, y, width and height
+    * @return the ROI
+    */
+   static Rectangle parseROIString(String s) {
+      // roiString is a '-'-separated sequence of 4 integers (an unfortunate
+      // choice when the integers are negative). Although all 4 parameters
+      // are positive, negative numbers have been observed in the wild, and
+      // the best thing to do here is to preserve their value.
+
+      // First change the separater to comma while preserving minus sign
+      s = s.replaceAll("-", "_");
+      s = s.replaceAll("__", ",-");
+      s = s.replaceFirst("^_", "-");
+      s = s.replaceAll("_", ",");
+
+      String[] xywh = s.split(",");
+      int x, y, w, h;
+      x = Integer.parseInt(xywh[0]);
+      y = Integer.parseInt(xywh[1]);
+      w = Integer.parseInt(xywh[2]);
+      h = Integer.parseInt(xywh[3]);
+      return new Rectangle(x, y, w, h);
+   }
+
+   /**
+    * Parse the Core's string form of the pixel size affine transform.
+    * @param s ';'-separated sequence of 6 numbers
+    * @return the transform, or null if the string does not hold 6 numbers
+    */
+   static AffineTransform parseAffineString(String s) {
+      String[] affNumbers = s.split(";");
+      if (affNumbers.length != 6) {  // TODO: handle other situations?
+         return null;
+      }
+      double[] atf = new double[6];
+      for (int i = 0; i < 6; i++) {
+         atf[i] = Double.parseDouble(affNumbers[i]);
+      }
+      // regretfully, the Core and Java representations are permuations
+      double[] flatMatrix = {atf[0], atf[3], atf[1], atf[4], atf[2], atf[5]};
+      return new AffineTransform(flatMatrix);
+   }
+
 }
\ No newline at end of file
@@ -0,0 +1,522 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Data API implementation
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2020
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.data.internal;
+
+import com.google.common.eventbus.Subscribe;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import org.micromanager.data.Coords;
+import org.micromanager.data.DataProviderHasNewSummaryMetadataEvent;
+import org.micromanager.data.Datastore;
+import org.micromanager.data.Image;
+import org.micromanager.data.Metadata;
+import org.micromanager.data.RewritableStorage;
+import org.micromanager.data.SummaryMetadata;
+import org.micromanager.internal.MMStudio;
+import org.micromanager.internal.utils.ReportingUtils;
+
+/**
+ * RAM-based storage that keeps pixel data outside of the Java heap.
+ *
+ * Pixels are copied into large direct-memory slabs, filled one after the
+ * other. Metadata and coords stay on the heap. When the configured capacity
+ * is reached, the planes in the oldest slab are written to a scratch file
+ * and the slab is reused, so that long acquisitions slow down to disk speed
+ * instead of failing with an OutOfMemoryError. Spilled planes are read back
+ * from the scratch file when requested; the file is deleted on close().
+ *
+ * Slab memory is reused, so images returned by this storage always hold a
+ * heap copy of the pixels.
+ *
+ * Methods are synchronized, as in StorageRAM.
+ */
+public final class StorageOffHeap implements RewritableStorage {
+   private static final String SHOULD_USE_FOR_ACQUISITIONS =
+         "keep images of unsaved acquisitions outside of the Java heap";
+   private static final String CAPACITY_MB =
+         "capacity (MB) of off-heap image storage before spilling to disk";
+
+   private static final int SLAB_BYTES = 32 * 1024 * 1024;
+
+   private static final class Slab {
+      final ByteBuffer buffer;
+      int used = 0;
+      final List<Plane> planes = new ArrayList<>();
+
+      Slab(ByteBuffer buffer) {
+         this.buffer = buffer;
+      }
+
+      int remaining() {
+         return buffer.capacity() - used;
+      }
+   }
+
+   private static final class Plane {
+      final Coords coords;
+      final Metadata metadata;
+      final int width;
+      final int height;
+      final int bytesPerPixel;
+      final int numComponents;
+      final boolean isShort;
+      final int numBytes;
+      // Where the pixels are: in slab at slabOffset, or (if slab is null) in
+      // the scratch file at spillOffset. Both unset once deleted.
+      Slab slab;
+      int slabOffset;
+      long spillOffset = -1;
+
+      Plane(Image image, boolean isShort, int numBytes) {
+         coords = image.getCoords();
+         metadata = image.getMetadata();
+         width = image.getWidth();
+         height = image.getHeight();
+         bytesPerPixel = image.getBytesPerPixel();
+         numComponents = image.getNumComponents();
+         this.isShort = isShort;
+         this.numBytes = numBytes;
+      }
+   }
+
+   private final long initialCapacityBytes_;
+   private long capacityBytes_;
+   private final File scratchDir_;
+   private final LinkedHashMap<Coords, Plane> coordsToPlane_ =
+         new LinkedHashMap<>();
+   // In order of filling; the last one is being filled
+   private final Deque<Slab> slabs_ = new ArrayDeque<>();
+   private long bytesAllocated_ = 0;
+   private long bytesInMemory_ = 0;
+   private long bytesSpilled_ = 0;
+   private File scratchPath_;
+   private RandomAccessFile scratchFile_;
+   private long scratchEnd_ = 0;
+   private boolean closed_ = false;
+
+   private Coords maxIndex_ = new DefaultCoords.Builder().build();
+   private SummaryMetadata summaryMetadata_ =
+         (new DefaultSummaryMetadata.Builder()).build();
+
+   /**
+    * Create storage with the capacity set in the user profile, spilling to
+    * the system temporary directory.
+    */
+   public StorageOffHeap(Datastore store) {
+      this(store, getCapacityMB() * 1024L * 1024L, null);
+   }
+
+   /**
+    * @param store Datastore using this storage
+    * @param capacityBytes Maximum amount of direct memory to use for pixels
+    * @param scratchDir Directory for the scratch file, or null for the system
+    *        temporary directory
+    */
+   public StorageOffHeap(Datastore store, long capacityBytes, File scratchDir) {
+      initialCapacityBytes_ = capacityBytes;
+      capacityBytes_ = capacityBytes;
+      scratchDir_ = scratchDir;
+      // It is imperative that we be notified of new images before anyone who
+      // wants to retrieve the images from the store is notified.
+      ((DefaultDatastore) store).registerForEvents(this, 0);
+   }
+
+   @Override
+   public synchronized void putImage(Image image) throws IOException {
+      if (closed_) {
+         throw new IOException("Storage is closed");
+      }
+      Object pixels = image.getRawPixels();
+      boolean isShort;
+      int numBytes;
+      if (pixels instanceof byte[]) {
+         isShort = false;
+         numBytes = ((byte[]) pixels).length;
+      }
+      else if (pixels instanceof short[]) {
+         isShort = true;
+         numBytes = 2 * ((short[]) pixels).length;
+      }
+      else {
+         throw new UnsupportedOperationException("Unsupported pixel data type");
+      }
+
+      Plane plane = new Plane(image, isShort, numBytes);
+      Slab slab = getSlabWithSpace(numBytes);
+      ByteBuffer dest = slab.buffer.duplicate().order(ByteOrder.nativeOrder());
+      dest.position(slab.used);
+      if (isShort) {
+         dest.asShortBuffer().put((short[]) pixels);
+      }
+      else {
+         dest.put((byte[]) pixels);
+      }
+      plane.slab = slab;
+      plane.slabOffset = slab.used;
+      slab.used += numBytes;
+      slab.planes.add(plane);
+      bytesInMemory_ += numBytes;
+
+      Plane replaced = coordsToPlane_.put(plane.coords, plane);
+      if (replaced != null) {
+         forget(replaced);
+      }
+
+      Coords coords = plane.coords;
+      for (String axis : coords.getAxes()) {
+         if (maxIndex_.getIndex(axis) < coords.getIndex(axis)) {
+            maxIndex_ = maxIndex_.copyBuilder()
+                  .index(axis, coords.getIndex(axis))
+                  .build();
+         }
+      }
+   }
+
+   /**
+    * Return the slab to write a plane of numBytes into, allocating a new one
+    * or spilling and recycling the oldest one as needed.
+    */
+   private Slab getSlabWithSpace(int numBytes) throws IOException {
+      Slab current = slabs_.peekLast();
+      if (current != null && current.remaining() >= numBytes) {
+         return current;
+      }
+      int size = Math.max(SLAB_BYTES, numBytes);
+      while (!slabs_.isEmpty() && bytesAllocated_ + size > capacityBytes_) {
+         Slab oldest = slabs_.removeFirst();
+         spill(oldest);
+         if (oldest.buffer.capacity() >= size) {
+            oldest.used = 0;
+            slabs_.addLast(oldest);
+            return oldest;
+         }
+         bytesAllocated_ -= oldest.buffer.capacity();
+      }
+      ByteBuffer buffer;
+      try {
+         buffer = ByteBuffer.allocateDirect(size);
+      }
+      catch (OutOfMemoryError e) {
+         if (slabs_.isEmpty()) {
+            throw new IOException("Unable to allocate off-heap image memory", e);
+         }
+         // Direct memory limit reached before our capacity; stay at the
+         // current size and spill from now on.
+         ReportingUtils.logError("Off-heap image storage limited to " +
+               (bytesAllocated_ >> 20) + " MB by available direct memory");
+         capacityBytes_ = bytesAllocated_;
+         return getSlabWithSpace(numBytes);
+      }
+      bytesAllocated_ += size;
+      Slab slab = new Slab(buffer);
+      slabs_.addLast(slab);
+      return slab;
+   }
+
+   /**
+    * Write the planes still stored in the slab to the scratch file.
+    */
+   private void spill(Slab slab) throws IOException {
+      if (scratchFile_ == null) {
+         scratchPath_ = File.createTempFile("mm_image_spill", ".bin",
+               scratchDir_);
+         scratchPath_.deleteOnExit();
+         scratchFile_ = new RandomAccessFile(scratchPath_, "rw");
+         ReportingUtils.logMessage("Off-heap image storage full (" +
+               (capacityBytes_ >> 20) + " MB); spilling images to " +
+               scratchPath_);
+      }
+      FileChannel channel = scratchFile_.getChannel();
+      for (Plane plane : slab.planes) {
+         if (plane.slab != slab) {
+            continue; // Deleted or replaced
+         }
+         ByteBuffer src = slab.buffer.duplicate();
+         src.position(plane.slabOffset);
+         src.limit(plane.slabOffset + plane.numBytes);
+         long position = scratchEnd_;
+         while (src.hasRemaining()) {
+            position += channel.write(src, position);
+         }
+         plane.spillOffset = scratchEnd_;
+         plane.slab = null;
+         scratchEnd_ += plane.numBytes;
+         bytesInMemory_ -= plane.numBytes;
+         bytesSpilled_ += plane.numBytes;
+      }
+      slab.planes.clear();
+   }
+
+   private void forget(Plane plane) {
+      if (plane.slab != null) {
+         bytesInMemory_ -= plane.numBytes;
+         plane.slab = null;
+      }
+      else if (plane.spillOffset >= 0) {
+         // The space in the scratch file is not reused
+         bytesSpilled_ -= plane.numBytes;
+         plane.spillOffset = -1;
+      }
+   }
+
+   private Image toImage(Plane plane) throws IOException {
+      ByteBuffer src;
+      if (plane.slab != null) {
+         src = plane.slab.buffer.duplicate();
+         src.position(plane.slabOffset);
+         src.limit(plane.slabOffset + plane.numBytes);
+         src = src.slice();
+      }
+      else {
+         src = ByteBuffer.allocate(plane.numBytes);
+         FileChannel channel = scratchFile_.getChannel();
+         long position = plane.spillOffset;
+         while (src.hasRemaining()) {
+            int n = channel.read(src, position);
+            if (n < 0) {
+               throw new IOException("Scratch file truncated");
+            }
+            position += n;
+         }
+         src.flip();
+      }
+      src.order(ByteOrder.nativeOrder());
+      Object pixels;
+      if (plane.isShort) {
+         short[] shorts = new short[plane.numBytes / 2];
+         src.asShortBuffer().get(shorts);
+         pixels = shorts;
+      }
+      else {
+         byte[] bytes = new byte[plane.numBytes];
+         src.get(bytes);
+         pixels = bytes;
+      }
+      return new DefaultImage(pixels, plane.width, plane.height,
+            plane.bytesPerPixel, plane.numComponents, plane.coords,
+            plane.metadata);
+   }
+
+   private Image toImageOrNull(Plane plane) {
+      try {
+         return toImage(plane);
+      }
+      catch (IOException e) {
+         ReportingUtils.logError(e, "Failed to read image at " + plane.coords);
+         return null;
+      }
+   }
+
+   @Override
+   public void freeze() {
+      // Nothing to finish
+   }
+
+   @Override
+   public synchronized Image getImage(Coords coords) throws IOException {
+      if (closed_) {
+         return null;
+      }
+      Plane plane = coordsToPlane_.get(coords);
+      return plane == null ? null : toImage(plane);
+   }
+
+   @Override
+   public synchronized Image getAnyImage() {
+      if (closed_ || coordsToPlane_.isEmpty()) {
+         return null;
+      }
+      return toImageOrNull(coordsToPlane_.values().iterator().next());
+   }
+
+   @Override
+   public synchronized List<Image> getImagesMatching(Coords coords) {
+      if (closed_) {
+         return null;
+      }
+      List<Image> results = new ArrayList<>();
+      Plane plane = coordsToPlane_.get(coords);
+      if (plane != null) {
+         Image image = toImageOrNull(plane);
+         if (image != null) {
+            results.add(image);
+         }
+      }
+      return results;
+   }
+
+   @Override
+   public synchronized List<Image> getImagesIgnoringAxes(Coords coords,
+         String... ignoreTheseAxes) throws IOException {
+      if (closed_) {
+         return null;
+      }
+      List<Image> results = new ArrayList<>();
+      for (Plane plane : coordsToPlane_.values()) {
+         if (plane.coords.copyRemovingAxes(ignoreTheseAxes).equals(coords)) {
+            results.add(toImage(plane));
+         }
+      }
+      return results;
+   }
+
+   @Override
+   public synchronized Iterable<Coords> getUnorderedImageCoords() {
+      return new ArrayList<>(coordsToPlane_.keySet());
+   }
+
+   @Override
+   public synchronized boolean hasImage(Coords coords) {
+      return coordsToPlane_.containsKey(coords);
+   }
+
+   @Override
+   public synchronized int getMaxIndex(String axis) {
+      return maxIndex_.getIndex(axis);
+   }
+
+   // TODO: check that metadata axis are a reliable source of information
+   @Override
+   public List<String> getAxes() {
+      return summaryMetadata_.getOrderedAxes();
+   }
+
+   @Override
+   public synchronized Coords getMaxIndices() {
+      return maxIndex_;
+   }
+
+   @Override
+   public SummaryMetadata getSummaryMetadata() {
+      return summaryMetadata_;
+   }
+
+   @Subscribe
+   public void onNewSummary(DataProviderHasNewSummaryMetadataEvent event) {
+      summaryMetadata_ = event.getSummaryMetadata();
+   }
+
+   @Override
+   public synchronized int getNumImages() {
+      return coordsToPlane_.size();
+   }
+
+   @Override
+   public synchronized void deleteImage(Coords coords)
+         throws IllegalArgumentException {
+      Plane plane = coordsToPlane_.remove(coords);
+      if (plane == null) {
+         throw new IllegalArgumentException("Storage does not contain image at " + coords);
+      }
+      forget(plane);
+   }
+
+   /**
+    * @return the maximum number of bytes of pixel data kept in memory. This
+    * can be lower than requested if the JVM limits direct memory.
+    */
+   public synchronized long getCapacityBytes() {
+      return capacityBytes_;
+   }
+
+   /**
+    * @return the number of bytes of pixel data currently in memory
+    */
+   public synchronized long getBytesInMemory() {
+      return bytesInMemory_;
+   }
+
+   /**
+    * @return the number of bytes of pixel data currently in the scratch file
+    */
+   public synchronized long getBytesSpilled() {
+      return bytesSpilled_;
+   }
+
+   /**
+    * @return the fraction of the capacity in use; 1.0 once images are being
+    * spilled to disk
+    */
+   public synchronized double getOccupancy() {
+      if (bytesSpilled_ > 0 || capacityBytes_ < initialCapacityBytes_) {
+         return 1.0;
+      }
+      return capacityBytes_ == 0 ? 1.0 :
+            Math.min(1.0, (double) bytesInMemory_ / capacityBytes_);
+   }
+
+   @Override
+   public synchronized void close() {
+      if (closed_) {
+         return;
+      }
+      closed_ = true;
+      coordsToPlane_.clear();
+      // Direct memory is freed when the slabs are garbage collected
+      slabs_.clear();
+      bytesAllocated_ = bytesInMemory_ = bytesSpilled_ = 0;
+      if (scratchFile_ != null) {
+         try {
+            scratchFile_.close();
+         }
+         catch (IOException e) {
+            ReportingUtils.logError(e, "Error closing image scratch file");
+         }
+         scratchFile_ = null;
+         if (!scratchPath_.delete()) {
+            ReportingUtils.logError("Unable to delete " + scratchPath_);
+         }
+      }
+   }
+
+   public static boolean getShouldUseForAcquisitions() {
+      return MMStudio.getInstance().profile().getSettings(StorageOffHeap.class).
+            getBoolean(SHOULD_USE_FOR_ACQUISITIONS, false);
+   }
+
+   public static void setShouldUseForAcquisitions(boolean shouldUse) {
+      MMStudio.getInstance().profile().getSettings(StorageOffHeap.class).
+            putBoolean(SHOULD_USE_FOR_ACQUISITIONS, shouldUse);
+   }
+
+   /**
+    * @return the capacity used by default, in MB. Defaults to half of the
+    * maximum heap size, which is also the JVM's default direct memory limit.
+    */
+   public static int getCapacityMB() {
+      int defaultMB = (int) Math.max(256,
+            Runtime.getRuntime().maxMemory() / 2 / 1024 / 1024);
+      return MMStudio.getInstance().profile().getSettings(StorageOffHeap.class).
+            getInteger(CAPACITY_MB, defaultMB);
+   }
+
+   public static void setCapacityMB(int capacityMB) {
+      MMStudio.getInstance().profile().getSettings(StorageOffHeap.class).
+            putInteger(CAPACITY_MB, capacityMB);
+   }
+}
@@ -24,8 +24,15 @@ import com.google.common.eventbus.Subscribe;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import org.micromanager.data.Coords;
 import org.micromanager.data.Datastore;
 import org.micromanager.data.Image;
@@ -34,9 +41,17 @@ import org.micromanager.data.SummaryMetadata;
 import org.micromanager.data.DataProviderHasNewSummaryMetadataEvent;
 
 /**
- * Simple RAM-based storage for Datastores. Methods that interact with the
- * HashMap that is our image storage are synchronized.
- * 
+ * Simple RAM-based storage for Datastores.
+ *
+ * Besides the HashMap that is our image storage, we keep for each axis of
+ * maxIndex_ the coords of all images at each index along that axis,
+ * including index 0, so that getImagesIgnoringAxes only needs to look at the
+ * images sharing the least common index of the requested coords.
+ *
+ * Access to the maps is guarded by a read-write lock, so that displays
+ * querying the storage do not block each other, and only briefly block
+ * insertion of new images.
+ *
  * TODO: coordsToImage_ can be set to null in the close function
  * if any of the member functions are called after "close", a null pointer exception
  * will follow.  We can either check for null whenever coordsToImage is used,
@@ -45,8 +60,13 @@ import org.micromanager.data.DataProviderHasNewSummaryMetadataEvent;
  */
 public final class StorageRAM implements RewritableStorage {
    private HashMap<Coords, Image> coordsToImage_;
-   private Coords maxIndex_;
-   private SummaryMetadata summaryMetadata_;
+   // axis -> index -> coords of the images at that index, for every axis
+   // on which some image has a non-zero index
+   private final HashMap<String, HashMap<Integer, Set<Coords>>> axisIndex_ =
+         new HashMap<>();
+   private final ReadWriteLock lock_ = new ReentrantReadWriteLock();
+   private volatile Coords maxIndex_;
+   private volatile SummaryMetadata summaryMetadata_;
 
    public StorageRAM(Datastore store) {
       coordsToImage_ = new HashMap<Coords, Image>();
@@ -58,20 +78,46 @@ public final class StorageRAM implements RewritableStorage {
    }
 
    /**
-    * Add a new image to our storage, and update maxIndex_.
+    * Add a new image to our storage, and update maxIndex_ and the per-axis
+    * indices.
     */
    @Override
-   public synchronized void putImage(Image image) {
+   public void putImage(Image image) {
       Coords coords = image.getCoords();
-      coordsToImage_.put(coords, image);
-      for (String axis : coords.getAxes()) {
-         if (maxIndex_.getIndex(axis) < coords.getIndex(axis)) {
-            // Either this image is further along on this axis, or we have
-            // no index for this axis yet.
-            maxIndex_ = maxIndex_.copyBuilder()
-                  .index(axis, coords.getIndex(axis))
-                  .build();
+      lock_.writeLock().lock();
+      try {
+         if (coordsToImage_.put(coords, image) != null) {
+            // Replaced an image at the same coords; indices are unchanged
+            return;
          }
+         Coords maxIndex = maxIndex_;
+         for (String axis : coords.getAxes()) {
+            int index = coords.getIndex(axis);
+            if (index != 0 && !axisIndex_.containsKey(axis)) {
+               // New axis; the images we already have are at index 0
+               HashMap<Integer, Set<Coords>> indexToCoords = new HashMap<>();
+               Set<Coords> atZero = new HashSet<>(coordsToImage_.keySet());
+               atZero.remove(coords);
+               if (!atZero.isEmpty()) {
+                  indexToCoords.put(0, atZero);
+               }
+               axisIndex_.put(axis, indexToCoords);
+            }
+            if (maxIndex.getIndex(axis) < index) {
+               // Either this image is further along on this axis, or we have
+               // no index for this axis yet.
+               maxIndex = maxIndex.copyBuilder().index(axis, index).build();
+            }
+         }
+         maxIndex_ = maxIndex;
+         for (Map.Entry<String, HashMap<Integer, Set<Coords>>> entry :
+               axisIndex_.entrySet()) {
+            entry.getValue().computeIfAbsent(coords.getIndex(entry.getKey()),
+                  k -> new HashSet<>()).add(coords);
+         }
+      }
+      finally {
+         lock_.writeLock().unlock();
       }
    }
 
@@ -82,61 +128,142 @@ public final class StorageRAM implements RewritableStorage {
    }
 
    @Override
-   public synchronized Image getImage(Coords coords) {
-      if (coordsToImage_ != null && coordsToImage_.containsKey(coords)) {
-         return coordsToImage_.get(coords);
+   public Image getImage(Coords coords) {
+      lock_.readLock().lock();
+      try {
+         return coordsToImage_ == null ? null : coordsToImage_.get(coords);
+      }
+      finally {
+         lock_.readLock().unlock();
       }
-      return null;
    }
 
    @Override
-   public synchronized Image getAnyImage() {
-      if (coordsToImage_ != null && coordsToImage_.size() > 0) {
-         Coords coords = new ArrayList<Coords>(coordsToImage_.keySet()).get(0);
-         return coordsToImage_.get(coords);
+   public Image getAnyImage() {
+      lock_.readLock().lock();
+      try {
+         if (coordsToImage_ != null && coordsToImage_.size() > 0) {
+            return coordsToImage_.values().iterator().next();
+         }
+         return null;
+      }
+      finally {
+         lock_.readLock().unlock();
       }
-      return null;
    }
 
    @Override
-   public synchronized List<Image> getImagesMatching(Coords coords) {
-      if (coordsToImage_ == null) {
-         return null;
-      }
-      List<Image> results = new ArrayList<>();
-      for (Image image : coordsToImage_.values()) {
+   public List<Image> getImagesMatching(Coords coords) {
+      lock_.readLock().lock();
+      try {
+         if (coordsToImage_ == null) {
+            return null;
+         }
          // TODO figure out why subSpace was used and fix problems by not doing it
          //  if (image.getCoords().isSubspaceCoordsOf(coords)) {
-         if (image.getCoords().equals(coords)) {
+         List<Image> results = new ArrayList<>();
+         Image image = coordsToImage_.get(coords);
+         if (image != null) {
             results.add(image);
          }
+         return results;
+      }
+      finally {
+         lock_.readLock().unlock();
       }
-      return results;
    }
 
-   public synchronized List<Image> getImagesIgnoringAxes(Coords coords, String... ignoreTheseAxes)
+   /**
+    * Return the images whose coords, after removing the given axes, equal
+    * the given coords.
+    *
+    * Coords without an axis have index 0 on that axis, and Coords never
+    * contain an axis at index 0. Images match if they have the same index as
+    * coords on every axis that is not ignored.
+    */
+   @Override
+   public List<Image> getImagesIgnoringAxes(Coords coords, String... ignoreTheseAxes)
            throws IOException {
-      if (coordsToImage_ == null) {
-         return null;
+      lock_.readLock().lock();
+      try {
+         if (coordsToImage_ == null) {
+            return null;
+         }
+         List<Image> result = new ArrayList<>();
+         List<String> ignored = Arrays.asList(ignoreTheseAxes);
+         for (String axis : coords.getAxes()) {
+            if (ignored.contains(axis)) {
+               // Ignored axes are removed from the images, so they can't match
+               return result;
+            }
+            if (coords.getIndex(axis) != 0 && !axisIndex_.containsKey(axis)) {
+               // All images are at index 0 on this axis
+               return result;
+            }
+         }
+         // Use the smallest set of images sharing one of the requested
+         // indices, including index 0, as candidates
+         Collection<Coords> candidates = coordsToImage_.keySet();
+         List<String> checkedAxes = new ArrayList<>();
+         for (Map.Entry<String, HashMap<Integer, Set<Coords>>> entry :
+               axisIndex_.entrySet()) {
+            if (ignored.contains(entry.getKey())) {
+               continue;
+            }
+            checkedAxes.add(entry.getKey());
+            Set<Coords> sameIndex =
+                  entry.getValue().get(coords.getIndex(entry.getKey()));
+            if (sameIndex == null) {
+               return result;
+            }
+            if (sameIndex.size() < candidates.size()) {
+               candidates = sameIndex;
+            }
+         }
+         for (Coords candidate : candidates) {
+            if (hasSameIndices(candidate, coords, checkedAxes)) {
+               result.add(coordsToImage_.get(candidate));
+            }
+         }
+         return result;
+      }
+      finally {
+         lock_.readLock().unlock();
       }
-      List<Image> result = new ArrayList<>();
-      for (Image image : coordsToImage_.values()) {
-         Coords imCoord = image.getCoords().copyRemovingAxes(ignoreTheseAxes);
-         if (imCoord.equals(coords)) {
-            result.add (image);
+   }
+
+   private static boolean hasSameIndices(Coords a, Coords b, List<String> axes) {
+      for (String axis : axes) {
+         if (a.getIndex(axis) != b.getIndex(axis)) {
+            return false;
          }
       }
-      return result;
+      return true;
    }
 
+   /**
+    * Returns a snapshot of the coords of the images currently in storage.
+    */
    @Override
-   public synchronized Iterable<Coords> getUnorderedImageCoords() {
-      return coordsToImage_.keySet();
+   public Iterable<Coords> getUnorderedImageCoords() {
+      lock_.readLock().lock();
+      try {
+         return new ArrayList<>(coordsToImage_.keySet());
+      }
+      finally {
+         lock_.readLock().unlock();
+      }
    }
 
    @Override
    public boolean hasImage(Coords coords) {
-      return coordsToImage_.containsKey(coords);
+      lock_.readLock().lock();
+      try {
+         return coordsToImage_.containsKey(coords);
+      }
+      finally {
+         lock_.readLock().unlock();
+      }
    }
 
    @Override
@@ -167,19 +294,47 @@ public final class StorageRAM implements RewritableStorage {
 
    @Override
    public int getNumImages() {
-      return coordsToImage_.size();
+      lock_.readLock().lock();
+      try {
+         return coordsToImage_.size();
+      }
+      finally {
+         lock_.readLock().unlock();
+      }
    }
 
    @Override
-   public synchronized void deleteImage(Coords coords) throws IllegalArgumentException {
-      if (!coordsToImage_.containsKey(coords)) {
-         throw new IllegalArgumentException("Storage does not contain image at " + coords);
+   public void deleteImage(Coords coords) throws IllegalArgumentException {
+      lock_.writeLock().lock();
+      try {
+         if (coordsToImage_.remove(coords) == null) {
+            throw new IllegalArgumentException("Storage does not contain image at " + coords);
+         }
+         // Axes stay indexed, as they stay in maxIndex_
+         for (Map.Entry<String, HashMap<Integer, Set<Coords>>> entry :
+               axisIndex_.entrySet()) {
+            int index = coords.getIndex(entry.getKey());
+            Set<Coords> sameIndex = entry.getValue().get(index);
+            sameIndex.remove(coords);
+            if (sameIndex.isEmpty()) {
+               entry.getValue().remove(index);
+            }
+         }
+      }
+      finally {
+         lock_.writeLock().unlock();
       }
-      coordsToImage_.remove(coords);
    }
 
    @Override
    public void close() {
-      coordsToImage_ = null;
+      lock_.writeLock().lock();
+      try {
+         coordsToImage_ = null;
+         axisIndex_.clear();
+      }
+      finally {
+         lock_.writeLock().unlock();
+      }
    }
 }
@@ -0,0 +1,404 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Data API implementation
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2020
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.data.internal;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import java.awt.geom.AffineTransform;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import mmcorej.org.json.JSONArray;
+import mmcorej.org.json.JSONException;
+import mmcorej.org.json.JSONObject;
+import org.micromanager.PropertyMap;
+import org.micromanager.PropertyMaps;
+import org.micromanager.data.Coords;
+import org.micromanager.internal.propertymap.MM1JSONSerializer;
+import org.micromanager.internal.propertymap.PropertyMapJSONSerializer;
+import org.micromanager.internal.utils.ReportingUtils;
+import static org.micromanager.data.internal.PropertyKey.*;
+
+/**
+ * Converts the tags of a TaggedImage directly into Metadata, Coords, and
+ * image format, without going through a JSON string and a Gson tree.
+ * <p>
+ * This is the hot path for every image coming off the camera, so instead of
+ * {@code tags.toString()} followed by three passes of
+ * {@link org.micromanager.internal.propertymap.NonPropertyMapJSONFormats},
+ * the standard keys are looked up directly in the JSONObject and the
+ * remaining (user data) keys are walked once.
+ * <p>
+ * The interpretation of each key follows {@link PropertyKey}; the results
+ * are identical to those of the Gson-based formats. Values that are rare in
+ * camera tags (nested ScopeData or UserData objects) are handed to the
+ * Gson-based serializers.
+ *
+ * @see org.micromanager.internal.propertymap.NonPropertyMapJSONFormats
+ */
+public final class TaggedImageConverter {
+
+   private TaggedImageConverter() {
+   }
+
+   /**
+    * Create Metadata from TaggedImage tags.
+    * @param tags TaggedImage tags
+    * @return Metadata equivalent to that created by
+    * {@code NonPropertyMapJSONFormats.metadata()}
+    * @throws JSONException if a value could not be interpreted
+    */
+   public static DefaultMetadata metadataFromTags(JSONObject tags)
+         throws JSONException {
+      PropertyMap.Builder b = PropertyMaps.builder();
+
+      String uuid = getString(tags, PropertyKey.UUID);
+      if (uuid != null) {
+         b.putUUID(PropertyKey.UUID.key(), java.util.UUID.fromString(uuid));
+      }
+
+      // See PropertyKey.CAMERA for why Core-Camera is consulted
+      String camera = getString(tags, CAMERA);
+      if (camera != null) {
+         b.putString(CAMERA.key(), camera);
+      }
+      if ((camera == null || camera.isEmpty()) && tags.has("Core-Camera")) {
+         Object coreCamera = tags.opt("Core-Camera");
+         if (coreCamera != null && coreCamera != JSONObject.NULL &&
+               !(coreCamera instanceof JSONObject)) {
+            b.putString(CAMERA.key(), asString(coreCamera));
+         }
+      }
+
+      Object binning = get(tags, BINNING);
+      if (binning instanceof Number) {
+         b.putInteger(BINNING.key(), ((Number) binning).intValue());
+      }
+      else if (binning instanceof String) {
+         b.putInteger(BINNING.key(), parseBinningString((String) binning));
+      }
+
+      String roi = getString(tags, ROI);
+      if (roi != null) {
+         b.putRectangle(ROI.key(), parseROIString(roi));
+      }
+
+      Object bitDepth = get(tags, BIT_DEPTH);
+      if (bitDepth != null) {
+         b.putInteger(BIT_DEPTH.key(), asInt(bitDepth));
+      }
+
+      putDouble(tags, EXPOSURE_MS, b);
+      putDouble(tags, ELAPSED_TIME_MS, b);
+
+      Object imageNumber = get(tags, IMAGE_NUMBER);
+      if (imageNumber != null) {
+         b.putLong(IMAGE_NUMBER.key(), asLong(imageNumber));
+      }
+
+      putString(tags, RECEIVED_TIME, b);
+      putDouble(tags, PIXEL_SIZE_UM, b);
+
+      String affine = getString(tags, PIXEL_SIZE_AFFINE);
+      if (affine != null) {
+         AffineTransform aff = parseAffineString(affine);
+         if (aff != null) {
+            b.putAffineTransform(PIXEL_SIZE_AFFINE.key(), aff);
+         }
+      }
+
+      putDouble(tags, PIXEL_ASPECT, b);
+      putString(tags, POSITION_NAME, b);
+      putDouble(tags, X_POSITION_UM, b);
+      putDouble(tags, Y_POSITION_UM, b);
+      putDouble(tags, Z_POSITION_UM, b);
+
+      // Needed due to MultipageTiffReader design (see MetadataFormat)
+      String pixelType = getString(tags, PIXEL_TYPE);
+      if (pixelType != null) {
+         b.putString(PIXEL_TYPE.key(), pixelType);
+      }
+      else {
+         Object ijType = get(tags, IJ_TYPE);
+         if (ijType != null) {
+            b.putEnumAsString(PIXEL_TYPE.key(),
+                  PixelType.valueOfImageJConstant(asInt(ijType)));
+         }
+      }
+
+      Set<String> scopeDataKeys = scopeDataKeys(tags);
+      Object scopeData = get(tags, SCOPE_DATA);
+      if (scopeData != null) {
+         b.putPropertyMap(SCOPE_DATA.key(),
+               MM1JSONSerializer.fromGson(toGson(scopeData)));
+      }
+      else if (scopeDataKeys != null) {
+         PropertyMap.Builder scope = PropertyMaps.builder();
+         for (String key : scopeDataKeys) {
+            Object value = tags.opt(key);
+            String val = "";
+            if (value instanceof JSONObject) {
+               val = asString(((JSONObject) value).get("PropVal"));
+            }
+            else if (value != null && value != JSONObject.NULL &&
+                  !(value instanceof JSONArray)) {
+               val = asString(value);
+            }
+            scope.putString(key, val);
+         }
+         b.putPropertyMap(SCOPE_DATA.key(), scope.build());
+      }
+
+      Object userData = get(tags, USER_DATA);
+      if (userData != null) {
+         JsonElement je = toGson(userData);
+         try {
+            b.putPropertyMap(USER_DATA.key(),
+                  PropertyMapJSONSerializer.fromGson(je));
+         }
+         catch (Exception e) {
+            b.putPropertyMap(USER_DATA.key(), MM1JSONSerializer.fromGson(je));
+         }
+      }
+      else {
+         b.putPropertyMap(USER_DATA.key(), flatUserData(tags, scopeDataKeys));
+      }
+
+      putString(tags, FILE_NAME, b);
+
+      return (DefaultMetadata) DefaultMetadata.fromPropertyMap(b.build());
+   }
+
+   /**
+    * Create Coords from TaggedImage tags.
+    * @param tags TaggedImage tags
+    * @return Coords equivalent to those created by
+    * {@code NonPropertyMapJSONFormats.coords()}
+    * @throws JSONException if a value could not be interpreted
+    */
+   public static Coords coordsFromTags(JSONObject tags) throws JSONException {
+      DefaultCoords.Builder b = new DefaultCoords.Builder();
+      Object complete = get(tags, COMPLETE_COORDS);
+      if (complete instanceof JSONObject) {
+         JSONObject jo = (JSONObject) complete;
+         Iterator<String> axes = jo.keys();
+         while (axes.hasNext()) {
+            String axis = axes.next();
+            b.index(axis, asInt(jo.get(axis)));
+         }
+         return b.build();
+      }
+      putIndex(tags, FRAME_INDEX, Coords.TIME_POINT, b);
+      putIndex(tags, POSITION_INDEX, Coords.STAGE_POSITION, b);
+      putIndex(tags, SLICE_INDEX, Coords.Z_SLICE, b);
+      putIndex(tags, CHANNEL_INDEX, Coords.CHANNEL, b);
+      return b.build();
+   }
+
+   /**
+    * Find the pixel type given in TaggedImage tags.
+    * @param tags TaggedImage tags
+    * @return the pixel type, or null if not present
+    * @throws JSONException if a value could not be interpreted
+    */
+   public static PixelType pixelTypeFromTags(JSONObject tags)
+         throws JSONException {
+      String pixelType = getString(tags, PIXEL_TYPE);
+      if (pixelType != null) {
+         try {
+            return PixelType.valueOf(pixelType);
+         }
+         catch (IllegalArgumentException e) {
+            return null;
+         }
+      }
+      Object ijType = get(tags, IJ_TYPE);
+      if (ijType != null) {
+         return PixelType.valueOfImageJConstant(asInt(ijType));
+      }
+      return null;
+   }
+
+   /**
+    * Find the image width given in TaggedImage tags.
+    * @param tags TaggedImage tags
+    * @return the width, or 0 if not present
+    * @throws JSONException if a value could not be interpreted
+    */
+   public static int widthFromTags(JSONObject tags) throws JSONException {
+      Object width = get(tags, WIDTH);
+      return width == null ? 0 : asInt(width);
+   }
+
+   /**
+    * Find the image height given in TaggedImage tags.
+    * @param tags TaggedImage tags
+    * @return the height, or 0 if not present
+    * @throws JSONException if a value could not be interpreted
+    */
+   public static int heightFromTags(JSONObject tags) throws JSONException {
+      Object height = get(tags, HEIGHT);
+      return height == null ? 0 : asInt(height);
+   }
+
+   private static Set<String> scopeDataKeys(JSONObject tags)
+         throws JSONException {
+      Object keys = get(tags, SCOPE_DATA_KEYS);
+      if (keys == null) {
+         return null;
+      }
+      if (!(keys instanceof JSONArray)) {
+         throw new JSONException(SCOPE_DATA_KEYS.key() + " is not an array");
+      }
+      JSONArray ja = (JSONArray) keys;
+      // Insertion order matters for the resulting property map
+      Set<String> result = new LinkedHashSet<>(ja.length());
+      for (int i = 0; i < ja.length(); ++i) {
+         result.add(asString(ja.get(i)));
+      }
+      return result;
+   }
+
+   private static PropertyMap flatUserData(JSONObject tags,
+         Set<String> scopeDataKeys) throws JSONException {
+      // See PropertyKey.USER_DATA: all flat keys that are neither standard
+      // keys nor device properties are treated as user data.
+      PropertyMap.Builder builder = PropertyMaps.builder();
+      Iterator<String> keys = tags.keys();
+      while (keys.hasNext()) {
+         String key = keys.next();
+         if (isKnownKey(key) ||
+               (scopeDataKeys != null && scopeDataKeys.contains(key))) {
+            continue;
+         }
+         Object value = tags.opt(key);
+         if (value == null || value == JSONObject.NULL) {
+            continue;
+         }
+         try {
+            if (value instanceof JSONArray) {
+               JSONArray ja = (JSONArray) value;
+               for (int i = 0; i < ja.length(); i++) {
+                  builder.putString(key, asString(ja.get(i)));
+               }
+            }
+            else {
+               builder.putString(key, asString(value));
+            }
+         }
+         catch (IllegalStateException ise) {
+            ReportingUtils.logError(ise, "IllegalStateError reading value of " + key);
+         }
+      }
+      return builder.build();
+   }
+
+   private static void putIndex(JSONObject tags, PropertyKey key, String axis,
+         DefaultCoords.Builder dest) throws JSONException {
+      Object value = get(tags, key);
+      if (value != null) {
+         dest.index(axis, asInt(value));
+      }
+   }
+
+   private static void putDouble(JSONObject tags, PropertyKey key,
+         PropertyMap.Builder dest) throws JSONException {
+      Object value = get(tags, key);
+      if (value != null) {
+         dest.putDouble(key.key(), asDouble(value));
+      }
+   }
+
+   private static void putString(JSONObject tags, PropertyKey key,
+         PropertyMap.Builder dest) throws JSONException {
+      String value = getString(tags, key);
+      if (value != null) {
+         dest.putString(key.key(), value);
+      }
+   }
+
+   /**
+    * Look up the value of a key under all of its spellings.
+    * @return the value, or null if absent or JSON null
+    */
+   private static Object get(JSONObject tags, PropertyKey key) {
+      for (String spelling : key.getAllKeys()) {
+         Object value = tags.opt(spelling);
+         if (value != null && value != JSONObject.NULL) {
+            return value;
+         }
+      }
+      return null;
+   }
+
+   private static String getString(JSONObject tags, PropertyKey key)
+         throws JSONException {
+      Object value = get(tags, key);
+      return value == null ? null : asString(value);
+   }
+
+   // The conversions below reproduce what Gson returns for the text that
+   // JSONObject.toString() would have written for the value.
+
+   private static String asString(Object value) throws JSONException {
+      if (value instanceof String) {
+         return (String) value;
+      }
+      if (value instanceof Number) {
+         return JSONObject.numberToString((Number) value);
+      }
+      if (value instanceof Boolean) {
+         return value.toString();
+      }
+      if (value instanceof JSONArray) {
+         JSONArray ja = (JSONArray) value;
+         if (ja.length() == 1) {
+            return asString(ja.get(0));
+         }
+         throw new IllegalStateException();
+      }
+      throw new UnsupportedOperationException(
+            value.getClass().getSimpleName());
+   }
+
+   private static int asInt(Object value) throws JSONException {
+      if (value instanceof Number) {
+         return ((Number) value).intValue();
+      }
+      return Integer.parseInt(asString(value));
+   }
+
+   private static long asLong(Object value) throws JSONException {
+      if (value instanceof Number) {
+         return ((Number) value).longValue();
+      }
+      return Long.parseLong(asString(value));
+   }
+
+   private static double asDouble(Object value) throws JSONException {
+      if (value instanceof Number) {
+         return ((Number) value).doubleValue();
+      }
+      return Double.parseDouble(asString(value));
+   }
+
+   private static JsonElement toGson(Object value) {
+      return new JsonParser().parse(value.toString());
+   }
+}
@@ -0,0 +1,154 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Multipage TIFF
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2020
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.data.internal.multipagetiff;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.micromanager.internal.utils.ReportingUtils;
+
+/**
+ * Bounded pool of read-only file channels, shared by all memory-mapped
+ * MultipageTiffReaders.
+ *
+ * Mappings remain valid after their channel is closed, so a reader only
+ * needs a channel while it maps a new region (or falls back to a plain
+ * read). Keeping at most MAX_OPEN_FILES channels open, and closing the least
+ * recently used idle ones, lets datasets consisting of thousands of files be
+ * opened without running out of file descriptors.
+ */
+final class FileChannelPool {
+   private static final int MAX_OPEN_FILES = 64;
+
+   private static final FileChannelPool INSTANCE = new FileChannelPool();
+
+   private static final class Entry {
+      final RandomAccessFile raFile;
+      final FileChannel channel;
+      int users = 0;
+      boolean closeWhenIdle = false;
+
+      Entry(RandomAccessFile raFile) {
+         this.raFile = raFile;
+         this.channel = raFile.getChannel();
+      }
+   }
+
+   // Access-ordered, so iteration starts at the least recently used file
+   private final LinkedHashMap<File, Entry> entries_ =
+         new LinkedHashMap<>(16, 0.75f, true);
+
+   // Entries marked closeWhenIdle that were replaced by a new channel for the
+   // same file while still in use; closed when their last user releases them
+   private final Map<FileChannel, Entry> retired_ = new HashMap<>();
+
+   static FileChannelPool getInstance() {
+      return INSTANCE;
+   }
+
+   private FileChannelPool() {
+   }
+
+   /**
+    * Get an open channel for the file. Each call must be paired with a call
+    * to {@link #release}; the channel may be closed any time after that.
+    */
+   synchronized FileChannel acquire(File file) throws IOException {
+      Entry entry = entries_.get(file);
+      if (entry == null || entry.closeWhenIdle) {
+         if (entry != null) {
+            // Still in use by others; release() closes it once they are done
+            entries_.remove(file);
+            retired_.put(entry.channel, entry);
+         }
+         entry = new Entry(new RandomAccessFile(file, "r"));
+         entries_.put(file, entry);
+      }
+      entry.users++;
+      trim();
+      return entry.channel;
+   }
+
+   synchronized void release(File file, FileChannel channel) {
+      Entry entry = entries_.get(file);
+      if (entry == null || entry.channel != channel) {
+         // Was replaced while in use
+         Entry retired = retired_.get(channel);
+         if (retired == null) {
+            ReportingUtils.logError("Released unknown channel for " + file);
+            return;
+         }
+         retired.users--;
+         if (retired.users == 0) {
+            retired_.remove(channel);
+            closeEntry(file, retired);
+         }
+         return;
+      }
+      entry.users--;
+      if (entry.users == 0 && entry.closeWhenIdle) {
+         entries_.remove(file);
+         closeEntry(file, entry);
+      }
+      trim();
+   }
+
+   /**
+    * Close the channel for the file as soon as nobody is using it.
+    */
+   synchronized void close(File file) {
+      Entry entry = entries_.get(file);
+      if (entry == null) {
+         return;
+      }
+      if (entry.users == 0) {
+         entries_.remove(file);
+         closeEntry(file, entry);
+      }
+      else {
+         entry.closeWhenIdle = true;
+      }
+   }
+
+   private void trim() {
+      Iterator<Map.Entry<File, Entry>> it = entries_.entrySet().iterator();
+      while (entries_.size() > MAX_OPEN_FILES && it.hasNext()) {
+         Map.Entry<File, Entry> e = it.next();
+         if (e.getValue().users == 0) {
+            it.remove();
+            closeEntry(e.getKey(), e.getValue());
+         }
+      }
+   }
+
+   private static void closeEntry(File file, Entry entry) {
+      try {
+         entry.channel.close();
+         entry.raFile.close();
+      }
+      catch (IOException e) {
+         ReportingUtils.logError(e, "Error closing " + file);
+      }
+   }
+}
@@ -23,6 +23,8 @@ package org.micromanager.data.internal.multipagetiff;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -48,6 +50,8 @@ class FileSet {
    private static final int SPACE_FOR_PARTIAL_OME_MD = 2000; //this should be more than enough
 
    private final LinkedList<MultipageTiffWriter> tiffWriters_;
+   // File name of each writer in tiffWriters_
+   private final List<String> tiffFilenames_ = new ArrayList<>();
    private FileWriter mdWriter_;
    private final OMEMetadata omeMetadata_;
    private final String baseFilename_;
@@ -81,6 +85,7 @@ class FileSet {
       //make first writer
       tiffWriters_.add(new MultipageTiffWriter(masterStorage_,
             firstImage, currentTiffFilename_));
+      tiffFilenames_.add(currentTiffFilename_);
 
       if (separateMetadataFile_) {
          startMetadataFile();
@@ -128,6 +133,18 @@ class FileSet {
       }
    }
 
+   /**
+    * Add the names and index maps of all files in this set, for writing the
+    * index sidecar.
+    */
+   void collectIndexMaps(List<String> fileNames,
+         List<HashMap<Coords, Long>> indexMaps) {
+      fileNames.addAll(tiffFilenames_);
+      for (MultipageTiffWriter writer : tiffWriters_) {
+         indexMaps.add(writer.getIndexMap());
+      }
+   }
+
    public MultipageTiffReader getCurrentReader() {
       return tiffWriters_.getLast().getReader();
    }
@@ -151,6 +168,7 @@ class FileSet {
          ifdCount_ = 0;
          tiffWriters_.add(new MultipageTiffWriter(masterStorage_,
                img, currentTiffFilename_));
+         tiffFilenames_.add(currentTiffFilename_);
          
          //Add new filename to image tags
          img = img.copyWithMetadata(img.getMetadata().
@@ -0,0 +1,431 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Multipage TIFF
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2020
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.data.internal.multipagetiff;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import org.micromanager.data.Coords;
+import org.micromanager.data.internal.DefaultCoords;
+import org.micromanager.internal.utils.ReportingUtils;
+
+/**
+ * Binary index of all images in a multipage TIFF dataset, written next to
+ * the TIFF files when a dataset is finished.
+ *
+ * Opening a dataset normally requires reading the index map of every file
+ * and building a Coords-to-offset map for each. When this sidecar is present
+ * and matches the TIFF files on disk, it is memory mapped instead and images
+ * are looked up by binary search, opening the TIFF files only when an image
+ * from them is first read.
+ *
+ * Layout (big endian): magic, version, number of files, number of images;
+ * for each file its length and UTF-8 name (length-prefixed); padding to a
+ * multiple of 8 bytes; then, sorted by packed coordinates, the packed
+ * coordinates (long), the image offsets (long) and the file numbers (int).
+ */
+final class IndexSidecar {
+   static final String FILE_NAME = "MMStack_index.bin";
+
+   private static final int MAGIC = 0x4d4d4958; // "MMIX"
+   private static final int VERSION = 1;
+
+   // Bits used for each axis in a packed key; position is most significant
+   // so that keys sort by position, then time, z and channel. 63 bits in
+   // total, so that packed keys are never negative.
+   private static final int CHANNEL_BITS = 12;
+   private static final int Z_BITS = 16;
+   private static final int TIME_BITS = 21;
+   private static final int POSITION_BITS = 14;
+
+   private final File directory_;
+   private final String[] fileNames_;
+   private final LongBuffer keys_;
+   private final LongBuffer offsets_;
+   private final IntBuffer fileIds_;
+
+   private IndexSidecar(File directory, String[] fileNames, LongBuffer keys,
+         LongBuffer offsets, IntBuffer fileIds) {
+      directory_ = directory;
+      fileNames_ = fileNames;
+      keys_ = keys;
+      offsets_ = offsets;
+      fileIds_ = fileIds;
+   }
+
+   /**
+    * Pack coordinates into a sortable key.
+    * @return the key, or -1 if coords has other axes than those stored in
+    * multipage TIFF files or an index is too large to pack
+    */
+   static long packCoords(Coords coords) {
+      for (String axis : coords.getAxes()) {
+         if (!MultipageTiffReader.ALLOWED_AXES.contains(axis)) {
+            return -1;
+         }
+      }
+      long c = Math.max(0, coords.getChannel());
+      long z = Math.max(0, coords.getZSlice());
+      long t = Math.max(0, coords.getTimePoint());
+      long p = Math.max(0, coords.getStagePosition());
+      if (c >= (1L << CHANNEL_BITS) || z >= (1L << Z_BITS) ||
+            t >= (1L << TIME_BITS) || p >= (1L << POSITION_BITS)) {
+         return -1;
+      }
+      return (((p << TIME_BITS | t) << Z_BITS | z) << CHANNEL_BITS) | c;
+   }
+
+   static Coords unpackCoords(long key) {
+      int c = (int) (key & ((1L << CHANNEL_BITS) - 1));
+      key >>>= CHANNEL_BITS;
+      int z = (int) (key & ((1L << Z_BITS) - 1));
+      key >>>= Z_BITS;
+      int t = (int) (key & ((1L << TIME_BITS) - 1));
+      int p = (int) (key >>> TIME_BITS);
+      // Same construction as MultipageTiffReader.readIndexMap()
+      return new DefaultCoords.Builder().channel(c).z(z).t(t).
+            stagePosition(p).build();
+   }
+
+   /**
+    * Write the sidecar for a finished dataset. Does nothing (other than log)
+    * if some coordinates cannot be packed; opening then falls back to
+    * reading the TIFF index maps.
+    * @param directory dataset directory
+    * @param fileNames names of all TIFF files, in the directory
+    * @param indexMaps for each file, the map of coords to IFD offsets
+    */
+   static void write(File directory, List<String> fileNames,
+         List<? extends Map<Coords, Long>> indexMaps) throws IOException {
+      int numEntries = 0;
+      for (Map<Coords, Long> map : indexMaps) {
+         numEntries += map.size();
+      }
+      long[] keys = new long[numEntries];
+      long[] offsets = new long[numEntries];
+      int[] fileIds = new int[numEntries];
+      int n = 0;
+      for (int fileId = 0; fileId < indexMaps.size(); fileId++) {
+         for (Map.Entry<Coords, Long> e : indexMaps.get(fileId).entrySet()) {
+            keys[n] = packCoords(e.getKey());
+            if (keys[n] < 0) {
+               ReportingUtils.logMessage("Not writing image index: cannot pack coords " +
+                     e.getKey());
+               return;
+            }
+            offsets[n] = e.getValue();
+            fileIds[n] = fileId;
+            n++;
+         }
+      }
+      Integer[] order = new Integer[numEntries];
+      for (int i = 0; i < numEntries; i++) {
+         order[i] = i;
+      }
+      Arrays.sort(order, (a, b) -> Long.compare(keys[a], keys[b]));
+
+      byte[][] nameBytes = new byte[fileNames.size()][];
+      int headerSize = 16;
+      for (int i = 0; i < nameBytes.length; i++) {
+         nameBytes[i] = fileNames.get(i).getBytes(StandardCharsets.UTF_8);
+         headerSize += 8 + 4 + nameBytes[i].length;
+      }
+      headerSize = (headerSize + 7) / 8 * 8;
+
+      ByteBuffer buffer = ByteBuffer.allocate(headerSize + 20 * numEntries);
+      buffer.putInt(MAGIC).putInt(VERSION).putInt(nameBytes.length).
+            putInt(numEntries);
+      for (int i = 0; i < nameBytes.length; i++) {
+         buffer.putLong(new File(directory, fileNames.get(i)).length());
+         buffer.putInt(nameBytes[i].length).put(nameBytes[i]);
+      }
+      buffer.position(headerSize);
+      for (int i : order) {
+         buffer.putLong(keys[i]);
+      }
+      for (int i : order) {
+         buffer.putLong(offsets[i]);
+      }
+      for (int i : order) {
+         buffer.putInt(fileIds[i]);
+      }
+      buffer.flip();
+
+      File f = new File(directory, FILE_NAME);
+      try (RandomAccessFile raFile = new RandomAccessFile(f, "rw")) {
+         raFile.setLength(0);
+         FileChannel channel = raFile.getChannel();
+         while (buffer.hasRemaining()) {
+            channel.write(buffer);
+         }
+      }
+   }
+
+   /**
+    * Map the sidecar of a dataset.
+    * @return the index, or null if there is no sidecar or it does not match
+    * the TIFF files in the directory
+    */
+   static IndexSidecar open(File directory) {
+      File f = new File(directory, FILE_NAME);
+      if (!f.isFile()) {
+         return null;
+      }
+      try (RandomAccessFile raFile = new RandomAccessFile(f, "r")) {
+         // The mapping stays valid after the file is closed
+         ByteBuffer buffer = raFile.getChannel().map(
+               FileChannel.MapMode.READ_ONLY, 0, raFile.length());
+         if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            ReportingUtils.logMessage("Ignoring unrecognized image index " + f);
+            return null;
+         }
+         int numFiles = buffer.getInt();
+         int numEntries = buffer.getInt();
+         String[] fileNames = new String[numFiles];
+         for (int i = 0; i < numFiles; i++) {
+            long length = buffer.getLong();
+            byte[] name = new byte[buffer.getInt()];
+            buffer.get(name);
+            fileNames[i] = new String(name, StandardCharsets.UTF_8);
+            if (new File(directory, fileNames[i]).length() != length) {
+               ReportingUtils.logMessage("Ignoring image index " + f +
+                     ", which does not match " + fileNames[i]);
+               return null;
+            }
+         }
+         int keysStart = (buffer.position() + 7) / 8 * 8;
+         if ((long) keysStart + 20L * numEntries != buffer.capacity()) {
+            ReportingUtils.logMessage("Ignoring truncated image index " + f);
+            return null;
+         }
+         return new IndexSidecar(directory, fileNames,
+               slice(buffer, keysStart, 8 * numEntries).asLongBuffer(),
+               slice(buffer, keysStart + 8 * numEntries, 8 * numEntries).
+                     asLongBuffer(),
+               slice(buffer, keysStart + 16 * numEntries, 4 * numEntries).
+                     asIntBuffer());
+      }
+      catch (IOException | RuntimeException e) {
+         ReportingUtils.logError(e, "Failed to read image index " + f);
+         return null;
+      }
+   }
+
+   private static ByteBuffer slice(ByteBuffer buffer, int start, int length) {
+      ByteBuffer dup = buffer.duplicate();
+      dup.position(start);
+      dup.limit(start + length);
+      return dup.slice();
+   }
+
+   int size() {
+      return keys_.capacity();
+   }
+
+   int getNumFiles() {
+      return fileNames_.length;
+   }
+
+   File getFile(int fileId) {
+      return new File(directory_, fileNames_[fileId]);
+   }
+
+   /**
+    * @return the entry number for coords, or -1 if not present
+    */
+   int find(Coords coords) {
+      long key = packCoords(coords);
+      if (key < 0) {
+         return -1;
+      }
+      int lo = 0;
+      int hi = keys_.capacity() - 1;
+      while (lo <= hi) {
+         int mid = (lo + hi) >>> 1;
+         long midKey = keys_.get(mid);
+         if (midKey < key) {
+            lo = mid + 1;
+         }
+         else if (midKey > key) {
+            hi = mid - 1;
+         }
+         else {
+            return mid;
+         }
+      }
+      return -1;
+   }
+
+   Coords getCoords(int entry) {
+      return unpackCoords(keys_.get(entry));
+   }
+
+   long getOffset(int entry) {
+      return offsets_.get(entry);
+   }
+
+   int getFileId(int entry) {
+      return fileIds_.get(entry);
+   }
+
+   /**
+    * Read-only map from coords to the reader for the file containing the
+    * image, backed by the sidecar. Readers are opened on first access.
+    */
+   static final class ReaderMap extends AbstractMap<Coords, MultipageTiffReader> {
+      private final IndexSidecar index_;
+      private final StorageMultipageTiff storage_;
+      private final boolean memoryMapped_;
+      private final MultipageTiffReader[] readers_;
+
+      ReaderMap(IndexSidecar index, StorageMultipageTiff storage,
+            boolean memoryMapped) {
+         index_ = index;
+         storage_ = storage;
+         memoryMapped_ = memoryMapped;
+         readers_ = new MultipageTiffReader[index.getNumFiles()];
+      }
+
+      /**
+       * Open (if not yet open) the reader for the given file.
+       */
+      synchronized MultipageTiffReader getReader(int fileId) throws IOException {
+         if (readers_[fileId] == null) {
+            readers_[fileId] = new MultipageTiffReader(storage_,
+                  index_.getFile(fileId), memoryMapped_, index_, fileId);
+         }
+         return readers_[fileId];
+      }
+
+      synchronized List<MultipageTiffReader> getOpenedReaders() {
+         List<MultipageTiffReader> result = new ArrayList<>();
+         for (MultipageTiffReader reader : readers_) {
+            if (reader != null) {
+               result.add(reader);
+            }
+         }
+         return result;
+      }
+
+      @Override
+      public int size() {
+         return index_.size();
+      }
+
+      @Override
+      public boolean containsKey(Object key) {
+         return key instanceof Coords && index_.find((Coords) key) >= 0;
+      }
+
+      @Override
+      public MultipageTiffReader get(Object key) {
+         if (!(key instanceof Coords)) {
+            return null;
+         }
+         int entry = index_.find((Coords) key);
+         if (entry < 0) {
+            return null;
+         }
+         try {
+            return getReader(index_.getFileId(entry));
+         }
+         catch (IOException e) {
+            ReportingUtils.logError(e, "Failed to open " +
+                  index_.getFile(index_.getFileId(entry)));
+            return null;
+         }
+      }
+
+      @Override
+      public Set<Coords> keySet() {
+         return new AbstractSet<Coords>() {
+            @Override
+            public Iterator<Coords> iterator() {
+               return new Iterator<Coords>() {
+                  private int next_ = 0;
+
+                  @Override
+                  public boolean hasNext() {
+                     return next_ < index_.size();
+                  }
+
+                  @Override
+                  public Coords next() {
+                     if (!hasNext()) {
+                        throw new NoSuchElementException();
+                     }
+                     return index_.getCoords(next_++);
+                  }
+               };
+            }
+
+            @Override
+            public int size() {
+               return index_.size();
+            }
+
+            @Override
+            public boolean contains(Object o) {
+               return containsKey(o);
+            }
+         };
+      }
+
+      @Override
+      public Set<Map.Entry<Coords, MultipageTiffReader>> entrySet() {
+         return new AbstractSet<Map.Entry<Coords, MultipageTiffReader>>() {
+            @Override
+            public Iterator<Map.Entry<Coords, MultipageTiffReader>> iterator() {
+               final Iterator<Coords> keys = keySet().iterator();
+               return new Iterator<Map.Entry<Coords, MultipageTiffReader>>() {
+                  @Override
+                  public boolean hasNext() {
+                     return keys.hasNext();
+                  }
+
+                  @Override
+                  public Map.Entry<Coords, MultipageTiffReader> next() {
+                     Coords coords = keys.next();
+                     return new SimpleImmutableEntry<>(coords, get(coords));
+                  }
+               };
+            }
+
+            @Override
+            public int size() {
+               return index_.size();
+            }
+         };
+      }
+   }
+}
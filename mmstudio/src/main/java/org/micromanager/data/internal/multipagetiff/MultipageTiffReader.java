@@ -33,7 +33,9 @@ import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Set;
@@ -68,6 +70,13 @@ public final class MultipageTiffReader {
 
    private static final char MM_METADATA = MultipageTiffWriter.MM_METADATA;
 
+   // In memory-mapped mode, the file is mapped in windows of MAP_WINDOW_SIZE
+   // bytes starting every MAP_WINDOW_STEP bytes (FileChannel.map() cannot
+   // map more than 2 GB at once). Because windows overlap by MAP_WINDOW_STEP,
+   // any block of up to that size lies entirely within a single window.
+   private static final long MAP_WINDOW_STEP = 512L * 1024 * 1024;
+   private static final long MAP_WINDOW_SIZE = 2 * MAP_WINDOW_STEP;
+
    // Note: ordering of axes here matches that in MDUtils.getLabel().
    // If you change this, you will need to track down places where the size of
    // the position list is implicitly kept (e.g. in the size of a single index
@@ -79,11 +88,20 @@ public final class MultipageTiffReader {
    private RandomAccessFile raFile_;
    private FileChannel fileChannel_;
 
+   // Non-null if reading through memory mappings; in that case fileChannel_
+   // is only set while the constructor runs. Set to null by close() while
+   // holding the monitor on this, which getMapWindow() also holds.
+   private volatile MappedByteBuffer[] mapWindows_;
+   private long mappedFileSize_;
+
    private StorageMultipageTiff masterStorage_;
    private SummaryMetadata summaryMetadata_;
    private PropertyMap imageFormatReadFromSummary_;
 
    private HashMap<Coords, Long> coordsToOffset_;
+   // Used instead of coordsToOffset_ when opened through an index sidecar
+   private IndexSidecar index_;
+   private int fileIdInIndex_;
 
    /**
     * This constructor is used for a file that is currently being written.
@@ -113,26 +131,73 @@ public final class MultipageTiffReader {
     */
    public MultipageTiffReader(StorageMultipageTiff masterStorage, File file)
          throws IOException, InvalidIndexMapException {
+      this(masterStorage, file, false);
+   }
+
+   /**
+    * This constructor is used for opening datasets that have already been
+    * saved.
+    * @param masterStorage
+    * @param file
+    * @param memoryMapped If true, images are read through memory mappings of
+    * the file, and the returned images' pixels are views of the mapping where
+    * possible. The file is then not kept open; it is reopened through a
+    * FileChannelPool when needed.
+    */
+   public MultipageTiffReader(StorageMultipageTiff masterStorage, File file,
+         boolean memoryMapped)
+         throws IOException, InvalidIndexMapException {
+      this(masterStorage, file, memoryMapped, null, 0);
+   }
+
+   /**
+    * This constructor is used for opening datasets that have already been
+    * saved and have an index sidecar. The file's own index map is not read;
+    * image offsets are looked up in the sidecar.
+    */
+   MultipageTiffReader(StorageMultipageTiff masterStorage, File file,
+         boolean memoryMapped, IndexSidecar index, int fileIdInIndex)
+         throws IOException {
       masterStorage_ = masterStorage;
       file_ = file;
+      index_ = index;
+      fileIdInIndex_ = fileIdInIndex;
       try {
-         createFileChannel(false);
+         if (memoryMapped) {
+            fileChannel_ = FileChannelPool.getInstance().acquire(file_);
+         }
+         else {
+            createFileChannel(false);
+         }
       } catch (Exception ex) {
          ReportingUtils.showError(ex, "Cannot open file: " +  file_.getName());
          throw ex instanceof IOException ? (IOException) ex : new IOException(ex);
       }
-      readHeader(); // Determine byte order
-      readSummaryMD();
-
       try {
-         readIndexMap();
+         readHeader(); // Determine byte order
+         readSummaryMD();
+
+         if (index_ == null) {
+            try {
+               readIndexMap();
+            }
+            catch (IOException e) {
+               // Unlike other IOErrors, this is a potentially recoverable error.
+               throw new InvalidIndexMapException(e);
+            }
+         }
+
+         readComments();
       }
-      catch (IOException e) {
-         // Unlike other IOErrors, this is a potentially recoverable error.
-         throw new InvalidIndexMapException(e);
+      finally {
+         if (memoryMapped) {
+            mappedFileSize_ = fileChannel_.size();
+            mapWindows_ = new MappedByteBuffer[(int)
+                  ((mappedFileSize_ + MAP_WINDOW_STEP - 1) / MAP_WINDOW_STEP)];
+            FileChannelPool.getInstance().release(file_, fileChannel_);
+            fileChannel_ = null;
+         }
       }
-
-      readComments();
    }
 
    /**
@@ -215,16 +280,26 @@ public final class MultipageTiffReader {
    }
 
    public DefaultImage readImage(Coords coords) throws IOException {
-      if (!coordsToOffset_.containsKey(coords)) {
+      long byteOffset;
+      if (index_ != null) {
+         int entry = index_.find(coords);
+         if (entry < 0 || index_.getFileId(entry) != fileIdInIndex_) {
+            return null;
+         }
+         byteOffset = index_.getOffset(entry);
+      }
+      else if (!coordsToOffset_.containsKey(coords)) {
          // Coordinates not in our map; maybe the writer hasn't finished
          // writing it?
          return null;
       }
-      if (fileChannel_ == null) {
+      else {
+         byteOffset = coordsToOffset_.get(coords);
+      }
+      if (fileChannel_ == null && mapWindows_ == null) {
          ReportingUtils.logError("Attempted to read image on FileChannel that is null");
          return null;
       }
-      long byteOffset = coordsToOffset_.get(coords);
 
       IFDData data = readIFD(byteOffset);
       return (DefaultImage) readImage(data);
@@ -322,11 +397,60 @@ public final class MultipageTiffReader {
    }
 
    private ByteBuffer readIntoBuffer(long position, int length) throws IOException {
+      if (mapWindows_ != null) {
+         return mappedSlice(position, length);
+      }
       ByteBuffer buffer = ByteBuffer.allocate(length).order(byteOrder_);
       fileChannel_.read(buffer, position);
       return buffer;
    }
 
+   /**
+    * Return a read-only view of the given region of the file, in the file's
+    * byte order. Falls back to reading into a heap buffer if the region is
+    * too large for a single mapping window or extends past the end of file.
+    */
+   private ByteBuffer mappedSlice(long position, int length) throws IOException {
+      int windowIndex = (int) (position / MAP_WINDOW_STEP);
+      long windowStart = windowIndex * MAP_WINDOW_STEP;
+      if (length > MAP_WINDOW_STEP || position + length > mappedFileSize_) {
+         FileChannelPool pool = FileChannelPool.getInstance();
+         FileChannel channel = pool.acquire(file_);
+         try {
+            ByteBuffer buffer = ByteBuffer.allocate(length).order(byteOrder_);
+            channel.read(buffer, position);
+            return buffer;
+         }
+         finally {
+            pool.release(file_, channel);
+         }
+      }
+      ByteBuffer window = getMapWindow(windowIndex, windowStart);
+      ByteBuffer view = window.duplicate();
+      view.position((int) (position - windowStart));
+      view.limit((int) (position - windowStart) + length);
+      return view.slice().order(byteOrder_);
+   }
+
+   private synchronized MappedByteBuffer getMapWindow(int index, long start)
+         throws IOException {
+      if (mapWindows_ == null) {
+         throw new IOException("Attempted to read image from closed file " + file_);
+      }
+      if (mapWindows_[index] == null) {
+         FileChannelPool pool = FileChannelPool.getInstance();
+         FileChannel channel = pool.acquire(file_);
+         try {
+            mapWindows_[index] = channel.map(FileChannel.MapMode.READ_ONLY,
+                  start, Math.min(MAP_WINDOW_SIZE, mappedFileSize_ - start));
+         }
+         finally {
+            pool.release(file_, channel);
+         }
+      }
+      return mapWindows_[index];
+   }
+
    private long readOffsetHeaderAndOffset(int offsetHeaderVal, int startOffset) throws IOException  {
       ByteBuffer buffer1 = readIntoBuffer(startOffset,8);
       int offsetHeader = buffer1.getInt(0);
@@ -394,6 +518,9 @@ public final class MultipageTiffReader {
    }
 
    private String getString(ByteBuffer buffer) {
+      if (!buffer.hasArray()) {
+         return StandardCharsets.UTF_8.decode(buffer.duplicate()).toString();
+      }
       try {
          return new String(buffer.array(), "UTF-8");
       } catch (UnsupportedEncodingException ex) {
@@ -403,10 +530,9 @@ public final class MultipageTiffReader {
    }
 
    private Image readImage(IFDData data) throws IOException {
-      ByteBuffer pixelBuffer = ByteBuffer.allocate((int) data.bytesPerImage).order(byteOrder_);
-      ByteBuffer mdBuffer = ByteBuffer.allocate((int) data.mdLength).order(byteOrder_);
-      fileChannel_.read(pixelBuffer, data.pixelOffset);
-      fileChannel_.read(mdBuffer, data.mdOffset);
+      ByteBuffer pixelBuffer = readIntoBuffer(data.pixelOffset,
+            (int) data.bytesPerImage);
+      ByteBuffer mdBuffer = readIntoBuffer(data.mdOffset, (int) data.mdLength);
 
       String mdJSON = getString(mdBuffer);
       JsonParser parser = new JsonParser();
@@ -453,14 +579,24 @@ public final class MultipageTiffReader {
                     PropertyKey.PIXEL_TYPE.key(), pixelType).build();
          }
 
-         // TODO We should avoid converting to Java array and back, instead using
-         // a nio buffer directly as the Image storage (even better if memory
-         // mapped).
+         // Memory-mapped pixels are used in place if no conversion is
+         // needed.
+         // TODO We should avoid converting to Java array and back also when
+         // not memory mapping.
          switch (pixelType) {
             case GRAY8:
+               if (!pixelBuffer.hasArray()) {
+                  return new DefaultImage(pixelBuffer,
+                        width, height, pixelType, coords, metadata);
+               }
                return new DefaultImage(pixelBuffer.array(), formatPmap,
                        coords, metadata);
             case GRAY16:
+               if (!pixelBuffer.hasArray() &&
+                     byteOrder_.equals(ByteOrder.nativeOrder())) {
+                  return new DefaultImage(pixelBuffer.asShortBuffer(),
+                        width, height, pixelType, coords, metadata);
+               }
                short[] pixels16 = new short[pixelBuffer.capacity() / 2];
                for (int i = 0; i < pixels16.length; i++) {
                   pixels16[i] = pixelBuffer.getShort(i * 2);
@@ -469,7 +605,8 @@ public final class MultipageTiffReader {
             case RGB32:
                byte[] pixelsARGB = new byte[(int) (4 * data.bytesPerImage / 3)];
                int i = 0;
-               for (byte b : pixelBuffer.array()) {
+               for (int j = 0; j < data.bytesPerImage; j++) {
+                  byte b = pixelBuffer.get(j);
                   // need to swap byte 0 and 2: saved order is RGBA, but we want BGRA
                   if (i % 4 == 0) {
                      pixelsARGB[i + 2] = b;
@@ -543,6 +680,13 @@ public final class MultipageTiffReader {
    }
 
    public void close() throws IOException {
+      synchronized (this) {
+         if (mapWindows_ != null) {
+            // Mappings are released when garbage collected
+            FileChannelPool.getInstance().close(file_);
+            mapWindows_ = null;
+         }
+      }
       if (fileChannel_ != null) {
          fileChannel_.close();
          fileChannel_ = null;
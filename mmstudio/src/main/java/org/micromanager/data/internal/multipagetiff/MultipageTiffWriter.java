@@ -40,7 +40,6 @@ import java.util.ArrayDeque;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.LinkedList;
-import java.util.concurrent.ThreadPoolExecutor;
 
 import org.micromanager.PropertyMap;
 import org.micromanager.PropertyMaps;
@@ -104,7 +103,6 @@ public final class MultipageTiffWriter {
    private StorageMultipageTiff masterStorage_;
    private RandomAccessFile raFile_;
    private FileChannel fileChannel_; 
-   private final ThreadPoolExecutor writingExecutor_;
    private long filePosition_ = 0;
    private long indexMapPosition_; //current position of the dynamically written index map
    private long indexMapFirstEntry_; // mark position of first entry so that number of entries can be written at end
@@ -201,7 +199,6 @@ public final class MultipageTiffWriter {
                "Insufficent space on disk: no room to write data");
       }
       fileChannel_ = raFile_.getChannel();
-      writingExecutor_ = masterStorage_.getWritingExecutor();
       coordsToOffset_ = new HashMap<>();
       reader_.setFileChannel(fileChannel_);
       reader_.setIndexMap(coordsToOffset_);
@@ -309,38 +306,29 @@ public final class MultipageTiffWriter {
       }
    }
 
-   private void executeWritingTask(Runnable writingTask) {
-      writingExecutor_.execute(writingTask);
-   }
-
+   // All writes happen on the WritingLane thread of our FileSet, so they are
+   // performed directly and in order.
    private void fileChannelWrite(final ByteBuffer buffer, final long position) {
-      executeWritingTask(() -> {
-         try {
-            buffer.rewind();
-            fileChannel_.write(buffer, position);
-         }
-         catch (IOException e) {
-            ReportingUtils.logError(e);
-         }
-         tryRecycleLargeBuffer(buffer);
-      });
+      try {
+         buffer.rewind();
+         fileChannel_.write(buffer, position);
+      }
+      catch (IOException e) {
+         ReportingUtils.logError(e);
+      }
+      tryRecycleLargeBuffer(buffer);
    }
 
    private void fileChannelWrite(final ByteBuffer[] buffers) {
-      executeWritingTask(new Runnable() {
-         @Override
-         public void run() {
-            try {
-               fileChannel_.write(buffers);
-            }
-            catch (IOException e) {
-               ReportingUtils.logError(e);
-            }
-            for (ByteBuffer buffer : buffers) {
-               tryRecycleLargeBuffer(buffer);
-            }
-         }
-      });
+      try {
+         fileChannel_.write(buffers);
+      }
+      catch (IOException e) {
+         ReportingUtils.logError(e);
+      }
+      for (ByteBuffer buffer : buffers) {
+         tryRecycleLargeBuffer(buffer);
+      }
    }
 
    public MultipageTiffReader getReader() {
@@ -434,18 +422,16 @@ public final class MultipageTiffWriter {
       writeDisplaySettings();
       writeComments();
 
-      executeWritingTask(() -> {
-         try {
-            // extra byte of space, just to make sure nothing gets cut off
-            raFile_.setLength(filePosition_ + 8);
-         } catch (IOException ex) {
-            ReportingUtils.logError(ex);
-         }
-         // Do not close file channel and random access file because the Tiff
-         // reader is still using them
-         fileChannel_ = null;
-         raFile_ = null;
-      });
+      try {
+         // extra byte of space, just to make sure nothing gets cut off
+         raFile_.setLength(filePosition_ + 8);
+      } catch (IOException ex) {
+         ReportingUtils.logError(ex);
+      }
+      // Do not close file channel and random access file because the Tiff
+      // reader is still using them
+      fileChannel_ = null;
+      raFile_ = null;
    }
    
    public boolean hasSpaceForFullOMEMetadata(int length) {
@@ -479,22 +465,6 @@ public final class MultipageTiffWriter {
    }
 
    public void writeImage(Image img) throws IOException {
-      if (writingExecutor_ != null) {
-         int queueSize = writingExecutor_.getQueue().size();
-         int attemptCount = 0;
-         while (queueSize > 20) {
-            if (attemptCount == 0) {
-               ReportingUtils.logMessage("Warning: writing queue behind by " + queueSize + " images.");
-            }
-            ++attemptCount;
-            try {
-               Thread.sleep(5);
-               queueSize = writingExecutor_.getQueue().size();
-            } catch (InterruptedException ex) {
-               ReportingUtils.logError(ex);
-            }
-         }
-      }
       long offset = filePosition_;
       writeIFD(img);
       addToIndexMap(img.getCoords(), offset);
@@ -51,6 +51,10 @@ import org.micromanager.data.internal.CommentsHelper;
 import org.micromanager.internal.utils.MDUtils;
 import org.micromanager.internal.utils.ReportingUtils;
 
+/**
+ * OME-XML metadata shared by all FileSets of a StorageMultipageTiff. Public
+ * methods are synchronized because FileSets are written on separate threads.
+ */
 public final class OMEMetadata {
 
    private final IMetadata metadata_;
@@ -88,7 +92,7 @@ public final class OMEMetadata {
    }
 
    @Override
-   public String toString() {
+   public synchronized String toString() {
       try {
          OMEXMLService service = new ServiceFactory().getInstance(OMEXMLService.class);
          return service.getOMEXML(metadata_) + " ";
@@ -101,7 +105,7 @@ public final class OMEMetadata {
       }
    }
 
-   public void setNumFrames(int seriesIndex, int numFrames) {
+   public synchronized void setNumFrames(int seriesIndex, int numFrames) {
       metadata_.setPixelsSizeT(new PositiveInteger(numFrames), seriesIndex);
    }
 
@@ -199,7 +203,7 @@ public final class OMEMetadata {
    /*
     * Method called when numC*numZ*numT != total number of planes
     */
-   public void fillInMissingTiffDatas(int frame, int position) {
+   public synchronized void fillInMissingTiffDatas(int frame, int position) {
       try {
       for (int slice = 0; slice < numSlices_; slice++) {
          for (int channel = 0; channel < numChannels_; channel++) {
@@ -268,7 +272,7 @@ public final class OMEMetadata {
       }
    }
 
-   public void addImageTagsToOME(Coords coords, Metadata metadata, int ifdCount,
+   public synchronized void addImageTagsToOME(Coords coords, Metadata metadata, int ifdCount,
          String baseFileName, String currentFileName, String uuid) {
       int position = coords.getStagePosition();
       if (!seriesIndices_.containsKey(position)) {
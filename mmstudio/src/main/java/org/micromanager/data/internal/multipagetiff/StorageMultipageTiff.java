@@ -27,6 +27,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -35,11 +36,6 @@ import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 import javax.swing.JOptionPane;
 import org.micromanager.data.Coords;
 import org.micromanager.data.DataProvider;
@@ -56,6 +52,8 @@ import org.micromanager.internal.MMStudio;
 import org.micromanager.internal.utils.MMException;
 import org.micromanager.internal.utils.ProgressBar;
 import org.micromanager.internal.utils.ReportingUtils;
+import org.micromanager.internal.utils.performance.PerformanceMonitor;
+import org.micromanager.internal.utils.performance.gui.PerformanceMonitorUI;
 import org.micromanager.data.DataProviderHasNewSummaryMetadataEvent;
 import org.micromanager.display.DataViewer;
 import org.micromanager.display.DisplaySettings;
@@ -76,6 +74,8 @@ public final class StorageMultipageTiff implements Storage {
            "generate a metadata file when saving datasets as multipage TIFF files";
    private static final String SHOULD_USE_SEPARATE_FILES_FOR_POSITIONS = 
            "generate a separate multipage TIFF file for each stage position";
+   private static final String SHOULD_MEMORY_MAP_FILES =
+           "read multipage TIFF files through memory mappings";
    private static final HashSet<String> ALLOWED_AXES = new HashSet<String>(
          Arrays.asList(Coords.CHANNEL, Coords.T, Coords.Z,
             Coords.STAGE_POSITION));
@@ -89,12 +89,13 @@ public final class StorageMultipageTiff implements Storage {
    private int lastFrameOpenedDataSet_ = -1;
    private String directory_;
    final private boolean separateMetadataFile_;
+   final private boolean memoryMapFiles_;
    private boolean splitByXYPosition_ = true;
    private volatile boolean finished_ = false;
    private OMEMetadata omeMetadata_;
    private int lastFrame_ = 0;
    private int lastAcquiredPosition_ = 0;
-   private ThreadPoolExecutor writingExecutor_;
+   private final Object lastAcquiredLock_ = new Object();
    private Image firstImage_;
 
    // Images that are currently being written. We keep them around until
@@ -106,18 +107,24 @@ public final class StorageMultipageTiff implements Storage {
 
    //map of position indices to objects associated with each
    private HashMap<Integer, FileSet> positionToFileSet_;
-   
-   //Map of image labels to file 
-   private Map<Coords, MultipageTiffReader> coordsToReader_;
+   // Writer threads, one per FileSet, keyed like positionToFileSet_
+   private HashMap<Integer, WritingLane> positionToWritingLane_;
+
+   //Map of image labels to file; written to from the writing lanes
+   private volatile Map<Coords, MultipageTiffReader> coordsToReader_;
    // Keeps track of our maximum extent along each axis.
    private Coords maxIndices_;
 
+   private final PerformanceMonitor perfMon_ =
+         PerformanceMonitor.createWithTimeConstantMs(1000.0);
+   private PerformanceMonitorUI perfMonUI_;
+
   
    public StorageMultipageTiff(Component parent, Datastore store, String dir, 
            Boolean amInWriteMode)
          throws IOException {
       this(parent, store, dir, amInWriteMode, getShouldGenerateMetadataFile(),
-            getShouldSplitPositions());
+            getShouldSplitPositions(), getShouldMemoryMapFiles());
    }
    
    /**
@@ -136,6 +143,29 @@ public final class StorageMultipageTiff implements Storage {
    public StorageMultipageTiff(Component parent, Datastore store, String dir,
          boolean amInWriteMode, boolean separateMDFile,
          boolean separateFilesForPositions) throws IOException {
+      this(parent, store, dir, amInWriteMode, separateMDFile,
+            separateFilesForPositions, false);
+   }
+
+   /**
+    * Constructor that doesn't make reference to MMStudio so it can be used
+    * independently of MM GUI
+    *
+    * @param parent  GUI element on top of which a ProgressBar (or other things) can be displayed
+    * @param store   Datastore to be saved
+    * @param dir     Directory in which to store the data
+    * @param amInWriteMode
+    * @param separateMDFile   Whether or not to write a separate file with the MM metadata
+    * @param separateFilesForPositions If true, will store positions in separate files,
+    *             otherwise all data will go into a single file
+    * @param memoryMapFiles If true, existing files are read through memory
+    *             mappings instead of file reads (ignored in write mode)
+    * @throws java.io.IOException
+    */
+   public StorageMultipageTiff(Component parent, Datastore store, String dir,
+         boolean amInWriteMode, boolean separateMDFile,
+         boolean separateFilesForPositions, boolean memoryMapFiles)
+         throws IOException {
       store_ = (DefaultDatastore) store;
       parent_ = parent;
       // We must be notified of changes in the Datastore before everyone else,
@@ -143,15 +173,19 @@ public final class StorageMultipageTiff implements Storage {
       store_.registerForEvents(this, 0);
       separateMetadataFile_ = separateMDFile;
       splitByXYPosition_ = separateFilesForPositions;
+      memoryMapFiles_ = memoryMapFiles;
 
       amInWriteMode_ = amInWriteMode;
       directory_ = dir;
       store_.setSavePath(directory_);
       store_.setName(new File(directory_).getName());
-      coordsToReader_ = new HashMap<>();
+      coordsToReader_ = new ConcurrentHashMap<>();
 
       if (amInWriteMode_) {
          positionToFileSet_ = new HashMap<>();
+         positionToWritingLane_ = new HashMap<>();
+         perfMonUI_ = PerformanceMonitorUI.create(perfMon_,
+               "Multipage TIFF Writing Performance");
          // Create the directory now, even though we have nothing to write to
          // it, so we can detect e.g. permissions errors that would cause
          // problems later.
@@ -180,10 +214,6 @@ public final class StorageMultipageTiff implements Storage {
       }
    }
    
-   public ThreadPoolExecutor getWritingExecutor() {
-      return writingExecutor_;
-   }
-
    /**
     * Indicator of Acquisition order.  This function is difficult to name.
     * "First" means that the axis comes before another axis in the ordered axes
@@ -223,9 +253,14 @@ public final class StorageMultipageTiff implements Storage {
    }
 
    private void openExistingDataSet() {
+      File dir = new File(directory_);
+      IndexSidecar index = IndexSidecar.open(dir);
+      if (index != null && openWithIndexSidecar(index)) {
+         return;
+      }
+
       //Need to throw error if file not found
       MultipageTiffReader reader = null;
-      File dir = new File(directory_);
 
       ProgressBar progressBar = null;
       // Allow operation in headless mode.
@@ -268,11 +303,42 @@ public final class StorageMultipageTiff implements Storage {
       }
    }
 
+   /**
+    * Open the dataset using its index sidecar. Only the first file is read;
+    * the others are opened when images are read from them.
+    * @return false if the dataset must be opened by reading all files instead
+    */
+   private boolean openWithIndexSidecar(IndexSidecar index) {
+      if (index.size() == 0) {
+         return false;
+      }
+      IndexSidecar.ReaderMap readerMap =
+            new IndexSidecar.ReaderMap(index, this, memoryMapFiles_);
+      MultipageTiffReader reader;
+      try {
+         reader = readerMap.getReader(index.getFileId(0));
+         // getAnyImage() must not return null for an opened dataset
+         firstImage_ = reader.readImage(index.getCoords(0));
+      }
+      catch (IOException e) {
+         ReportingUtils.logError(e, "Failed to open dataset using image index");
+         return false;
+      }
+      for (int i = 0; i < index.size(); i++) {
+         lastFrameOpenedDataSet_ = Math.max(
+               index.getCoords(i).getT(), lastFrameOpenedDataSet_);
+      }
+      coordsToReader_ = readerMap;
+      setSummaryMetadata((DefaultSummaryMetadata) reader.getSummaryMetadata(),
+            false);
+      return true;
+   }
+
    private MultipageTiffReader loadFile(File f) {
       MultipageTiffReader reader = null;
       try {
          try {
-            reader = new MultipageTiffReader(this, f);
+            reader = new MultipageTiffReader(this, f, memoryMapFiles_);
          }
          catch (InvalidIndexMapException e) {
             // Prompt to repair it.
@@ -290,7 +356,7 @@ public final class StorageMultipageTiff implements Storage {
             reader = new MultipageTiffReader(f);
             reader.close();
             // Open the file normally.
-            reader = new MultipageTiffReader(this, f);
+            reader = new MultipageTiffReader(this, f, memoryMapFiles_);
          }
          Set<Coords> readerCoords = reader.getIndexKeys();
          for (Coords coords : readerCoords) {
@@ -323,7 +389,7 @@ public final class StorageMultipageTiff implements Storage {
       try {
          writeImage(image, false);
       }
-      catch (MMException | InterruptedException | ExecutionException | IOException e) {
+      catch (MMException | InterruptedException | IOException e) {
          ReportingUtils.showError(e, "Failed to write image at " + image.getCoords());
       }
    }
@@ -334,15 +400,12 @@ public final class StorageMultipageTiff implements Storage {
    }
 
    private void writeImage(DefaultImage image, boolean waitForWritingToFinish) 
-           throws MMException, InterruptedException, ExecutionException, IOException {
+           throws MMException, InterruptedException, IOException {
       writeImage(image);
       if (waitForWritingToFinish) {
-         Future f = writingExecutor_.submit(new Runnable() {
-            @Override
-            public void run() {
-            }
-         });
-         f.get();
+         for (WritingLane lane : positionToWritingLane_.values()) {
+            lane.awaitIdle();
+         }
       }
    }
 
@@ -352,9 +415,11 @@ public final class StorageMultipageTiff implements Storage {
     * structure, in turn, ensures that we do not have to rely on
     * MultipageTiffReader.readImage() returning a coherent (i.e.
     * finished-writing) image if our getImage() method is called before writing
-    * is completed.
+    * is completed. The pending image is dropped by the writing lane once it
+    * is readable from disk.
     */
-   private void writeImage(DefaultImage image) throws MMException, IOException {
+   private void writeImage(DefaultImage image)
+         throws MMException, InterruptedException, IOException {
       if (!amInWriteMode_) {
          ReportingUtils.showError("Tried to write image to a finished data set");
          throw new MMException("This ImageFileManager is read-only.");
@@ -366,22 +431,15 @@ public final class StorageMultipageTiff implements Storage {
       }
 
       startWritingTask(image);
-
-      writingExecutor_.submit(new Runnable() {
-         @Override
-         public void run() {
-            synchronized(coordsToPendingImage_) {
-               coordsToPendingImage_.remove(coords);
-            }
-         }
-      });
    };
 
    /**
     * This method handles starting the process of writing images (which means
-    * that it ultimately submits a task to writingExecutor_).
+    * that it ultimately submits a task to the WritingLane of the image's
+    * FileSet). Blocks if that lane is too far behind.
     */
-   private void startWritingTask(DefaultImage image) throws MMException, IOException {
+   private void startWritingTask(final DefaultImage image)
+         throws MMException, InterruptedException, IOException {
       // Update maxIndices_
       if (maxIndices_ == null) {
          maxIndices_ = image.getCoords().copyBuilder().build();
@@ -395,12 +453,6 @@ public final class StorageMultipageTiff implements Storage {
          }
       }
 
-      // initialize writing executor
-      if (writingExecutor_ == null) {
-         writingExecutor_ = new ThreadPoolExecutor(1, 1, 0,
-               TimeUnit.NANOSECONDS,
-               new LinkedBlockingQueue<java.lang.Runnable>());
-      }
       int fileSetIndex = 0;
       if (splitByXYPosition_) {
          fileSetIndex = image.getCoords().getStagePosition();
@@ -418,22 +470,48 @@ public final class StorageMultipageTiff implements Storage {
          positionToFileSet_.put(fileSetIndex,
                new FileSet(image, this, omeMetadata_,
                   splitByXYPosition_, separateMetadataFile_));
+         positionToWritingLane_.put(fileSetIndex, new WritingLane(
+               splitByXYPosition_ ? "Pos" + fileSetIndex : "All positions",
+               perfMon_));
       }
-      FileSet set = positionToFileSet_.get(fileSetIndex);
+      final FileSet set = positionToFileSet_.get(fileSetIndex);
 
-      try {
-         set.writeImage(image);
+      positionToWritingLane_.get(fileSetIndex).submit(() -> {
          Coords coords = image.getCoords();
-         coordsToReader_.put(coords, set.getCurrentReader());
-      } catch (IOException ex) {
-        ReportingUtils.showError(ex, "Failed to write image to file.");
-      }
+         try {
+            set.writeImage(image);
+            coordsToReader_.put(coords, set.getCurrentReader());
+         } catch (IOException ex) {
+           ReportingUtils.showError(ex, "Failed to write image to file.");
+         }
+         // Only forget the pending image if it was not replaced meanwhile
+         coordsToPendingImage_.remove(coords, image);
+      });
 
       int frame = image.getCoords().getTimePoint();
       lastFrameOpenedDataSet_ = Math.max(frame, lastFrameOpenedDataSet_);
 
    }
 
+   /**
+    * Let the writing lanes finish their queued tasks and stop their threads.
+    * Lanes that were already shut down are skipped right away.
+    */
+   private void shutdownWritingLanes() {
+      if (positionToWritingLane_ == null) {
+         return;
+      }
+      for (WritingLane lane : positionToWritingLane_.values()) {
+         try {
+            lane.shutdown();
+         }
+         catch (InterruptedException e) {
+            ReportingUtils.logError("File finishing thread interrupted");
+            Thread.interrupted();
+         }
+      }
+   }
+
    public Set<Coords> imageKeys() {
       return coordsToReader_.keySet();
    }
@@ -453,6 +531,10 @@ public final class StorageMultipageTiff implements Storage {
          finished_ = true;
          return;
       }
+      //pause here until all tasks have finished writing so that no attempt
+      //is made to finish or close the files before everything has been
+      //written
+      shutdownWritingLanes();
       ProgressBar progressBar = null;
       if (!GraphicsEnvironment.isHeadless()) {
          progressBar = new ProgressBar(parent_, "Finishing Files", 0, 
@@ -527,25 +609,8 @@ public final class StorageMultipageTiff implements Storage {
                progressBar.setProgress(count);
             }
          }
-         //shut down writing executor--pause here until all tasks have finished
-         //writing so that no attempt is made to close the dataset (and thus
-         //the FileChannel) before everything has finished writing mkae sure
-         //all images have finished writing if they are on seperate thread
-         if (writingExecutor_ != null && !writingExecutor_.isShutdown()) {
-            writingExecutor_.shutdown();
-            try {
-               // Wait for tasks to finish.
-               int i = 0;
-               while (!writingExecutor_.awaitTermination(4, TimeUnit.SECONDS)) {
-                  ReportingUtils.logMessage("Waiting for image stack to finish writing (" + i + ")...");
-                  i++;
-               }
-            }
-            catch (InterruptedException e) {
-               ReportingUtils.logError("File finishing thread interrupted");
-               Thread.interrupted();
-            }
-         }
+
+         writeIndexSidecar();
       } catch (IOException ex) {
          ReportingUtils.logError(ex);
       }
@@ -557,6 +622,25 @@ public final class StorageMultipageTiff implements Storage {
       finished_ = true;
    }
 
+   /**
+    * Write the index of all images, so that the dataset can be opened without
+    * reading the index map of every file.
+    */
+   private void writeIndexSidecar() {
+      List<String> fileNames = new ArrayList<>();
+      List<HashMap<Coords, Long>> indexMaps = new ArrayList<>();
+      for (FileSet p : positionToFileSet_.values()) {
+         p.collectIndexMaps(fileNames, indexMaps);
+      }
+      try {
+         IndexSidecar.write(new File(directory_), fileNames, indexMaps);
+      }
+      catch (IOException e) {
+         // Not fatal: the index maps are read from the files instead
+         ReportingUtils.logError(e, "Failed to write image index");
+      }
+   }
+
    public boolean isFinished() {
       return !amInWriteMode_;
    }
@@ -571,9 +655,13 @@ public final class StorageMultipageTiff implements Storage {
       summaryMetadataString_ = NonPropertyMapJSONFormats.summaryMetadata().
             toJSON(summary.toPropertyMap());
 
+      if (coordsToReader_ instanceof IndexSidecar.ReaderMap) {
+         // Read-only, and copying it would defeat its purpose
+         return;
+      }
       // TODO What does the following have to do with summary metadata?
       Map<Coords, MultipageTiffReader> oldImageMap = coordsToReader_;
-      coordsToReader_ = new HashMap<>();
+      Map<Coords, MultipageTiffReader> newImageMap = new ConcurrentHashMap<>();
       if (showProgress && !GraphicsEnvironment.isHeadless()) {
          ProgressBar progressBar = new ProgressBar(parent_, 
                  "Building image location map", 0, oldImageMap.keySet().size());
@@ -581,14 +669,15 @@ public final class StorageMultipageTiff implements Storage {
          progressBar.setVisible(true);
          int i = 1;
          for (Coords coords : oldImageMap.keySet()) {
-            coordsToReader_.put(coords, oldImageMap.get(coords));
+            newImageMap.put(coords, oldImageMap.get(coords));
             progressBar.setProgress(i);
             i++;
          }
          progressBar.setVisible(false);
       } else {
-         coordsToReader_.putAll(oldImageMap);
+         newImageMap.putAll(oldImageMap);
       }
+      coordsToReader_ = newImageMap;
    }
    
     /**
@@ -758,18 +847,25 @@ public final class StorageMultipageTiff implements Storage {
 
    public int lastAcquiredFrame() {
       if (amInWriteMode_) {
-         return lastFrame_;
+         synchronized (lastAcquiredLock_) {
+            return lastFrame_;
+         }
       } else {
          return lastFrameOpenedDataSet_;
       }
    }
 
+   // Called from the writing lanes
    public void updateLastFrame(int frame) {
-      lastFrame_ = Math.max(frame, lastFrame_);
+      synchronized (lastAcquiredLock_) {
+         lastFrame_ = Math.max(frame, lastFrame_);
+      }
    }
 
    public void updateLastPosition(int pos) {
-      lastAcquiredPosition_ = Math.max(pos, lastAcquiredPosition_);
+      synchronized (lastAcquiredLock_) {
+         lastAcquiredPosition_ = Math.max(pos, lastAcquiredPosition_);
+      }
    }
 
    public long getDataSetSize() {
@@ -950,6 +1046,9 @@ public final class StorageMultipageTiff implements Storage {
     */
    @Override
    public void close() {
+      // Stop the writer threads, which finished() may never have done, and
+      // let queued writes complete before their files are closed.
+      shutdownWritingLanes();
       // For files we wrote ourselves.
       if (positionToFileSet_ != null) {
          for (FileSet fileset : positionToFileSet_.values()) {
@@ -957,7 +1056,11 @@ public final class StorageMultipageTiff implements Storage {
          }
       }
       // For files we read from disk.
-      for (MultipageTiffReader reader : coordsToReader_.values()) {
+      Collection<MultipageTiffReader> readers = coordsToReader_.values();
+      if (coordsToReader_ instanceof IndexSidecar.ReaderMap) {
+         readers = ((IndexSidecar.ReaderMap) coordsToReader_).getOpenedReaders();
+      }
+      for (MultipageTiffReader reader : readers) {
          try {
             reader.close();
          }
@@ -986,4 +1089,14 @@ public final class StorageMultipageTiff implements Storage {
       MMStudio.getInstance().profile().getSettings(StorageMultipageTiff.class).
               putBoolean(SHOULD_USE_SEPARATE_FILES_FOR_POSITIONS, shouldSplit);
    }
+
+   public static boolean getShouldMemoryMapFiles() {
+      return MMStudio.getInstance().profile().getSettings(StorageMultipageTiff.class).
+              getBoolean(SHOULD_MEMORY_MAP_FILES, false);
+   }
+
+   public static void setShouldMemoryMapFiles(boolean shouldMap) {
+      MMStudio.getInstance().profile().getSettings(StorageMultipageTiff.class).
+              putBoolean(SHOULD_MEMORY_MAP_FILES, shouldMap);
+   }
 }
@@ -0,0 +1,110 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Multipage TIFF
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2020
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.data.internal.multipagetiff;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.micromanager.internal.utils.ReportingUtils;
+import org.micromanager.internal.utils.performance.PerformanceMonitor;
+import org.micromanager.internal.utils.performance.WallTimer;
+
+/**
+ * Single writer thread for one FileSet.
+ *
+ * Each FileSet (one per stage position when splitting by position) gets its
+ * own lane, so that IFD construction, metadata encoding and file writes for
+ * different files proceed in parallel, while everything written to a given
+ * file stays in submission order. The number of images in flight is bounded;
+ * the producer blocks in {@link #submit} when the lane is full.
+ */
+final class WritingLane {
+   private static final int MAX_QUEUED_IMAGES = 20;
+
+   private final String name_;
+   private final ExecutorService executor_;
+   private final Semaphore permits_ = new Semaphore(MAX_QUEUED_IMAGES);
+   private final PerformanceMonitor perfMon_;
+
+   WritingLane(String name, PerformanceMonitor perfMon) {
+      name_ = name;
+      perfMon_ = perfMon;
+      executor_ = Executors.newSingleThreadExecutor(
+            r -> new Thread(r, "Multipage TIFF writer (" + name + ")"));
+   }
+
+   /**
+    * Queue a write task, blocking while the lane already holds the maximum
+    * number of images.
+    */
+   void submit(final Runnable writingTask) throws InterruptedException {
+      if (!permits_.tryAcquire()) {
+         ReportingUtils.logMessage("Warning: writing queue for " + name_ +
+               " behind by " + MAX_QUEUED_IMAGES + " images.");
+         WallTimer timer = WallTimer.createStarted();
+         permits_.acquire();
+         perfMon_.sample("Producer blocked (ms)", timer.getMs());
+      }
+      perfMon_.sample(name_ + " queued images",
+            MAX_QUEUED_IMAGES - permits_.availablePermits());
+      try {
+         executor_.execute(() -> {
+            try {
+               WallTimer timer = WallTimer.createStarted();
+               writingTask.run();
+               perfMon_.sample(name_ + " write time (ms)", timer.getMs());
+               perfMon_.sampleTimeInterval(name_ + " image written");
+            }
+            catch (RuntimeException e) {
+               ReportingUtils.logError(e, "Error writing image (" + name_ + ")");
+            }
+            finally {
+               permits_.release();
+            }
+         });
+      }
+      catch (RejectedExecutionException e) {
+         permits_.release();
+         throw e;
+      }
+   }
+
+   /**
+    * Block until every task submitted so far has completed.
+    */
+   void awaitIdle() throws InterruptedException {
+      permits_.acquire(MAX_QUEUED_IMAGES);
+      permits_.release(MAX_QUEUED_IMAGES);
+   }
+
+   /**
+    * Let queued tasks finish, then stop the writer thread.
+    */
+   void shutdown() throws InterruptedException {
+      executor_.shutdown();
+      int i = 0;
+      while (!executor_.awaitTermination(4, TimeUnit.SECONDS)) {
+         ReportingUtils.logMessage("Waiting for " + name_ +
+               " to finish writing (" + i + ")...");
+         i++;
+      }
+   }
+}
@@ -20,80 +20,217 @@
 
 package org.micromanager.data.internal.pipeline;
 
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import org.micromanager.data.Datastore;
+import org.micromanager.data.Image;
 import org.micromanager.data.Processor;
+import org.micromanager.data.ProcessorContext;
+import org.micromanager.data.SummaryMetadata;
 import org.micromanager.internal.utils.ReportingUtils;
 
+/**
+ * Context that runs its processor on its own thread(s), fed through a
+ * bounded queue.
+ *
+ * Images are taken from the queue in batches, and the images output while
+ * processing a batch are handed to the next context as one batch. If the
+ * processor is parallel-safe, several worker threads process batches at the
+ * same time; their output is put back in input order before it is passed on,
+ * so downstream stages and the Datastore see the same order as with a single
+ * worker.
+ */
 public final class AsynchronousContext extends BaseContext {
-   private boolean isFlushed_ = false;
-   private LinkedBlockingQueue<ImageWrapper> inputQueue_ = null;
+   private final BatchQueue inputQueue_;
+   private final int maxBatchSize_;
+
+   // Guarded by monitor on outputLock_
+   private final Object outputLock_ = new Object();
+   private final Map<Long, List<ImageWrapper>> pendingOutputs_ =
+         new HashMap<>();
+   private long nextOutputSequenceNumber_ = 0;
+
+   /**
+    * Collects the images output for one input image.
+    */
+   private final class WorkerContext implements ProcessorContext {
+      private final List<ImageWrapper> outputs_ = new ArrayList<>();
+      private final PixelOwnership ownership_ =
+            new PixelOwnership(parent_.getPixelBufferPool());
+
+      WorkerContext(ImageWrapper input) {
+         ownership_.reset(input);
+      }
+
+      @Override
+      public void outputImage(Image image) {
+         outputs_.add(new ImageWrapper(image,
+               ownership_.claimForOutput(image)));
+      }
+
+      @Override
+      public SummaryMetadata getSummaryMetadata() {
+         return AsynchronousContext.this.getSummaryMetadata();
+      }
+
+      @Override
+      public Object getMutablePixels(Image image) {
+         return ownership_.getMutablePixels(image);
+      }
+
+      @Override
+      public Object allocatePixels(Image image, int width, int height) {
+         return ownership_.allocatePixels(image, width, height);
+      }
+
+      @Override
+      public void recyclePixels(Object pixels) {
+         ownership_.recyclePixels(pixels);
+      }
+   }
 
    public AsynchronousContext(Processor processor,
          Datastore store, DefaultPipeline parent) {
+      this(processor, store, parent, 1, 1);
+   }
+
+   /**
+    * @param queueDepth number of images that may wait for this context
+    *        before the previous stage blocks
+    * @param numWorkers number of threads to process images on; only used if
+    *        the processor is parallel-safe
+    */
+   public AsynchronousContext(Processor processor, Datastore store,
+         DefaultPipeline parent, int queueDepth, int numWorkers) {
       super(processor, store, parent);
-      inputQueue_ = new LinkedBlockingQueue<ImageWrapper>(1);
-      // Create a new thread to do processing in.
-      new Thread(new Runnable() {
-         @Override
-         public void run() {
-            monitorQueue();
+      inputQueue_ = new BatchQueue(queueDepth);
+      if (!processor.isParallelSafe()) {
+         numWorkers = 1;
+      }
+      numWorkers = Math.max(1, numWorkers);
+      // Leave work for the other workers
+      maxBatchSize_ = Math.max(1,
+            (Math.max(1, queueDepth) + numWorkers - 1) / numWorkers);
+      for (int i = 0; i < numWorkers; ++i) {
+         String name = "Processor context for " + processor_;
+         if (numWorkers > 1) {
+            name += " (worker " + (i + 1) + ")";
          }
-      }, "Processor context for " + processor_).start();
+         new Thread(new Runnable() {
+            @Override
+            public void run() {
+               monitorQueue();
+            }
+         }, name).start();
+      }
    }
 
    /**
-    * This method runs in a separate thread, and pulls images from the
-    * input queue, to feed into the processor. It only runs when the pipeline
-    * is in asynchronous mode; in synchronous mode, the processor is invoked
-    * directly by insertImage().
+    * This method runs in separate thread(s), and pulls batches of images
+    * from the input queue, to feed into the processor. It only runs when the
+    * pipeline is in asynchronous mode; in synchronous mode, the processor is
+    * invoked directly by insertImage(). Returns after the flush marker has
+    * been taken from the queue.
     */
    private void monitorQueue() {
       while (true) {
-         ImageWrapper wrapper = null;
+         List<BatchQueue.Entry> batch;
          try {
-            wrapper = inputQueue_.poll(1000, TimeUnit.MILLISECONDS);
+            batch = inputQueue_.takeBatch(maxBatchSize_);
          }
          catch (InterruptedException e) {
-            // Ignore it.
-            Thread.currentThread().interrupt();
+            ReportingUtils.logError(e, "Processor thread interrupted");
+            return;
          }
-         if (wrapper == null) {
-            // Queue is empty.
-            if (isFlushed_) {
-               // All done.
-               return;
-            }
-            else {
-               // Go back to polling.
-               continue;
-            }
+         if (batch.isEmpty()) {
+            // Flushed, and the flush marker was taken by another worker
+            return;
          }
-         if (wrapper.getImage() == null) {
-            // Flushing the queue; cleanup the processor and pass the empty
-            // wrapper along.
-            processor_.cleanup(this);
-            if (sink_ != null) {
-               sink_.insertImage(wrapper);
-            }
-            isFlushed_ = true;
-            if (flushLatch_ != null) {
-               flushLatch_.countDown();
+         Map<Long, List<ImageWrapper>> outputs = new HashMap<>();
+         for (BatchQueue.Entry entry : batch) {
+            Image image = entry.wrapper.getImage();
+            if (image == null) {
+               // Flushing; no more images will come after this one
+               inputQueue_.close();
+               outputs.put(entry.sequenceNumber, null);
+               continue;
             }
-         }
-         else {
-            // Non-null image: process it.
-            isFlushed_ = false;
+            WorkerContext context = new WorkerContext(entry.wrapper);
+            long startNs = System.nanoTime();
+            perfMon_.sampleWithQuantiles(queueWaitStat_,
+                  (startNs - entry.enqueuedNs) / 1e6);
             try {
-               processor_.processImage(wrapper.getImage(), this);
+               processor_.processImage(image, context);
             }
             catch (Exception e) {
                ReportingUtils.logError(e, "Processor failed to process image");
                // Pass the exception to our parent.
                parent_.exceptionOccurred(e);
             }
+            perfMon_.sampleWithQuantiles(processTimeStat_,
+                  (System.nanoTime() - startNs) / 1e6);
+            perfMon_.sampleTimeInterval(processedIntervalStat_);
+            outputs.put(entry.sequenceNumber, context.outputs_);
          }
+         releaseInOrder(outputs);
+      }
+   }
+
+   /**
+    * Pass on the outputs of all inputs whose predecessors have been passed
+    * on, in input order. A null output marks the flush.
+    */
+   private void releaseInOrder(Map<Long, List<ImageWrapper>> outputs) {
+      synchronized (outputLock_) {
+         pendingOutputs_.putAll(outputs);
+         List<ImageWrapper> ready = new ArrayList<>();
+         while (pendingOutputs_.containsKey(nextOutputSequenceNumber_)) {
+            List<ImageWrapper> output =
+                  pendingOutputs_.remove(nextOutputSequenceNumber_++);
+            if (output == null) {
+               sendDownstream(ready);
+               ready.clear();
+               flush();
+            }
+            else {
+               ready.addAll(output);
+            }
+         }
+         sendDownstream(ready);
+      }
+   }
+
+   private void sendDownstream(List<ImageWrapper> wrappers) {
+      if (wrappers.isEmpty()) {
+         return;
+      }
+      if (sink_ != null) {
+         sink_.insertImages(wrappers);
+         return;
+      }
+      for (ImageWrapper wrapper : wrappers) {
+         try {
+            store_.putImage(wrapper.getImage());
+         }
+         catch (IOException e) {
+            // TODO Report to user!
+            ReportingUtils.logError(e, "Unable to store processed image");
+         }
+      }
+   }
+
+   // Cleanup the processor and pass the flush along.
+   private void flush() {
+      processor_.cleanup(this);
+      if (sink_ != null) {
+         sink_.insertImage(new ImageWrapper(null));
+      }
+      if (flushLatch_ != null) {
+         flushLatch_.countDown();
       }
    }
 
@@ -101,9 +238,19 @@ public final class AsynchronousContext extends BaseContext {
     * Process an image. If the input ImageWrapper has a null image, then we
     * flush the pipeline instead, passing the null along to the next context.
     */
+   @Override
    public void insertImage(ImageWrapper wrapper) {
+      insertImages(Collections.singletonList(wrapper));
+   }
+
+   @Override
+   public void insertImages(List<ImageWrapper> wrappers) {
       try {
-         inputQueue_.put(wrapper);
+         long blockedNs = inputQueue_.putAll(wrappers);
+         if (blockedNs > 0) {
+            perfMon_.sample(producerBlockedStat_, blockedNs / 1e6);
+         }
+         perfMon_.sample(queuedImagesStat_, inputQueue_.size());
       }
       catch (InterruptedException e) {
          ReportingUtils.logError(e, "Interrupted while passing image along pipeline");
@@ -21,6 +21,7 @@
 package org.micromanager.data.internal.pipeline;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import org.micromanager.data.Datastore;
 import org.micromanager.data.DatastoreFrozenException;
@@ -30,6 +31,7 @@ import org.micromanager.data.Processor;
 import org.micromanager.data.ProcessorContext;
 import org.micromanager.data.SummaryMetadata;
 import org.micromanager.internal.utils.ReportingUtils;
+import org.micromanager.internal.utils.performance.PerformanceMonitor;
 
 public abstract class BaseContext implements ProcessorContext {
    protected BaseContext sink_ = null;
@@ -38,11 +40,36 @@ public abstract class BaseContext implements ProcessorContext {
    protected DefaultPipeline parent_;
    protected CountDownLatch flushLatch_;
 
+   // Stat labels, computed once so that sampling does not build strings
+   protected final PerformanceMonitor perfMon_;
+   // Pixels handed to the processor for the image being processed; only
+   // used by contexts that pass themselves to the processor
+   protected final PixelOwnership ownership_;
+   protected String processTimeStat_;
+   protected String processedIntervalStat_;
+   protected String queueWaitStat_;
+   protected String queuedImagesStat_;
+   protected String producerBlockedStat_;
+
    public BaseContext(Processor processor, Datastore store,
          DefaultPipeline parent) {
       processor_ = processor;
       store_ = store;
       parent_ = parent;
+      perfMon_ = parent.getPerformanceMonitor();
+      ownership_ = new PixelOwnership(parent.getPixelBufferPool());
+      setStageName(processor.getClass().getSimpleName());
+   }
+
+   /**
+    * Set the name under which this context's performance stats are recorded.
+    */
+   public void setStageName(String name) {
+      processTimeStat_ = name + " process time (ms)";
+      processedIntervalStat_ = name + " image processed";
+      queueWaitStat_ = name + " queue wait (ms)";
+      queuedImagesStat_ = name + " queued images";
+      producerBlockedStat_ = name + " producer blocked (ms)";
    }
 
    /**
@@ -63,10 +90,26 @@ public abstract class BaseContext implements ProcessorContext {
       }
       else {
          // Send the image to the next context in the chain.
-         sink_.insertImage(new ImageWrapper(image));
+         sink_.insertImage(new ImageWrapper(image,
+               ownership_.claimForOutput(image)));
       }
    }
 
+   @Override
+   public Object getMutablePixels(Image image) {
+      return ownership_.getMutablePixels(image);
+   }
+
+   @Override
+   public Object allocatePixels(Image image, int width, int height) {
+      return ownership_.allocatePixels(image, width, height);
+   }
+
+   @Override
+   public void recyclePixels(Object pixels) {
+      ownership_.recyclePixels(pixels);
+   }
+
    /**
     * Set the context that images output by our processor should be fed to.
     * If we have no sink, then we send images to the Datastore instead.
@@ -105,6 +148,15 @@ public abstract class BaseContext implements ProcessorContext {
     */
    abstract public void insertImage(ImageWrapper wrapper);
 
+   /**
+    * Receive several images for processing, in order.
+    */
+   public void insertImages(List<ImageWrapper> wrappers) {
+      for (ImageWrapper wrapper : wrappers) {
+         insertImage(wrapper);
+      }
+   }
+
    @Override
    public SummaryMetadata getSummaryMetadata() {
       return store_.getSummaryMetadata();
@@ -0,0 +1,119 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Data API
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2020
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.data.internal.pipeline;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bounded queue between pipeline stages that moves images in batches.
+ *
+ * A producer adds all the images it has at once, and a consumer takes all
+ * that are waiting (up to a limit), so that a stage takes the queue's lock
+ * once per batch rather than once per image. Each entry is numbered in order
+ * of insertion, which parallel stages use to put their output back in order.
+ */
+final class BatchQueue {
+   /**
+    * An image (or flush marker) with its position in the queue's sequence.
+    */
+   static final class Entry {
+      final long sequenceNumber;
+      final ImageWrapper wrapper;
+      final long enqueuedNs;
+
+      Entry(long sequenceNumber, ImageWrapper wrapper, long enqueuedNs) {
+         this.sequenceNumber = sequenceNumber;
+         this.wrapper = wrapper;
+         this.enqueuedNs = enqueuedNs;
+      }
+   }
+
+   private final int capacity_;
+   // All guarded by monitor on this
+   private final ArrayDeque<Entry> entries_ = new ArrayDeque<>();
+   private long nextSequenceNumber_ = 0;
+   private boolean closed_ = false;
+
+   /**
+    * @param capacity number of entries beyond which producers wait; a single
+    *        batch may exceed it
+    */
+   BatchQueue(int capacity) {
+      capacity_ = Math.max(1, capacity);
+   }
+
+   /**
+    * Add the given images, waiting until the queue is below capacity.
+    *
+    * @return the time spent waiting, in nanoseconds
+    */
+   synchronized long putAll(List<ImageWrapper> wrappers)
+         throws InterruptedException
+   {
+      long blockedNs = 0;
+      if (entries_.size() >= capacity_ && !closed_) {
+         long startNs = System.nanoTime();
+         while (entries_.size() >= capacity_ && !closed_) {
+            wait();
+         }
+         blockedNs = System.nanoTime() - startNs;
+      }
+      long now = System.nanoTime();
+      for (ImageWrapper wrapper : wrappers) {
+         entries_.add(new Entry(nextSequenceNumber_++, wrapper, now));
+      }
+      notifyAll();
+      return blockedNs;
+   }
+
+   synchronized int size() {
+      return entries_.size();
+   }
+
+   /**
+    * Take up to maxCount entries, waiting until at least one is available.
+    *
+    * @return the entries in order, or an empty list if the queue has been
+    *         closed and is empty
+    */
+   synchronized List<Entry> takeBatch(int maxCount)
+         throws InterruptedException
+   {
+      while (entries_.isEmpty() && !closed_) {
+         wait();
+      }
+      List<Entry> batch = new ArrayList<>(Math.min(maxCount, entries_.size()));
+      while (batch.size() < maxCount && !entries_.isEmpty()) {
+         batch.add(entries_.poll());
+      }
+      notifyAll();
+      return batch;
+   }
+
+   /**
+    * Stop accepting entries once the current ones have been taken: consumers
+    * waiting on an empty queue return an empty batch.
+    */
+   synchronized void close() {
+      closed_ = true;
+      notifyAll();
+   }
+}
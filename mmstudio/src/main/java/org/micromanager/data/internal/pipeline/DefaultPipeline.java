@@ -24,6 +24,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import org.micromanager.Studio;
 import org.micromanager.data.Datastore;
 import org.micromanager.data.DatastoreFrozenException;
 import org.micromanager.data.Image;
@@ -32,6 +33,8 @@ import org.micromanager.data.PipelineErrorException;
 import org.micromanager.data.Processor;
 import org.micromanager.data.SummaryMetadata;
 import org.micromanager.internal.utils.ReportingUtils;
+import org.micromanager.internal.utils.performance.PerformanceMonitor;
+import org.micromanager.internal.utils.performance.gui.PerformanceMonitorUI;
 
 public final class DefaultPipeline implements Pipeline {
    
@@ -44,20 +47,47 @@ public final class DefaultPipeline implements Pipeline {
    private boolean isHalted_ = false;
    private final ArrayList<Exception> exceptions_;
 
-   @SuppressWarnings("LeakingThisInConstructor")
+   private final PerformanceMonitor perfMon_ =
+         PerformanceMonitor.createWithTimeConstantMs(1000.0);
+   private final PerformanceMonitorUI perfMonUI_ =
+         PerformanceMonitorUI.create(perfMon_, "Pipeline Performance");
+   private final PixelBufferPool pixelPool_ = new PixelBufferPool();
+
+   private static final String QUEUE_DEPTH = "pipeline queue depth";
+   private static final String MAX_WORKERS = "pipeline max workers";
+   private static final int DEFAULT_QUEUE_DEPTH = 4;
+
    public DefaultPipeline(List<Processor> processors, Datastore store,
          boolean isSynchronous) {
+      this(processors, store, isSynchronous, 1, 1);
+   }
+
+   /**
+    * @param queueDepth number of images each asynchronous stage holds before
+    *        the previous stage blocks
+    * @param maxWorkers number of threads for each asynchronous stage whose
+    *        processor is parallel-safe
+    */
+   @SuppressWarnings("LeakingThisInConstructor")
+   public DefaultPipeline(List<Processor> processors, Datastore store,
+         boolean isSynchronous, int queueDepth, int maxWorkers) {
       processors_ = processors;
       store_ = store;
       contexts_ = new ArrayList<BaseContext>();
       exceptions_ = new ArrayList<Exception>();
       for (Processor processor : processors_) {
+         BaseContext context;
          if (isSynchronous) {
-            contexts_.add(new SynchronousContext(processor, store_, this));
+            context = new SynchronousContext(processor, store_, this);
          }
          else {
-            contexts_.add(new AsynchronousContext(processor, store_, this));
+            context = new AsynchronousContext(processor, store_, this,
+                  queueDepth, maxWorkers);
          }
+         // Number the stages, as the same processor may appear twice
+         context.setStageName((contexts_.size() + 1) + ". " +
+               processor.getClass().getSimpleName());
+         contexts_.add(context);
       }
       // Chain the contexts together. The last one goes to the Datastore by
       // default as it has no sink.
@@ -85,17 +115,29 @@ public final class DefaultPipeline implements Pipeline {
    }
 
    @Override
-   public synchronized void insertImage(Image image) throws IOException, PipelineErrorException {
+   public void insertImage(Image image) throws IOException, PipelineErrorException {
+      insertImage(image, false);
+   }
+
+   @Override
+   public void insertExclusiveImage(Image image) throws IOException, PipelineErrorException {
+      insertImage(image, true);
+   }
+
+   private synchronized void insertImage(Image image, boolean ownsPixels)
+         throws IOException, PipelineErrorException {
       if (amHalting_) {
          // Ignore it.
          return;
       }
-      if (exceptions_.size() > 0) {
-         for (Exception ex : exceptions_) {
-            ReportingUtils.logError(ex);
+      synchronized (exceptions_) {
+         if (exceptions_.size() > 0) {
+            for (Exception ex : exceptions_) {
+               ReportingUtils.logError(ex);
+            }
+            // Currently in an error state.
+            throw new PipelineErrorException();
          }
-         // Currently in an error state.
-         throw new PipelineErrorException();
       }
       haveInsertedImages_ = true;
       // Manually check for frozen; otherwise for asynchronous pipelines,
@@ -105,7 +147,7 @@ public final class DefaultPipeline implements Pipeline {
          throw new DatastoreFrozenException();
       }
       if (contexts_.size() > 0) {
-         contexts_.get(0).insertImage(new ImageWrapper(image));
+         contexts_.get(0).insertImage(new ImageWrapper(image, ownsPixels));
       }
       else {
          // Empty "pipeline".
@@ -156,12 +198,16 @@ public final class DefaultPipeline implements Pipeline {
 
    @Override
    public List<Exception> getExceptions() {
-      return exceptions_;
+      synchronized (exceptions_) {
+         return new ArrayList<>(exceptions_);
+      }
    }
 
    @Override
    public void clearExceptions() {
-      exceptions_.clear();
+      synchronized (exceptions_) {
+         exceptions_.clear();
+      }
    }
 
    @Override
@@ -169,7 +215,53 @@ public final class DefaultPipeline implements Pipeline {
       return processors_;
    }
 
+   /**
+    * Per-stage processing statistics, shown in a table when performance
+    * monitoring is enabled.
+    */
+   public PerformanceMonitor getPerformanceMonitor() {
+      return perfMon_;
+   }
+
+   PixelBufferPool getPixelBufferPool() {
+      return pixelPool_;
+   }
+
+   // Called from the processor threads of asynchronous contexts. Must not
+   // take the monitor on this, which insertImage() holds while waiting for
+   // those threads to make room.
    public void exceptionOccurred(Exception e) {
-      exceptions_.add(e);
+      synchronized (exceptions_) {
+         exceptions_.add(e);
+      }
+   }
+
+   /**
+    * Number of images each stage of an asynchronous pipeline holds before
+    * the previous stage waits.
+    */
+   public static int getQueueDepth(Studio studio) {
+      return studio.profile().getSettings(DefaultPipeline.class).
+            getInteger(QUEUE_DEPTH, DEFAULT_QUEUE_DEPTH);
+   }
+
+   public static void setQueueDepth(Studio studio, int depth) {
+      studio.profile().getSettings(DefaultPipeline.class).
+            putInteger(QUEUE_DEPTH, Math.max(1, depth));
+   }
+
+   /**
+    * Number of threads that run each parallel-safe processor in an
+    * asynchronous pipeline. Defaults to half the available processors.
+    */
+   public static int getMaxWorkers(Studio studio) {
+      return studio.profile().getSettings(DefaultPipeline.class).
+            getInteger(MAX_WORKERS,
+                  Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+   }
+
+   public static void setMaxWorkers(Studio studio, int workers) {
+      studio.profile().getSettings(DefaultPipeline.class).
+            putInteger(MAX_WORKERS, Math.max(1, workers));
    }
 }
@@ -29,12 +29,26 @@ import org.micromanager.data.Image;
  */
 public final class ImageWrapper {
    private Image image_;
+   private final boolean ownsPixels_;
 
    public ImageWrapper(Image image) {
+      this(image, false);
+   }
+
+   /**
+    * @param ownsPixels true if nothing outside the pipeline refers to the
+    *        image's pixels, so that a processor may modify them in place
+    */
+   public ImageWrapper(Image image, boolean ownsPixels) {
       image_ = image;
+      ownsPixels_ = ownsPixels;
    }
 
    public Image getImage() {
       return image_;
    }
+
+   public boolean ownsPixels() {
+      return ownsPixels_;
+   }
 }
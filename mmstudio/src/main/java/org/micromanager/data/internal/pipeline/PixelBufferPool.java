@@ -0,0 +1,95 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Data API
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2020
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.data.internal.pipeline;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Pixel arrays that processors have handed back, kept for reuse by later
+ * images of the same size and type.
+ *
+ * Shared by all contexts of a pipeline. Only a few arrays of each size are
+ * kept; beyond that, recycled arrays are left to the garbage collector.
+ */
+final class PixelBufferPool {
+   private static final int MAX_ARRAYS_PER_SIZE = 8;
+
+   // Keyed by length and bytes per component; guarded by monitor on this
+   private final Map<Long, ArrayDeque<Object>> arrays_ = new HashMap<>();
+
+   private static long key(int bytesPerComponent, int length) {
+      return ((long) length << 3) | bytesPerComponent;
+   }
+
+   /**
+    * Get an array of the given element size and length, with undefined
+    * contents.
+    */
+   Object take(int bytesPerComponent, int length) {
+      synchronized (this) {
+         ArrayDeque<Object> arrays = arrays_.get(key(bytesPerComponent, length));
+         if (arrays != null && !arrays.isEmpty()) {
+            return arrays.poll();
+         }
+      }
+      switch (bytesPerComponent) {
+         case 1:
+            return new byte[length];
+         case 2:
+            return new short[length];
+         case 4:
+            return new int[length];
+         default:
+            throw new UnsupportedOperationException(
+                  "Unsupported bytes per component: " + bytesPerComponent);
+      }
+   }
+
+   /**
+    * Keep an array that is no longer used for later take() calls.
+    */
+   void give(Object array) {
+      int bytesPerComponent;
+      int length;
+      if (array instanceof byte[]) {
+         bytesPerComponent = 1;
+         length = ((byte[]) array).length;
+      }
+      else if (array instanceof short[]) {
+         bytesPerComponent = 2;
+         length = ((short[]) array).length;
+      }
+      else if (array instanceof int[]) {
+         bytesPerComponent = 4;
+         length = ((int[]) array).length;
+      }
+      else {
+         return;
+      }
+      synchronized (this) {
+         ArrayDeque<Object> arrays = arrays_.computeIfAbsent(
+               key(bytesPerComponent, length), k -> new ArrayDeque<>());
+         if (arrays.size() < MAX_ARRAYS_PER_SIZE) {
+            arrays.add(array);
+         }
+      }
+   }
+}
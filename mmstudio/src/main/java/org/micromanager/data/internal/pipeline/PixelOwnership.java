@@ -0,0 +1,146 @@
+///////////////////////////////////////////////////////////////////////////////
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     Data API
+//-----------------------------------------------------------------------------
+//
+// COPYRIGHT:    University of California, San Francisco, 2020
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.data.internal.pipeline;
+
+import java.nio.Buffer;
+import java.util.ArrayList;
+import java.util.List;
+import org.micromanager.data.Image;
+import org.micromanager.data.internal.DefaultImage;
+
+/**
+ * Tracks, during the processing of one input image, which pixel arrays the
+ * processor has been handed by getMutablePixels() and allocatePixels(). An
+ * output image whose pixels are one of these arrays is passed on as owned, so
+ * the next processor may modify it in place.
+ *
+ * An owned input image that the processor outputs without asking for its
+ * pixels is not passed on as owned, since the processor may have kept a
+ * reference to it.
+ *
+ * Not thread-safe; each processImage() call has its own instance (or
+ * reset()s a shared one).
+ */
+final class PixelOwnership {
+   private final PixelBufferPool pool_;
+   // Pixels of the current input, if the pipeline owns them
+   private Object inputArray_;
+   // Compared by identity; there are rarely more than two
+   private final List<Object> ownedArrays_ = new ArrayList<>(2);
+
+   PixelOwnership(PixelBufferPool pool) {
+      pool_ = pool;
+   }
+
+   /**
+    * Start tracking for a new input image.
+    *
+    * @param input the input, or null when not processing an image
+    */
+   void reset(ImageWrapper input) {
+      ownedArrays_.clear();
+      inputArray_ = null;
+      if (input != null && input.ownsPixels()) {
+         inputArray_ = arrayOf(input.getImage());
+      }
+   }
+
+   Object getMutablePixels(Image image) {
+      Object pixels = arrayOf(image);
+      if (pixels != null && pixels == inputArray_) {
+         inputArray_ = null;
+         ownedArrays_.add(pixels);
+         return pixels;
+      }
+      if (pixels != null && indexOf(pixels) >= 0) {
+         return pixels;
+      }
+      int length = getLength(image, image.getWidth(), image.getHeight());
+      Object copy = pool_.take(image.getBytesPerComponent(), length);
+      System.arraycopy(image.getRawPixels(), 0, copy, 0, length);
+      ownedArrays_.add(copy);
+      return copy;
+   }
+
+   Object allocatePixels(Image image, int width, int height) {
+      Object pixels = pool_.take(image.getBytesPerComponent(),
+            getLength(image, width, height));
+      ownedArrays_.add(pixels);
+      return pixels;
+   }
+
+   void recyclePixels(Object pixels) {
+      if (pixels != null && pixels == inputArray_) {
+         inputArray_ = null;
+         pool_.give(pixels);
+         return;
+      }
+      int index = indexOf(pixels);
+      if (index >= 0) {
+         ownedArrays_.remove(index);
+         pool_.give(pixels);
+      }
+   }
+
+   /**
+    * Whether an output image may be passed on as owned. Ownership of its
+    * pixels goes with it, so a second image sharing them is not owned.
+    */
+   boolean claimForOutput(Image image) {
+      Object pixels = arrayOf(image);
+      if (pixels == null) {
+         return false;
+      }
+      int index = indexOf(pixels);
+      if (index < 0) {
+         return false;
+      }
+      ownedArrays_.remove(index);
+      return true;
+   }
+
+   private int indexOf(Object pixels) {
+      for (int i = 0; i < ownedArrays_.size(); ++i) {
+         if (ownedArrays_.get(i) == pixels) {
+            return i;
+         }
+      }
+      return -1;
+   }
+
+   private static int getLength(Image image, int width, int height) {
+      return width * height *
+            (image.getBytesPerPixel() / image.getBytesPerComponent());
+   }
+
+   /**
+    * The array holding the image's pixels, without copying, or null if the
+    * pixels are not in a Java array.
+    */
+   private static Object arrayOf(Image image) {
+      if (!(image instanceof DefaultImage)) {
+         return null;
+      }
+      Buffer buffer = ((DefaultImage) image).getPixelBuffer();
+      if (!buffer.hasArray() || buffer.arrayOffset() != 0) {
+         return null;
+      }
+      return buffer.array();
+   }
+}
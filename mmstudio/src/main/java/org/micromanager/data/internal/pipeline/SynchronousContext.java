@@ -21,10 +21,15 @@
 package org.micromanager.data.internal.pipeline;
 
 import org.micromanager.data.Datastore;
+import org.micromanager.data.Image;
 import org.micromanager.data.Processor;
 import org.micromanager.internal.utils.ReportingUtils;
 
 public final class SynchronousContext extends BaseContext {
+   // Time spent in later stages during the current processImage() call,
+   // which is not counted as our own processing time
+   private long downstreamNs_ = 0;
+
    public SynchronousContext(Processor processor, Datastore store,
          DefaultPipeline parent) {
       super(processor, store, parent);
@@ -47,6 +52,9 @@ public final class SynchronousContext extends BaseContext {
          }
       }
       else {
+         downstreamNs_ = 0;
+         ownership_.reset(wrapper);
+         long startNs = System.nanoTime();
          try {
             processor_.processImage(wrapper.getImage(), this);
          }
@@ -55,6 +63,19 @@ public final class SynchronousContext extends BaseContext {
             // Pass the exception to our parent.
             parent_.exceptionOccurred(e);
          }
+         finally {
+            ownership_.reset(null);
+         }
+         long processNs = System.nanoTime() - startNs - downstreamNs_;
+         perfMon_.sampleWithQuantiles(processTimeStat_, processNs / 1e6);
+         perfMon_.sampleTimeInterval(processedIntervalStat_);
       }
    }
+
+   @Override
+   public void outputImage(Image image) {
+      long startNs = System.nanoTime();
+      super.outputImage(image);
+      downstreamNs_ += System.nanoTime() - startNs;
+   }
 }
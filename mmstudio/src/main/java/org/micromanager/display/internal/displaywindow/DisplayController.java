@@ -54,6 +54,7 @@ import org.micromanager.display.internal.imagestats.BoundsRectAndMask;
 import org.micromanager.display.internal.imagestats.ImageStatsRequest;
 import org.micromanager.display.internal.imagestats.ImagesAndStats;
 import org.micromanager.display.internal.imagestats.StatsComputeQueue;
+import org.micromanager.display.internal.imagestats.StatsScheduler;
 import org.micromanager.display.internal.event.DisplayWindowDidAddOverlayEvent;
 import org.micromanager.display.internal.event.DisplayWindowDidRemoveOverlayEvent;
 import org.micromanager.display.internal.event.DataViewerDidBecomeActiveEvent;
@@ -106,6 +107,11 @@ public final class DisplayController extends DisplayWindowAPIAdapter
    private final Set<String> playbackAxes_ = new HashSet<>();
 
    private final StatsComputeQueue computeQueue_ = StatsComputeQueue.create();
+   // Frame state determining the share of stats computation we get
+   // Accessed only on EDT
+   private boolean frameVisible_ = false;
+   private boolean frameActive_ = false;
+   private boolean frameIconified_ = false;
    private static final long MIN_REPAINT_PERIOD_NS = Math.round(1e9 / 60.0);
 
    private final LinkManager linkManager_;
@@ -294,6 +300,8 @@ public final class DisplayController extends DisplayWindowAPIAdapter
    @MustCallOnEDT
    private void setFrameVisible(boolean visible) {
       uiController_.setVisible(visible);
+      frameVisible_ = visible;
+      updateStatsSchedulingWeight();
       // TODO Post these events based on ComponentListener on the JFrame
       postEvent(visible ?
             DataViewerDidBecomeVisibleEvent.create(this) :
@@ -301,9 +309,37 @@ public final class DisplayController extends DisplayWindowAPIAdapter
    }
 
    void frameDidBecomeActive() {
+      frameActive_ = true;
+      updateStatsSchedulingWeight();
       postEvent(DataViewerDidBecomeActiveEvent.create(this));
    }
 
+   void frameDidBecomeInactive() {
+      frameActive_ = false;
+      updateStatsSchedulingWeight();
+   }
+
+   void frameDidChangeIconified(boolean iconified) {
+      frameIconified_ = iconified;
+      updateStatsSchedulingWeight();
+   }
+
+   // Displays nobody is looking at should not take stats computation time
+   // from the ones the user is looking at.
+   private void updateStatsSchedulingWeight() {
+      double weight;
+      if (!frameVisible_ || frameIconified_) {
+         weight = StatsScheduler.WEIGHT_HIDDEN;
+      }
+      else if (frameActive_) {
+         weight = StatsScheduler.WEIGHT_FOCUSED;
+      }
+      else {
+         weight = StatsScheduler.WEIGHT_VISIBLE;
+      }
+      computeQueue_.setSchedulingWeight(weight);
+   }
+
    @Override
    public void show() {
       setFrameVisible(true);
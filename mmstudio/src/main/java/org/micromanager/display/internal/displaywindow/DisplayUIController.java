@@ -1923,6 +1923,7 @@ public final class DisplayUIController implements Closeable, WindowListener,
 
    @Override
    public void windowDeactivated(WindowEvent e) {
+      displayController_.frameDidBecomeInactive();
    }
 
    @Override
@@ -1946,10 +1947,12 @@ public final class DisplayUIController implements Closeable, WindowListener,
 
    @Override
    public void windowIconified(WindowEvent e) {
+      displayController_.frameDidChangeIconified(true);
    }
 
    @Override
    public void windowDeiconified(WindowEvent e) {
+      displayController_.frameDidChangeIconified(false);
    }
 
 
@@ -0,0 +1,290 @@
+// Copyright (C) 2020 University of California, San Francisco
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.display.internal.imagestats;
+
+import com.google.common.base.Preconditions;
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Computes image statistics directly on the raw pixel array.
+ * <p>
+ * This produces the same statistics as iterating with ImgLib2 cursors, but
+ * avoids per-sample virtual calls: samples are binned with the same shift
+ * as {@link PowerOf2BinMapper}, images without a mask take a loop without
+ * mask lookups, and large images are split into horizontal stripes whose
+ * partial statistics are computed in parallel and then added up.
+ * <p>
+ * Pixels are interleaved components, {@code nComponents} samples per pixel,
+ * stored row by row; byte and short samples are treated as unsigned. Mask
+ * bytes of 128 or above select a pixel.
+ */
+final class ArrayStatsEngine {
+   // Don't split images smaller than this (in samples) across threads
+   private static final int MIN_SAMPLES_TO_SPLIT = 1 << 20;
+   private static final int MIN_ROWS_PER_STRIPE = 16;
+
+   private final int nComponents_;
+   private final int binCountPowerOf2_;
+   private final int sampleShift_;
+   private final int overflowValue_;
+
+   /**
+    * Partial statistics of a stripe of rows.
+    */
+   private final class Partial {
+      final long[][] histograms = new long[nComponents_][];
+      final long[] counts = new long[nComponents_];
+      final long[] minima = new long[nComponents_];
+      final long[] maxima = new long[nComponents_];
+      final long[] sums = new long[nComponents_];
+      final long[] sumsOfSquares = new long[nComponents_];
+
+      Partial() {
+         for (int c = 0; c < nComponents_; ++c) {
+            histograms[c] = new long[(1 << binCountPowerOf2_) + 2];
+            minima[c] = Long.MAX_VALUE;
+            maxima[c] = Long.MIN_VALUE;
+         }
+      }
+
+      void add(Partial other) {
+         for (int c = 0; c < nComponents_; ++c) {
+            long[] histogram = histograms[c];
+            long[] otherHistogram = other.histograms[c];
+            for (int bin = 0; bin < histogram.length; ++bin) {
+               histogram[bin] += otherHistogram[bin];
+            }
+            counts[c] += other.counts[c];
+            minima[c] = Math.min(minima[c], other.minima[c]);
+            maxima[c] = Math.max(maxima[c], other.maxima[c]);
+            sums[c] += other.sums[c];
+            sumsOfSquares[c] += other.sumsOfSquares[c];
+         }
+      }
+   }
+
+   /**
+    * @param nComponents number of samples per pixel
+    * @param sampleBitDepth bit depth of the samples; larger values go to the
+    *        out-of-range bin
+    * @param binCountPowerOf2 log2 of the number of in-range bins; must not
+    *        exceed sampleBitDepth
+    */
+   ArrayStatsEngine(int nComponents, int sampleBitDepth, int binCountPowerOf2) {
+      Preconditions.checkArgument(nComponents > 0);
+      Preconditions.checkArgument(sampleBitDepth <= 16);
+      Preconditions.checkArgument(binCountPowerOf2 <= sampleBitDepth);
+      nComponents_ = nComponents;
+      binCountPowerOf2_ = binCountPowerOf2;
+      sampleShift_ = sampleBitDepth - binCountPowerOf2;
+      // Values at or above this map to the last (out-of-range) bin:
+      // (overflowValue_ >> sampleShift_) + 1 == (1 << binCountPowerOf2) + 1
+      overflowValue_ = 1 << sampleBitDepth;
+   }
+
+   /**
+    * Returns true if any pixel of the mask within statsBounds is selected.
+    */
+   static boolean maskSelectsAny(byte[] mask, Rectangle maskBounds,
+         Rectangle statsBounds)
+   {
+      if (mask == null) {
+         return true;
+      }
+      for (int y = statsBounds.y; y < statsBounds.y + statsBounds.height; ++y) {
+         int offset = (y - maskBounds.y) * maskBounds.width - maskBounds.x;
+         for (int x = statsBounds.x; x < statsBounds.x + statsBounds.width; ++x) {
+            if (mask[offset + x] < 0) { // Unsigned value >= 128
+               return true;
+            }
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Compute the statistics of the pixels within statsBounds.
+    *
+    * @param pixels byte[] or short[] pixel array
+    * @param width image width
+    * @param statsBounds the region of the image to use; must lie within
+    *        both the image and the mask bounds
+    * @param mask the mask, or null to use all pixels in statsBounds
+    * @param maskBounds position of the mask in the image; ignored if mask is
+    *        null
+    * @param isROI whether to flag the results as coming from an ROI
+    * @param index index of the image within its request
+    * @param executor executor for the stripes of large images, or null to
+    *        compute on the calling thread only
+    */
+   ImageStats compute(Object pixels, int width, Rectangle statsBounds,
+         byte[] mask, Rectangle maskBounds, boolean isROI, int index,
+         Executor executor)
+         throws InterruptedException
+   {
+      Preconditions.checkArgument(pixels instanceof byte[] ||
+            pixels instanceof short[]);
+      int rows = statsBounds.height;
+      long samples = (long) statsBounds.width * rows * nComponents_;
+      int nStripes = 1;
+      if (executor != null && samples >= MIN_SAMPLES_TO_SPLIT) {
+         nStripes = Math.min(Runtime.getRuntime().availableProcessors(),
+               rows / MIN_ROWS_PER_STRIPE);
+         nStripes = Math.max(1, nStripes);
+      }
+
+      List<FutureTask<Partial>> futures = new ArrayList<>();
+      for (int s = 1; s < nStripes; ++s) {
+         final int y0 = statsBounds.y + (int) ((long) rows * s / nStripes);
+         final int y1 = statsBounds.y + (int) ((long) rows * (s + 1) / nStripes);
+         FutureTask<Partial> future = new FutureTask<>(() ->
+               computeStripe(pixels, width, statsBounds, y0, y1, mask, maskBounds));
+         futures.add(future);
+         executor.execute(future);
+      }
+      Partial total = computeStripe(pixels, width, statsBounds,
+            statsBounds.y, statsBounds.y + rows / nStripes, mask, maskBounds);
+      try {
+         for (FutureTask<Partial> future : futures) {
+            // Compute stripes not yet picked up by the executor here, so
+            // that we never wait for a queued task (the executor may be
+            // bounded and busy with tasks like us).
+            future.run();
+            total.add(future.get());
+         }
+      }
+      catch (ExecutionException e) {
+         throw new RuntimeException(e.getCause());
+      }
+      finally {
+         for (FutureTask<Partial> future : futures) {
+            future.cancel(true);
+         }
+      }
+
+      IntegerComponentStats[] componentStats =
+            new IntegerComponentStats[nComponents_];
+      for (int c = 0; c < nComponents_; ++c) {
+         componentStats[c] = IntegerComponentStats.builder().
+               histogram(total.histograms[c], sampleShift_).
+               pixelCount(total.counts[c]).
+               usedROI(isROI).
+               minimum(total.minima[c]).
+               maximum(total.maxima[c]).
+               sum(total.sums[c]).
+               sumOfSquares(total.sumsOfSquares[c]).
+               build();
+      }
+      return ImageStats.create(index, componentStats);
+   }
+
+   private Partial computeStripe(Object pixels, int width,
+         Rectangle statsBounds, int y0, int y1,
+         byte[] mask, Rectangle maskBounds)
+   {
+      Partial partial = new Partial();
+      int[] row = new int[statsBounds.width * nComponents_];
+      for (int y = y0; y < y1; ++y) {
+         int start = (y * width + statsBounds.x) * nComponents_;
+         // Widen the row to int once, so that the accumulation loops below
+         // are the same for all sample types.
+         if (pixels instanceof byte[]) {
+            byte[] bytes = (byte[]) pixels;
+            for (int i = 0; i < row.length; ++i) {
+               row[i] = bytes[start + i] & 0xff;
+            }
+         }
+         else {
+            short[] shorts = (short[]) pixels;
+            for (int i = 0; i < row.length; ++i) {
+               row[i] = shorts[start + i] & 0xffff;
+            }
+         }
+         if (mask == null) {
+            if (nComponents_ == 1) {
+               accumulateSingleComponent(row, partial);
+            }
+            else {
+               accumulate(row, null, 0, partial);
+            }
+         }
+         else {
+            int maskStart = (y - maskBounds.y) * maskBounds.width +
+                  statsBounds.x - maskBounds.x;
+            accumulate(row, mask, maskStart, partial);
+         }
+      }
+      return partial;
+   }
+
+   private void accumulateSingleComponent(int[] row, Partial partial) {
+      long[] histogram = partial.histograms[0];
+      int shift = sampleShift_;
+      int overflow = overflowValue_;
+      long min = partial.minima[0];
+      long max = partial.maxima[0];
+      long sum = 0;
+      long sumOfSquares = 0;
+      for (int value : row) {
+         histogram[(Math.min(value, overflow) >> shift) + 1]++;
+         min = Math.min(min, value);
+         max = Math.max(max, value);
+         sum += value;
+         sumOfSquares += (long) value * value;
+      }
+      partial.counts[0] += row.length;
+      partial.minima[0] = min;
+      partial.maxima[0] = max;
+      partial.sums[0] += sum;
+      partial.sumsOfSquares[0] += sumOfSquares;
+   }
+
+   private void accumulate(int[] row, byte[] mask, int maskStart,
+         Partial partial)
+   {
+      int shift = sampleShift_;
+      int overflow = overflowValue_;
+      int nPixels = row.length / nComponents_;
+      for (int c = 0; c < nComponents_; ++c) {
+         long[] histogram = partial.histograms[c];
+         long count = 0;
+         long min = partial.minima[c];
+         long max = partial.maxima[c];
+         long sum = 0;
+         long sumOfSquares = 0;
+         for (int x = 0, i = c; x < nPixels; ++x, i += nComponents_) {
+            if (mask != null && mask[maskStart + x] >= 0) { // Below 128
+               continue;
+            }
+            int value = row[i];
+            histogram[(Math.min(value, overflow) >> shift) + 1]++;
+            ++count;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+            sumOfSquares += (long) value * value;
+         }
+         partial.counts[c] += count;
+         partial.minima[c] = min;
+         partial.maxima[c] = max;
+         partial.sums[c] += sum;
+         partial.sumsOfSquares[c] += sumOfSquares;
+      }
+   }
+}
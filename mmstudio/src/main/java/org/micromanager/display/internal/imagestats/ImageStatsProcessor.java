@@ -19,8 +19,9 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -52,30 +53,54 @@ import org.micromanager.internal.utils.performance.WallTimer;
 public final class ImageStatsProcessor {
    private static final int MASK_THRESH = 128;
 
-   private final ExecutorService executor_;
+   private final Executor executor_;
+   private final ExecutorService ownExecutor_;
 
    private PerformanceMonitor perfMon_;
 
-   public static ImageStatsProcessor create() {
-      return new ImageStatsProcessor();
-   }
+   private volatile boolean useArrayEngine_ = true;
 
-   private ImageStatsProcessor() {
+   public static ImageStatsProcessor create() {
       // Allow as many threads as requested jobs, since there should be no more
       // than a handful of channels.
-      executor_ = new ThreadPoolExecutor(1, Integer.MAX_VALUE,
+      ExecutorService executor = new ThreadPoolExecutor(1, Integer.MAX_VALUE,
             60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
             ThreadFactoryFactory.createThreadFactory("ImageStatsProcessor"));
+      return new ImageStatsProcessor(executor, executor);
+   }
+
+   /**
+    * Create a processor that computes the images of a request (and parts of
+    * large images) using the given, possibly bounded, executor. The caller
+    * remains responsible for shutting down the executor.
+    */
+   public static ImageStatsProcessor create(Executor executor) {
+      return new ImageStatsProcessor(executor, null);
+   }
+
+   private ImageStatsProcessor(Executor executor, ExecutorService ownExecutor) {
+      executor_ = executor;
+      ownExecutor_ = ownExecutor;
    }
 
    public void shutdown() {
-      executor_.shutdown();
+      if (ownExecutor_ != null) {
+         ownExecutor_.shutdown();
+      }
    }
 
    void setPerformanceMonitor(PerformanceMonitor perfMon) {
       perfMon_ = perfMon;
    }
 
+   /**
+    * Choose between computing on the raw pixel arrays (the default) and the
+    * generic ImgLib2 cursor-based computation, e.g. to compare the two.
+    */
+   void setUseArrayEngine(boolean use) {
+      useArrayEngine_ = use;
+   }
+
    public ImagesAndStats process(final long sequenceNumber,
          final ImageStatsRequest request,
          boolean interruptible)
@@ -84,19 +109,27 @@ public final class ImageStatsProcessor {
       WallTimer timer = WallTimer.createStarted();
 
       ImageStats[] results = new ImageStats[request.getNumberOfImages()];
-      List<Future<ImageStats>> futures = new ArrayList<Future<ImageStats>>();
+      List<FutureTask<ImageStats>> futures = new ArrayList<FutureTask<ImageStats>>();
       for (int i = 0; i < request.getNumberOfImages(); ++i) {
          final Image image = request.getImage(i);
          final int ii = i;
-         futures.add(executor_.submit(new Callable<ImageStats>() {
+         FutureTask<ImageStats> future = new FutureTask<ImageStats>(
+               new Callable<ImageStats>() {
             @Override
             public ImageStats call() throws Exception {
                return computeStats(image, request, ii);
             }
-         }));
+         });
+         futures.add(future);
+         if (i > 0) {
+            executor_.execute(future);
+         }
       }
 
       for (int i = 0; i < request.getNumberOfImages(); ++i) {
+         // Run here unless the executor has already started it; this also
+         // avoids waiting for queued tasks when the executor is bounded.
+         futures.get(i).run();
          try {
             while (results[i] == null) {
                try {
@@ -124,7 +157,7 @@ public final class ImageStatsProcessor {
 
    private ImageStats computeStats(Image image,
          ImageStatsRequest request, int index)
-         throws ClassCastException
+         throws ClassCastException, InterruptedException
    {
       CPUTimer cpuTimer = CPUTimer.createStarted();
 
@@ -165,20 +198,27 @@ public final class ImageStatsProcessor {
       }
 
       // If (the used part of) the mask has no pixels, revert to full image
-      IterableInterval<UnsignedByteType> mask = wrapROIMask(maskBytes, nComponents, maskBounds, statsBounds);
-      boolean maskEmpty = true;
-      for (Cursor<UnsignedByteType> c = mask.cursor(); c.hasNext(); c.fwd()) {
-         if (c.get().getInteger() >= MASK_THRESH) {
-            maskEmpty = false;
-            break;
-         }
-      }
-      if (maskEmpty) {
+      if (!ArrayStatsEngine.maskSelectsAny(maskBytes, maskBounds, statsBounds)) {
          statsBounds = imageBounds;
-         mask = wrapROIMask(null, nComponents, imageBounds, statsBounds);
+         maskBytes = null;
          useROI = false;
       }
 
+      if (useArrayEngine_ && bitDepth <= 16 &&
+            (bytesPerSample == 1 || bytesPerSample == 2)) {
+         ImageStats result = new ArrayStatsEngine(
+               nComponents, bitDepth, binCountPowerOf2).compute(
+                     image.getRawPixels(), image.getWidth(), statsBounds,
+                     maskBytes, maskBounds, useROI, index, executor_);
+         if (perfMon_ != null) {
+            perfMon_.sample("Process CPU time (ms)", cpuTimer.getMs());
+         }
+         return result;
+      }
+
+      IterableInterval<UnsignedByteType> mask =
+            wrapROIMask(maskBytes, nComponents, maskBounds, statsBounds);
+
       ImageStats result = null;
       if (bytesPerSample == 1) {
          Img<UnsignedByteType> img =
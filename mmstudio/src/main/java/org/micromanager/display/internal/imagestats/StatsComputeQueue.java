@@ -17,9 +17,13 @@ import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.commons.lang3.event.EventListenerSupport;
 import org.micromanager.internal.utils.ThreadFactoryFactory;
 import org.micromanager.internal.utils.performance.PerformanceMonitor;
@@ -38,8 +42,12 @@ public final class StatsComputeQueue {
    private final EventListenerSupport<Listener> listeners_ =
            new EventListenerSupport<> (Listener.class, Listener.class.getClassLoader());
 
-   // Only accessed from compute executor thread
-   private final ImageStatsProcessor processor_ = ImageStatsProcessor.create();
+   // Computation is scheduled together with that of all other displays
+   private final StatsScheduler.Client schedulerClient_ =
+         StatsScheduler.getInstance().createClient();
+
+   private final ImageStatsProcessor processor_ = ImageStatsProcessor.create(
+         StatsScheduler.getInstance().getExecutor());
 
    private final ExecutorService computeExecutor_ =
          Executors.newSingleThreadExecutor(ThreadFactoryFactory.
@@ -98,9 +106,18 @@ public final class StatsComputeQueue {
 
    public void setPerformanceMonitor(PerformanceMonitor perfMon) {
       processor_.setPerformanceMonitor(perfMon);
+      schedulerClient_.setPerformanceMonitor(perfMon);
       perfMon_ = perfMon;
    }
 
+   /**
+    * Set the share of the shared stats computation capacity that this queue
+    * gets relative to others; see the StatsScheduler.WEIGHT_ constants.
+    */
+   public void setSchedulingWeight(double weight) {
+      schedulerClient_.setWeight(weight);
+   }
+
    public synchronized void addListener(Listener listener) {
       listeners_.addListener(listener, true);
    }
@@ -110,6 +127,7 @@ public final class StatsComputeQueue {
    }
 
    public synchronized void shutdown() throws InterruptedException {
+      schedulerClient_.close();
       processor_.shutdown();
       computeExecutor_.shutdown();
       bypassExecutor_.shutdown();
@@ -171,14 +189,17 @@ public final class StatsComputeQueue {
                }
             }
 
-            final ImagesAndStats result;
+            ImagesAndStats result;
             try {
-               result = processor_.process(sequenceNumber, request, false);
+               result = computeUnlessSuperseded(schedulerClient_,
+                     () -> processor_.process(sequenceNumber, request, false));
+            }
+            catch (ExecutionException e) {
+               throw new RuntimeException(e.getCause());
             }
-            catch (InterruptedException shouldNotHappen) {
-               Thread.currentThread().interrupt();
+            if (result == null) {
                if (perfMon_ != null) {
-                  perfMon_.sampleTimeInterval("Compute interrupted (!)");
+                  perfMon_.sampleTimeInterval("Compute dropped before start");
                }
                return;
             }
@@ -200,6 +221,51 @@ public final class StatsComputeQueue {
       }));
    }
 
+   /**
+    * Run a computation through the scheduler and wait for its result.
+    * If the waiting thread is interrupted (superseded by a newer request)
+    * before the computation has started, the computation is dropped and null
+    * is returned. Once started, it is finished and its result returned, so
+    * that steadily arriving requests cannot keep the stats from ever
+    * updating; the interrupt is then restored.
+    */
+   static <T> T computeUnlessSuperseded(StatsScheduler.Client client,
+         final Callable<T> computation) throws ExecutionException
+   {
+      // Set by whichever comes first: the computation starting, or the
+      // waiting thread dropping it
+      final AtomicBoolean claimed = new AtomicBoolean(false);
+      Future<T> future = client.submit(() -> {
+         if (!claimed.compareAndSet(false, true)) {
+            return null;
+         }
+         return computation.call();
+      });
+      boolean interrupted = false;
+      try {
+         while (true) {
+            try {
+               return future.get();
+            }
+            catch (InterruptedException cancel) {
+               if (!interrupted && claimed.compareAndSet(false, true)) {
+                  future.cancel(false);
+                  return null;
+               }
+               interrupted = true;
+            }
+         }
+      }
+      catch (CancellationException coalesced) {
+         return null;
+      }
+      finally {
+         if (interrupted) {
+            Thread.currentThread().interrupt();
+         }
+      }
+   }
+
    private void submitBypass(final long sequenceNumber, final int priority,
          final ImageStatsRequest request)
    {
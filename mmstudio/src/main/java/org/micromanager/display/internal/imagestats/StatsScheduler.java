@@ -0,0 +1,246 @@
+// Copyright (C) 2020 University of California, San Francisco
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.display.internal.imagestats;
+
+import com.google.common.base.Preconditions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.micromanager.internal.utils.ThreadFactoryFactory;
+import org.micromanager.internal.utils.performance.PerformanceMonitor;
+
+/**
+ * Shared, bounded scheduler for image stats computation of all displays.
+ * <p>
+ * Computation runs on a single pool whose size is a share of the available
+ * processors, so that many open displays cannot take CPU away from
+ * acquisition. Each display is a {@link Client} with at most one request
+ * waiting: a newer request replaces the waiting one. When several clients
+ * have requests waiting, the one that has used the least CPU time relative
+ * to its weight goes first, so the focused display gets a larger share than
+ * visible ones, and hidden displays get what is left.
+ */
+public final class StatsScheduler {
+   public static final double WEIGHT_FOCUSED = 4.0;
+   public static final double WEIGHT_VISIBLE = 1.0;
+   public static final double WEIGHT_HIDDEN = 0.25;
+
+   private static final double DEFAULT_CPU_SHARE = 0.5;
+
+   private static StatsScheduler instance_;
+
+   private final ThreadPoolExecutor executor_;
+
+   // Guarded by monitor on this
+   private final List<Client> clients_ = new ArrayList<>();
+   private int maxRunning_;
+   private int running_ = 0;
+   // Runners started but not yet running a request
+   private int starting_ = 0;
+   // Pass of the most recently started request; clients that were idle
+   // start from here instead of catching up on the time they were idle.
+   private double virtualTime_ = 0.0;
+
+   /**
+    * The scheduling state of one display.
+    */
+   public final class Client {
+      // All guarded by monitor on the scheduler
+      private double weight_ = WEIGHT_VISIBLE;
+      private double pass_ = 0.0;
+      private FutureTask<?> pending_;
+      private long pendingSinceNs_;
+      private boolean running_ = false;
+      private boolean closed_ = false;
+      private PerformanceMonitor perfMon_;
+
+      private Client() {
+      }
+
+      /**
+       * Schedule a computation, replacing any that has not started yet.
+       * The replaced computation's future is cancelled.
+       */
+      public <T> Future<T> submit(Callable<T> computation) {
+         FutureTask<T> task = new FutureTask<>(computation);
+         synchronized (StatsScheduler.this) {
+            Preconditions.checkState(!closed_, "Client closed");
+            if (pending_ != null) {
+               pending_.cancel(false);
+               if (perfMon_ != null) {
+                  perfMon_.sampleTimeInterval("Stats request coalesced");
+               }
+            }
+            else if (!running_) {
+               pass_ = Math.max(pass_, virtualTime_);
+            }
+            pending_ = task;
+            pendingSinceNs_ = System.nanoTime();
+            dispatch();
+         }
+         return task;
+      }
+
+      /**
+       * Set the relative share of computation time for this client; see the
+       * WEIGHT_ constants.
+       */
+      public void setWeight(double weight) {
+         Preconditions.checkArgument(weight > 0.0);
+         synchronized (StatsScheduler.this) {
+            weight_ = weight;
+         }
+      }
+
+      public void setPerformanceMonitor(PerformanceMonitor perfMon) {
+         synchronized (StatsScheduler.this) {
+            perfMon_ = perfMon;
+         }
+      }
+
+      /**
+       * Cancel any waiting computation and stop scheduling this client.
+       */
+      public void close() {
+         synchronized (StatsScheduler.this) {
+            if (pending_ != null) {
+               pending_.cancel(false);
+               pending_ = null;
+            }
+            closed_ = true;
+            clients_.remove(this);
+         }
+      }
+   }
+
+   public static synchronized StatsScheduler getInstance() {
+      if (instance_ == null) {
+         instance_ = new StatsScheduler(DEFAULT_CPU_SHARE);
+      }
+      return instance_;
+   }
+
+   private StatsScheduler(double cpuShare) {
+      int threads = threadsForShare(cpuShare);
+      executor_ = new ThreadPoolExecutor(threads, threads,
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            ThreadFactoryFactory.createThreadFactory("Image Stats"));
+      executor_.allowCoreThreadTimeOut(true);
+      maxRunning_ = threads;
+   }
+
+   private static int threadsForShare(double cpuShare) {
+      return Math.max(1, (int) Math.round(
+            cpuShare * Runtime.getRuntime().availableProcessors()));
+   }
+
+   /**
+    * Set the share (0 to 1) of the available processors that may be used
+    * for computing stats.
+    */
+   public synchronized void setCPUShare(double cpuShare) {
+      Preconditions.checkArgument(cpuShare > 0.0 && cpuShare <= 1.0);
+      int threads = threadsForShare(cpuShare);
+      if (threads > executor_.getMaximumPoolSize()) {
+         executor_.setMaximumPoolSize(threads);
+         executor_.setCorePoolSize(threads);
+      }
+      else {
+         executor_.setCorePoolSize(threads);
+         executor_.setMaximumPoolSize(threads);
+      }
+      maxRunning_ = threads;
+      dispatch();
+   }
+
+   public synchronized Client createClient() {
+      Client client = new Client();
+      clients_.add(client);
+      return client;
+   }
+
+   /**
+    * Executor for subtasks of the computations, such as the images of a
+    * request. Callers must not block waiting for a subtask that has not
+    * started (run it on the calling thread instead), because the pool is
+    * bounded.
+    */
+   Executor getExecutor() {
+      return executor_;
+   }
+
+   // Must hold monitor on this
+   private void dispatch() {
+      int runnable = 0;
+      for (Client client : clients_) {
+         if (client.pending_ != null && !client.running_) {
+            ++runnable;
+         }
+      }
+      while (running_ < maxRunning_ && runnable > starting_) {
+         ++running_;
+         ++starting_;
+         executor_.execute(this::runRequests);
+      }
+   }
+
+   private void runRequests() {
+      Client client = null;
+      long elapsedNs = 0;
+      boolean starting = true;
+      while (true) {
+         FutureTask<?> task;
+         synchronized (this) {
+            if (starting) {
+               --starting_;
+               starting = false;
+            }
+            if (client != null) {
+               client.running_ = false;
+               client.pass_ += elapsedNs / 1e6 / client.weight_;
+            }
+            client = null;
+            if (running_ <= maxRunning_) {
+               for (Client c : clients_) {
+                  if (c.pending_ != null && !c.running_ &&
+                        (client == null || c.pass_ < client.pass_)) {
+                     client = c;
+                  }
+               }
+            }
+            if (client == null) {
+               --running_;
+               return;
+            }
+            task = client.pending_;
+            client.pending_ = null;
+            client.running_ = true;
+            virtualTime_ = client.pass_;
+            if (client.perfMon_ != null) {
+               client.perfMon_.sample("Stats scheduler wait (ms)",
+                     (System.nanoTime() - client.pendingSinceNs_) / 1e6);
+            }
+         }
+         long startNs = System.nanoTime();
+         task.run();
+         elapsedNs = System.nanoTime() - startNs;
+      }
+   }
+}
@@ -0,0 +1,130 @@
+// Copyright (C) 2020 University of California, San Francisco
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.internal;
+
+import com.google.common.base.Preconditions;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Hand-off of live mode images from the grabber thread to the display.
+ * <p>
+ * The grabber puts every image it takes from the Core; once every camera
+ * channel has delivered an image, the images form a complete set, which is
+ * published in a fixed ring of set slots. The display takes only the most
+ * recent complete set, skipping any it was too slow to show. Neither side
+ * ever waits for the other: a slot that is overwritten while being read is
+ * detected by its stamp, and the reader then moves on to the newer set.
+ * <p>
+ * {@link #put} must only be called from a single thread.
+ *
+ * @param <T> image type
+ */
+final class LiveImageRing<T> {
+   private static final int NUM_SETS = 4;
+
+   private final int numChannels_;
+   // NUM_SETS slots of numChannels_ images each
+   private final AtomicReferenceArray<T> sets_;
+   // Number of the set in each slot, or -1 while it is being written
+   private final AtomicLongArray stamps_ = new AtomicLongArray(NUM_SETS);
+   private final AtomicLong latestSet_ = new AtomicLong(-1);
+
+   // Accessed only by the writing thread
+   private final Object[] incomplete_;
+   private int incompleteCount_ = 0;
+   private long nextSet_ = 0;
+
+   LiveImageRing(int numChannels) {
+      Preconditions.checkArgument(numChannels > 0);
+      numChannels_ = numChannels;
+      sets_ = new AtomicReferenceArray<>(NUM_SETS * numChannels);
+      incomplete_ = new Object[numChannels];
+      for (int i = 0; i < NUM_SETS; ++i) {
+         stamps_.set(i, -1);
+      }
+   }
+
+   int getNumChannels() {
+      return numChannels_;
+   }
+
+   /**
+    * Add an image of the given channel, replacing any image of that channel
+    * that is not yet part of a complete set.
+    *
+    * @return true if this completed a set (which is now the latest)
+    */
+   @SuppressWarnings("unchecked")
+   boolean put(int channel, T image) {
+      Preconditions.checkElementIndex(channel, numChannels_);
+      if (incomplete_[channel] == null) {
+         ++incompleteCount_;
+      }
+      incomplete_[channel] = image;
+      if (incompleteCount_ < numChannels_) {
+         return false;
+      }
+
+      long set = nextSet_++;
+      int slot = (int) (set % NUM_SETS);
+      stamps_.set(slot, -1);
+      for (int c = 0; c < numChannels_; ++c) {
+         sets_.set(slot * numChannels_ + c, (T) incomplete_[c]);
+      }
+      stamps_.set(slot, set);
+      latestSet_.set(set);
+
+      Arrays.fill(incomplete_, null);
+      incompleteCount_ = 0;
+      return true;
+   }
+
+   /**
+    * @return the number of the latest complete set, or -1 if there is none
+    */
+   long getLatestSetNumber() {
+      return latestSet_.get();
+   }
+
+   /**
+    * Copy the latest complete set into dest, if it is newer than the given
+    * set number.
+    *
+    * @param after number of the last set taken, or -1
+    * @param dest array of at least getNumChannels() elements
+    * @return the number of the set copied into dest, or -1 if there is no set
+    *         newer than after
+    */
+   long takeLatest(long after, T[] dest) {
+      while (true) {
+         long set = latestSet_.get();
+         if (set <= after) {
+            return -1;
+         }
+         int slot = (int) (set % NUM_SETS);
+         if (stamps_.get(slot) != set) {
+            continue; // Being overwritten by a newer set
+         }
+         for (int c = 0; c < numChannels_; ++c) {
+            dest[c] = sets_.get(slot * numChannels_ + c);
+         }
+         if (stamps_.get(slot) == set) {
+            return set;
+         }
+      }
+   }
+}
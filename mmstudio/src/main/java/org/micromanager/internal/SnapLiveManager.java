@@ -23,25 +23,21 @@ import java.awt.Dimension;
 import java.awt.Insets;
 import java.awt.event.ActionEvent;
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.CancellationException;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.swing.JButton;
 import javax.swing.JComponent;
 import javax.swing.SwingUtilities;
 import mmcorej.CMMCore;
 import mmcorej.TaggedImage;
 import mmcorej.org.json.JSONException;
-import mmcorej.org.json.JSONObject;
 import org.micromanager.data.Coordinates;
 import org.micromanager.data.Coords;
 import org.micromanager.data.DatastoreFrozenException;
@@ -86,14 +82,9 @@ public final class SnapLiveManager extends DataViewerListener
         implements org.micromanager.SnapLiveManager {
    private static final String TITLE = "Preview";
 
-   private static final double MIN_GRAB_DELAY_MS = 1000.0 / 60.0;
-   private static final double MAX_GRAB_DELAY_MS = 300.0;
-
-   // What quantile of actual paint interval to use as the interval for image
-   // retrieval. Too high will cause display rate to take a long time to climb
-   // up to optimum. Too low can cause jittery display due to frames being
-   // skipped.
-   private static final double DISPLAY_INTERVAL_ESTIMATE_Q = 0.25;
+   // Bounds for how long the grabber waits when the sequence buffer is empty
+   private static final long MIN_IDLE_WAIT_MS = 1;
+   private static final long MAX_IDLE_WAIT_MS = 20;
 
    private final MMStudio mmStudio_;
    private final CMMCore core_;
@@ -110,11 +101,11 @@ public final class SnapLiveManager extends DataViewerListener
 
    private final List<DefaultImage> lastImageForEachChannel_ = new ArrayList<>();
 
-   private final ScheduledExecutorService scheduler_ =
-         Executors.newSingleThreadScheduledExecutor(
+   private final ExecutorService grabber_ =
+         Executors.newSingleThreadExecutor(
                ThreadFactoryFactory.createThreadFactory("SnapLiveManager"));
    // Guarded by monitor on this
-   private ScheduledFuture<?> scheduledGrab_;
+   private Future<?> scheduledGrab_;
    // Counter for live acquisitions started, needed to synchronize across
    // a stopped and rapidly restarted run of live mode.
    // Guarded by monitor on this
@@ -274,50 +265,8 @@ public final class SnapLiveManager extends DataViewerListener
 
       synchronized (this) {
          final long liveModeCount = ++liveModeStartCount_;
-         final Runnable grab;
-         grab = new Runnable() {
-            @Override
-            public void run() {
-               // We are started from within the monitor. Wait until that
-               // monitor is released before starting.
-               synchronized (SnapLiveManager.this) {
-                  if (scheduledGrab_ == null ||
-                        liveModeStartCount_ != liveModeCount) {
-                     return;
-                  }
-               }
-               grabAndAddImages(camName, liveModeCount);
-
-               // Choose an interval within the absolute bounds, and at least as
-               // long as the exposure. Within that range, try to match the
-               // actual frequency at which the images are getting displayed.
-
-               double displayIntervalLowQuantileMs;
-               if (display_ != null) {
-                  displayIntervalLowQuantileMs =
-                        display_.getDisplayIntervalQuantile(
-                              DISPLAY_INTERVAL_ESTIMATE_Q);
-               }
-               else {
-                  displayIntervalLowQuantileMs = 0.0;
-               }
-
-               long delayMs;
-               synchronized (SnapLiveManager.this) {
-                  if (scheduledGrab_ == null ||
-                        liveModeStartCount_ != liveModeCount) {
-                     return;
-                  }
-                  delayMs = computeGrabDelayMs(exposureMs,
-                        displayIntervalLowQuantileMs,
-                        -scheduledGrab_.getDelay(TimeUnit.MILLISECONDS));
-                  scheduledGrab_ = scheduler_.schedule(this,
-                        delayMs, TimeUnit.MILLISECONDS);
-               }
-               perfMon_.sample("Grab schedule delay (ms)", delayMs);
-            }
-         };
-         scheduledGrab_ = scheduler_.schedule(grab, 0, TimeUnit.MILLISECONDS);
+         scheduledGrab_ = grabber_.submit(new LiveGrabber(camName,
+               exposureMs, numCameraChannels_, liveModeCount));
       }
 
       if (display_ != null) {
@@ -325,23 +274,6 @@ public final class SnapLiveManager extends DataViewerListener
       }
    }
 
-   private static long computeGrabDelayMs(double exposureMs,
-         double displayIntervalMs, double alreadyElapsedMs)
-   {
-      double delayMs = Math.max(exposureMs, displayIntervalMs);
-      delayMs -= alreadyElapsedMs;
-
-      // Clip to allowed range
-      delayMs = Math.max(MIN_GRAB_DELAY_MS, delayMs);
-      if (delayMs > MAX_GRAB_DELAY_MS) {
-         // A trick to get an interval that is less likely to frequently (and
-         // noticeable) skip frames when the frame rate is low.
-         delayMs /= Math.ceil(delayMs / MAX_GRAB_DELAY_MS);
-      }
-
-      return Math.round(delayMs);
-   }
-
    private void stopLiveMode() {
       if (amStartingSequenceAcquisition_) {
          // HACK: if startContinuousSequenceAcquisition results in a core
@@ -372,79 +304,135 @@ public final class SnapLiveManager extends DataViewerListener
       }
    }
 
+   private boolean isCurrentLiveMode(long liveModeCount) {
+      synchronized (this) {
+         return scheduledGrab_ != null && liveModeStartCount_ == liveModeCount;
+      }
+   }
+
    /**
-    * This method takes images out of the Core and inserts them into our
-    * pipeline.
+    * Takes images out of the Core on the grabber thread, for as long as one
+    * run of live mode lasts, and hands the latest complete set of camera
+    * channels to the EDT for display.
+    *
+    * Every image is taken out of the sequence buffer and put in a ring of
+    * sets. The EDT is asked to display only when a set has been completed
+    * and no earlier request is pending, and then shows whatever set is the
+    * latest at that time, so that the grabber never waits for the display,
+    * and a slow display skips sets instead of falling behind.
     */
-   private void grabAndAddImages(String camName, final long liveModeCount) {
-      try {
-         // We scan over 2*numCameraChannels here because, in multi-camera
-         // setups, one camera could be generating images faster than the
-         // other(s). Of course, 2x isn't guaranteed to be enough here, either,
-         // but it's what we've historically used.
-         HashSet<Integer> channelsSet = new HashSet<>();
-         for (int c = 0; c < 6 * numCameraChannels_; ++c) {
-            TaggedImage tagged;
+   private final class LiveGrabber implements Runnable {
+      private final String camName_;
+      private final int numChannels_;
+      private final long liveModeCount_;
+      private final long idleWaitMs_;
+      private final LiveImageRing<TaggedImage> ring_;
+      private final AtomicBoolean displayPending_ = new AtomicBoolean(false);
+      private long imagesGrabbed_ = 0;
+
+      // Accessed only on the EDT
+      private final TaggedImage[] shownSet_;
+      private long lastShownSet_ = -1;
+
+      LiveGrabber(String camName, double exposureMs, int numChannels,
+            long liveModeCount)
+      {
+         camName_ = camName;
+         numChannels_ = numChannels;
+         liveModeCount_ = liveModeCount;
+         // The Core does not notify us of new images, so when the sequence
+         // buffer is empty we look again after a fraction of the exposure.
+         idleWaitMs_ = Math.max(MIN_IDLE_WAIT_MS,
+               Math.min(MAX_IDLE_WAIT_MS, Math.round(exposureMs / 4.0)));
+         ring_ = new LiveImageRing<>(numChannels);
+         shownSet_ = new TaggedImage[numChannels];
+      }
+
+      @Override
+      public void run() {
+         while (isCurrentLiveMode(liveModeCount_)) {
+            TaggedImage tagged = null;
             try {
-               tagged = core_.getNBeforeLastTaggedImage(c);
-               perfMon_.sampleTimeInterval("getNBeforeLastTaggedImage");
-               perfMon_.sample("No image in sequence buffer (%)", 0.0);
+               if (core_.getRemainingImageCount() > 0) {
+                  tagged = core_.popNextTaggedImage();
+               }
             }
             catch (Exception e) {
-               // No image in the sequence buffer.
-               perfMon_.sample("No image in sequence buffer (%)", 100.0);
+               // Sequence buffer emptied or acquisition stopped meanwhile
+            }
+            if (tagged == null) {
+               try {
+                  Thread.sleep(idleWaitMs_);
+               }
+               catch (InterruptedException e) {
+                  return;
+               }
                continue;
             }
-            JSONObject tags = tagged.tags;
-            int imageChannel = c;
-            if ( (numCameraChannels_ > 1) && tags.has(camName + "-CameraChannelIndex")) {
-               imageChannel = tags.getInt(camName + "-CameraChannelIndex");
+            perfMon_.sampleTimeInterval("Frame grabbed");
+            if (ring_.put(getChannel(tagged), tagged) &&
+                  displayPending_.compareAndSet(false, true)) {
+               SwingUtilities.invokeLater(this::showLatestSet);
             }
-            if (channelsSet.contains(imageChannel)) {
-               // Already provided a more recent version of this channel.
-               continue;
+         }
+      }
+
+      private int getChannel(TaggedImage tagged) {
+         long imageNr = imagesGrabbed_++;
+         if (numChannels_ == 1) {
+            return 0;
+         }
+         String key = camName_ + "-CameraChannelIndex";
+         try {
+            if (tagged.tags.has(key)) {
+               int channel = tagged.tags.getInt(key);
+               if (channel >= 0 && channel < numChannels_) {
+                  return channel;
+               }
             }
-            DefaultImage image = new DefaultImage(tagged);
-            final Long seqNr = image.getMetadata().getImageNumber();
-            perfMon_.sample("Image missing ImageNumber (%)",
-                  seqNr == null ? 100.0 : 0.0);
-            Coords newCoords = image.getCoords().copyBuilder()
-               .t(0)
-               .c(imageChannel).build();
-              // Generate a new UUID for the image, so that our histogram
-              // update code realizes this is a new image.
-              Metadata newMetadata = image.getMetadata().copyBuilderWithNewUUID()
-                      .build();
-              final Image newImage = image.copyWith(newCoords, newMetadata);
-
-              try {
-                  SwingUtilities.invokeAndWait(() -> {
-                     synchronized (SnapLiveManager.this) {
-                        if (scheduledGrab_ == null
-                                || liveModeStartCount_ != liveModeCount) {
-                           throw new CancellationException();
-                        }
-                     }
-                     displayImage(newImage);
-                  });
-
-              } catch (InterruptedException unexpected) {
-                  Thread.currentThread().interrupt();
-              } catch (InvocationTargetException e) {
-                  if (e.getCause() instanceof CancellationException) {
-                      return;
-                  }
-                  throw new RuntimeException(e.getCause());
-              }
-              channelsSet.add(imageChannel);
-              if (channelsSet.size() == numCameraChannels_) {
-                  // Got every channel.
-                  break;
-              }
-          }
-      }
-      catch (JSONException e) {
-         ReportingUtils.logError(e, "Exception in image grabber thread.");
+         }
+         catch (JSONException e) {
+            ReportingUtils.logError(e, "Invalid camera channel index tag");
+         }
+         return (int) (imageNr % numChannels_);
+      }
+
+      @MustCallOnEDT
+      private void showLatestSet() {
+         // Clear first, so that a set completed while we display gets its own
+         // turn.
+         displayPending_.set(false);
+         if (!isCurrentLiveMode(liveModeCount_)) {
+            return;
+         }
+         long set = ring_.takeLatest(lastShownSet_, shownSet_);
+         if (set < 0) {
+            return;
+         }
+         perfMon_.sample("Frames shown of frames grabbed (%)",
+               100.0 / (set - lastShownSet_));
+         lastShownSet_ = set;
+         for (int channel = 0; channel < numChannels_; ++channel) {
+            TaggedImage tagged = shownSet_[channel];
+            shownSet_[channel] = null;
+            try {
+               DefaultImage image = new DefaultImage(tagged);
+               perfMon_.sample("Image missing ImageNumber (%)",
+                     image.getMetadata().getImageNumber() == null ? 100.0 : 0.0);
+               Coords newCoords = image.getCoords().copyBuilder()
+                     .t(0)
+                     .c(channel).build();
+               // Generate a new UUID for the image, so that our histogram
+               // update code realizes this is a new image.
+               Metadata newMetadata = image.getMetadata().copyBuilderWithNewUUID()
+                     .build();
+               perfMon_.sampleTimeInterval("Frame shown");
+               displayImage(image.copyWith(newCoords, newMetadata));
+            }
+            catch (JSONException e) {
+               ReportingUtils.logError(e, "Exception in live mode display.");
+            }
+         }
       }
    }
 
@@ -32,6 +32,7 @@ import mmcorej.CMMCore;
 import org.micromanager.ApplicationSkin.SkinMode;
 import org.micromanager.Studio;
 import org.micromanager.UserProfile;
+import org.micromanager.data.internal.StorageOffHeap;
 import org.micromanager.data.internal.multipagetiff.StorageMultipageTiff;
 import org.micromanager.internal.MMStudio;
 import org.micromanager.internal.MainFrame;
@@ -236,6 +237,22 @@ public final class OptionsDlg extends JDialog {
       separateFilesForPositionsMPTiffCheckBox.addActionListener((ActionEvent arg0) -> {
          StorageMultipageTiff.setShouldSplitPositions(separateFilesForPositionsMPTiffCheckBox.isSelected());
       });
+
+      final JCheckBox memoryMapMPTiffCheckBox = new JCheckBox();
+      memoryMapMPTiffCheckBox.setText("Read Image Stack Files through memory mapping");
+      memoryMapMPTiffCheckBox.setSelected(
+            StorageMultipageTiff.getShouldMemoryMapFiles());
+      memoryMapMPTiffCheckBox.addActionListener((ActionEvent arg0) -> {
+         StorageMultipageTiff.setShouldMemoryMapFiles(memoryMapMPTiffCheckBox.isSelected());
+      });
+
+      final JCheckBox offHeapRAMCheckBox = new JCheckBox();
+      offHeapRAMCheckBox.setText("Keep unsaved acquisitions outside of the Java heap");
+      offHeapRAMCheckBox.setSelected(
+            StorageOffHeap.getShouldUseForAcquisitions());
+      offHeapRAMCheckBox.addActionListener((ActionEvent arg0) -> {
+         StorageOffHeap.setShouldUseForAcquisitions(offHeapRAMCheckBox.isSelected());
+      });
   
       final JCheckBox syncExposureMainAndMDA = new JCheckBox();
       syncExposureMainAndMDA.setText("Sync exposure between Main and MDA windows");
@@ -288,6 +305,8 @@ public final class OptionsDlg extends JDialog {
 
       super.add(metadataFileWithMultipageTiffCheckBox, "wrap");
       super.add(separateFilesForPositionsMPTiffCheckBox, "wrap");
+      super.add(memoryMapMPTiffCheckBox, "wrap");
+      super.add(offHeapRAMCheckBox, "wrap");
 
       super.add(new JSeparator(), "wrap");
 
@@ -21,6 +21,8 @@ package org.micromanager.internal.utils.performance;
  *
  * See https://en.wikipedia.org/wiki/Exponential_smoothing
  *
+ * Instances are thread safe; subclasses sample while holding the monitor.
+ *
  * @author Mark A. Tsuchida
  */
 public class AbstractExponentialSmoothing {
@@ -40,21 +42,21 @@ public class AbstractExponentialSmoothing {
       return timeConstantMs_;
    }
 
-   public long getCount() {
+   public synchronized long getCount() {
       return count_;
    }
 
-   public double getAverage() {
+   public synchronized double getAverage() {
       return rollingAverage_;
    }
 
-   public double getStandardDeviation() {
+   public synchronized double getStandardDeviation() {
       return Math.sqrt(rollingSquareAverage_ -
             rollingAverage_ * rollingAverage_);
    }
 
    @Override
-   public String toString() {
+   public synchronized String toString() {
       return String.format("Avg = %g, Stdev = %g", getAverage(), getStandardDeviation());
    }
 
@@ -30,7 +30,7 @@ public final class ExponentialSmoothing extends AbstractExponentialSmoothing {
       super(timeConstantMs);
    }
 
-   public void sample(double x) {
+   public synchronized void sample(double x) {
       if (!isTimingStarted()) {
          markTime();
          initializeStats(x);
@@ -13,11 +13,14 @@
 
 package org.micromanager.internal.utils.performance;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -36,6 +39,11 @@ public final class PerformanceMonitor {
          intervalStats_ =
          new ConcurrentHashMap<String, TimeIntervalExponentialSmoothing>();
 
+   // Recent samples of the stats given to sampleWithQuantiles()
+   private static final int QUANTILE_SAMPLES = 100;
+   private final ConcurrentHashMap<String, RunningQuantile> quantiles_ =
+         new ConcurrentHashMap<String, RunningQuantile>();
+
    public static PerformanceMonitor createWithTimeConstantMs(
          double timeConstantMs)
    {
@@ -49,18 +57,43 @@ public final class PerformanceMonitor {
    public void sample(String statLabel, double value) {
       ExponentialSmoothing stat = stats_.get(statLabel);
       if (stat == null) {
-         stat = ExponentialSmoothing.createWithTimeConstantMs(timeConstantMs_);
-         stats_.putIfAbsent(statLabel, stat);
+         stats_.putIfAbsent(statLabel,
+               ExponentialSmoothing.createWithTimeConstantMs(timeConstantMs_));
+         stat = stats_.get(statLabel);
       }
       stat.sample(value);
    }
 
+   /**
+    * Like {@link #sample}, but also keep the recent values so that the
+    * median and 95th percentile of the stat can be reported.
+    */
+   public void sampleWithQuantiles(String statLabel, double value) {
+      sample(statLabel, value);
+      RunningQuantile quantile = quantiles_.get(statLabel);
+      if (quantile == null) {
+         quantiles_.putIfAbsent(statLabel,
+               SimpleRunningQuantile.create(QUANTILE_SAMPLES));
+         quantile = quantiles_.get(statLabel);
+      }
+      quantile.sample(value);
+   }
+
+   /**
+    * @return the running quantiles of stats sampled with
+    * {@link #sampleWithQuantiles}, by label
+    */
+   public Map<String, RunningQuantile> getQuantiles() {
+      return Collections.<String, RunningQuantile>unmodifiableMap(quantiles_);
+   }
+
    public void sampleTimeInterval(String startLabel) {
       TimeIntervalExponentialSmoothing stat = intervalStats_.get(startLabel);
       if (stat == null) {
-         stat = TimeIntervalExponentialSmoothing.createWithTimeConstantMs(
-               timeConstantMs_);
-         intervalStats_.putIfAbsent(startLabel, stat);
+         intervalStats_.putIfAbsent(startLabel,
+               TimeIntervalExponentialSmoothing.createWithTimeConstantMs(
+                     timeConstantMs_));
+         stat = intervalStats_.get(startLabel);
       }
       stat.sample();
    }
@@ -110,4 +143,27 @@ public final class PerformanceMonitor {
       }
       return sb.toString();
    }
-}
\ No newline at end of file
+
+   /**
+    * Write the current value of every stat as comma-separated values, with a
+    * header line. Quantile columns are empty for stats that have none.
+    */
+   public void writeCSV(Writer writer) throws IOException {
+      writer.write("Statistic,Count,Average,Stdev,Median,95th percentile\n");
+      for (Map.Entry<String, ? extends AbstractExponentialSmoothing> e : getEntries()) {
+         AbstractExponentialSmoothing stat = e.getValue();
+         writer.write(String.format(Locale.ROOT, "\"%s\",%d,%g,%g",
+               e.getKey().replace("\"", "\"\""), stat.getCount(),
+               stat.getAverage(), stat.getStandardDeviation()));
+         RunningQuantile quantile = quantiles_.get(e.getKey());
+         if (quantile != null) {
+            writer.write(String.format(Locale.ROOT, ",%g,%g",
+                  quantile.getQuantile(0.5), quantile.getQuantile(0.95)));
+         }
+         else {
+            writer.write(",,");
+         }
+         writer.write("\n");
+      }
+   }
+}
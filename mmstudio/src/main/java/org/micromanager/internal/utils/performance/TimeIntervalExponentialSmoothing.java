@@ -30,7 +30,7 @@ public final class TimeIntervalExponentialSmoothing
       super(timeConstantMs);
    }
 
-   public void sample() {
+   public synchronized void sample() {
       if (!isTimingStarted()) {
          markTime();
       }
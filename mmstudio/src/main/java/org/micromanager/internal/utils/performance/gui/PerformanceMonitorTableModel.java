@@ -18,6 +18,7 @@ import java.util.Map;
 import javax.swing.table.AbstractTableModel;
 import org.micromanager.internal.utils.MustCallOnEDT;
 import org.micromanager.internal.utils.performance.AbstractExponentialSmoothing;
+import org.micromanager.internal.utils.performance.RunningQuantile;
 
 /**
  *
@@ -25,11 +26,14 @@ import org.micromanager.internal.utils.performance.AbstractExponentialSmoothing;
  */
 final class PerformanceMonitorTableModel extends AbstractTableModel {
    private List<Map.Entry<String, ? extends AbstractExponentialSmoothing>> entries_;
+   private Map<String, RunningQuantile> quantiles_;
 
    private enum Column {
       COL_STATNAME("Statistic"),
       COL_AVERAGE("Average"),
-      COL_STDEV("Stdev");
+      COL_STDEV("Stdev"),
+      COL_MEDIAN("Median"),
+      COL_95TH_PERCENTILE("95%");
 
       private final String name_;
 
@@ -55,8 +59,10 @@ final class PerformanceMonitorTableModel extends AbstractTableModel {
    }
 
    @MustCallOnEDT
-   void setData(List<Map.Entry<String, ? extends AbstractExponentialSmoothing>> entries) {
+   void setData(List<Map.Entry<String, ? extends AbstractExponentialSmoothing>> entries,
+         Map<String, RunningQuantile> quantiles) {
       entries_ = entries;
+      quantiles_ = quantiles;
       fireTableStructureChanged();
    }
 
@@ -98,10 +104,23 @@ final class PerformanceMonitorTableModel extends AbstractTableModel {
             return String.format("%.3g", entry.getValue().getAverage());
          case COL_STDEV:
             return String.format("%.3g", entry.getValue().getStandardDeviation());
+         case COL_MEDIAN:
+            return formatQuantile(entry.getKey(), 0.5);
+         case COL_95TH_PERCENTILE:
+            return formatQuantile(entry.getKey(), 0.95);
       }
       throw new IndexOutOfBoundsException();
    }
 
+   private String formatQuantile(String statLabel, double q) {
+      RunningQuantile quantile = quantiles_ == null ? null :
+            quantiles_.get(statLabel);
+      if (quantile == null) {
+         return "";
+      }
+      return String.format("%.3g", quantile.getQuantile(q));
+   }
+
    @Override
    public void setValueAt(Object aValue, int rowIndex, int columnIndex) {
       throw new UnsupportedOperationException("Read only");
@@ -13,13 +13,23 @@
 
 package org.micromanager.internal.utils.performance.gui;
 
+import java.awt.BorderLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import javax.swing.JButton;
+import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JScrollPane;
 import javax.swing.JTable;
 import javax.swing.SwingUtilities;
 import javax.swing.Timer;
+import org.micromanager.internal.utils.ReportingUtils;
 import org.micromanager.internal.utils.performance.PerformanceMonitor;
 
 /**
@@ -70,17 +80,43 @@ public class PerformanceMonitorUI {
 
       table_.setFillsViewportHeight(true);
 
+      JButton exportButton = new JButton("Export CSV...");
+      exportButton.addActionListener(new ActionListener() {
+         @Override
+         public void actionPerformed(ActionEvent e) {
+            exportCSV();
+         }
+      });
+
       frame_.setTitle(title);
-      frame_.add(scrollPane_);
+      frame_.add(scrollPane_, BorderLayout.CENTER);
+      frame_.add(exportButton, BorderLayout.SOUTH);
       frame_.pack();
 
       frame_.setVisible(true);
       timer_ = new Timer(1000, new ActionListener() {
          @Override
          public void actionPerformed(ActionEvent e) {
-            model_.setData(monitor_.getEntries());
+            model_.setData(monitor_.getEntries(), monitor_.getQuantiles());
          }
       });
       timer_.start();
    }
-}
\ No newline at end of file
+
+   private void exportCSV() {
+      JFileChooser chooser = new JFileChooser();
+      chooser.setSelectedFile(new File("performance.csv"));
+      if (chooser.showSaveDialog(frame_) != JFileChooser.APPROVE_OPTION) {
+         return;
+      }
+      File file = chooser.getSelectedFile();
+      try (Writer writer = new OutputStreamWriter(
+            Files.newOutputStream(file.toPath()), StandardCharsets.UTF_8)) {
+         monitor_.writeCSV(writer);
+      }
+      catch (IOException e) {
+         ReportingUtils.showError(e,
+               "Failed to export performance statistics", frame_);
+      }
+   }
+}
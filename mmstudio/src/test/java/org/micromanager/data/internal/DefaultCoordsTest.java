@@ -0,0 +1,75 @@
+package org.micromanager.data.internal;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Test;
+import org.micromanager.data.Coords;
+
+public class DefaultCoordsTest {
+
+   @Test
+   public void testStandardAxes() {
+      Coords coords = new DefaultCoords.Builder().
+            channel(2).z(3).t(0).stagePosition(1).build();
+      Assert.assertEquals(Arrays.asList("channel", "position", "z"),
+            coords.getAxes());
+      Assert.assertEquals(2, coords.getChannel());
+      Assert.assertEquals(3, coords.getIndex("z"));
+      Assert.assertEquals(0, coords.getTimePoint());
+      Assert.assertFalse(coords.hasTimePointAxis());
+      Assert.assertTrue(coords.hasAxis(new String("position")));
+      Assert.assertEquals(0, coords.getIndex("nonexistent"));
+   }
+
+   @Test
+   public void testCustomAxes() {
+      Coords coords = new DefaultCoords.Builder().
+            index("view", 4).channel(1).index("angle", 2).build();
+      Assert.assertEquals(Arrays.asList("angle", "channel", "view"),
+            coords.getAxes());
+      Assert.assertEquals(4, coords.getIndex("view"));
+      Assert.assertEquals(1, coords.getChannel());
+      Assert.assertEquals(
+            new DefaultCoords.Builder().index("angle", 2).build(),
+            coords.copyRetainingAxes("angle"));
+      Assert.assertEquals(
+            new DefaultCoords.Builder().channel(1).build(),
+            coords.copyRemovingAxes("view", "angle"));
+   }
+
+   @Test
+   public void testEqualityIgnoresBuildOrder() {
+      Coords a = new DefaultCoords.Builder().index("view", 4).
+            stagePosition(1).z(3).build();
+      Coords b = new DefaultCoords.Builder().z(3).stagePosition(1).
+            index("view", 4).channel(0).build();
+      Assert.assertEquals(a, b);
+      Assert.assertEquals(a.hashCode(), b.hashCode());
+      Set<Coords> set = new HashSet<>();
+      set.add(a);
+      Assert.assertTrue(set.contains(b));
+      Assert.assertNotEquals(a, b.copyBuilder().z(4).build());
+      Assert.assertNotEquals(a, a.copyRemovingAxes("view"));
+   }
+
+   @Test
+   public void testCopyBuilderAndOffset() {
+      Coords coords = new DefaultCoords.Builder().t(5).index("view", 2).build();
+      Coords offset = coords.copyBuilder().offset("time", -5).
+            offset("view", 1).offset("z", 2).build();
+      Assert.assertEquals(new DefaultCoords.Builder().index("view", 3).z(2).
+            build(), offset);
+      // Original is unchanged
+      Assert.assertEquals(5, coords.getTimePoint());
+   }
+
+   @Test
+   public void testNormalizedString() {
+      Coords coords = new DefaultCoords.Builder().c(1).t(2).index("view", 3).
+            build();
+      Assert.assertEquals(coords,
+            DefaultCoords.fromNormalizedString("c=1, t=2, view=3"));
+   }
+}
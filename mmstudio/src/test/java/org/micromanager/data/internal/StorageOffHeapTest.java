@@ -0,0 +1,79 @@
+package org.micromanager.data.internal;
+
+import java.io.IOException;
+import java.util.Arrays;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.micromanager.data.Coords;
+import org.micromanager.data.Image;
+
+public class StorageOffHeapTest {
+   private static final int WIDTH = 2560;
+   private static final int HEIGHT = 2048; // 10 MB at 16 bits per pixel
+   private StorageOffHeap storage_;
+
+   @Before
+   public void setUp() {
+      storage_ = new StorageOffHeap(new DefaultDatastore(null),
+            64L * 1024 * 1024, null);
+   }
+
+   @After
+   public void tearDown() {
+      storage_.close();
+   }
+
+   private static Image image(int t) {
+      short[] pixels = new short[WIDTH * HEIGHT];
+      Arrays.fill(pixels, (short) (t + 1));
+      pixels[0] = (short) (1000 + t);
+      return new DefaultImage(pixels, WIDTH, HEIGHT, 2, 1,
+            new DefaultCoords.Builder().t(t).build(),
+            new DefaultMetadata.Builder().build());
+   }
+
+   private static void assertPixels(Image image, int t) {
+      short[] pixels = (short[]) image.getRawPixels();
+      Assert.assertEquals(WIDTH * HEIGHT, pixels.length);
+      Assert.assertEquals(1000 + t, pixels[0]);
+      Assert.assertEquals(t + 1, pixels[pixels.length - 1]);
+   }
+
+   @Test
+   public void testSpillAndReadBack() throws IOException {
+      for (int t = 0; t < 10; t++) {
+         storage_.putImage(image(t));
+      }
+      Assert.assertEquals(10, storage_.getNumImages());
+      Assert.assertEquals(9, storage_.getMaxIndex("time"));
+      Assert.assertTrue(storage_.getBytesSpilled() > 0);
+      Assert.assertTrue(storage_.getBytesInMemory() <=
+            storage_.getCapacityBytes());
+      Assert.assertEquals(1.0, storage_.getOccupancy(), 0.0);
+      for (int t = 0; t < 10; t++) {
+         Image image = storage_.getImage(new DefaultCoords.Builder().t(t).build());
+         Assert.assertEquals(WIDTH, image.getWidth());
+         assertPixels(image, t);
+      }
+   }
+
+   @Test
+   public void testReplaceAndDelete() throws IOException {
+      storage_.putImage(image(0));
+      storage_.putImage(image(1));
+      long inMemory = storage_.getBytesInMemory();
+      Assert.assertTrue(storage_.getOccupancy() < 1.0);
+
+      Coords coords = new DefaultCoords.Builder().t(1).build();
+      storage_.putImage(image(5).copyAtCoords(coords));
+      Assert.assertEquals(2, storage_.getNumImages());
+      Assert.assertEquals(inMemory, storage_.getBytesInMemory());
+      assertPixels(storage_.getImage(coords), 5);
+
+      storage_.deleteImage(coords);
+      Assert.assertFalse(storage_.hasImage(coords));
+      Assert.assertEquals(inMemory / 2, storage_.getBytesInMemory());
+   }
+}
@@ -0,0 +1,116 @@
+package org.micromanager.data.internal;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.micromanager.data.Coords;
+import org.micromanager.data.Image;
+
+public class StorageRAMTest {
+   private StorageRAM storage_;
+
+   @Before
+   public void setUp() {
+      storage_ = new StorageRAM(new DefaultDatastore(null));
+      for (int p = 0; p < 2; p++) {
+         for (int t = 0; t < 4; t++) {
+            for (int z = 0; z < 3; z++) {
+               for (int c = 0; c < 2; c++) {
+                  storage_.putImage(image(new DefaultCoords.Builder().
+                        stagePosition(p).t(t).z(z).channel(c).build()));
+               }
+            }
+         }
+      }
+   }
+
+   private static Image image(Coords coords) {
+      return new DefaultImage(new byte[1], 1, 1, 1, 1, coords,
+            new DefaultMetadata.Builder().build());
+   }
+
+   private static Set<Coords> coordsOf(List<Image> images) {
+      Set<Coords> result = new HashSet<>();
+      for (Image image : images) {
+         result.add(image.getCoords());
+      }
+      return result;
+   }
+
+   /** The result of the unindexed implementation. */
+   private Set<Coords> expected(Coords coords, String... ignored) {
+      Set<Coords> result = new HashSet<>();
+      for (Coords c : storage_.getUnorderedImageCoords()) {
+         if (c.copyRemovingAxes(ignored).equals(coords)) {
+            result.add(c);
+         }
+      }
+      return result;
+   }
+
+   @Test
+   public void testIgnoringAxes() throws IOException {
+      Coords[] queries = {
+         new DefaultCoords.Builder().stagePosition(1).t(2).channel(1).build(),
+         new DefaultCoords.Builder().t(3).build(),
+         new DefaultCoords.Builder().build(),
+         new DefaultCoords.Builder().z(2).build(),
+         new DefaultCoords.Builder().t(7).build() };
+      String[][] ignores = { {"z"}, {"z", "channel"}, {"position", "time"},
+         {}, {"z", "channel", "position"} };
+      for (Coords query : queries) {
+         for (String[] ignore : ignores) {
+            Assert.assertEquals(query + " ignoring " + String.join(",", ignore),
+                  expected(query, ignore),
+                  coordsOf(storage_.getImagesIgnoringAxes(query, ignore)));
+         }
+      }
+      Assert.assertEquals(3, storage_.getImagesIgnoringAxes(
+            new DefaultCoords.Builder().stagePosition(1).t(2).channel(1).build(),
+            "z").size());
+   }
+
+   @Test
+   public void testZeroIndices() throws IOException {
+      // The first image has index 0 on every axis, before any axis is known
+      Coords origin = new DefaultCoords.Builder().stagePosition(0).t(0).
+            z(0).channel(0).build();
+      Assert.assertEquals(expected(origin, "z"),
+            coordsOf(storage_.getImagesIgnoringAxes(origin, "z")));
+      Assert.assertEquals(3, storage_.getImagesIgnoringAxes(origin, "z").size());
+      Assert.assertEquals(expected(origin, "channel"),
+            coordsOf(storage_.getImagesIgnoringAxes(origin, "channel")));
+      Assert.assertEquals(1, storage_.getImagesMatching(origin).size());
+
+      // Images on a new axis leave the others at index 0 on that axis
+      storage_.putImage(image(new DefaultCoords.Builder().index("view", 1).
+            build()));
+      Assert.assertEquals(1, storage_.getImagesIgnoringAxes(origin).size());
+      Assert.assertEquals(expected(origin, "time", "channel"),
+            coordsOf(storage_.getImagesIgnoringAxes(origin, "time",
+                  "channel")));
+
+      storage_.deleteImage(origin);
+      Assert.assertTrue(storage_.getImagesIgnoringAxes(origin).isEmpty());
+      Assert.assertEquals(1, storage_.getImagesIgnoringAxes(origin,
+            "channel").size());
+   }
+
+   @Test
+   public void testDeleteUpdatesIndices() throws IOException {
+      Coords gone = new DefaultCoords.Builder().stagePosition(1).t(2).z(1).
+            channel(1).build();
+      storage_.deleteImage(gone);
+      Assert.assertFalse(storage_.hasImage(gone));
+      Assert.assertEquals(47, storage_.getNumImages());
+      Assert.assertEquals(2, storage_.getImagesIgnoringAxes(
+            gone.copyRemovingAxes("z"), "z").size());
+      Assert.assertTrue(storage_.getImagesMatching(gone).isEmpty());
+      Assert.assertEquals(1, storage_.getImagesMatching(
+            gone.copyBuilder().z(2).build()).size());
+   }
+}
@@ -0,0 +1,139 @@
+package org.micromanager.data.internal;
+
+import java.util.UUID;
+import mmcorej.org.json.JSONArray;
+import mmcorej.org.json.JSONException;
+import mmcorej.org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.micromanager.PropertyMap;
+import org.micromanager.data.Coordinates;
+import org.micromanager.data.Coords;
+import org.micromanager.internal.propertymap.NonPropertyMapJSONFormats;
+
+/**
+ * Checks that TaggedImageConverter produces the same results as the
+ * Gson-based NonPropertyMapJSONFormats, on tags resembling those produced
+ * by the Core and the acquisition engine.
+ */
+public class TaggedImageConverterTest {
+
+   private static JSONObject makeTags(int numProperties, boolean withScopeDataKeys)
+         throws JSONException {
+      JSONObject tags = new JSONObject();
+      tags.put("UUID", UUID.randomUUID().toString());
+      tags.put("Camera", "");
+      tags.put("Core-Camera", "Camera");
+      tags.put("Binning", "2x2");
+      tags.put("ROI", "0-0-512-512");
+      tags.put("BitDepth", 16);
+      tags.put("Exposure-ms", 10.0);
+      tags.put("ElapsedTime-ms", 1234.5);
+      tags.put("ImageNumber", "42");
+      tags.put("ReceivedTime", "2020-01-01 12:00:00.000 -0800");
+      tags.put("PixelSizeUm", 0.65);
+      tags.put("PixelSizeAffine", "0.65;0.0;0.0;0.0;0.65;0.0");
+      tags.put("PositionName", "Pos0");
+      tags.put("XPositionUm", -12.5);
+      tags.put("YPositionUm", 7);
+      tags.put("ZPositionUm", "3.25");
+      tags.put("PixelType", "GRAY16");
+      tags.put("Width", 512);
+      tags.put("Height", "512");
+      tags.put("FrameIndex", 3);
+      tags.put("SliceIndex", 0);
+      tags.put("ChannelIndex", 1);
+      tags.put("PositionIndex", 2);
+      tags.put("UserTag", 1.0);
+      tags.put("UserList", new JSONArray().put("a").put("b"));
+      JSONArray keys = new JSONArray();
+      for (int i = 0; i < numProperties; ++i) {
+         String key = "Device" + (i % 17) + "-Property" + i;
+         tags.put(key, i % 3 == 0 ? Integer.toString(i) : "Value " + i);
+         keys.put(key);
+      }
+      if (withScopeDataKeys) {
+         tags.put("ScopeDataKeys", keys);
+      }
+      return tags;
+   }
+
+   private static void assertSameAsGson(JSONObject tags) throws Exception {
+      String json = tags.toString();
+      PropertyMap expectedMetadata =
+            NonPropertyMapJSONFormats.metadata().fromJSON(json);
+      Coords expectedCoords = Coordinates.fromPropertyMap(
+            NonPropertyMapJSONFormats.coords().fromJSON(json));
+      PropertyMap expectedFormat =
+            NonPropertyMapJSONFormats.imageFormat().fromJSON(json);
+
+      Assert.assertEquals(expectedMetadata,
+            TaggedImageConverter.metadataFromTags(tags).toPropertyMap());
+      Assert.assertEquals(expectedCoords,
+            TaggedImageConverter.coordsFromTags(tags));
+      Assert.assertEquals(expectedFormat.getInteger("Width", 0),
+            TaggedImageConverter.widthFromTags(tags));
+      Assert.assertEquals(expectedFormat.getInteger("Height", 0),
+            TaggedImageConverter.heightFromTags(tags));
+      Assert.assertEquals(expectedFormat.getStringAsEnum("PixelType",
+            PixelType.class, null),
+            TaggedImageConverter.pixelTypeFromTags(tags));
+   }
+
+   @Test
+   public void testMatchesGsonWithScopeDataKeys() throws Exception {
+      assertSameAsGson(makeTags(50, true));
+      assertSameAsGson(makeTags(300, true));
+   }
+
+   @Test
+   public void testMatchesGsonWithoutScopeDataKeys() throws Exception {
+      assertSameAsGson(makeTags(50, false));
+      assertSameAsGson(makeTags(300, false));
+   }
+
+   @Test
+   public void testCompleteCoordsAndIJType() throws Exception {
+      JSONObject tags = makeTags(10, true);
+      tags.remove("PixelType");
+      tags.put("IJType", 1);
+      tags.put("completeCoords",
+            new JSONObject().put("time", 4).put("view", 2).put("channel", 0));
+      assertSameAsGson(tags);
+   }
+
+   /**
+    * Rough timing comparison with the former JSON string round trip; run
+    * manually.
+    */
+   @Ignore
+   @Test
+   public void compareSpeedWithGson() throws Exception {
+      final int n = 20000;
+      for (int numProperties : new int[] {50, 300}) {
+         JSONObject tags = makeTags(numProperties, true);
+         for (int pass = 0; pass < 2; ++pass) { // first pass is warm-up
+            long start = System.nanoTime();
+            for (int i = 0; i < n; ++i) {
+               String json = tags.toString();
+               NonPropertyMapJSONFormats.metadata().fromJSON(json);
+               NonPropertyMapJSONFormats.coords().fromJSON(json);
+               NonPropertyMapJSONFormats.imageFormat().fromJSON(json);
+            }
+            long gsonNs = (System.nanoTime() - start) / n;
+            start = System.nanoTime();
+            for (int i = 0; i < n; ++i) {
+               TaggedImageConverter.metadataFromTags(tags);
+               TaggedImageConverter.coordsFromTags(tags);
+               TaggedImageConverter.pixelTypeFromTags(tags);
+            }
+            long directNs = (System.nanoTime() - start) / n;
+            if (pass == 1) {
+               System.out.println(numProperties + " properties: Gson " +
+                     gsonNs + " ns/image, direct " + directNs + " ns/image");
+            }
+         }
+      }
+   }
+}
@@ -0,0 +1,67 @@
+package org.micromanager.data.internal.multipagetiff;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileChannelPoolTest {
+   private File file_;
+
+   @Before
+   public void setUp() throws IOException {
+      file_ = File.createTempFile("FileChannelPoolTest", ".tif");
+      Files.write(file_.toPath(), new byte[] {1, 2, 3, 4});
+   }
+
+   @After
+   public void tearDown() {
+      file_.delete();
+   }
+
+   @Test
+   public void testClosedOnlyAfterLastRelease() throws IOException {
+      FileChannelPool pool = FileChannelPool.getInstance();
+      FileChannel first = pool.acquire(file_);
+      Assert.assertSame(first, pool.acquire(file_));
+      pool.close(file_);
+      Assert.assertTrue(first.isOpen());
+      pool.release(file_, first);
+      Assert.assertTrue(first.isOpen());
+      pool.release(file_, first);
+      Assert.assertFalse(first.isOpen());
+   }
+
+   @Test
+   public void testReplacedChannelStaysOpenForAllUsers() throws IOException {
+      FileChannelPool pool = FileChannelPool.getInstance();
+      FileChannel old = pool.acquire(file_);
+      pool.acquire(file_);
+      pool.acquire(file_);
+      pool.close(file_);
+
+      // Replaces the channel that is still in use by three readers
+      FileChannel current = pool.acquire(file_);
+      Assert.assertNotSame(old, current);
+
+      pool.release(file_, old);
+      pool.release(file_, old);
+      Assert.assertTrue(old.isOpen());
+      ByteBuffer buffer = ByteBuffer.allocate(4);
+      Assert.assertEquals(4, old.read(buffer, 0));
+
+      pool.release(file_, old);
+      Assert.assertFalse(old.isOpen());
+      Assert.assertTrue(current.isOpen());
+
+      pool.close(file_);
+      Assert.assertTrue(current.isOpen());
+      pool.release(file_, current);
+      Assert.assertFalse(current.isOpen());
+   }
+}
@@ -0,0 +1,144 @@
+package org.micromanager.data.internal.multipagetiff;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.micromanager.data.Coords;
+import org.micromanager.data.Image;
+import org.micromanager.data.internal.DefaultCoords;
+import org.micromanager.data.internal.DefaultDatastore;
+import org.micromanager.data.internal.DefaultImage;
+import org.micromanager.data.internal.DefaultMetadata;
+import org.micromanager.data.internal.DefaultSummaryMetadata;
+
+public class IndexSidecarTest {
+   private File dir_;
+
+   @Before
+   public void setUp() throws IOException {
+      dir_ = Files.createTempDirectory("IndexSidecarTest").toFile();
+   }
+
+   @After
+   public void tearDown() {
+      delete(dir_);
+   }
+
+   private static void delete(File f) {
+      File[] children = f.listFiles();
+      if (children != null) {
+         for (File child : children) {
+            delete(child);
+         }
+      }
+      f.delete();
+   }
+
+   private static Coords coords(int c, int z, int t, int p) {
+      return new DefaultCoords.Builder().channel(c).z(z).t(t).
+            stagePosition(p).build();
+   }
+
+   private void makeFile(String name, int length) throws IOException {
+      try (FileOutputStream out = new FileOutputStream(new File(dir_, name))) {
+         out.write(new byte[length]);
+      }
+   }
+
+   @Test
+   public void testPackUnpack() {
+      Coords[] all = { coords(0, 0, 0, 0), coords(3, 0, 0, 0),
+            coords(1, 2, 3, 4), coords(4095, 65535, 2097151, 16383) };
+      for (Coords c : all) {
+         Assert.assertEquals(c,
+               IndexSidecar.unpackCoords(IndexSidecar.packCoords(c)));
+      }
+      Assert.assertEquals(-1, IndexSidecar.packCoords(coords(4096, 0, 0, 0)));
+      Assert.assertEquals(-1, IndexSidecar.packCoords(
+            new DefaultCoords.Builder().index("view", 1).build()));
+      // Position is the most significant axis
+      Assert.assertTrue(IndexSidecar.packCoords(coords(0, 0, 0, 1)) >
+            IndexSidecar.packCoords(coords(5, 5, 5, 0)));
+   }
+
+   @Test
+   public void testWriteAndOpen() throws IOException {
+      makeFile("a.ome.tif", 100);
+      makeFile("b.ome.tif", 200);
+      HashMap<Coords, Long> a = new HashMap<>();
+      HashMap<Coords, Long> b = new HashMap<>();
+      for (int t = 0; t < 10; t++) {
+         for (int c = 0; c < 3; c++) {
+            a.put(coords(c, 0, t, 0), 1000L * t + c);
+            b.put(coords(c, 0, t, 1), 3000000000L + t + c);
+         }
+      }
+      IndexSidecar.write(dir_, Arrays.asList("a.ome.tif", "b.ome.tif"),
+            Arrays.asList(a, b));
+
+      IndexSidecar index = IndexSidecar.open(dir_);
+      Assert.assertNotNull(index);
+      Assert.assertEquals(60, index.size());
+      Assert.assertEquals(2, index.getNumFiles());
+      Assert.assertEquals(new File(dir_, "b.ome.tif"), index.getFile(1));
+      for (HashMap<Coords, Long> map : Arrays.asList(a, b)) {
+         for (Coords c : map.keySet()) {
+            int entry = index.find(c);
+            Assert.assertTrue(entry >= 0);
+            Assert.assertEquals(c, index.getCoords(entry));
+            Assert.assertEquals((long) map.get(c), index.getOffset(entry));
+            Assert.assertEquals(map == a ? 0 : 1, index.getFileId(entry));
+         }
+      }
+      Assert.assertEquals(-1, index.find(coords(0, 1, 0, 0)));
+   }
+
+   @Test
+   public void testMismatchedFilesAreRejected() throws IOException {
+      makeFile("a.ome.tif", 100);
+      HashMap<Coords, Long> a = new HashMap<>();
+      a.put(coords(0, 0, 0, 0), 8L);
+      IndexSidecar.write(dir_, Arrays.asList("a.ome.tif"), Arrays.asList(a));
+      Assert.assertNotNull(IndexSidecar.open(dir_));
+
+      makeFile("a.ome.tif", 101);
+      Assert.assertNull(IndexSidecar.open(dir_));
+   }
+
+   @Test
+   public void testReopenedDatasetHasAnyImage() throws IOException {
+      String dir = new File(dir_, "dataset").getPath();
+      StorageMultipageTiff storage = new StorageMultipageTiff(null,
+            new DefaultDatastore(null), dir, true, false, false);
+      storage.setSummaryMetadata(new DefaultSummaryMetadata.Builder().build());
+      for (int t = 0; t < 3; t++) {
+         short[] pixels = new short[64 * 32];
+         Arrays.fill(pixels, (short) (t + 1));
+         storage.putImage(new DefaultImage(pixels, 64, 32, 2, 1,
+               coords(0, 0, t, 0), new DefaultMetadata.Builder().build()));
+      }
+      storage.freeze();
+      storage.close();
+      Assert.assertNotNull(IndexSidecar.open(new File(dir)));
+
+      // Opened through the sidecar, without reading the files' index maps
+      StorageMultipageTiff reopened = new StorageMultipageTiff(null,
+            new DefaultDatastore(null), dir, false, false, false);
+      try {
+         Image any = reopened.getAnyImage();
+         Assert.assertNotNull(any);
+         Assert.assertEquals(64, any.getWidth());
+         Assert.assertEquals(3, reopened.getNumImages());
+      }
+      finally {
+         reopened.close();
+      }
+   }
+}
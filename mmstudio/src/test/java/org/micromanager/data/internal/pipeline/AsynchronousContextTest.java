@@ -0,0 +1,103 @@
+package org.micromanager.data.internal.pipeline;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.micromanager.data.Image;
+import org.micromanager.data.Processor;
+import org.micromanager.data.ProcessorContext;
+import org.micromanager.data.internal.DefaultCoords;
+import org.micromanager.data.internal.DefaultImage;
+import org.micromanager.data.internal.DefaultMetadata;
+import static org.junit.Assert.*;
+
+public class AsynchronousContextTest {
+   /** Outputs two images per input, after a random delay. */
+   private static class DuplicatingProcessor implements Processor {
+      private final Random random_ = new Random(1);
+
+      @Override
+      public void processImage(Image image, ProcessorContext context) {
+         int delayMs;
+         synchronized (random_) {
+            delayMs = random_.nextInt(3);
+         }
+         try {
+            Thread.sleep(delayMs);
+         }
+         catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+         context.outputImage(image);
+         context.outputImage(image.copyAtCoords(
+               image.getCoords().copyBuilder().channel(1).build()));
+      }
+
+      @Override
+      public boolean isParallelSafe() {
+         return true;
+      }
+   }
+
+   /** Records what arrives, in order. */
+   private static class CollectingProcessor implements Processor {
+      final List<Image> images = Collections.synchronizedList(new ArrayList<>());
+      volatile boolean cleanedUp = false;
+
+      @Override
+      public void processImage(Image image, ProcessorContext context) {
+         images.add(image);
+      }
+
+      @Override
+      public void cleanup(ProcessorContext context) {
+         cleanedUp = true;
+      }
+   }
+
+   private static Image image(int time) {
+      return new DefaultImage(new byte[1], 1, 1, 1, 1,
+            new DefaultCoords.Builder().time(time).build(),
+            new DefaultMetadata.Builder().build());
+   }
+
+   @Test
+   public void testParallelOutputKeepsInputOrder() throws InterruptedException {
+      DefaultPipeline parent = new DefaultPipeline(
+            Collections.<Processor>emptyList(), null, false);
+      CollectingProcessor collector = new CollectingProcessor();
+      AsynchronousContext parallel = new AsynchronousContext(
+            new DuplicatingProcessor(), null, parent, 8, 4);
+      SynchronousContext sink = new SynchronousContext(collector, null, parent);
+      parallel.setSink(sink);
+      CountDownLatch latch = new CountDownLatch(2);
+      parallel.setFlushLatch(latch);
+      sink.setFlushLatch(latch);
+
+      int n = 200;
+      List<ImageWrapper> batch = new ArrayList<>();
+      for (int t = 0; t < n; ++t) {
+         batch.add(new ImageWrapper(image(t)));
+         if (batch.size() == 3) {
+            parallel.insertImages(batch);
+            batch = new ArrayList<>();
+         }
+      }
+      parallel.insertImages(batch);
+      parallel.insertImage(new ImageWrapper(null));
+      assertTrue(latch.await(10, TimeUnit.SECONDS));
+
+      assertTrue(collector.cleanedUp);
+      assertEquals(2 * n, collector.images.size());
+      for (int i = 0; i < 2 * n; ++i) {
+         Image image = collector.images.get(i);
+         assertEquals(i / 2, image.getCoords().getTime());
+         assertEquals(i % 2, image.getCoords().getChannel());
+      }
+      assertTrue(parent.getExceptions().isEmpty());
+   }
+}
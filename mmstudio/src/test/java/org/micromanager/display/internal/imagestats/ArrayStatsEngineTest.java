@@ -0,0 +1,168 @@
+package org.micromanager.display.internal.imagestats;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.micromanager.data.Image;
+import org.micromanager.data.internal.DefaultCoords;
+import org.micromanager.data.internal.DefaultImage;
+import org.micromanager.data.internal.DefaultMetadata;
+import static org.junit.Assert.*;
+
+public class ArrayStatsEngineTest {
+   private static short[] randomShorts(int length, int max, long seed) {
+      Random random = new Random(seed);
+      short[] result = new short[length];
+      for (int i = 0; i < length; ++i) {
+         result[i] = (short) random.nextInt(max + 1);
+      }
+      return result;
+   }
+
+   /** Straightforward per-sample computation to compare with. */
+   private static IntegerComponentStats reference(short[] pixels, int width,
+         int nComponents, int component, int bitDepth, int binCountPowerOf2,
+         Rectangle bounds, byte[] mask, Rectangle maskBounds)
+   {
+      int shift = bitDepth - binCountPowerOf2;
+      long[] histogram = new long[(1 << binCountPowerOf2) + 2];
+      long count = 0, sum = 0, ssq = 0;
+      long min = Long.MAX_VALUE, max = Long.MIN_VALUE;
+      for (int y = bounds.y; y < bounds.y + bounds.height; ++y) {
+         for (int x = bounds.x; x < bounds.x + bounds.width; ++x) {
+            if (mask != null && (mask[(y - maskBounds.y) * maskBounds.width +
+                  x - maskBounds.x] & 0xff) < 128) {
+               continue;
+            }
+            long v = pixels[(y * width + x) * nComponents + component] & 0xffff;
+            if (v > (1L << bitDepth) - 1) {
+               histogram[histogram.length - 1]++;
+            }
+            else {
+               histogram[(int) (v >> shift) + 1]++;
+            }
+            ++count;
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+            sum += v;
+            ssq += v * v;
+         }
+      }
+      return IntegerComponentStats.builder().histogram(histogram, shift).
+            pixelCount(count).minimum(min).maximum(max).sum(sum).
+            sumOfSquares(ssq).build();
+   }
+
+   private static void assertSameStats(IntegerComponentStats expected,
+         IntegerComponentStats actual)
+   {
+      assertArrayEquals(expected.getInRangeHistogram(),
+            actual.getInRangeHistogram());
+      assertEquals(expected.getPixelCountBelowRange(),
+            actual.getPixelCountBelowRange());
+      assertEquals(expected.getPixelCountAboveRange(),
+            actual.getPixelCountAboveRange());
+      assertEquals(expected.getPixelCount(), actual.getPixelCount());
+      assertEquals(expected.getMinIntensity(), actual.getMinIntensity());
+      assertEquals(expected.getMaxIntensity(), actual.getMaxIntensity());
+      assertEquals(expected.getMeanIntensity(), actual.getMeanIntensity());
+      assertEquals(expected.getSumOfSquares(), actual.getSumOfSquares());
+   }
+
+   @Test
+   public void testMatchesReference() throws InterruptedException {
+      int width = 1100, height = 1000;
+      // 12-bit camera with a few out-of-range values
+      short[] pixels = randomShorts(width * height, 4200, 1);
+      Rectangle bounds = new Rectangle(0, 0, width, height);
+      ExecutorService executor = Executors.newCachedThreadPool();
+      try {
+         for (ExecutorService ex : Arrays.asList(null, executor)) {
+            ImageStats stats = new ArrayStatsEngine(1, 12, 8).compute(
+                  pixels, width, bounds, null, null, false, 3, ex);
+            assertEquals(3, stats.getIndex());
+            assertSameStats(
+                  reference(pixels, width, 1, 0, 12, 8, bounds, null, null),
+                  stats.getComponentStats(0));
+         }
+      }
+      finally {
+         executor.shutdown();
+      }
+   }
+
+   @Test
+   public void testMaskAndComponents() throws InterruptedException {
+      int width = 64, height = 48, nComponents = 3;
+      short[] pixels = randomShorts(width * height * nComponents, 65535, 2);
+      Rectangle maskBounds = new Rectangle(10, 5, 30, 20);
+      byte[] mask = new byte[maskBounds.width * maskBounds.height];
+      for (int i = 0; i < mask.length; ++i) {
+         mask[i] = (byte) (i % 7 == 0 ? 200 : i % 5 == 0 ? 127 : 0);
+      }
+      Rectangle bounds = new Rectangle(10, 5, 30, 20);
+      assertTrue(ArrayStatsEngine.maskSelectsAny(mask, maskBounds, bounds));
+      ImageStats stats = new ArrayStatsEngine(nComponents, 16, 16).compute(
+            pixels, width, bounds, mask, maskBounds, true, 0, null);
+      for (int c = 0; c < nComponents; ++c) {
+         IntegerComponentStats expected = reference(pixels, width,
+               nComponents, c, 16, 16, bounds, mask, maskBounds);
+         assertSameStats(expected, stats.getComponentStats(c));
+         assertTrue(stats.getComponentStats(c).isROIStats());
+      }
+      assertFalse(ArrayStatsEngine.maskSelectsAny(new byte[mask.length],
+            maskBounds, bounds));
+   }
+
+   @Test
+   public void testBytes() throws InterruptedException {
+      byte[] pixels = { 0, 1, 2, (byte) 255 };
+      ImageStats stats = new ArrayStatsEngine(1, 8, 2).compute(pixels, 2,
+            new Rectangle(0, 0, 2, 2), null, null, false, 0, null);
+      IntegerComponentStats c = stats.getComponentStats(0);
+      assertArrayEquals(new long[] { 3, 0, 0, 1 }, c.getInRangeHistogram());
+      assertEquals(0, c.getMinIntensity());
+      assertEquals(255, c.getMaxIntensity());
+      assertEquals(4, c.getPixelCount());
+   }
+
+   /**
+    * Compares the array engine with the ImgLib2 cursor-based computation on
+    * a 2048x2048 16-bit image. Not run by default.
+    */
+   @Ignore
+   @Test
+   public void benchmarkAgainstCursors() throws InterruptedException {
+      int width = 2048, height = 2048;
+      short[] pixels = randomShorts(width * height, 65535, 3);
+      Image image = new DefaultImage(pixels, width, height, 2, 1,
+            new DefaultCoords.Builder().build(),
+            new DefaultMetadata.Builder().bitDepth(16).build());
+      ImageStatsRequest request = ImageStatsRequest.create(
+            new DefaultCoords.Builder().build(), Arrays.asList(image),
+            BoundsRectAndMask.unselected());
+      ImageStatsProcessor processor = ImageStatsProcessor.create();
+      try {
+         for (boolean useArrays : new boolean[] { false, true }) {
+            processor.setUseArrayEngine(useArrays);
+            for (int i = 0; i < 10; ++i) { // Warm up
+               processor.process(i, request, false);
+            }
+            int n = 50;
+            long start = System.nanoTime();
+            for (int i = 0; i < n; ++i) {
+               processor.process(i, request, false);
+            }
+            System.out.println((useArrays ? "Array engine: " : "Cursors: ") +
+                  (System.nanoTime() - start) / 1e6 / n + " ms per image");
+         }
+      }
+      finally {
+         processor.shutdown();
+      }
+   }
+}
@@ -0,0 +1,140 @@
+package org.micromanager.display.internal.imagestats;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+import org.micromanager.data.Image;
+import org.micromanager.data.internal.DefaultCoords;
+import org.micromanager.data.internal.DefaultImage;
+import org.micromanager.data.internal.DefaultMetadata;
+import static org.junit.Assert.*;
+
+public class StatsComputeQueueTest {
+   @Test
+   public void testResultsKeepArrivingUnderSteadySubmission()
+         throws Exception
+   {
+      int width = 1024, height = 1024;
+      Image image = new DefaultImage(new short[width * height], width, height,
+            2, 1, new DefaultCoords.Builder().build(),
+            new DefaultMetadata.Builder().bitDepth(16).build());
+      ImageStatsRequest request = ImageStatsRequest.create(
+            new DefaultCoords.Builder().build(), Arrays.asList(image),
+            BoundsRectAndMask.unselected());
+
+      final CountDownLatch results = new CountDownLatch(3);
+      StatsComputeQueue queue = StatsComputeQueue.create();
+      queue.addListener(new StatsComputeQueue.Listener() {
+         @Override
+         public long imageStatsReady(ImagesAndStats result) {
+            if (result.isRealStats()) {
+               results.countDown();
+            }
+            return 0;
+         }
+      });
+      try {
+         // Submit faster than stats can be computed; computations that have
+         // started must still be delivered
+         long deadlineNs = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+         while (results.getCount() > 0 && System.nanoTime() < deadlineNs) {
+            queue.submitRequest(request);
+            Thread.sleep(1);
+         }
+         assertEquals(0, results.getCount());
+      }
+      finally {
+         queue.shutdown();
+      }
+   }
+
+   @Test
+   public void testRunningComputationIsNotDropped() throws Exception {
+      StatsScheduler.Client client =
+            StatsScheduler.getInstance().createClient();
+      try {
+         final CountDownLatch started = new CountDownLatch(1);
+         final CountDownLatch release = new CountDownLatch(1);
+         final AtomicReference<Integer> result = new AtomicReference<>();
+         final AtomicBoolean interruptRestored = new AtomicBoolean(false);
+         Thread waiter = new Thread(() -> {
+            try {
+               result.set(StatsComputeQueue.computeUnlessSuperseded(client,
+                     () -> {
+                        started.countDown();
+                        release.await();
+                        return 1;
+                     }));
+            }
+            catch (Exception e) {
+               throw new RuntimeException(e);
+            }
+            interruptRestored.set(Thread.currentThread().isInterrupted());
+         });
+         waiter.start();
+         assertTrue(started.await(10, TimeUnit.SECONDS));
+
+         // Superseded while the computation runs
+         waiter.interrupt();
+         Thread.sleep(50);
+         release.countDown();
+         waiter.join(10000);
+         assertFalse(waiter.isAlive());
+         assertEquals(Integer.valueOf(1), result.get());
+         assertTrue(interruptRestored.get());
+      }
+      finally {
+         client.close();
+      }
+   }
+
+   @Test
+   public void testWaitingComputationIsDropped() throws Exception {
+      StatsScheduler.Client client =
+            StatsScheduler.getInstance().createClient();
+      try {
+         // A client runs one computation at a time, so the next one waits
+         final CountDownLatch started = new CountDownLatch(1);
+         final CountDownLatch release = new CountDownLatch(1);
+         Future<Integer> blocking = client.submit(() -> {
+            started.countDown();
+            release.await();
+            return 0;
+         });
+         assertTrue(started.await(10, TimeUnit.SECONDS));
+
+         final AtomicBoolean ran = new AtomicBoolean(false);
+         final AtomicReference<Integer> result = new AtomicReference<>(-1);
+         Thread waiter = new Thread(() -> {
+            try {
+               result.set(StatsComputeQueue.computeUnlessSuperseded(client,
+                     () -> {
+                        ran.set(true);
+                        return 2;
+                     }));
+            }
+            catch (Exception e) {
+               throw new RuntimeException(e);
+            }
+         });
+         waiter.start();
+         Thread.sleep(50);
+         waiter.interrupt();
+         waiter.join(10000);
+         assertFalse(waiter.isAlive());
+         assertNull(result.get());
+
+         release.countDown();
+         assertEquals(0, (int) blocking.get(10, TimeUnit.SECONDS));
+         Thread.sleep(50);
+         assertFalse(ran.get());
+      }
+      finally {
+         client.close();
+      }
+   }
+}
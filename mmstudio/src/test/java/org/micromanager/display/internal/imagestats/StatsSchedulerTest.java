@@ -0,0 +1,56 @@
+package org.micromanager.display.internal.imagestats;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class StatsSchedulerTest {
+   @Test
+   public void testNewerRequestReplacesWaitingOne() throws Exception {
+      StatsScheduler.Client client =
+            StatsScheduler.getInstance().createClient();
+      try {
+         CountDownLatch started = new CountDownLatch(1);
+         CountDownLatch release = new CountDownLatch(1);
+         Future<Integer> first = client.submit(() -> {
+            started.countDown();
+            release.await();
+            return 1;
+         });
+         assertTrue(started.await(10, TimeUnit.SECONDS));
+
+         // A client runs one request at a time, so these two wait
+         Future<Integer> second = client.submit(() -> 2);
+         Future<Integer> third = client.submit(() -> 3);
+         assertTrue(second.isCancelled());
+
+         release.countDown();
+         assertEquals(1, (int) first.get(10, TimeUnit.SECONDS));
+         assertEquals(3, (int) third.get(10, TimeUnit.SECONDS));
+      }
+      finally {
+         client.close();
+      }
+   }
+
+   @Test
+   public void testCloseCancelsWaitingRequest() throws Exception {
+      StatsScheduler.Client client =
+            StatsScheduler.getInstance().createClient();
+      CountDownLatch started = new CountDownLatch(1);
+      CountDownLatch release = new CountDownLatch(1);
+      Future<Integer> running = client.submit(() -> {
+         started.countDown();
+         release.await();
+         return 1;
+      });
+      assertTrue(started.await(10, TimeUnit.SECONDS));
+      Future<Integer> waiting = client.submit(() -> 2);
+      client.close();
+      release.countDown();
+      assertEquals(1, (int) running.get(10, TimeUnit.SECONDS));
+      assertTrue(waiting.isCancelled());
+   }
+}
@@ -0,0 +1,60 @@
+package org.micromanager.internal;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LiveImageRingTest {
+   @Test
+   public void testCompleteSets() {
+      LiveImageRing<String> ring = new LiveImageRing<>(2);
+      String[] set = new String[2];
+      assertEquals(-1, ring.takeLatest(-1, set));
+
+      assertFalse(ring.put(0, "a0"));
+      assertFalse(ring.put(0, "b0")); // Replaces a0
+      assertEquals(-1, ring.takeLatest(-1, set));
+      assertTrue(ring.put(1, "b1"));
+      assertEquals(0, ring.takeLatest(-1, set));
+      assertArrayEquals(new String[] { "b0", "b1" }, set);
+      assertEquals(-1, ring.takeLatest(0, set));
+   }
+
+   @Test
+   public void testSkipsToLatest() {
+      LiveImageRing<Integer> ring = new LiveImageRing<>(1);
+      Integer[] set = new Integer[1];
+      for (int i = 0; i < 10; ++i) {
+         assertTrue(ring.put(0, i));
+      }
+      assertEquals(9, ring.getLatestSetNumber());
+      assertEquals(9, ring.takeLatest(-1, set));
+      assertEquals(9, (int) set[0]);
+   }
+
+   @Test
+   public void testConcurrentReader() throws InterruptedException {
+      final int n = 200000;
+      final LiveImageRing<long[]> ring = new LiveImageRing<>(2);
+      Thread writer = new Thread(() -> {
+         for (long i = 0; i < n; ++i) {
+            ring.put(0, new long[] { i });
+            ring.put(1, new long[] { i });
+         }
+      });
+      writer.start();
+      long[][] set = new long[2][];
+      long last = -1;
+      while (last < n - 1) {
+         long taken = ring.takeLatest(last, set);
+         if (taken < 0) {
+            continue;
+         }
+         assertTrue(taken > last);
+         // Both channels must come from the same set
+         assertEquals(taken, set[0][0]);
+         assertEquals(taken, set[1][0]);
+         last = taken;
+      }
+      writer.join();
+   }
+}
@@ -0,0 +1,304 @@
+package org.micromanager.plugins.framecombiner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Folds 8 or 16 bit grayscale frames, one at a time, into running per-pixel
+ * statistics, so that combining N frames only needs memory for the
+ * statistics and not for the N frames.
+ *
+ * Mean and sum keep a running sum, min and max a running extremum, and
+ * standard deviation a running mean and sum of squared deviations (Welford's
+ * method). Median uses a remedian: frames go into a buffer of BASE values
+ * per pixel; each time it is full its median is passed up to the next
+ * level's buffer. This needs BASE * ceil(log_BASE(N)) values per pixel (15 for
+ * up to 125 frames), and gives the exact median for up to BASE frames and an
+ * approximation beyond that.
+ *
+ * Each frame is folded in parallel over stripes of rows. Not thread-safe;
+ * add() and getResult() must be called from one thread at a time.
+ */
+final class FrameAccumulator {
+   private static final int MEDIAN_BASE = 5;
+   // Below this, splitting a frame into stripes costs more than it saves
+   private static final int MIN_PIXELS_PER_STRIPE = 64 * 1024;
+   private static final int NUM_THREADS =
+         Runtime.getRuntime().availableProcessors();
+   private static final ExecutorService EXECUTOR =
+         Executors.newFixedThreadPool(NUM_THREADS, r -> {
+            Thread thread = new Thread(r, "FrameCombiner accumulator");
+            thread.setDaemon(true);
+            return thread;
+         });
+
+   private final String algo_;
+   private final int width_;
+   private final int height_;
+   private final int bytesPerPixel_;
+   private final int numPixels_;
+   private int count_ = 0;
+
+   // Mean and sum: running sum. Standard deviation: running mean.
+   private double[] sums_;
+   // Standard deviation: running sum of squared deviations from the mean
+   private double[] m2s_;
+   // Min and max
+   private int[] extrema_;
+   // Median: per level, MEDIAN_BASE values for each pixel, at
+   // [slot * numPixels_ + pixel], and how many slots are filled. Pixel
+   // values are at most 16 bit, so unsigned chars hold them.
+   private char[][] medianLevels_;
+   private int[] medianCounts_;
+
+   /**
+    * @param algo one of the FrameCombinerPlugin.PROCESSOR_ALGO_ constants
+    * @param numFrames number of frames that will be combined
+    * @throws IllegalArgumentException if the algorithm or pixel type is not
+    *         supported
+    */
+   FrameAccumulator(String algo, int width, int height, int bytesPerPixel,
+         int numFrames) {
+      if (bytesPerPixel != 1 && bytesPerPixel != 2) {
+         throw new IllegalArgumentException(
+               "FrameCombiner : only 8 and 16 bit grayscale images are supported");
+      }
+      algo_ = algo;
+      width_ = width;
+      height_ = height;
+      bytesPerPixel_ = bytesPerPixel;
+      numPixels_ = width * height;
+      if (algo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MEAN) ||
+            algo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_SUM)) {
+         sums_ = new double[numPixels_];
+      } else if (algo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_STD)) {
+         sums_ = new double[numPixels_];
+         m2s_ = new double[numPixels_];
+      } else if (algo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MAX) ||
+            algo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MIN)) {
+         extrema_ = new int[numPixels_];
+      } else if (algo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MEDIAN)) {
+         int numLevels = 1;
+         for (long capacity = MEDIAN_BASE; capacity < numFrames;
+               capacity *= MEDIAN_BASE) {
+            ++numLevels;
+         }
+         medianLevels_ = new char[numLevels][MEDIAN_BASE * numPixels_];
+         medianCounts_ = new int[numLevels];
+      } else {
+         throw new IllegalArgumentException("FrameCombiner : Algorithm called "
+               + algo_ + " is not implemented or not found.");
+      }
+   }
+
+   int getCount() {
+      return count_;
+   }
+
+   /**
+    * Fold one frame into the statistics.
+    *
+    * @param pixels byte[] or short[] pixels of a frame of this accumulator's
+    *        size and type
+    */
+   void add(final Object pixels) throws InterruptedException {
+      forEachStripe((start, end) -> foldStripe(pixels, start, end));
+      ++count_;
+      if (medianCounts_ != null) {
+         // Same carries as each pixel made in foldMedian()
+         for (int level = 0; level < medianCounts_.length; ++level) {
+            if (++medianCounts_[level] < MEDIAN_BASE ||
+                  level == medianCounts_.length - 1) {
+               break;
+            }
+            medianCounts_[level] = 0;
+         }
+      }
+   }
+
+   /**
+    * Compute the combined frame from the frames added so far.
+    *
+    * @return byte[] or short[] pixels of the combined frame
+    */
+   Object getResult() throws InterruptedException {
+      final Object result = bytesPerPixel_ == 1 ?
+            new byte[numPixels_] : new short[numPixels_];
+      forEachStripe((start, end) -> {
+         int[] values = new int[MEDIAN_BASE * (medianCounts_ == null ?
+               0 : medianCounts_.length)];
+         long[] weights = new long[values.length];
+         for (int i = start; i < end; ++i) {
+            setPixel(result, i, resultAt(i, values, weights));
+         }
+      });
+      return result;
+   }
+
+   private interface StripeTask {
+      void run(int start, int end);
+   }
+
+   private void forEachStripe(final StripeTask task)
+         throws InterruptedException {
+      int numStripes = Math.min(NUM_THREADS,
+            Math.max(1, numPixels_ / MIN_PIXELS_PER_STRIPE));
+      numStripes = Math.min(numStripes, Math.max(1, height_));
+      if (numStripes == 1) {
+         task.run(0, numPixels_);
+         return;
+      }
+      List<Callable<Void>> stripes = new ArrayList<>(numStripes);
+      for (int s = 0; s < numStripes; ++s) {
+         // Whole rows per stripe
+         final int start = (int) ((long) height_ * s / numStripes) * width_;
+         final int end = (int) ((long) height_ * (s + 1) / numStripes) * width_;
+         stripes.add(() -> {
+            task.run(start, end);
+            return null;
+         });
+      }
+      for (Future<Void> future : EXECUTOR.invokeAll(stripes)) {
+         try {
+            future.get();
+         } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+         }
+      }
+   }
+
+   private void foldStripe(Object pixels, int start, int end) {
+      boolean isFirst = count_ == 0;
+      if (sums_ != null && m2s_ == null) {
+         for (int i = start; i < end; ++i) {
+            sums_[i] += getPixel(pixels, i);
+         }
+      } else if (m2s_ != null) {
+         int n = count_ + 1;
+         for (int i = start; i < end; ++i) {
+            int value = getPixel(pixels, i);
+            double delta = value - sums_[i];
+            sums_[i] += delta / n;
+            m2s_[i] += delta * (value - sums_[i]);
+         }
+      } else if (extrema_ != null) {
+         boolean isMax = algo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_MAX);
+         for (int i = start; i < end; ++i) {
+            int value = getPixel(pixels, i);
+            if (isFirst) {
+               extrema_[i] = value;
+            } else if (isMax) {
+               extrema_[i] = Math.max(extrema_[i], value);
+            } else {
+               extrema_[i] = Math.min(extrema_[i], value);
+            }
+         }
+      } else {
+         int[] slots = new int[MEDIAN_BASE];
+         for (int i = start; i < end; ++i) {
+            foldMedian(i, getPixel(pixels, i), slots);
+         }
+      }
+   }
+
+   // Put the value in the lowest level; while a level fills up, pass its
+   // median on to the next one. medianCounts_ is updated by add() afterwards.
+   private void foldMedian(int pixel, int value, int[] slots) {
+      for (int level = 0; level < medianLevels_.length; ++level) {
+         char[] buffer = medianLevels_[level];
+         int count = medianCounts_[level];
+         buffer[count * numPixels_ + pixel] = (char) value;
+         if (count + 1 < MEDIAN_BASE || level == medianLevels_.length - 1) {
+            return;
+         }
+         for (int slot = 0; slot < MEDIAN_BASE; ++slot) {
+            slots[slot] = buffer[slot * numPixels_ + pixel];
+         }
+         insertionSort(slots, null, MEDIAN_BASE);
+         value = slots[MEDIAN_BASE / 2];
+      }
+   }
+
+   private int resultAt(int i, int[] values, long[] weights) {
+      if (sums_ != null && m2s_ == null) {
+         if (algo_.equals(FrameCombinerPlugin.PROCESSOR_ALGO_SUM)) {
+            return (int) sums_[i];
+         }
+         return (int) (sums_[i] / count_);
+      } else if (m2s_ != null) {
+         if (count_ < 2) {
+            return 0;
+         }
+         return (int) Math.round(Math.sqrt(m2s_[i] / (count_ - 1)));
+      } else if (extrema_ != null) {
+         return extrema_[i];
+      }
+      // Weighted median of the values left in the levels; a value in level
+      // L stands for MEDIAN_BASE^L frames
+      int n = 0;
+      long weight = 1;
+      long totalWeight = 0;
+      for (int level = 0; level < medianLevels_.length; ++level) {
+         for (int slot = 0; slot < medianCounts_[level]; ++slot) {
+            values[n] = medianLevels_[level][slot * numPixels_ + i];
+            weights[n] = weight;
+            totalWeight += weight;
+            ++n;
+         }
+         weight *= MEDIAN_BASE;
+      }
+      if (n == 0) {
+         return 0;
+      }
+      insertionSort(values, weights, n);
+      long cumulative = 0;
+      for (int k = 0; k < n; ++k) {
+         cumulative += weights[k];
+         if (2 * cumulative >= totalWeight) {
+            return values[k];
+         }
+      }
+      return values[n - 1];
+   }
+
+   // Sort the first n values (and their weights, if given) by value
+   private static void insertionSort(int[] values, long[] weights, int n) {
+      for (int k = 1; k < n; ++k) {
+         int value = values[k];
+         long weight = weights == null ? 0 : weights[k];
+         int j = k - 1;
+         while (j >= 0 && values[j] > value) {
+            values[j + 1] = values[j];
+            if (weights != null) {
+               weights[j + 1] = weights[j];
+            }
+            --j;
+         }
+         values[j + 1] = value;
+         if (weights != null) {
+            weights[j + 1] = weight;
+         }
+      }
+   }
+
+   private int getPixel(Object pixels, int i) {
+      if (bytesPerPixel_ == 1) {
+         return ((byte[]) pixels)[i] & 0xff;
+      }
+      return ((short[]) pixels)[i] & 0xffff;
+   }
+
+   // Values outside the pixel type's range wrap, as before for sums
+   private void setPixel(Object pixels, int i, int value) {
+      if (bytesPerPixel_ == 1) {
+         ((byte[]) pixels)[i] = (byte) value;
+      } else {
+         ((short[]) pixels)[i] = (short) value;
+      }
+   }
+}
@@ -91,10 +91,11 @@ public class FrameCombinerConfigurator extends JFrame implements ProcessorConfig
       jPanel1.add(jLabel2);
 
       processorAlgoBox_.addItem(FrameCombinerPlugin.PROCESSOR_ALGO_MEAN);
-      //processorAlgoBox_.addItem(FrameCombinerPlugin.PROCESSOR_ALGO_MEDIAN);
+      processorAlgoBox_.addItem(FrameCombinerPlugin.PROCESSOR_ALGO_MEDIAN);
       processorAlgoBox_.addItem(FrameCombinerPlugin.PROCESSOR_ALGO_SUM);
       processorAlgoBox_.addItem(FrameCombinerPlugin.PROCESSOR_ALGO_MAX);
       processorAlgoBox_.addItem(FrameCombinerPlugin.PROCESSOR_ALGO_MIN);
+      processorAlgoBox_.addItem(FrameCombinerPlugin.PROCESSOR_ALGO_STD);
       jPanel1.add(processorAlgoBox_);
 
       jLabel3.setText("<html>Avoid Channel(s) (zero-based)<br/><p style=\"text-align: center;\">eg. 1,2 or 1-5 (no space)</p></html>");
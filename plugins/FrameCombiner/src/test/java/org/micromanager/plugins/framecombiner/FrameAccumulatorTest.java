@@ -0,0 +1,178 @@
+package org.micromanager.plugins.framecombiner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FrameAccumulatorTest {
+
+   private static short[][] randomFrames(int numFrames, int numPixels,
+         Random random) {
+      short[][] frames = new short[numFrames][numPixels];
+      for (short[] frame : frames) {
+         for (int i = 0; i < numPixels; ++i) {
+            // Values above 32767 check that pixels are read unsigned
+            frame[i] = (short) (30000 + random.nextInt(10000));
+         }
+      }
+      return frames;
+   }
+
+   private static short[] combine(String algo, int width, int height,
+         short[][] frames) throws InterruptedException {
+      FrameAccumulator accumulator = new FrameAccumulator(algo, width, height,
+            2, frames.length);
+      for (short[] frame : frames) {
+         accumulator.add(frame);
+      }
+      Assert.assertEquals(frames.length, accumulator.getCount());
+      return (short[]) accumulator.getResult();
+   }
+
+   private static int[] pixelValues(short[][] frames, int i) {
+      int[] values = new int[frames.length];
+      for (int f = 0; f < frames.length; ++f) {
+         values[f] = frames[f][i] & 0xffff;
+      }
+      return values;
+   }
+
+   // Median of groups of 5, passed up a level each time a group is full;
+   // what is left at the end is combined as a median weighted by level
+   private static int remedian(int[] values) {
+      List<List<Integer>> levels = new ArrayList<>();
+      for (int value : values) {
+         int level = 0;
+         while (true) {
+            if (levels.size() == level) {
+               levels.add(new ArrayList<>());
+            }
+            List<Integer> buffer = levels.get(level);
+            buffer.add(value);
+            if (buffer.size() < 5 || (long) Math.pow(5, level + 1)
+                  >= values.length) {
+               break;
+            }
+            Integer[] sorted = buffer.toArray(new Integer[5]);
+            Arrays.sort(sorted);
+            value = sorted[2];
+            buffer.clear();
+            ++level;
+         }
+      }
+      List<long[]> weighted = new ArrayList<>();
+      long totalWeight = 0;
+      for (int level = 0; level < levels.size(); ++level) {
+         long weight = (long) Math.pow(5, level);
+         for (int value : levels.get(level)) {
+            weighted.add(new long[] {value, weight});
+            totalWeight += weight;
+         }
+      }
+      weighted.sort((a, b) -> Long.compare(a[0], b[0]));
+      long cumulative = 0;
+      for (long[] w : weighted) {
+         cumulative += w[1];
+         if (2 * cumulative >= totalWeight) {
+            return (int) w[0];
+         }
+      }
+      throw new AssertionError();
+   }
+
+   @Test
+   public void testStatisticsMatchDirectComputation()
+         throws InterruptedException {
+      Random random = new Random(1);
+      // Large enough to be split into stripes, and a small odd one
+      for (int[] size : new int[][] {{512, 300}, {7, 3}}) {
+         int width = size[0];
+         int height = size[1];
+         short[][] frames = randomFrames(10, width * height, random);
+         short[] mean = combine(FrameCombinerPlugin.PROCESSOR_ALGO_MEAN,
+               width, height, frames);
+         short[] sum = combine(FrameCombinerPlugin.PROCESSOR_ALGO_SUM,
+               width, height, frames);
+         short[] std = combine(FrameCombinerPlugin.PROCESSOR_ALGO_STD,
+               width, height, frames);
+         short[] min = combine(FrameCombinerPlugin.PROCESSOR_ALGO_MIN,
+               width, height, frames);
+         short[] max = combine(FrameCombinerPlugin.PROCESSOR_ALGO_MAX,
+               width, height, frames);
+         for (int i = 0; i < width * height; ++i) {
+            int[] values = pixelValues(frames, i);
+            long total = 0;
+            for (int value : values) {
+               total += value;
+            }
+            double average = (double) total / values.length;
+            double squares = 0.0;
+            for (int value : values) {
+               squares += (value - average) * (value - average);
+            }
+            int sd = (int) Math.round(Math.sqrt(squares / (values.length - 1)));
+            Assert.assertEquals((short) (total / values.length), mean[i]);
+            Assert.assertEquals((short) total, sum[i]);
+            Assert.assertEquals((short) sd, std[i]);
+            Assert.assertEquals((short) Arrays.stream(values).min().getAsInt(),
+                  min[i]);
+            Assert.assertEquals((short) Arrays.stream(values).max().getAsInt(),
+                  max[i]);
+         }
+      }
+   }
+
+   @Test
+   public void testStandardDeviationOfOneFrame() throws InterruptedException {
+      short[][] frames = randomFrames(1, 12, new Random(2));
+      Assert.assertArrayEquals(new short[12],
+            combine(FrameCombinerPlugin.PROCESSOR_ALGO_STD, 4, 3, frames));
+   }
+
+   @Test
+   public void testMedianIsExactUpToFiveFrames() throws InterruptedException {
+      Random random = new Random(3);
+      for (int numFrames = 1; numFrames <= 5; ++numFrames) {
+         short[][] frames = randomFrames(numFrames, 512 * 300, random);
+         short[] median = combine(FrameCombinerPlugin.PROCESSOR_ALGO_MEDIAN,
+               512, 300, frames);
+         for (int i = 0; i < 512 * 300; ++i) {
+            int[] values = pixelValues(frames, i);
+            Arrays.sort(values);
+            // The lower of the two middle values for even counts
+            Assert.assertEquals((short) values[(numFrames - 1) / 2],
+                  median[i]);
+         }
+      }
+   }
+
+   @Test
+   public void testMedianMatchesRemedian() throws InterruptedException {
+      Random random = new Random(4);
+      for (int numFrames : new int[] {6, 13, 25, 26, 49, 125, 130}) {
+         short[][] frames = randomFrames(numFrames, 40 * 30, random);
+         short[] median = combine(FrameCombinerPlugin.PROCESSOR_ALGO_MEDIAN,
+               40, 30, frames);
+         for (int i = 0; i < 40 * 30; ++i) {
+            Assert.assertEquals(numFrames + " frames",
+                  (short) remedian(pixelValues(frames, i)), median[i]);
+         }
+      }
+   }
+
+   @Test
+   public void testEightBit() throws InterruptedException {
+      byte[][] frames = {{(byte) 200, 1, 10}, {(byte) 250, 3, 20},
+            {(byte) 210, 2, 30}};
+      FrameAccumulator accumulator = new FrameAccumulator(
+            FrameCombinerPlugin.PROCESSOR_ALGO_MEDIAN, 3, 1, 1, frames.length);
+      for (byte[] frame : frames) {
+         accumulator.add(frame);
+      }
+      Assert.assertArrayEquals(new byte[] {(byte) 210, 2, 20},
+            (byte[]) accumulator.getResult());
+   }
+}
@@ -523,7 +523,7 @@ public class MainForm extends JFrame {
       
       fitMethodComboBox1_.setFont(gFont); 
       fitMethodComboBox1_.setModel(new DefaultComboBoxModel(
-              new String[] { "Simplex", "Levenberg-Marq", "Simplex-MLE", "LM-Weighted" }));
+              new String[] { "Simplex", "Levenberg-Marq", "Simplex-MLE", "LM-Weighted", "LM-MLE" }));
       fitMethodComboBox1_.setMinimumSize(dropDownSize);    
       fitMethodComboBox1_.setMaximumSize(dropDownSize);
       getContentPane().add(fitMethodComboBox1_, "gapright push, wrap");
@@ -75,7 +75,13 @@ public class FlipperProcessor implements Processor {
          }
       }
       context.outputImage(
-              transformImage(studio_, image, isMirrored_, rotation_));
+              transformImage(studio_, image, isMirrored_, rotation_, context));
+   }
+
+   @Override
+   public boolean isParallelSafe() {
+      // Each image is transformed on its own
+      return true;
    }
 
    /**
@@ -106,7 +112,95 @@ public class FlipperProcessor implements Processor {
       if (rotation == R270) {
          proc = proc.rotateLeft();
       }
-      // Insert some metadata to indicate what we did to the image.
+      Image result = studio.data().ij().createImage(proc, image.getCoords(),
+            transformMetadata(image, isMirrored, rotation));
+      return result;
+   }
+
+   /**
+    * As {@link #transformImage(Studio, Image, boolean, int)}, but takes the
+    * pixels from the processing context, so that grayscale images are
+    * transformed without allocating in the common case.
+    *
+    * @param context context through which the image was received
+    */
+   public static Image transformImage(Studio studio, Image image,
+         boolean isMirrored, int rotation, ProcessorContext context) {
+      if (image.getNumComponents() != 1 ||
+            image.getBytesPerPixel() > 2) {
+         return transformImage(studio, image, isMirrored, rotation);
+      }
+      Metadata newMetadata = transformMetadata(image, isMirrored, rotation);
+      if (!isMirrored && rotation == R0) {
+         return image.copyWithMetadata(newMetadata);
+      }
+      int width = image.getWidth();
+      int height = image.getHeight();
+      boolean isQuarterTurn = rotation == R90 || rotation == R270;
+      int newWidth = isQuarterTurn ? height : width;
+      int newHeight = isQuarterTurn ? width : height;
+
+      Object source = image.getRawPixels();
+      Object dest = context.allocatePixels(image, newWidth, newHeight);
+      transformPixels(source, dest, width, height, isMirrored, rotation);
+      context.recyclePixels(source);
+      return studio.data().wrapImage(dest, newWidth, newHeight,
+            image.getBytesPerPixel(), 1, image.getCoords(), newMetadata);
+   }
+
+   /**
+    * Copy pixels from source to dest, mirrored and then rotated clockwise
+    * by the given number of degrees.
+    */
+   private static void transformPixels(Object source, Object dest,
+         int width, int height, boolean isMirrored, int rotation) {
+      int firstX = isMirrored ? width - 1 : 0;
+      int xDirection = isMirrored ? -1 : 1;
+      for (int y = 0; y < height; ++y) {
+         // Index in dest of pixel (0, y) and step as x increases
+         int destIndex;
+         int step;
+         switch (rotation) {
+            case R90:
+               destIndex = firstX * height + (height - 1 - y);
+               step = xDirection * height;
+               break;
+            case R180:
+               destIndex = (height - 1 - y) * width + (width - 1 - firstX);
+               step = -xDirection;
+               break;
+            case R270:
+               destIndex = (width - 1 - firstX) * height + y;
+               step = -xDirection * height;
+               break;
+            default:
+               destIndex = y * width + firstX;
+               step = xDirection;
+               break;
+         }
+         int sourceIndex = y * width;
+         if (source instanceof byte[]) {
+            byte[] src = (byte[]) source;
+            byte[] dst = (byte[]) dest;
+            for (int x = 0; x < width; ++x) {
+               dst[destIndex] = src[sourceIndex++];
+               destIndex += step;
+            }
+         }
+         else {
+            short[] src = (short[]) source;
+            short[] dst = (short[]) dest;
+            for (int x = 0; x < width; ++x) {
+               dst[destIndex] = src[sourceIndex++];
+               destIndex += step;
+            }
+         }
+      }
+   }
+
+   // Insert some metadata to indicate what we did to the image.
+   private static Metadata transformMetadata(Image image, boolean isMirrored,
+         int rotation) {
       PropertyMap.Builder builder;
       PropertyMap userData = image.getMetadata().getUserData();
       if (userData != null) {
@@ -117,9 +211,6 @@ public class FlipperProcessor implements Processor {
       }
       builder.putInteger("ImageFlipper-Rotation", rotation);
       builder.putString("ImageFlipper-Mirror", isMirrored ? "On" : "Off");
-      Metadata newMetadata = image.getMetadata().copyBuilderPreservingUUID().userData(builder.build()).build();
-      Image result = studio.data().ij().createImage(proc, image.getCoords(),
-            newMetadata);
-      return result;
+      return image.getMetadata().copyBuilderPreservingUUID().userData(builder.build()).build();
    }
 }
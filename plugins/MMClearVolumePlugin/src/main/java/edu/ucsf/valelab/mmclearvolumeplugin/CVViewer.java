@@ -27,7 +27,6 @@ import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
 import com.jogamp.newt.NewtFactory;
 import coremem.enums.NativeTypeEnum;
-import coremem.fragmented.FragmentedMemory;
 
 import edu.ucsf.valelab.mmclearvolumeplugin.events.CanvasDrawCompleteEvent;
 
@@ -41,8 +40,6 @@ import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowFocusListener;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ShortBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -63,7 +60,6 @@ import org.micromanager.data.Image;
 import org.micromanager.data.Metadata;
 import org.micromanager.data.SummaryMetadata;
 import org.micromanager.data.internal.DefaultDatastoreClosingEvent;
-import org.micromanager.data.internal.DefaultImage;
 import org.micromanager.display.ChannelDisplaySettings;
 import org.micromanager.display.ComponentDisplaySettings;
 import org.micromanager.display.DataViewer;
@@ -91,8 +87,6 @@ import org.micromanager.display.internal.imagestats.ImageStatsProcessor;
 import org.micromanager.display.internal.imagestats.IntegerComponentStats;
 import org.micromanager.internal.utils.WindowPositioning;
 
-import static org.micromanager.data.internal.BufferTools.NATIVE_ORDER;
-
 
 /**
  * Micro-Manager DataViewer that shows 3D stack in the ClearVolume 3D Renderer
@@ -105,6 +99,7 @@ public class CVViewer implements DataViewer, ImageStatsPublisher {
    private ImageStatsProcessor imageStatsProcessor_;
    private final Studio studio_;
    private DataProvider dataProvider_;
+   private VolumeLoader volumeLoader_;
    private DataViewer clonedDisplay_;
    private ClearVolumeRendererInterface clearVolumeRenderer_;
    private String name_;
@@ -173,6 +168,7 @@ public class CVViewer implements DataViewer, ImageStatsPublisher {
          name_ = dataProvider_.getSummaryMetadata().getPrefix();
       }
 
+      volumeLoader_ = new VolumeLoader(dataProvider_);
       initializeRenderer(0, 0);
 
    }
@@ -323,6 +319,7 @@ public class CVViewer implements DataViewer, ImageStatsPublisher {
       dataProvider_.unregisterForEvents(this);
       studio_.events().unregisterForEvents(this);
       clearVolumeRenderer_.close();
+      volumeLoader_.close();
       cvFrame_.dispose();
       imageStatsProcessor_.shutdown();
    }
@@ -513,35 +510,21 @@ public class CVViewer implements DataViewer, ImageStatsPublisher {
       final int nrZ = dataProvider_.getNextIndex(Coords.Z);
       final int nrCh = dataProvider_.getNextIndex(Coords.CHANNEL);
 
+      final int width = randomImage.getWidth();
+      final int height = randomImage.getHeight();
+      final int bytesPerPixel = randomImage.getBytesPerPixel();
+
       clearVolumeRenderer_.setVolumeDataUpdateAllowed(false);
 
+      List<VolumeLoader.Volume> volumes = new ArrayList<>(nrCh);
       for (int ch = 0; ch < nrCh; ch++) {
-         FragmentedMemory fragmentedMemory = new FragmentedMemory();
-         for (int i = 0; i < nrZ; i++) {
-            Coords coords = Coordinates.builder().z(i).channel(ch).t(timePoint).
-                                                   stagePosition(position).build();
-            lastDisplayedCoords_ = coords;
-
-            // Bypass Micro-Manager api to get access to the pixels to avoid extra copying
-            DefaultImage image = (DefaultImage) dataProvider_.getImage(coords);
-
-            // add the contiguous memory as fragment:
-            if (image != null) {
-               if (image.getBytesPerPixel() == 1) {
-                  byte[] pixels = ((ByteBuffer) image.getPixelBuffer()).array();
-                  fragmentedMemory.add(ByteBuffer.allocateDirect(pixels.length).put(pixels));
-               } else if (image.getBytesPerPixel() == 2) {
-                  short[] pixels = ((ShortBuffer) image.getPixelBuffer()).array();
-                  fragmentedMemory.add(ByteBuffer.allocateDirect(2*pixels.length).order(NATIVE_ORDER).asShortBuffer().put(pixels));
-               }
-            } else {
-                // if the image is missing, replace with pixels initialized to 0
-                fragmentedMemory.add(ByteBuffer.allocateDirect(
-                        randomImage.getHeight() * 
-                        randomImage.getWidth() * 
-                        randomImage.getBytesPerPixel() ) );
-            }
-         }
+         // planes are loaded in parallel, or were prefetched while the
+         // previous time point was shown
+         VolumeLoader.Volume volume = volumeLoader_.load(ch, timePoint,
+                 position, nrZ, width, height, bytesPerPixel);
+         volumes.add(volume);
+         lastDisplayedCoords_ = Coordinates.builder().z(nrZ - 1).channel(ch).
+                 t(timePoint).stagePosition(position).build();
 
          // TODO: correct x and y voxel sizes using aspect ratio
          double pixelSizeUm = metadata.getPixelSizeUm();
@@ -557,9 +540,9 @@ public class CVViewer implements DataViewer, ImageStatsPublisher {
          clearVolumeRenderer_.setVolumeDataBuffer(0, 
                  TimeUnit.SECONDS, 
                  ch,
-                 fragmentedMemory,
-                 randomImage.getWidth(),
-                 randomImage.getHeight(),
+                 volume.getMemory(),
+                 width,
+                 height,
                  nrZ, 
                  pixelSizeUm,
                  pixelSizeUm, 
@@ -598,8 +581,23 @@ public class CVViewer implements DataViewer, ImageStatsPublisher {
       // This call used to time out, now appears to work      
       if (!clearVolumeRenderer_.waitToFinishAllDataBufferCopy(2, TimeUnit.SECONDS)) {
          studio_.logs().logError("ClearVolume timed out after 2 seconds");
+         // the renderer may still be copying, so do not reuse these planes
+      } else {
+         for (VolumeLoader.Volume volume : volumes) {
+            volumeLoader_.release(volume);
+         }
+      }
+
+      // Load the next time point while this one is shown.  Only once the
+      // data are complete, otherwise planes still to be acquired would be
+      // prefetched as empty planes
+      if (dataProvider_.isFrozen()
+            && timePoint + 1 < dataProvider_.getNextIndex(Coords.T)) {
+         for (int ch = 0; ch < nrCh; ch++) {
+            volumeLoader_.prefetch(ch, timePoint + 1, position, nrZ, width,
+                    height, bytesPerPixel);
+         }
       }
-  
    }
 
    /*
@@ -0,0 +1,342 @@
+/*
+ * Binding to ClearVolume 3D viewer View Micro-Manager datasets in 3D
+ *
+ * AUTHOR: Nico Stuurman COPYRIGHT: Regents of the University of California,
+ * 2015 - 2017
+ * LICENSE: This file is distributed under the BSD license. License text is
+ * included with the source distribution.
+ *
+ * This file is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR
+ * A PARTICULAR PURPOSE.
+ *
+ * IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+ */
+package edu.ucsf.valelab.mmclearvolumeplugin;
+
+import coremem.fragmented.FragmentedMemory;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.micromanager.data.Coordinates;
+import org.micromanager.data.Coords;
+import org.micromanager.data.DataProvider;
+import org.micromanager.data.Image;
+import org.micromanager.data.internal.DefaultImage;
+
+import static org.micromanager.data.internal.BufferTools.NATIVE_ORDER;
+
+/**
+ * Loads the z planes of one channel of a volume into direct memory, where the
+ * ClearVolume renderer needs them.
+ *
+ * Planes that already are in direct memory in native byte order, such as those
+ * read from memory-mapped files, are handed to the renderer as they are.  Other
+ * planes are copied into direct plane buffers that are reused once the
+ * renderer has copied the volume, rather than allocating new direct memory for
+ * every plane that is shown.  Planes are loaded in parallel, and the next time
+ * point can be loaded in the background while the current one is shown.
+ *
+ * @author nico
+ */
+final class VolumeLoader {
+   private static final int NUM_THREADS =
+         Runtime.getRuntime().availableProcessors();
+   private static final ExecutorService EXECUTOR =
+         Executors.newFixedThreadPool(NUM_THREADS, r -> {
+            Thread thread = new Thread(r, "ClearVolume plane loader");
+            thread.setDaemon(true);
+            return thread;
+         });
+
+   private final DataProvider dataProvider_;
+   // free plane buffers, all of planeBytes_ bytes
+   private final ArrayDeque<ByteBuffer> freePlanes_ = new ArrayDeque<>();
+   private int planeBytes_ = 0;
+   private final List<Volume> prefetched_ = new ArrayList<>();
+
+   /**
+    * One channel of a volume at a time point and position.
+    */
+   final class Volume {
+      private final int channel_;
+      private final int timePoint_;
+      private final int position_;
+      private final int width_;
+      private final int height_;
+      private final int bytesPerPixel_;
+      // the pixels of each plane, either in a plane buffer of ours or in
+      // the direct buffer of the image itself
+      private final Buffer[] planes_;
+      private final boolean[] ownPlanes_;
+      private final List<Future<Void>> tasks_ = new ArrayList<>();
+      private volatile boolean cancelled_ = false;
+
+      private Volume(int channel, int timePoint, int position, int nrZ,
+              int width, int height, int bytesPerPixel) {
+         channel_ = channel;
+         timePoint_ = timePoint;
+         position_ = position;
+         width_ = width;
+         height_ = height;
+         bytesPerPixel_ = bytesPerPixel;
+         planes_ = new Buffer[nrZ];
+         ownPlanes_ = new boolean[nrZ];
+      }
+
+      private boolean isFor(int channel, int timePoint, int position, int nrZ,
+              int width, int height, int bytesPerPixel) {
+         return channel_ == channel && timePoint_ == timePoint
+               && position_ == position && planes_.length == nrZ
+               && width_ == width && height_ == height
+               && bytesPerPixel_ == bytesPerPixel;
+      }
+
+      /**
+       * @return the planes, to be passed to the renderer.  Valid until the
+       *         volume is released.
+       */
+      FragmentedMemory getMemory() {
+         FragmentedMemory fragmentedMemory = new FragmentedMemory();
+         for (Buffer plane : planes_) {
+            // add the contiguous memory as fragment:
+            if (plane instanceof ShortBuffer) {
+               fragmentedMemory.add((ShortBuffer) plane);
+            } else {
+               fragmentedMemory.add((ByteBuffer) plane);
+            }
+         }
+         return fragmentedMemory;
+      }
+   }
+
+   VolumeLoader(DataProvider dataProvider) {
+      dataProvider_ = dataProvider;
+   }
+
+   /**
+    * Loads the planes of one channel, or takes them from the volume that was
+    * prefetched for it.  Prefetched volumes for other time points than this
+    * one and the next, or for other positions, are dropped.
+    *
+    * @return the volume; release it once the renderer copied it
+    * @throws IOException if a plane could not be read
+    */
+   Volume load(int channel, int timePoint, int position, int nrZ,
+           int width, int height, int bytesPerPixel) throws IOException {
+      Volume volume = null;
+      List<Volume> dropped = new ArrayList<>();
+      synchronized (this) {
+         for (Iterator<Volume> it = prefetched_.iterator(); it.hasNext(); ) {
+            Volume prefetched = it.next();
+            if (volume == null && prefetched.isFor(channel, timePoint, position,
+                    nrZ, width, height, bytesPerPixel)) {
+               volume = prefetched;
+               it.remove();
+            } else if (prefetched.position_ != position
+                  || (prefetched.timePoint_ != timePoint
+                     && prefetched.timePoint_ != timePoint + 1)) {
+               // needed neither for this time point nor for the next one
+               prefetched.cancelled_ = true;
+               dropped.add(prefetched);
+               it.remove();
+            }
+         }
+      }
+      for (Volume prefetched : dropped) {
+         finishAndRelease(prefetched);
+      }
+      if (volume == null) {
+         volume = start(channel, timePoint, position, nrZ, width, height,
+                 bytesPerPixel);
+      }
+      try {
+         await(volume);
+      } catch (IOException | RuntimeException e) {
+         release(volume);
+         throw e;
+      }
+      return volume;
+   }
+
+   /**
+    * Starts loading the planes of one channel in the background, so that load
+    * can return them right away.
+    */
+   void prefetch(int channel, int timePoint, int position, int nrZ,
+           int width, int height, int bytesPerPixel) {
+      synchronized (this) {
+         for (Volume prefetched : prefetched_) {
+            if (prefetched.isFor(channel, timePoint, position, nrZ, width,
+                    height, bytesPerPixel)) {
+               return;
+            }
+         }
+         prefetched_.add(start(channel, timePoint, position, nrZ, width,
+                 height, bytesPerPixel));
+      }
+   }
+
+   /**
+    * Makes the plane buffers of the volume available for other volumes.  Only
+    * call this once the renderer no longer uses the volume.
+    */
+   synchronized void release(Volume volume) {
+      for (int z = 0; z < volume.planes_.length; z++) {
+         if (volume.ownPlanes_[z]
+               && volume.planes_[z].capacity() == planeBytes_) {
+            freePlanes_.add((ByteBuffer) volume.planes_[z]);
+         }
+         volume.planes_[z] = null;
+      }
+   }
+
+   /**
+    * Stops prefetching and frees the plane buffers.
+    */
+   void close() {
+      List<Volume> dropped;
+      synchronized (this) {
+         dropped = new ArrayList<>(prefetched_);
+         prefetched_.clear();
+      }
+      for (Volume prefetched : dropped) {
+         prefetched.cancelled_ = true;
+         finishAndRelease(prefetched);
+      }
+      synchronized (this) {
+         freePlanes_.clear();
+      }
+   }
+
+   private Volume start(int channel, int timePoint, int position, int nrZ,
+           int width, int height, int bytesPerPixel) {
+      final Volume volume = new Volume(channel, timePoint, position, nrZ,
+              width, height, bytesPerPixel);
+      for (int z = 0; z < nrZ; z++) {
+         final int plane = z;
+         volume.tasks_.add(EXECUTOR.submit(() -> {
+            loadPlane(volume, plane);
+            return null;
+         }));
+      }
+      return volume;
+   }
+
+   private void loadPlane(Volume volume, int z) throws IOException {
+      if (volume.cancelled_) {
+         return;
+      }
+      Coords coords = Coordinates.builder().z(z).channel(volume.channel_).
+              t(volume.timePoint_).stagePosition(volume.position_).build();
+      Image image = dataProvider_.getImage(coords);
+      int nrPixels = volume.width_ * volume.height_;
+      Buffer pixels = null;
+      if (image != null && image.getWidth() == volume.width_
+            && image.getHeight() == volume.height_
+            && image.getBytesPerPixel() == volume.bytesPerPixel_) {
+         // Bypass Micro-Manager api to get access to the pixels to avoid extra copying
+         pixels = ((DefaultImage) image).getPixelBuffer();
+      }
+      if (pixels != null && pixels.isDirect() && pixels.capacity() == nrPixels
+            && (pixels instanceof ByteBuffer && volume.bytesPerPixel_ == 1
+               || pixels instanceof ShortBuffer && volume.bytesPerPixel_ == 2
+                  && ((ShortBuffer) pixels).order() == NATIVE_ORDER)) {
+         volume.planes_[z] = pixels;
+         return;
+      }
+
+      ByteBuffer plane = takePlane(nrPixels * volume.bytesPerPixel_);
+      volume.planes_[z] = plane;
+      volume.ownPlanes_[z] = true;
+      ByteBuffer target = plane.duplicate().order(NATIVE_ORDER);
+      if (pixels instanceof ByteBuffer && volume.bytesPerPixel_ == 1
+            && pixels.capacity() >= nrPixels) {
+         ByteBuffer source = ((ByteBuffer) pixels).duplicate();
+         source.clear().limit(nrPixels);
+         target.put(source);
+      } else if (pixels instanceof ShortBuffer && volume.bytesPerPixel_ == 2
+            && pixels.capacity() >= nrPixels) {
+         ShortBuffer source = ((ShortBuffer) pixels).duplicate();
+         source.clear().limit(nrPixels);
+         target.asShortBuffer().put(source);
+      } else {
+         // if the image is missing, replace with pixels set to 0; the plane
+         // buffer may hold pixels of an earlier volume
+         while (target.remaining() >= 8) {
+            target.putLong(0L);
+         }
+         while (target.hasRemaining()) {
+            target.put((byte) 0);
+         }
+      }
+   }
+
+   private synchronized ByteBuffer takePlane(int planeBytes) {
+      if (planeBytes != planeBytes_) {
+         freePlanes_.clear();
+         planeBytes_ = planeBytes;
+      }
+      ByteBuffer plane = freePlanes_.poll();
+      if (plane == null) {
+         plane = ByteBuffer.allocateDirect(planeBytes).order(NATIVE_ORDER);
+      }
+      return plane;
+   }
+
+   /**
+    * Waits for all planes of the volume.
+    *
+    * @throws IOException the first error reading a plane, after all planes
+    *         are done
+    */
+   private void await(Volume volume) throws IOException {
+      Throwable error = null;
+      boolean interrupted = false;
+      for (Future<Void> task : volume.tasks_) {
+         while (true) {
+            try {
+               task.get();
+               break;
+            } catch (InterruptedException e) {
+               // the tasks write into the plane buffers, so wait for them
+               interrupted = true;
+            } catch (ExecutionException e) {
+               if (error == null) {
+                  error = e.getCause();
+               }
+               break;
+            }
+         }
+      }
+      if (interrupted) {
+         Thread.currentThread().interrupt();
+      }
+      if (error instanceof IOException) {
+         throw (IOException) error;
+      } else if (error != null) {
+         throw new RuntimeException(error);
+      }
+   }
+
+   private void finishAndRelease(Volume volume) {
+      try {
+         await(volume);
+      } catch (IOException | RuntimeException e) {
+         // the volume is not used anyway
+      }
+      release(volume);
+   }
+}
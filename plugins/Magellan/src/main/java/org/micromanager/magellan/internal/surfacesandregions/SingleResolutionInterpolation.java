@@ -17,6 +17,7 @@
 
 package org.micromanager.magellan.internal.surfacesandregions;
 
+import java.awt.geom.Point2D;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
@@ -26,11 +27,17 @@ import org.apache.commons.math3.geometry.euclidean.twod.Vector2D;
 import org.apache.commons.math3.geometry.partitioning.Region;
 
 /**
+ * Interpolated values on a grid spanning the convex hull of a surface. For
+ * blocks of BLOCK_SIZE x BLOCK_SIZE grid points the lowest and highest values
+ * are kept too, so that the range of the surface over an XY position can be
+ * looked up without going through all of its points.
  *
  * @author Henry
  */
 public class SingleResolutionInterpolation {
    
+   private static final int BLOCK_SIZE = 16;
+
    private final int pixPerInterpPoint_;
    private final boolean[][] interpDefined_;
    private final float[][] interpolation_;
@@ -39,6 +46,9 @@ public class SingleResolutionInterpolation {
    private Region<Euclidean2D> convexHullRegion_;
    //for extrapolation
    private TreeSet<Vector2D> convexHullVertices_;
+   //lowest and highest value per block, NaN if the block has undefined points
+   private final int numBlocksX_, numBlocksY_;
+   private final float[] blockMin_, blockMax_;
 
    public SingleResolutionInterpolation(int pixPerPoint, boolean[][] defined, float[][] interp, float[][] normals, double boundXMin, double boundXMax, double boundYMin, double boundYMax, 
            Region<Euclidean2D> ch, Vector2D[] convexHullVertices ) {
@@ -65,6 +75,71 @@ public class SingleResolutionInterpolation {
          }
       });
       convexHullVertices_.addAll(Arrays.asList(convexHullVertices));
+      numBlocksX_ = interp.length == 0 ? 0 : (interp[0].length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+      numBlocksY_ = (interp.length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+      blockMin_ = new float[numBlocksX_ * numBlocksY_];
+      blockMax_ = new float[numBlocksX_ * numBlocksY_];
+      Arrays.fill(blockMin_, Float.POSITIVE_INFINITY);
+      Arrays.fill(blockMax_, Float.NEGATIVE_INFINITY);
+      for (int yInd = 0; yInd < interp.length; yInd++) {
+         int rowStart = (yInd / BLOCK_SIZE) * numBlocksX_;
+         for (int xInd = 0; xInd < interp[yInd].length; xInd++) {
+            int block = rowStart + xInd / BLOCK_SIZE;
+            //Math.min and max keep NaN, so undefined points make the whole block unusable
+            float value = defined[yInd][xInd] ? interp[yInd][xInd] : Float.NaN;
+            blockMin_[block] = Math.min(blockMin_[block], value);
+            blockMax_[block] = Math.max(blockMax_[block], value);
+         }
+      }
+   }
+
+   /**
+    * Range of the interpolated values at all points that
+    * isInterpDefined/getInterpolatedValue can return for positions inside the
+    * polygon with these corners.
+    *
+    * @param corners corners of an XY position
+    * @return lowest and highest value, or null if the position is not
+    * completely inside the convex hull or not every point near it is defined
+    */
+   public float[] getValueRange(Point2D.Double[] corners) {
+      if (interpolation_.length == 0) {
+         return null;
+      }
+      double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+      double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+      for (Point2D.Double corner : corners) {
+         //the hull is convex, so all of the position is inside it if its corners are
+         if (!isInsideConvexHull(corner.x, corner.y)) {
+            return null;
+         }
+         minX = Math.min(minX, corner.x);
+         maxX = Math.max(maxX, corner.x);
+         minY = Math.min(minY, corner.y);
+         maxY = Math.max(maxY, corner.y);
+      }
+      int numInterpPointsX = interpolation_[0].length;
+      int numInterpPointsY = interpolation_.length;
+      //one point of margin for the rounding of getInterpolatedValue
+      int xIndexMin = (int) Math.floor(((minX - boundXMin_) / (boundXMax_ - boundXMin_)) * (numInterpPointsX - 1)) - 1;
+      int xIndexMax = (int) Math.ceil(((maxX - boundXMin_) / (boundXMax_ - boundXMin_)) * (numInterpPointsX - 1)) + 1;
+      int yIndexMin = (int) Math.floor(((minY - boundYMin_) / (boundYMax_ - boundYMin_)) * (numInterpPointsY - 1)) - 1;
+      int yIndexMax = (int) Math.ceil(((maxY - boundYMin_) / (boundYMax_ - boundYMin_)) * (numInterpPointsY - 1)) + 1;
+      int blockXMin = Math.max(0, xIndexMin) / BLOCK_SIZE;
+      int blockXMax = Math.min(numInterpPointsX - 1, xIndexMax) / BLOCK_SIZE;
+      int blockYMin = Math.max(0, yIndexMin) / BLOCK_SIZE;
+      int blockYMax = Math.min(numInterpPointsY - 1, yIndexMax) / BLOCK_SIZE;
+      float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+      for (int blockY = blockYMin; blockY <= blockYMax; blockY++) {
+         for (int blockX = blockXMin; blockX <= blockXMax; blockX++) {
+            min = Math.min(min, blockMin_[blockY * numBlocksX_ + blockX]);
+            max = Math.max(max, blockMax_[blockY * numBlocksX_ + blockX]);
+         }
+      }
+      if (Float.isNaN(min) || Float.isNaN(max) || min > max) {
+         return null;
+      }
+      return new float[] {min, max};
    }
    
    public int getPixelsPerInterpPoint() {
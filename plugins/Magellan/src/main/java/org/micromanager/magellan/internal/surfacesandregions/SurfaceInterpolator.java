@@ -20,10 +20,14 @@ import java.awt.geom.AffineTransform;
 import java.awt.geom.NoninvertibleTransformException;
 import java.awt.geom.Point2D;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadFactory;
+import java.util.function.IntConsumer;
 
 import org.micromanager.magellan.internal.main.Magellan;
 import org.micromanager.magellan.internal.misc.Log;
@@ -46,6 +50,11 @@ public abstract class SurfaceInterpolator extends XYFootprint {
 
    private static final int ABOVE_SURFACE = 0;
    private static final int BELOW_SURFACE = 1;
+   //number of XY positions tested for overlap with the convex hull per task
+   private static final int POSITIONS_PER_TASK = 64;
+   //shared by all surfaces for calculations that are split into independent tiles
+   private static final ForkJoinPool CALCULATION_POOL = new ForkJoinPool(
+           Runtime.getRuntime().availableProcessors());
 
    //surface coordinates are neccessarily associated with the coordinate space of particular xy and z devices
    private final String zDeviceName_;
@@ -175,14 +184,98 @@ public abstract class SurfaceInterpolator extends XYFootprint {
    }
 
    public boolean isDefinedAtPosition(Point2D.Double[] dispPositionCorners) {
-      //create square region correpsonding to stage pos
-      Region<Euclidean2D> square = getStagePositionRegion(dispPositionCorners);
-      //if convex hull and position have no intersection, delete
-      Region<Euclidean2D> intersection = regionFactory_.intersection(square, convexHullRegion_);
-      if (intersection.isEmpty()) {
+      return overlapsConvexHull(dispPositionCorners, convexHullVertices_);
+   }
+
+   /**
+    * Same result as intersecting the region of the position with the convex
+    * hull region and checking that the intersection is not empty, but without
+    * building BSP trees: two convex polygons overlap unless an edge of one of
+    * them separates them (separating axis theorem). Touching polygons do not
+    * overlap, like an intersection of zero area is empty.
+    *
+    * @param corners corners of a position, in order around it
+    * @param hullVertices convex hull vertices, in order around it
+    */
+   static boolean overlapsConvexHull(Point2D.Double[] corners, Vector2D[] hullVertices) {
+      if (hullVertices == null || hullVertices.length < 3) {
          return false;
-      } else {
-         return true;
+      }
+      double[] cornerXs = new double[corners.length];
+      double[] cornerYs = new double[corners.length];
+      for (int i = 0; i < corners.length; i++) {
+         cornerXs[i] = corners[i].x;
+         cornerYs[i] = corners[i].y;
+      }
+      double[] hullXs = new double[hullVertices.length];
+      double[] hullYs = new double[hullVertices.length];
+      for (int i = 0; i < hullVertices.length; i++) {
+         hullXs[i] = hullVertices[i].getX();
+         hullYs[i] = hullVertices[i].getY();
+      }
+      return !hasSeparatingEdge(cornerXs, cornerYs, hullXs, hullYs)
+              && !hasSeparatingEdge(hullXs, hullYs, cornerXs, cornerYs);
+   }
+
+   //whether the normal of an edge of polygon a is an axis on which a and b do not overlap
+   static boolean hasSeparatingEdge(double[] aXs, double[] aYs, double[] bXs, double[] bYs) {
+      for (int i = 0; i < aXs.length; i++) {
+         int next = (i + 1) % aXs.length;
+         double normalX = aYs[next] - aYs[i];
+         double normalY = aXs[i] - aXs[next];
+         if (normalX == 0 && normalY == 0) {
+            continue;
+         }
+         double aMin = Double.POSITIVE_INFINITY, aMax = Double.NEGATIVE_INFINITY;
+         for (int j = 0; j < aXs.length; j++) {
+            double projection = aXs[j] * normalX + aYs[j] * normalY;
+            aMin = Math.min(aMin, projection);
+            aMax = Math.max(aMax, projection);
+         }
+         double bMin = Double.POSITIVE_INFINITY, bMax = Double.NEGATIVE_INFINITY;
+         for (int j = 0; j < bXs.length; j++) {
+            double projection = bXs[j] * normalX + bYs[j] * normalY;
+            bMin = Math.min(bMin, projection);
+            bMax = Math.max(bMax, projection);
+         }
+         if (aMax <= bMin || bMax <= aMin) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Runs task for tiles 0 to numTiles - 1 on the pool shared by all surfaces
+    * and waits until all are done. Once the calling thread is interrupted,
+    * tiles that have not started yet are skipped.
+    *
+    * @throws InterruptedException if the calling thread was interrupted, in
+    * which case not all tiles may have been calculated
+    */
+   protected static void forEachTile(int numTiles, final IntConsumer task) throws InterruptedException {
+      final Thread caller = Thread.currentThread();
+      List<Callable<Void>> tiles = new ArrayList<Callable<Void>>(numTiles);
+      for (int i = 0; i < numTiles; i++) {
+         final int tile = i;
+         tiles.add(() -> {
+            if (!caller.isInterrupted()) {
+               task.accept(tile);
+            }
+            return null;
+         });
+      }
+      //waiting for the pool is not interruptible, the tasks check for interruption instead
+      List<Future<Void>> futures = CALCULATION_POOL.invokeAll(tiles);
+      if (Thread.interrupted()) {
+         throw new InterruptedException();
+      }
+      for (Future<Void> future : futures) {
+         try {
+            future.get();
+         } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+         }
       }
    }
 
@@ -232,22 +325,32 @@ public abstract class SurfaceInterpolator extends XYFootprint {
          Log.log("Couldn't get focus direction of Z drive. Configre using Tools--Hardware Configuration Wizard");
          throw new RuntimeException();
       }
+      //zPos fails the test if it is at least the surface value in this case, at most the surface value otherwise
+      boolean failIfAtLeast = (towardsSampleIsPositive && mode == ABOVE_SURFACE)
+              || (!towardsSampleIsPositive && mode == BELOW_SURFACE);
+      SingleResolutionInterpolation interpolation = surface.getCurentInterpolation();
+      //the range of the surface over the whole position decides most cases without testing points
+      float[] range = interpolation.getValueRange(positionCorners);
+      if (range != null) {
+         if (failIfAtLeast ? zPos >= range[1] : zPos <= range[0]) {
+            return false;
+         } else if (failIfAtLeast ? zPos < range[0] : zPos > range[1]) {
+            return true;
+         }
+      }
       //First check position corners before going into a more detailed set of test points
       for (Point2D.Double point : positionCorners) {
          float interpVal;
-         if (!surface.getCurentInterpolation().isInterpDefined(point.x, point.y)) {
+         if (!interpolation.isInterpDefined(point.x, point.y)) {
             if (extrapolate) {
                interpVal = surface.getExtrapolatedValue(point.x, point.y);
             } else {
                continue;
             }
          } else {
-            interpVal = surface.getCurentInterpolation().getInterpolatedValue(point.x, point.y);
+            interpVal = interpolation.getInterpolatedValue(point.x, point.y);
          }
-         if ((towardsSampleIsPositive && mode == ABOVE_SURFACE && zPos >= interpVal)
-                 || (towardsSampleIsPositive && mode == BELOW_SURFACE && zPos <= interpVal)
-                 || (!towardsSampleIsPositive && mode == ABOVE_SURFACE && zPos <= interpVal)
-                 || (!towardsSampleIsPositive && mode == BELOW_SURFACE) && zPos >= interpVal) {
+         if (failIfAtLeast ? zPos >= interpVal : zPos <= interpVal) {
             return false;
          }
       }
@@ -263,33 +366,31 @@ public abstract class SurfaceInterpolator extends XYFootprint {
       } catch (NoninvertibleTransformException ex) {
          Log.log("Problem inverting affine transform");
       }
-      outerloop:
+      //convert these abritray pixel coordinates back to stage coordinates
+      double[] transformMaxtrix = new double[6];
+      transform.getMatrix(transformMaxtrix);
+      transformMaxtrix[4] = positionCorners[0].getX();
+      transformMaxtrix[5] = positionCorners[0].getY();
+      //create new transform with translation applied
+      transform = new AffineTransform(transformMaxtrix);
+      Point2D.Double pixelCoords = new Point2D.Double();
+      Point2D.Double stageCoords = new Point2D.Double();
       for (double x = 0; x <= pixelSpan.x; x += pixelSpan.x / (double) NUM_XY_TEST_POINTS) {
          for (double y = 0; y <= pixelSpan.y; y += pixelSpan.y / (double) NUM_XY_TEST_POINTS) {
-            //convert these abritray pixel coordinates back to stage coordinates
-            double[] transformMaxtrix = new double[6];
-            transform.getMatrix(transformMaxtrix);
-            transformMaxtrix[4] = positionCorners[0].getX();
-            transformMaxtrix[5] = positionCorners[0].getY();
-            //create new transform with translation applied
-            transform = new AffineTransform(transformMaxtrix);
-            Point2D.Double stageCoords = new Point2D.Double();
-            transform.transform(new Point2D.Double(x, y), stageCoords);
+            pixelCoords.setLocation(x, y);
+            transform.transform(pixelCoords, stageCoords);
             //test point for inclusion of position
             float interpVal;
-            if (!surface.getCurentInterpolation().isInterpDefined(stageCoords.x, stageCoords.y)) {
+            if (!interpolation.isInterpDefined(stageCoords.x, stageCoords.y)) {
                if (extrapolate) {
                   interpVal = surface.getExtrapolatedValue(stageCoords.x, stageCoords.y);
                } else {
                   continue;
                }
             } else {
-               interpVal = surface.getCurentInterpolation().getInterpolatedValue(stageCoords.x, stageCoords.y);
+               interpVal = interpolation.getInterpolatedValue(stageCoords.x, stageCoords.y);
             }
-            if ((towardsSampleIsPositive && mode == ABOVE_SURFACE && zPos >= interpVal)
-                    || (towardsSampleIsPositive && mode == BELOW_SURFACE && zPos <= interpVal)
-                    || (!towardsSampleIsPositive && mode == ABOVE_SURFACE && zPos <= interpVal)
-                    || (!towardsSampleIsPositive && mode == BELOW_SURFACE) && zPos >= interpVal) {
+            if (failIfAtLeast ? zPos >= interpVal : zPos <= interpVal) {
                return false;
             }
          }
@@ -393,24 +494,22 @@ public abstract class SurfaceInterpolator extends XYFootprint {
             }
          }
       }
-      //delete positions squares (+padding) that do not overlap convex hull
-      for (int i = positions.size() - 1; i >= 0; i--) {
-         if (Thread.interrupted()) {
-            throw new InterruptedException();
+      //delete positions squares (+padding) that do not overlap convex hull, testing chunks of positions in parallel
+      final Vector2D[] hullVertices = convexHullVertices_;
+      final List<XYStagePosition> allPositions = positions;
+      final boolean[] overlapsHull = new boolean[allPositions.size()];
+      forEachTile((allPositions.size() + POSITIONS_PER_TASK - 1) / POSITIONS_PER_TASK, (int chunk) -> {
+         int end = Math.min(allPositions.size(), (chunk + 1) * POSITIONS_PER_TASK);
+         for (int i = chunk * POSITIONS_PER_TASK; i < end; i++) {
+            overlapsHull[i] = overlapsConvexHull(
+                    allPositions.get(i).getVisibleTileCorners(overlapX, overlapY), hullVertices);
          }
-         XYStagePosition pos = positions.get(i);
-         //create square region correpsonding to stage pos
-         Region<Euclidean2D> square = getStagePositionRegion(
-                 pos.getVisibleTileCorners(overlapX, overlapY));
-         //if convex hull and position have no intersection, delete
-         Region<Euclidean2D> intersection = regionFactory_.intersection(square, convexHullRegion_);
-         if (intersection.isEmpty()) {
-            positions.remove(i);
+      });
+      positions = new ArrayList<XYStagePosition>();
+      for (int i = 0; i < overlapsHull.length; i++) {
+         if (overlapsHull[i]) {
+            positions.add(allPositions.get(i));
          }
-         square.getBoundarySize();
-      }
-      if (Thread.interrupted()) {
-         throw new InterruptedException();
       }
       synchronized (xyPositionLock_) {
          xyPositions_ = positions;
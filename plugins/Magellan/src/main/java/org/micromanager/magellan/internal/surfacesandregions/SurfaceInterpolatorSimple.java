@@ -19,13 +19,19 @@ package org.micromanager.magellan.internal.surfacesandregions;
 import delaunay_triangulation.Delaunay_Triangulation;
 import delaunay_triangulation.Point_dt;
 import delaunay_triangulation.Triangle_dt;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.TreeSet;
 import org.micromanager.magellan.internal.main.Magellan;
 import org.apache.commons.math3.geometry.euclidean.threed.Line;
 import org.apache.commons.math3.geometry.euclidean.threed.Plane;
 import org.apache.commons.math3.geometry.euclidean.threed.Vector3D;
+import org.apache.commons.math3.geometry.euclidean.twod.Euclidean2D;
 import org.apache.commons.math3.geometry.euclidean.twod.Vector2D;
 import org.apache.commons.math3.geometry.partitioning.Region;
 
@@ -33,10 +39,24 @@ import org.apache.commons.math3.geometry.partitioning.Region;
  * Subclass that implements a particular interpolation method This one creates a
  * plane based on the 3 closest points in XY space using the delaunay
  * triangulation and calculates specific z values in that plane
+ * 
+ * Tiles of the interpolation grid are calculated in parallel. When points are
+ * added or removed without changing the convex hull, only the tiles around
+ * them are recalculated, starting from the previous finest interpolation.
  */
 public class SurfaceInterpolatorSimple extends SurfaceInterpolator {
 
    private static final double TOLERANCE = 0.01;
+   //interpolation points per side of the tiles calculated in parallel
+   private static final int TILE_SIZE = 32;
+
+   //the finest interpolation calculated last, and what it was calculated from.
+   //Only used on the interpolation calculation thread
+   private InterpolationGrid lastGrid_;
+   private Delaunay_Triangulation lastTriangulation_;
+   private List<Point3d> lastPoints_;
+   private Vector2D[] lastHullVertices_;
+   private double lastPixelSize_;
 
    public SurfaceInterpolatorSimple(String xyName, String zName) {
       super(xyName, zName);
@@ -54,7 +74,33 @@ public class SurfaceInterpolatorSimple extends SurfaceInterpolator {
          triangulationPoints[i] = new Point_dt(points.get(i).x, points.get(i).y, points.get(i).z);
       }
       Delaunay_Triangulation dTri = new Delaunay_Triangulation(triangulationPoints);
+      //these do not change until this calculation is done or cancelled
+      Region<Euclidean2D> hullRegion = convexHullRegion_;
+      Vector2D[] hullVertices = convexHullVertices_;
 
+      InterpolationGrid finest;
+      if (lastGrid_ != null && pixSize == lastPixelSize_ && Arrays.equals(hullVertices, lastHullVertices_)) {
+         finest = reinterpolateChanges(points, dTri, hullRegion);
+      } else {
+         finest = interpolateProgressively(pixSize, dTri, hullRegion);
+      }
+      if (finest != null) {
+         lastGrid_ = finest;
+         lastTriangulation_ = dTri;
+         lastPoints_ = new ArrayList<Point3d>(points);
+         lastHullVertices_ = hullVertices;
+         lastPixelSize_ = pixSize;
+      }
+   }
+
+   /**
+    * Interpolates the whole surface at finer and finer resolutions, publishing
+    * each one as soon as it is done
+    *
+    * @return the finest interpolation, or null if there is none
+    */
+   private InterpolationGrid interpolateProgressively(double pixSize, Delaunay_Triangulation dTri,
+           Region<Euclidean2D> hullRegion) throws InterruptedException {
       int maxPixelDimension = (int) (Math.max(boundXMax_ - boundXMin_, boundYMax_ - boundYMin_) / pixSize);
       //Start with at least 20 interp points and go smaller and smaller until every pixel interped?
       int pixelsPerInterpPoint = 1;
@@ -71,54 +117,211 @@ public class SurfaceInterpolatorSimple extends SurfaceInterpolator {
       double maxPixels = 0.2 * 1024 * 1024 * 1024 / 4.0; //200 MB worth of floats
       minPixelsPerInterpPoint_ = Math.max(2, (int)(pixelRes / maxPixels));
       
+      InterpolationGrid grid = null;
       while (pixelsPerInterpPoint >= minPixelsPerInterpPoint_) {
          int numInterpPointsX = (int) (((boundXMax_ - boundXMin_) / pixSize) / pixelsPerInterpPoint);
          int numInterpPointsY = (int) (((boundYMax_ - boundYMin_) / pixSize) / pixelsPerInterpPoint);
-         double dx = (boundXMax_ - boundXMin_) / (numInterpPointsX - 1);
-         double dy = (boundYMax_ - boundYMin_) / (numInterpPointsY - 1);
-
-         float[][] interpVals = new float[numInterpPointsY][numInterpPointsX];
-         float[][] interpNormals = new float[numInterpPointsY][numInterpPointsX];
-         boolean[][] interpDefined = new boolean[numInterpPointsY][numInterpPointsX];
-         for (int yInd = 0; yInd < interpVals.length; yInd++) {
-            for (int xInd = 0; xInd < interpVals[0].length; xInd++) {
-               if (Thread.interrupted()) {
-                  throw new InterruptedException();
+         grid = new InterpolationGrid(pixelsPerInterpPoint, numInterpPointsX, numInterpPointsY,
+                 boundXMin_, boundXMax_, boundYMin_, boundYMax_);
+         grid.interpolate(dTri, hullRegion, 0, numInterpPointsX - 1, 0, numInterpPointsY - 1);
+         publish(grid, hullRegion);
+//         System.gc();
+         pixelsPerInterpPoint /= 2;
+      }
+      return grid;
+   }
+
+   /**
+    * Recalculates only the part of the last finest interpolation in which the
+    * triangles changed: around the points that were added or removed since.
+    * Rows that do not change are shared with the last interpolation.
+    *
+    * @return the new finest interpolation
+    */
+   private InterpolationGrid reinterpolateChanges(List<Point3d> points, Delaunay_Triangulation dTri,
+           Region<Euclidean2D> hullRegion) throws InterruptedException {
+      TreeSet<Point3d> removed = new TreeSet<Point3d>(points_.comparator());
+      removed.addAll(lastPoints_);
+      List<Point3d> changed = new ArrayList<Point3d>();
+      for (Point3d point : points) {
+         if (!removed.remove(point)) {
+            changed.add(point);
+         }
+      }
+      changed.addAll(removed);
+      if (changed.isEmpty()) {
+         publish(lastGrid_, hullRegion);
+         return lastGrid_;
+      }
+      //only triangles with a changed point as vertex differ between the triangulations
+      double[] bounds = {Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+         Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+      addTrianglesAroundPoints(lastTriangulation_, changed, bounds);
+      addTrianglesAroundPoints(dTri, changed, bounds);
+      if (Thread.interrupted()) {
+         throw new InterruptedException();
+      }
+
+      InterpolationGrid last = lastGrid_;
+      int numInterpPointsX = last.values.length == 0 ? 0 : last.values[0].length;
+      int numInterpPointsY = last.values.length;
+      //one extra point on each side for rounding
+      int xIndMin = Math.max(0, (int) Math.floor((bounds[0] - last.xMin) / last.dx) - 1);
+      int xIndMax = Math.min(numInterpPointsX - 1, (int) Math.ceil((bounds[1] - last.xMin) / last.dx) + 1);
+      int yIndMin = Math.max(0, (int) Math.floor((bounds[2] - last.yMin) / last.dy) - 1);
+      int yIndMax = Math.min(numInterpPointsY - 1, (int) Math.ceil((bounds[3] - last.yMin) / last.dy) + 1);
+      if (xIndMin > xIndMax || yIndMin > yIndMax) {
+         publish(last, hullRegion);
+         return last;
+      }
+      InterpolationGrid grid = new InterpolationGrid(last, yIndMin, yIndMax);
+      grid.interpolate(dTri, hullRegion, xIndMin, xIndMax, yIndMin, yIndMax);
+      publish(grid, hullRegion);
+      return grid;
+   }
+
+   /**
+    * Extends bounds (x min, x max, y min, y max) with the triangles that have
+    * one of the points as a vertex
+    */
+   private static void addTrianglesAroundPoints(Delaunay_Triangulation dTri, List<Point3d> points,
+           double[] bounds) {
+      Iterator<Triangle_dt> triangles = dTri.trianglesIterator();
+      while (triangles.hasNext()) {
+         Triangle_dt tri = triangles.next();
+         if (tri.isHalfplane()) {
+            continue;
+         }
+         Point_dt[] vertices = {tri.p1(), tri.p2(), tri.p3()};
+         boolean around = false;
+         for (Point_dt vertex : vertices) {
+            for (Point3d point : points) {
+               if (vertex.x() == point.x && vertex.y() == point.y) {
+                  around = true;
                }
-               double xVal = boundXMin_ + dx * xInd;
-               double yVal = boundYMin_ + dy * yInd;
-               boolean inHull = convexHullRegion_.checkPoint(new Vector2D(xVal, yVal)) == Region.Location.INSIDE;
+            }
+         }
+         if (around) {
+            for (Point_dt vertex : vertices) {
+               bounds[0] = Math.min(bounds[0], vertex.x());
+               bounds[1] = Math.max(bounds[1], vertex.x());
+               bounds[2] = Math.min(bounds[2], vertex.y());
+               bounds[3] = Math.max(bounds[3], vertex.y());
+            }
+         }
+      }
+   }
+
+   private void publish(InterpolationGrid grid, Region<Euclidean2D> hullRegion) throws InterruptedException {
+      if (Thread.interrupted()) {
+         throw new InterruptedException();
+      }
+      synchronized (interpolationLock_) {
+         currentInterpolation_ = new SingleResolutionInterpolation(grid.pixelsPerInterpPoint, grid.defined,
+                 grid.values, grid.normals, grid.xMin, grid.xMax, grid.yMin, grid.yMax,
+                 hullRegion, convexHullVertices_);
+         interpolationLock_.notifyAll();
+         manager_.SurfaceInterpolationUpdated(this);
+      }
+   }
+
+   /**
+    * Interpolated values and normals at one resolution
+    */
+   private static class InterpolationGrid {
+
+      final int pixelsPerInterpPoint;
+      final double xMin, xMax, yMin, yMax, dx, dy;
+      final float[][] values;
+      final float[][] normals;
+      final boolean[][] defined;
+
+      InterpolationGrid(int pixelsPerInterpPoint, int numInterpPointsX, int numInterpPointsY,
+              double xMin, double xMax, double yMin, double yMax) {
+         this.pixelsPerInterpPoint = pixelsPerInterpPoint;
+         this.xMin = xMin;
+         this.xMax = xMax;
+         this.yMin = yMin;
+         this.yMax = yMax;
+         dx = (xMax - xMin) / (numInterpPointsX - 1);
+         dy = (yMax - yMin) / (numInterpPointsY - 1);
+         values = new float[numInterpPointsY][numInterpPointsX];
+         normals = new float[numInterpPointsY][numInterpPointsX];
+         defined = new boolean[numInterpPointsY][numInterpPointsX];
+      }
+
+      /**
+       * Copy of other to be changed in rows yIndMin to yIndMax; the other rows
+       * are shared
+       */
+      InterpolationGrid(InterpolationGrid other, int yIndMin, int yIndMax) {
+         pixelsPerInterpPoint = other.pixelsPerInterpPoint;
+         xMin = other.xMin;
+         xMax = other.xMax;
+         yMin = other.yMin;
+         yMax = other.yMax;
+         dx = other.dx;
+         dy = other.dy;
+         values = other.values.clone();
+         normals = other.normals.clone();
+         defined = other.defined.clone();
+         for (int yInd = yIndMin; yInd <= yIndMax; yInd++) {
+            values[yInd] = values[yInd].clone();
+            normals[yInd] = normals[yInd].clone();
+            defined[yInd] = defined[yInd].clone();
+         }
+      }
+
+      /**
+       * Interpolates the points with x index xIndMin to xIndMax and y index
+       * yIndMin to yIndMax, tiles in parallel
+       */
+      void interpolate(final Delaunay_Triangulation dTri, final Region<Euclidean2D> hullRegion,
+              final int xIndMin, final int xIndMax, final int yIndMin, final int yIndMax)
+              throws InterruptedException {
+         final int numTilesX = (xIndMax - xIndMin + TILE_SIZE) / TILE_SIZE;
+         int numTilesY = (yIndMax - yIndMin + TILE_SIZE) / TILE_SIZE;
+         forEachTile(numTilesX * numTilesY, (int tile) -> {
+            int tileXMin = xIndMin + (tile % numTilesX) * TILE_SIZE;
+            int tileYMin = yIndMin + (tile / numTilesX) * TILE_SIZE;
+            interpolateTile(dTri, hullRegion, tileXMin, Math.min(xIndMax, tileXMin + TILE_SIZE - 1),
+                    tileYMin, Math.min(yIndMax, tileYMin + TILE_SIZE - 1));
+         });
+      }
+
+      private void interpolateTile(Delaunay_Triangulation dTri, Region<Euclidean2D> hullRegion,
+              int xIndMin, int xIndMax, int yIndMin, int yIndMax) {
+         //neighbouring points are mostly in the same triangle, so search from the
+         //last one and only make a new plane when the triangle changes
+         Triangle_dt lastTri = null;
+         Plane plane = null;
+         float angle = 0;
+         for (int yInd = yIndMin; yInd <= yIndMax; yInd++) {
+            for (int xInd = xIndMin; xInd <= xIndMax; xInd++) {
+               double xVal = xMin + dx * xInd;
+               double yVal = yMin + dy * yInd;
+               boolean inHull = hullRegion.checkPoint(new Vector2D(xVal, yVal)) == Region.Location.INSIDE;
                if (inHull) {
-                  Triangle_dt tri = dTri.find(new Point_dt(xVal, yVal));
-                  //convert to apache commons coordinates to make a plane
-                  Vector3D v1 = new Vector3D(tri.p1().x(), tri.p1().y(), tri.p1().z());
-                  Vector3D v2 = new Vector3D(tri.p2().x(), tri.p2().y(), tri.p2().z());
-                  Vector3D v3 = new Vector3D(tri.p3().x(), tri.p3().y(), tri.p3().z());
-                  Plane plane = new Plane(v1, v2, v3, TOLERANCE);
+                  Triangle_dt tri = dTri.find(new Point_dt(xVal, yVal), lastTri);
+                  if (tri != lastTri) {
+                     //convert to apache commons coordinates to make a plane
+                     Vector3D v1 = new Vector3D(tri.p1().x(), tri.p1().y(), tri.p1().z());
+                     Vector3D v2 = new Vector3D(tri.p2().x(), tri.p2().y(), tri.p2().z());
+                     Vector3D v3 = new Vector3D(tri.p3().x(), tri.p3().y(), tri.p3().z());
+                     plane = new Plane(v1, v2, v3, TOLERANCE);
+                     angle = (float) (Vector3D.angle(plane.getNormal(), new Vector3D(0, 0, 1)) / Math.PI * 180.0);
+                     lastTri = tri;
+                  }
                   //intersetion of vertical line at these x+y values with plane gives point in plane
                   Vector3D pointInPlane = plane.intersection(new Line(new Vector3D(xVal, yVal, 0), new Vector3D(xVal, yVal, 1), TOLERANCE));
-                  float zVal = (float) pointInPlane.getZ();
-                  interpVals[yInd][xInd] = zVal;
-                  float angle = (float) (Vector3D.angle(plane.getNormal(), new Vector3D(0, 0, 1)) / Math.PI * 180.0);
-                  interpNormals[yInd][xInd] = angle;
-                  interpDefined[yInd][xInd] = true;
+                  values[yInd][xInd] = (float) pointInPlane.getZ();
+                  normals[yInd][xInd] = angle;
+                  defined[yInd][xInd] = true;
                } else {
-                  interpDefined[yInd][xInd] = false;
+                  defined[yInd][xInd] = false;
                }
             }
          }
-         if (Thread.interrupted()) {
-            throw new InterruptedException();
-         }
-         synchronized (interpolationLock_) {
-            currentInterpolation_ = new SingleResolutionInterpolation(pixelsPerInterpPoint, interpDefined, interpVals, interpNormals,
-                    boundXMin_, boundXMax_, boundYMin_, boundYMax_,
-                    convexHullRegion_, convexHullVertices_);
-            interpolationLock_.notifyAll();
-            manager_.SurfaceInterpolationUpdated(this);
-         }
-//         System.gc();
-         pixelsPerInterpPoint /= 2;
       }
    }
 
@@ -0,0 +1,68 @@
+package org.micromanager.magellan.internal.surfacesandregions;
+
+import java.awt.geom.Point2D;
+import java.util.Random;
+import org.apache.commons.math3.geometry.euclidean.twod.hull.ConvexHull2D;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SingleResolutionInterpolationTest {
+
+   @Test
+   public void testValueRangeBoundsInterpolatedValues() {
+      Random random = new Random(2);
+      int withRange = 0;
+      for (int run = 0; run < 20; run++) {
+         double width = 1000;
+         double height = 700;
+         int numX = 20 + random.nextInt(100);
+         int numY = 20 + random.nextInt(100);
+         float[][] interp = new float[numY][numX];
+         boolean[][] defined = new boolean[numY][numX];
+         int holeX = random.nextInt(numX);
+         int holeY = random.nextInt(numY);
+         for (int y = 0; y < numY; y++) {
+            for (int x = 0; x < numX; x++) {
+               interp[y][x] = (float) (50 * Math.sin(x / 7.0) + 30 * Math.cos(y / 5.0)
+                       + random.nextGaussian());
+               // a few undefined points, whose blocks have no range
+               defined[y][x] = Math.abs(x - holeX) > 1 || Math.abs(y - holeY) > 1;
+            }
+         }
+         ConvexHull2D hull = SurfaceInterpolatorTest.randomHull(random, width, height);
+         if (hull.getVertices().length < 3) {
+            continue;
+         }
+         SingleResolutionInterpolation interpolation = new SingleResolutionInterpolation(
+                 10, defined, interp, new float[numY][numX], 0, width, 0, height,
+                 hull.createRegion(), hull.getVertices());
+         for (int i = 0; i < 200; i++) {
+            Point2D.Double[] corners = SurfaceInterpolatorTest.position(
+                    width * random.nextDouble(), height * random.nextDouble(),
+                    5 + 100 * random.nextDouble(), random.nextDouble() * Math.PI);
+            float[] range = interpolation.getValueRange(corners);
+            if (range == null) {
+               continue;
+            }
+            withRange++;
+            Assert.assertTrue(range[0] <= range[1]);
+            // the corners, and a grid of points inside the position
+            for (int u = 0; u <= 20; u++) {
+               for (int v = 0; v <= 20; v++) {
+                  double a = u / 20.0;
+                  double b = v / 20.0;
+                  double x = (1 - a) * ((1 - b) * corners[0].x + b * corners[1].x)
+                          + a * ((1 - b) * corners[3].x + b * corners[2].x);
+                  double y = (1 - a) * ((1 - b) * corners[0].y + b * corners[1].y)
+                          + a * ((1 - b) * corners[3].y + b * corners[2].y);
+                  Assert.assertTrue(interpolation.isInterpDefined(x, y));
+                  float value = interpolation.getInterpolatedValue(x, y);
+                  Assert.assertTrue(value + " not in " + range[0] + ", " + range[1],
+                          value >= range[0] && value <= range[1]);
+               }
+            }
+         }
+      }
+      Assert.assertTrue(withRange > 500);
+   }
+}
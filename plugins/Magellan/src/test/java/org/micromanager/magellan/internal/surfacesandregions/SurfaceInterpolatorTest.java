@@ -0,0 +1,142 @@
+package org.micromanager.magellan.internal.surfacesandregions;
+
+import java.awt.geom.Point2D;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.apache.commons.math3.geometry.euclidean.twod.Euclidean2D;
+import org.apache.commons.math3.geometry.euclidean.twod.PolygonsSet;
+import org.apache.commons.math3.geometry.euclidean.twod.Vector2D;
+import org.apache.commons.math3.geometry.euclidean.twod.hull.ConvexHull2D;
+import org.apache.commons.math3.geometry.euclidean.twod.hull.MonotoneChain;
+import org.apache.commons.math3.geometry.partitioning.Region;
+import org.apache.commons.math3.geometry.partitioning.RegionFactory;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SurfaceInterpolatorTest {
+
+   private static final RegionFactory<Euclidean2D> REGION_FACTORY =
+           new RegionFactory<Euclidean2D>();
+
+   static ConvexHull2D randomHull(Random random, double width, double height) {
+      List<Vector2D> points = new ArrayList<Vector2D>();
+      for (int i = 0; i < 3 + random.nextInt(20); i++) {
+         points.add(new Vector2D(width * random.nextDouble(), height * random.nextDouble()));
+      }
+      return new MonotoneChain().generate(points);
+   }
+
+   /**
+    * Corners of a square of this size, rotated by angle around its center.
+    */
+   static Point2D.Double[] position(double centerX, double centerY, double size,
+           double angle) {
+      Point2D.Double[] corners = new Point2D.Double[4];
+      for (int i = 0; i < 4; i++) {
+         double a = angle + Math.PI / 4 + i * Math.PI / 2;
+         corners[i] = new Point2D.Double(centerX + size / Math.sqrt(2) * Math.cos(a),
+                 centerY + size / Math.sqrt(2) * Math.sin(a));
+      }
+      return corners;
+   }
+
+   /**
+    * Whether the position overlaps the hull, the way SurfaceInterpolator
+    * decided it before the separating-axis test: by intersecting the BSP
+    * regions, as with XYFootprint.getStagePositionRegion(). The BSP
+    * intersection of polygons far apart is occasionally a non-empty region
+    * of zero size, which does not count as an overlap either.
+    */
+   private static boolean overlapsByRegions(Point2D.Double[] corners, ConvexHull2D hull) {
+      Vector2D[] vertices = new Vector2D[corners.length];
+      double centerX = 0;
+      double centerY = 0;
+      for (int i = 0; i < corners.length; i++) {
+         vertices[i] = new Vector2D(corners[i].x, corners[i].y);
+         centerX += corners[i].x / corners.length;
+         centerY += corners[i].y / corners.length;
+      }
+      Region<Euclidean2D> square = new PolygonsSet(0.0001, vertices);
+      if (square.checkPoint(new Vector2D(centerX, centerY)) == Region.Location.OUTSIDE) {
+         square = REGION_FACTORY.getComplement(square);
+      }
+      Region<Euclidean2D> intersection = REGION_FACTORY.intersection(square, hull.createRegion());
+      return !intersection.isEmpty() && intersection.getSize() > 0;
+   }
+
+   private static void checkOverlap(Point2D.Double[] corners, ConvexHull2D hull) {
+      boolean expected = overlapsByRegions(corners, hull);
+      Assert.assertEquals(expected,
+              SurfaceInterpolator.overlapsConvexHull(corners, hull.getVertices()));
+      // corners in the other direction
+      Point2D.Double[] reversed = new Point2D.Double[corners.length];
+      for (int i = 0; i < corners.length; i++) {
+         reversed[i] = corners[corners.length - 1 - i];
+      }
+      Assert.assertEquals(expected,
+              SurfaceInterpolator.overlapsConvexHull(reversed, hull.getVertices()));
+   }
+
+   @Test
+   public void testOverlapMatchesRegionIntersection() {
+      Random random = new Random(1);
+      int overlapping = 0;
+      int disjoint = 0;
+      for (int i = 0; i < 300; i++) {
+         ConvexHull2D hull = randomHull(random, 100, 100);
+         if (hull.getVertices().length < 3) {
+            continue;
+         }
+         for (int j = 0; j < 20; j++) {
+            Point2D.Double[] corners = position(-50 + 200 * random.nextDouble(),
+                    -50 + 200 * random.nextDouble(), 2 + 40 * random.nextDouble(),
+                    random.nextDouble() * Math.PI);
+            checkOverlap(corners, hull);
+            if (overlapsByRegions(corners, hull)) {
+               overlapping++;
+            } else {
+               disjoint++;
+            }
+         }
+      }
+      // both outcomes are well represented
+      Assert.assertTrue(overlapping > 1000);
+      Assert.assertTrue(disjoint > 1000);
+   }
+
+   @Test
+   public void testTouching() {
+      ConvexHull2D hull = new MonotoneChain().generate(java.util.Arrays.asList(
+              new Vector2D(0, 0), new Vector2D(10, 0), new Vector2D(10, 10),
+              new Vector2D(0, 10)));
+      Point2D.Double[][] cases = {
+         // sharing an edge, and a part of one
+         position(15, 5, 10, 0),
+         position(5, -3, 6, 0),
+         // sharing a vertex
+         position(15, 15, 10, 0),
+         // a vertex on an edge
+         position(10 + 5 * Math.sqrt(2), 5, 10, Math.PI / 4),
+         // just overlapping and just apart
+         position(14.99, 5, 10, 0),
+         position(15.01, 5, 10, 0),
+         // inside, and around the hull
+         position(5, 5, 4, 0.3),
+         position(5, 5, 40, 0.3)};
+      boolean[] overlaps = {false, false, false, false, true, false, true, true};
+      for (int i = 0; i < cases.length; i++) {
+         Assert.assertEquals("case " + i, overlaps[i],
+                 SurfaceInterpolator.overlapsConvexHull(cases[i], hull.getVertices()));
+         checkOverlap(cases[i], hull);
+      }
+   }
+
+   @Test
+   public void testNoHull() {
+      Point2D.Double[] corners = position(0, 0, 10, 0);
+      Assert.assertFalse(SurfaceInterpolator.overlapsConvexHull(corners, null));
+      Assert.assertFalse(SurfaceInterpolator.overlapsConvexHull(corners,
+              new Vector2D[] {new Vector2D(0, 0), new Vector2D(1, 1)}));
+   }
+}
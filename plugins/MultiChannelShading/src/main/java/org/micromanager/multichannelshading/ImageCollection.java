@@ -35,7 +35,9 @@ import org.micromanager.Studio;
  * images.  The images are stored as ImagePlusInfo objects.
  * Images should be provided as full frame, unbinned images.  When binned 
  * images, and/or ROIs of (binned) images are requested, these are provided
- * on the fly, and a copy is cached for later use.
+ * on the fly, and a copy is cached for later use.  Each copy also caches
+ * the tables ShadingCorrection applies, so these are calculated once per
+ * binning and ROI.
  * @author nico
  */
 public class ImageCollection {
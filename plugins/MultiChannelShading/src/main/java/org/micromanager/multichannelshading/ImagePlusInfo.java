@@ -48,6 +48,8 @@ public class ImagePlusInfo extends ImagePlus{
    private final int binning_;
    private final Rectangle roi_;
    private final Map<ClearCLContext, ClearCLBuffer> clBuffers_;
+   private int[] subtractionTable_;
+   private float[] multiplicationTable_;
     
    
    public ImagePlusInfo(ImagePlus ip, int binning, Rectangle roi) {
@@ -112,4 +114,59 @@ public class ImagePlusInfo extends ImagePlus{
       }
       return clBuffers_.get(cclContext);
    }
+
+   /**
+    * Pixel values of this (background) image as unsigned ints, ready to be
+    * subtracted by ShadingCorrection.  Float values are cut to 16 bits, as in
+    * ImageUtils.subtractInPlace.
+    * The table is calculated once and cached.
+    * @return - one value per pixel
+    */
+   synchronized int[] getSubtractionTable() {
+      if (subtractionTable_ == null) {
+         Object pixels = super.getProcessor().getPixels();
+         int[] table = new int[super.getWidth() * super.getHeight()];
+         if (pixels instanceof byte[]) {
+            byte[] bytePixels = (byte[]) pixels;
+            for (int i = 0; i < table.length; i++) {
+               table[i] = ImageUtils.unsignedValue(bytePixels[i]);
+            }
+         } else if (pixels instanceof short[]) {
+            short[] shortPixels = (short[]) pixels;
+            for (int i = 0; i < table.length; i++) {
+               table[i] = ImageUtils.unsignedValue(shortPixels[i]);
+            }
+         } else if (pixels instanceof float[]) {
+            float[] floatPixels = (float[]) pixels;
+            for (int i = 0; i < table.length; i++) {
+               table[i] = ImageUtils.unsignedValue((short) floatPixels[i]);
+            }
+         }
+         subtractionTable_ = table;
+      }
+      return subtractionTable_;
+   }
+
+   /**
+    * Pixel values of this (flatfield) image as floats, ready to be
+    * multiplied with by ShadingCorrection.  ImageCollection already stores
+    * flatfields as mean / pixel value, so these are used as they are.
+    * The table is calculated once and cached.
+    * @return - one value per pixel
+    */
+   synchronized float[] getMultiplicationTable() {
+      if (multiplicationTable_ == null) {
+         ImageProcessor processor = super.getProcessor();
+         if (processor instanceof FloatProcessor) {
+            multiplicationTable_ = (float[]) processor.getPixels();
+         } else {
+            float[] table = new float[super.getWidth() * super.getHeight()];
+            for (int i = 0; i < table.length; i++) {
+               table[i] = processor.getf(i);
+            }
+            multiplicationTable_ = table;
+         }
+      }
+      return multiplicationTable_;
+   }
 }
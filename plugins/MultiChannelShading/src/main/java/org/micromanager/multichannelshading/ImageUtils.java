@@ -107,6 +107,56 @@ public class ImageUtils {
                null);
    }
       
+   /**
+    * Subtract a background from 8 or 16 bit grayscale pixels in place,
+    * clipping at zero, with the same results as subtractImageProcessors.
+    *
+    * @param pixels byte[] or short[] pixels; modified
+    * @param width width of the image
+    * @param height height of the image
+    * @param background background of the same size
+    * @throws ShadingException if the sizes or types do not match
+    */
+   public static void subtractInPlace(Object pixels, int width, int height,
+           ImageProcessor background) throws ShadingException {
+      if (width != background.getWidth() || height != background.getHeight()) {
+         throw new ShadingException("Error: Images are of unequal size");
+      }
+      Object bgPixels = background.getPixels();
+      int l = width * height;
+      if (pixels instanceof byte[] && bgPixels instanceof byte[]) {
+         byte[] array1 = (byte[]) pixels;
+         byte[] array2 = (byte[]) bgPixels;
+         for (int i = 0; i < l; ++i) {
+            array1[i] = (byte) Math.max(0, unsignedValue(array1[i]) -
+                    unsignedValue(array2[i]));
+         }
+      } else if (pixels instanceof short[] && bgPixels instanceof short[]) {
+         short[] array1 = (short[]) pixels;
+         short[] array2 = (short[]) bgPixels;
+         for (int i = 0; i < l; ++i) {
+            array1[i] = (short) Math.max(0, unsignedValue(array1[i]) -
+                    unsignedValue(array2[i]));
+         }
+      } else if (pixels instanceof short[] && bgPixels instanceof byte[]) {
+         short[] array1 = (short[]) pixels;
+         byte[] array2 = (byte[]) bgPixels;
+         for (int i = 0; i < l; ++i) {
+            array1[i] = (short) Math.max(0, unsignedValue(array1[i]) -
+                    unsignedValue(array2[i]));
+         }
+      } else if (pixels instanceof short[] && bgPixels instanceof float[]) {
+         short[] array1 = (short[]) pixels;
+         float[] array2 = (float[]) bgPixels;
+         for (int i = 0; i < l; ++i) {
+            array1[i] = (short) Math.max(0, unsignedValue(array1[i]) -
+                    unsignedValue((short) array2[i]));
+         }
+      } else {
+         throw new ShadingException("Types of images to be subtracted were not compatible");
+      }
+   }
+
    public static byte[] subtractPixelArrays(byte[] array1, byte[] array2) {
       int l = array1.length;
       byte[] result = new byte[l];
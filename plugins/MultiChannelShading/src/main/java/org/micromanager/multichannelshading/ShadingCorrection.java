@@ -0,0 +1,187 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ShadingCorrection.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     MultiChannelShading plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    University of California, San Francisco 2016
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.multichannelshading;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * CPU version of the kernels in bufferMath.cl: subtracts the background,
+ * multiplies by the flatfield and converts back to 8 or 16 bit, in place and
+ * in a single pass over the pixels.  Stripes of rows are corrected in
+ * parallel.
+ *
+ * The arithmetic is that of the kernels: the integer difference is
+ * multiplied by the float flatfield value, 0.5 is added and the result is
+ * truncated.  Where the kernels wrap around or leave the result undefined
+ * (background larger than the pixel value, results out of range), values
+ * are clamped to the range of the pixel type instead.
+ *
+ * Background and flatfield are passed as the tables prepared by
+ * ImagePlusInfo, so no type conversions are needed per pixel.
+ *
+ * @author nico
+ */
+final class ShadingCorrection {
+   // Below this, splitting an image into stripes costs more than it saves
+   private static final int MIN_PIXELS_PER_STRIPE = 64 * 1024;
+   private static final int NUM_THREADS =
+         Runtime.getRuntime().availableProcessors();
+   private static final ExecutorService EXECUTOR =
+         Executors.newFixedThreadPool(NUM_THREADS, r -> {
+            Thread thread = new Thread(r, "MultiChannelShading correction");
+            thread.setDaemon(true);
+            return thread;
+         });
+
+   private ShadingCorrection() {
+   }
+
+   /**
+    * Corrects 8 or 16 bit grayscale pixels in place.  Sizes and types are
+    * checked before any pixel is changed.
+    *
+    * @param pixels byte[] or short[] pixels; modified
+    * @param width width of the image
+    * @param height height of the image
+    * @param background background values (see
+    *        ImagePlusInfo.getSubtractionTable()), or null to not subtract
+    * @param backgroundBitDepth bit depth of the background image (8, 16 or
+    *        32 for float), as ImagePlus.getBitDepth() gives it.  8 bit
+    *        images can only have an 8 bit background, as in
+    *        ImageUtils.subtractInPlace
+    * @param flatField flatfield values (see
+    *        ImagePlusInfo.getMultiplicationTable()), or null to not multiply
+    * @throws ShadingException if sizes or types do not match
+    * @throws InterruptedException if interrupted; pixels may then be
+    *         partially corrected
+    */
+   static void apply(final Object pixels, int width, final int height,
+           final int[] background, int backgroundBitDepth,
+           final float[] flatField)
+           throws ShadingException, InterruptedException {
+      final int nrPixels = width * height;
+      if ((background != null && background.length != nrPixels)
+              || (flatField != null && flatField.length != nrPixels)) {
+         throw new ShadingException("Error: Images are of unequal size");
+      }
+      if (background != null && !(backgroundBitDepth == 8
+              || (pixels instanceof short[] && (backgroundBitDepth == 16
+                 || backgroundBitDepth == 32)))) {
+         throw new ShadingException("Types of images to be subtracted were not compatible");
+      }
+      if (pixels instanceof byte[] && ((byte[]) pixels).length == nrPixels) {
+         forEachStripe(width, height, (start, end) ->
+                 correct((byte[]) pixels, background, flatField, start, end));
+      } else if (pixels instanceof short[] && ((short[]) pixels).length == nrPixels) {
+         forEachStripe(width, height, (start, end) ->
+                 correct((short[]) pixels, background, flatField, start, end));
+      } else {
+         throw new ShadingException("Cannot flatfield correct images other than 8 or 16 bit grayscale");
+      }
+   }
+
+   private interface StripeTask {
+      void run(int start, int end);
+   }
+
+   private static void forEachStripe(int width, int height,
+           final StripeTask task) throws InterruptedException {
+      int nrPixels = width * height;
+      int nrStripes = Math.min(NUM_THREADS,
+              Math.max(1, nrPixels / MIN_PIXELS_PER_STRIPE));
+      nrStripes = Math.min(nrStripes, Math.max(1, height));
+      if (nrStripes == 1) {
+         task.run(0, nrPixels);
+         return;
+      }
+      List<Callable<Void>> stripes = new ArrayList<>(nrStripes);
+      for (int s = 0; s < nrStripes; s++) {
+         // whole rows per stripe
+         final int start = (int) ((long) height * s / nrStripes) * width;
+         final int end = (int) ((long) height * (s + 1) / nrStripes) * width;
+         stripes.add(() -> {
+            task.run(start, end);
+            return null;
+         });
+      }
+      for (Future<Void> future : EXECUTOR.invokeAll(stripes)) {
+         try {
+            future.get();
+         } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+         }
+      }
+   }
+
+   private static void correct(byte[] pixels, int[] background,
+           float[] flatField, int start, int end) {
+      if (flatField == null) {
+         for (int i = start; i < end; i++) {
+            pixels[i] = (byte) Math.max(0, (pixels[i] & 0xff) - background[i]);
+         }
+      } else if (background == null) {
+         for (int i = start; i < end; i++) {
+            pixels[i] = (byte) toPixel((pixels[i] & 0xff) * flatField[i]
+                    + 0.5f, 0xff);
+         }
+      } else {
+         for (int i = start; i < end; i++) {
+            int value = Math.max(0, (pixels[i] & 0xff) - background[i]);
+            pixels[i] = (byte) toPixel(value * flatField[i] + 0.5f, 0xff);
+         }
+      }
+   }
+
+   private static void correct(short[] pixels, int[] background,
+           float[] flatField, int start, int end) {
+      if (flatField == null) {
+         for (int i = start; i < end; i++) {
+            pixels[i] = (short) Math.max(0, (pixels[i] & 0xffff) - background[i]);
+         }
+      } else if (background == null) {
+         for (int i = start; i < end; i++) {
+            pixels[i] = (short) toPixel((pixels[i] & 0xffff) * flatField[i]
+                    + 0.5f, 0xffff);
+         }
+      } else {
+         for (int i = start; i < end; i++) {
+            int value = Math.max(0, (pixels[i] & 0xffff) - background[i]);
+            pixels[i] = (short) toPixel(value * flatField[i] + 0.5f, 0xffff);
+         }
+      }
+   }
+
+   // Truncates towards zero like the kernels' conversion, clamped to
+   // 0..max; NaN becomes 0
+   private static int toPixel(float value, int max) {
+      if (value >= max) {
+         return max;
+      }
+      return value > 0.0f ? (int) value : 0;
+   }
+}
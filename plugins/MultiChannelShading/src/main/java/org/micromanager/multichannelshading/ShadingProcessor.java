@@ -31,10 +31,11 @@ import clearcl.backend.ClearCLBackends;
 import clearcl.enums.BuildStatus;
 import clearcl.exceptions.OpenCLException;
 import coremem.enums.NativeTypeEnum;
-import ij.process.ImageProcessor;
 
 import java.awt.Rectangle;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
 import java.util.List;
 
 import mmcorej.Configuration;
@@ -181,9 +182,6 @@ public class ShadingProcessor implements Processor {
       Metadata metadata = image.getMetadata();
       PropertyMap userData = metadata.getUserData();
 
-      Image bgSubtracted = image;
-      Image result;
-
       // subtract background
       Integer binning = metadata.getBinning();
       if (binning == null) {
@@ -250,11 +248,18 @@ public class ShadingProcessor implements Processor {
                lKernel.setGlobalSizes(clImg);
                lKernel.run();
             }
-            // copy processed image back from the GPU
-            clImg.writeTo(((DefaultImage) image).getPixelBuffer(), true);
+            // copy processed image back from the GPU, into pixels we may
+            // modify (the input image itself must not change)
+            Object pixels = context.getMutablePixels(image);
+            if (pixels instanceof short[]) {
+               clImg.writeTo(ShortBuffer.wrap((short[]) pixels), true);
+            } else {
+               clImg.writeTo(ByteBuffer.wrap((byte[]) pixels), true);
+            }
             // release resources.  If more GPU processing is desired, this should change
             clImg.close();
-            context.outputImage(image);
+            context.outputImage(studio_.data().wrapImage(pixels, width, height,
+                    image.getBytesPerPixel(), 1, image.getCoords(), metadata));
             return;
          } catch (OpenCLException ocle) {
             studio_.alerts().postAlert(MultiChannelShading.MENUNAME,
@@ -265,79 +270,52 @@ public class ShadingProcessor implements Processor {
       }
 
 
-      if (background != null) {
-         ImageProcessor ip = studio_.data().ij().createProcessor(image);
-         ImageProcessor ipBackground = background.getProcessor();
-         try {
-            ip = ImageUtils.subtractImageProcessors(ip, ipBackground);
-            if (userData != null) {
-               userData = userData.copyBuilder().putBoolean("Background-corrected", true).build();
-            }
-         } catch (ShadingException e) {
-            String msg = "Unable to subtract background: " + e.getMessage();
-            studio_.alerts().postAlert(MultiChannelShading.MENUNAME, 
-                 ErrorSubtractingClass.class, msg);
-         }
-         bgSubtracted = studio_.data().ij().createImage(ip, image.getCoords(),
-                 metadata.copyBuilderWithNewUUID().userData(userData).build());
-      } else {
+      if (background == null) {
          String msg = "No background available...";
          studio_.alerts().postAlert(MultiChannelShading.MENUNAME, NotFlatFieldedClass.class, msg);
       }
-
-
       // do not calculate flat field if we don't have a matching channel;
       // just return the background-subtracted image (which is the unmodified
       // image if we also don't have a background subtraction file).
       if (flatFieldImage == null) {
          String msg = "No flatfield found...";
          studio_.alerts().postAlert(MultiChannelShading.MENUNAME, NotFlatFieldedClass.class, msg);
-         context.outputImage(bgSubtracted);
-         return;
+         if (background == null) {
+            context.outputImage(image);
+            return;
+         }
       }
 
-      if (userData != null) {
-         userData = userData.copyBuilder().putBoolean("Flatfield-corrected", true).build();
-         metadata = metadata.copyBuilderWithNewUUID().userData(userData).build();
-      }
-      
-      
-      
-      if (image.getBytesPerPixel() == 1) {
-         byte[] newPixels = new byte[width * height];
-         byte[] oldPixels = (byte[]) image.getRawPixels();
-         int length = oldPixels.length;
-         float[] flatFieldPixels = (float[]) flatFieldImage.getProcessor().getPixels();
-         for (int index = 0; index < length; index++) {
-            float oldPixel = (float) ((int) (oldPixels[index]) & 0x000000ff);
-            float newValue = oldPixel * flatFieldPixels[index];
-            if (newValue > 2 * Byte.MAX_VALUE) {
-               newValue = 2 * Byte.MAX_VALUE;
+      // Background subtraction and flat fielding are done in one pass, in
+      // place, on pixels obtained from the context (no copy if the pipeline
+      // owns them)
+      Object pixels = context.getMutablePixels(image);
+      try {
+         ShadingCorrection.apply(pixels, width, height,
+                 background == null ? null : background.getSubtractionTable(),
+                 background == null ? 0 : background.getBitDepth(),
+                 flatFieldImage == null ? null : flatFieldImage.getMultiplicationTable());
+         if (userData != null) {
+            PropertyMap.Builder builder = userData.copyBuilder();
+            if (background != null) {
+               builder.putBoolean("Background-corrected", true);
             }
-            newPixels[index] = (byte) (newValue);
-         }
-         result = studio_.data().createImage(newPixels, width, height,
-                 1, 1, image.getCoords(), metadata);
-         context.outputImage(result);
-      } else if (image.getBytesPerPixel() == 2) {
-         short[] newPixels = new short[width * height];
-         short[] oldPixels = (short[]) bgSubtracted.getRawPixels();
-         int length = oldPixels.length;
-         for (int index = 0; index < length; index++) {
-            // shorts are signed in java so have to do this conversion to get 
-            // the right value
-            float oldPixel = (float) ((int) (oldPixels[index]) & 0x0000ffff);
-            float newValue = (oldPixel
-                    * flatFieldImage.getProcessor().getf(index)) + 0.5f;
-            if (newValue > 2 * Short.MAX_VALUE) {
-               newValue = 2 * Short.MAX_VALUE;
+            if (flatFieldImage != null) {
+               builder.putBoolean("Flatfield-corrected", true);
             }
-            newPixels[index] = (short) (((int) newValue) & 0x0000ffff);
+            userData = builder.build();
          }
-         result = studio_.data().createImage(newPixels, width, height,
-                 2, 1, image.getCoords(), metadata);
-         context.outputImage(result);
+         metadata = metadata.copyBuilderWithNewUUID().userData(userData).build();
+      } catch (ShadingException e) {
+         // nothing was changed
+         String msg = "Unable to correct image: " + e.getMessage();
+         studio_.alerts().postAlert(MultiChannelShading.MENUNAME, 
+              ErrorSubtractingClass.class, msg);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
       }
+      context.outputImage(studio_.data().wrapImage(pixels, width, height,
+              image.getBytesPerPixel(), 1, image.getCoords(), metadata));
    }
 
 
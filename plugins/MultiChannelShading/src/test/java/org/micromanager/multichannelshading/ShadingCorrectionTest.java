@@ -0,0 +1,164 @@
+package org.micromanager.multichannelshading;
+
+import ij.process.ShortProcessor;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.Ignore;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ShadingCorrectionTest {
+   // Large enough to be split into stripes
+   private static final int WIDTH = 512;
+   private static final int HEIGHT = 512;
+
+   private static int[] randomInts(int length, int min, int max, long seed) {
+      Random random = new Random(seed);
+      int[] result = new int[length];
+      for (int i = 0; i < length; ++i) {
+         result[i] = min + random.nextInt(max - min);
+      }
+      return result;
+   }
+
+   private static float[] randomFloats(int length, float min, float max,
+         long seed) {
+      Random random = new Random(seed);
+      float[] result = new float[length];
+      for (int i = 0; i < length; ++i) {
+         result[i] = min + (max - min) * random.nextFloat();
+      }
+      return result;
+   }
+
+   /**
+    * subtractAndMultiplyUSF and subtractAndMultiplyUBF in bufferMath.cl, for
+    * the values for which these are defined.
+    */
+   private static int kernel(int pixel, int background, float flatField) {
+      return (int) ((pixel - background) * flatField + 0.5f);
+   }
+
+   @Test
+   public void testShortMatchesKernel() throws Exception {
+      int n = WIDTH * HEIGHT;
+      int[] values = randomInts(n, 1000, 60000, 1);
+      int[] background = randomInts(n, 0, 1000, 2);
+      float[] flatField = randomFloats(n, 0.5f, 1.05f, 3);
+      short[] pixels = new short[n];
+      for (int i = 0; i < n; ++i) {
+         pixels[i] = (short) values[i];
+      }
+      ShadingCorrection.apply(pixels, WIDTH, HEIGHT, background, 16,
+            flatField);
+      for (int i = 0; i < n; ++i) {
+         assertEquals("pixel " + i,
+               kernel(values[i], background[i], flatField[i]),
+               pixels[i] & 0xffff);
+      }
+   }
+
+   @Test
+   public void testByteMatchesKernel() throws Exception {
+      int n = WIDTH * HEIGHT;
+      int[] values = randomInts(n, 50, 200, 4);
+      int[] background = randomInts(n, 0, 50, 5);
+      float[] flatField = randomFloats(n, 0.5f, 1.2f, 6);
+      byte[] pixels = new byte[n];
+      for (int i = 0; i < n; ++i) {
+         pixels[i] = (byte) values[i];
+      }
+      ShadingCorrection.apply(pixels, WIDTH, HEIGHT, background, 8,
+            flatField);
+      for (int i = 0; i < n; ++i) {
+         assertEquals("pixel " + i,
+               kernel(values[i], background[i], flatField[i]),
+               pixels[i] & 0xff);
+      }
+   }
+
+   @Test
+   public void testClampsToPixelRange() throws Exception {
+      short[] pixels = { 100, (short) 60000, (short) 60000, 0 };
+      int[] background = { 200, 0, 0, 0 };
+      float[] flatField = { 1.0f, 1.5f, Float.NaN, 2.0f };
+      ShadingCorrection.apply(pixels, 2, 2, background, 16, flatField);
+      assertEquals(0, pixels[0] & 0xffff);
+      assertEquals(65535, pixels[1] & 0xffff);
+      assertEquals(0, pixels[2] & 0xffff);
+      assertEquals(0, pixels[3] & 0xffff);
+   }
+
+   @Test
+   public void testRejectsIncompatibleBackground() throws Exception {
+      byte[] pixels = { 10, 20, 30, 40 };
+      int[] background = { 1, 2, 3, 4 };
+      for (int bitDepth : new int[] { 16, 32 }) {
+         try {
+            ShadingCorrection.apply(pixels, 2, 2, background, bitDepth, null);
+            fail("8 bit image with " + bitDepth + " bit background");
+         }
+         catch (ShadingException expected) {
+         }
+      }
+      assertArrayEquals(new byte[] { 10, 20, 30, 40 }, pixels);
+
+      short[] shortPixels = { 10, 20, 30, 40 };
+      try {
+         ShadingCorrection.apply(shortPixels, 2, 2, background, 24, null);
+         fail("16 bit image with RGB background");
+      }
+      catch (ShadingException expected) {
+      }
+      ShadingCorrection.apply(shortPixels, 2, 2, background, 8, null);
+      assertArrayEquals(new short[] { 9, 18, 27, 36 }, shortPixels);
+   }
+
+   /**
+    * Compares the single pass correction with the earlier two passes of
+    * subtraction and flatfield multiplication on a 2048x2048 16-bit image.
+    * Not run by default.
+    */
+   @Ignore
+   @Test
+   public void benchmarkAgainstTwoPasses() throws Exception {
+      int width = 2048, height = 2048;
+      int n = width * height;
+      int[] values = randomInts(n, 1000, 60000, 7);
+      int[] background = randomInts(n, 0, 1000, 8);
+      float[] flatField = randomFloats(n, 0.5f, 1.05f, 9);
+      short[] original = new short[n];
+      short[] backgroundPixels = new short[n];
+      for (int i = 0; i < n; ++i) {
+         original[i] = (short) values[i];
+         backgroundPixels[i] = (short) background[i];
+      }
+      ShortProcessor backgroundProcessor =
+            new ShortProcessor(width, height, backgroundPixels, null);
+      for (boolean onePass : new boolean[] { false, true }) {
+         int nrRuns = 50;
+         long total = 0;
+         for (int run = -10; run < nrRuns; ++run) { // 10 to warm up
+            short[] pixels = Arrays.copyOf(original, n);
+            long start = System.nanoTime();
+            if (onePass) {
+               ShadingCorrection.apply(pixels, width, height, background, 16,
+                     flatField);
+            }
+            else {
+               ImageUtils.subtractInPlace(pixels, width, height,
+                     backgroundProcessor);
+               for (int i = 0; i < n; ++i) {
+                  float value = (pixels[i] & 0xffff) * flatField[i] + 0.5f;
+                  pixels[i] = (short) Math.min(value, 2 * Short.MAX_VALUE);
+               }
+            }
+            if (run >= 0) {
+               total += System.nanoTime() - start;
+            }
+         }
+         System.out.println((onePass ? "One pass: " : "Two passes: ") +
+               total / 1e6 / nrRuns + " ms per image");
+      }
+   }
+}
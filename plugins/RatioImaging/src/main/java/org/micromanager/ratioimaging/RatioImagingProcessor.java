@@ -24,16 +24,13 @@
 package org.micromanager.ratioimaging;
 
 import ij.ImagePlus;
-import ij.process.Blitter;
-import ij.process.ByteProcessor;
-import ij.process.FloatProcessor;
 import ij.process.ImageProcessor;
-import ij.process.ShortProcessor;
 import java.awt.Rectangle;
 import java.text.ParseException;
 
-import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import org.micromanager.PropertyMap;
 
 import org.micromanager.data.Coords;
@@ -66,7 +63,13 @@ public class RatioImagingProcessor implements Processor {
    private final String bc2Path_;
    private ImagePlus bc1_;
    private ImagePlus bc2_;
-   private final List<Image> images_;
+   // backgrounds as ints, made when the first image of their size arrives
+   private int[] bc1Pixels_;
+   private int[] bc2Pixels_;
+   // images waiting for the other channel, by their coords without channel
+   private final Map<Coords, Image> waiting_;
+   // ratios of the last 8-bit image, before scaling to 0-255
+   private float[] ratios_ = new float[0];
    private boolean process_;
    private int ch1Index_;
    private int ch2Index_;
@@ -75,7 +78,7 @@ public class RatioImagingProcessor implements Processor {
    public RatioImagingProcessor(Studio studio, PropertyMap settings) {
       studio_ = studio;
       settings_ = settings;
-      images_ = new ArrayList<Image>();
+      waiting_ = new HashMap<Coords, Image>();
       int factor = 1; int bc1Constant = 0; int bc2Constant = 0;
       try {
          factor = NumberUtils.displayStringToInt(
@@ -221,69 +224,61 @@ public class RatioImagingProcessor implements Processor {
       }
 
       Coords newCoords = newImage.getCoords();
-      int c = newImage.getCoords().getC();
+      int c = newCoords.getC();
       if (!(c == ch1Index_ || c == ch2Index_)) {
          return;
       }
 
-      for (Image oldImage : images_) {
-         Coords oldCoords = oldImage.getCoords();
-         if (newCoords.copyRemovingAxes(Coords.C).equals(oldCoords.copyRemovingAxes(Coords.C))) {
-            if (newCoords.getC() == ch1Index_ && oldCoords.getC() == ch2Index_) {
-               process(newImage, oldImage, context);
-               images_.remove(oldImage);
-               return;
-            }
-         
-            if (oldCoords.getC() == ch1Index_ && newCoords.getC() == ch2Index_) {
-               process(oldImage, newImage, context);
-               images_.remove(oldImage);
-               return;
-            }
+      Coords key = newCoords.copyRemovingAxes(Coords.C);
+      Image oldImage = waiting_.get(key);
+      if (oldImage != null && oldImage.getCoords().getC() != c) {
+         waiting_.remove(key);
+         if (c == ch1Index_) {
+            process(newImage, oldImage, context);
+         } else {
+            process(oldImage, newImage, context);
          }
+         return;
       }
-      
-      // if we are still here, there was no match, so add this image to our list
-      images_.add(newImage);
-
+      // no match, so this image waits for the other channel
+      waiting_.put(key, newImage);
    }
       
    private void process(Image ch1Image, Image ch2Image, ProcessorContext context) {
       
       Coords ratioCoords = ch1Image.getCoords().copyBuilder().c(ratioIndex_).build();
-      
-      ImageProcessor ch1Proc = studio_.data().ij().createProcessor(ch1Image);
-      ImageProcessor ch2Proc = studio_.data().ij().createProcessor(ch2Image);
-      if (bc1_ != null) {
-         ch1Proc = subtractImageProcessors(ch1Proc, bc1_.getProcessor());
-      }
-      if (bc2_ != null) {
-         ch2Proc = subtractImageProcessors(ch2Proc, bc2_.getProcessor());
+      int width = ch1Image.getWidth();
+      int height = ch1Image.getHeight();
+      int length = width * height;
+      Object ch1Pixels = ch1Image.getRawPixels();
+      Object ch2Pixels = ch2Image.getRawPixels();
+      if (ch1Pixels.getClass() != ch2Pixels.getClass()
+              || ch2Image.getWidth() != width || ch2Image.getHeight() != height) {
+         return;
       }
-      ch1Proc = ch1Proc.convertToFloat();
-      ch2Proc = ch2Proc.convertToFloat();
-      ch1Proc.subtract(bc1Constant_);
-      ch2Proc.subtract(bc2Constant_);
-      ImageProcessor ch3Proc = ch1Proc.createProcessor(ch1Proc.getWidth(), 
-              ch1Proc.getHeight());
-      ch3Proc.insert(ch1Proc, 0, 0);
-      ch3Proc.copyBits(ch2Proc, 0, 0, Blitter.DIVIDE);
-      ch3Proc.multiply(factor_);
+      bc1Pixels_ = matchingBackground(bc1_, bc1Pixels_, width, height);
+      bc2Pixels_ = matchingBackground(bc2_, bc2Pixels_, width, height);
       
-      if (ch1Image.getBytesPerPixel() == 1) {
-         // check this actually works....
-         ch3Proc = ch3Proc.convertToByteProcessor();
-      } else if (ch1Image.getBytesPerPixel() == 2) {
-         // ImageJ method seems to be broken. Copied code from ImageJ1 here
-         ch3Proc = convertFloatToShort( (FloatProcessor) ch3Proc);
+      // Computed in one pass over the pixel arrays, into an output array
+      // from the context; the ratio is calculated as with ImageJ
+      // (background subtracted and clipped at zero, then the constant
+      // subtracted, then ch1 / ch2 * factor)
+      Object ratioPixels = context.allocatePixels(ch1Image, width, height);
+      int max;
+      if (ratioPixels instanceof byte[]) {
+         max = ratio8((byte[]) ch1Pixels, (byte[]) ch2Pixels,
+                 (byte[]) ratioPixels, length);
+      } else {
+         max = ratio16((short[]) ch1Pixels, (short[]) ch2Pixels,
+                 (short[]) ratioPixels, length);
       }
-      int max = (int) ch3Proc.getMax();
       int bitDepth = 1;
       while ( (1 << bitDepth) < max && bitDepth <= ch1Image.getBytesPerPixel() * 8) {
          bitDepth += 1;
       }
       
-      Image ratioImage = studio_.data().ij().createImage(ch3Proc, ratioCoords, 
+      Image ratioImage = studio_.data().wrapImage(ratioPixels, width, height,
+              ch1Image.getBytesPerPixel(), 1, ratioCoords, 
               ch1Image.getMetadata().copyBuilderWithNewUUID().bitDepth(bitDepth).
                       build());
       
@@ -291,65 +286,94 @@ public class RatioImagingProcessor implements Processor {
    }
    
    /**
-    * Copied from https://github.com/imagej/imagej1/blob/master/ij/process/TypeConverter.java
-    * 
-    * The call to chrProc.convertToShortProcess results in pixel values of -1
-    * Not sure why (but in included ImageJ version?) 
-    * Copying the relevant code from the ImageJ1 source fixes it
-    *  
-    * @param ip FloatProcessor to be converted
-    * @return Shortprocessor
+    * @return largest value in the result
     */
-   ShortProcessor convertFloatToShort(FloatProcessor ip) {
-		float[] pixels32 = (float[])ip.getPixels();
-		short[] pixels16 = new short[ip.getWidth()*ip.getHeight()];
-		double value;
-		for (int i=0,j=0; i< (ip.getWidth() * ip.getHeight()); i++) {
-			value = pixels32[i];
-			if (value<0.0) {
-            value = 0.0;
-         }
-			if (value>65535.0) {
-            value = 65535.0;
-         }
-			pixels16[i] = (short)(value+0.5);
-		}
-	    return new ShortProcessor(ip.getWidth(), ip.getHeight(), pixels16, 
-               ip.getColorModel());
-   }
-   
-   private static ByteProcessor subtractByteProcessors(ByteProcessor proc1, ByteProcessor proc2) {
-      return new ByteProcessor(proc1.getWidth(), proc1.getHeight(),
-              subtractPixelArrays((byte []) proc1.getPixels(), (byte []) proc2.getPixels()),
-              null);
+   private int ratio16(short[] ch1Pixels, short[] ch2Pixels, short[] result,
+           int length) {
+      int max = 0;
+      for (int i = 0; i < length; i++) {
+         double value = ratio(unsignedValue(ch1Pixels[i]),
+                 unsignedValue(ch2Pixels[i]), i);
+         value = Math.max(0.0, Math.min(65535.0, value));
+         result[i] = (short) (value + 0.5);
+         max = Math.max(max, unsignedValue(result[i]));
+      }
+      return max;
    }
    
-   
-   private static ShortProcessor subtractShortProcessors(ShortProcessor proc1, ShortProcessor proc2) {
-      return new ShortProcessor(proc1.getWidth(), proc1.getHeight(),
-              subtractPixelArrays((short []) proc1.getPixels(), (short []) proc2.getPixels()),
-              null);
+   /**
+    * As ImageJ's convertToByteProcessor(), scales the finite ratios from
+    * their minimum-maximum range to 0-255.
+    * 
+    * @return largest value in the result
+    */
+   private int ratio8(byte[] ch1Pixels, byte[] ch2Pixels, byte[] result,
+           int length) {
+      if (ratios_.length < length) {
+         ratios_ = new float[length];
+      }
+      float min = Float.POSITIVE_INFINITY;
+      float rangeMax = Float.NEGATIVE_INFINITY;
+      for (int i = 0; i < length; i++) {
+         float ratio = ratio(unsignedValue(ch1Pixels[i]),
+                 unsignedValue(ch2Pixels[i]), i);
+         ratios_[i] = ratio;
+         if (!Float.isInfinite(ratio)) {
+            min = Math.min(min, ratio);
+            rangeMax = Math.max(rangeMax, ratio);
+         }
+      }
+      double scale = rangeMax > min ? 255.0 / (rangeMax - min) : 1.0;
+      int max = 0;
+      for (int i = 0; i < length; i++) {
+         double value = (ratios_[i] - min) * scale + 0.5;
+         value = Math.max(0.0, Math.min(255.0, value));
+         result[i] = (byte) value;
+         max = Math.max(max, (int) value);
+      }
+      return max;
    }
    
-    public static byte[] subtractPixelArrays(byte[] array1, byte[] array2) {
-      int l = array1.length;
-      byte[] result = new byte[l];
-      for (int i=0;i<l;++i) {
-         result[i] = (byte) Math.max(0, unsignedValue(array1[i]) - 
-                 unsignedValue(array2[i]) );
+   /**
+    * Ratio of the background-corrected values of pixel i in the two channels,
+    * times the factor. Division by zero gives infinity, as in ImageJ.
+    */
+   private float ratio(int ch1Value, int ch2Value, int i) {
+      if (bc1Pixels_ != null) {
+         ch1Value = Math.max(0, ch1Value - bc1Pixels_[i]);
       }
-      return result;
+      if (bc2Pixels_ != null) {
+         ch2Value = Math.max(0, ch2Value - bc2Pixels_[i]);
+      }
+      float ch1 = (float) ch1Value - bc1Constant_;
+      float ch2 = (float) ch2Value - bc2Constant_;
+      float ratio = ch2 == 0.0f ? Float.POSITIVE_INFINITY : ch1 / ch2;
+      return ratio * factor_;
    }
    
-   public static short[] subtractPixelArrays(short[] array1, short[] array2) {
-      int l = array1.length;
-      short[] result = new short[l];
-      for (int i=0;i<l;++i) {
-         result[i] = (short) Math.max(0, unsignedValue(array1[i]) - unsignedValue(array2[i]));
+   /**
+    * @param background background image, may be null
+    * @param pixels values of the background made earlier, may be null
+    * @return values of the background if it has the given size, else null
+    */
+   private static int[] matchingBackground(ImagePlus background, int[] pixels,
+           int width, int height) {
+      if (background == null) {
+         return null;
+      }
+      ImageProcessor proc = background.getProcessor();
+      if (proc.getWidth() != width || proc.getHeight() != height) {
+         return null;
+      }
+      if (pixels == null) {
+         pixels = new int[width * height];
+         for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = (int) proc.getf(i);
+         }
       }
-      return result;
+      return pixels;
    }
-   
+
    public static int unsignedValue(byte b) {
       // Sign-extend, then mask
       return ((int) b) & 0x000000ff;
@@ -359,19 +383,4 @@ public class RatioImagingProcessor implements Processor {
       // Sign-extend, then mask
       return ((int) s) & 0x0000ffff;
    }
-   
-   public static ImageProcessor subtractImageProcessors(ImageProcessor proc1, ImageProcessor proc2) {
-      if ((proc1.getWidth() != proc2.getWidth())
-              || (proc1.getHeight() != proc2.getHeight())) {
-         return null;
-      }
-
-      if (proc1 instanceof ByteProcessor && proc2 instanceof ByteProcessor) {
-         return subtractByteProcessors((ByteProcessor) proc1, (ByteProcessor) proc2);
-      } else if (proc1 instanceof ShortProcessor && proc2 instanceof ShortProcessor) {
-         return subtractShortProcessors((ShortProcessor) proc1, (ShortProcessor) proc2);
-      }
-      
-      return null;
-   }
 }
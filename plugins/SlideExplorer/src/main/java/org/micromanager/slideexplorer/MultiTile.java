@@ -1,12 +1,7 @@
 package org.micromanager.slideexplorer;
 
 import java.awt.Point;
-import java.io.File;
-import java.util.Random;
 
-import ij.IJ;
-import ij.ImagePlus;
-import ij.io.FileSaver;
 import ij.process.ImageProcessor;
 
 // Imports for MMStudio internal packages
@@ -16,105 +11,118 @@ import ij.process.ImageProcessor;
 // should not imitate this practice.
 import org.micromanager.internal.utils.imageanalysis.ImageUtils;
 
+/**
+ * One tile of the pyramid, as held in memory by MultiTileCache.  The cache
+ * decides when a tile is written to or read from disk, and synchronizes
+ * access.
+ */
 public class MultiTile {
 
-    ImageProcessor proc_;
-    int type_;
-    int width_;
-    int height_;
-    String fileName_ = null;
-    boolean cached_ = false;
-    String tmpDirectory_ = "/tmp";
+    private final ImageProcessor proc_;
+    // whether the tile file holds the current pixels of this tile
+    private boolean saved_ = false;
 
     MultiTile(int type, int width, int height) {
-        type_ = type;
-        width_ = width;
-        height_ = height;
+        this(ImageUtils.makeProcessor(type, width, height));
     }
 
-    public synchronized ImageProcessor getImage() {
-        getImageReady();
+    MultiTile(ImageProcessor proc) {
+        proc_ = proc;
+        proc_.setInterpolationMethod(ImageProcessor.BILINEAR);
+    }
+
+    public ImageProcessor getImage() {
         return proc_;
     }
 
-    public synchronized void getImageReady() {
-        if (proc_ == null) {
-            if (cached_ == false) {
-                createCleanImage();
+    public void setImage(ImageProcessor proc) {
+        proc_.insert(proc, 0, 0);
+        saved_ = false;
+    }
+
+    /**
+     * Shrinks a tile of the next finer level to half its size, by averaging
+     * blocks of 2 x 2 pixels, straight into one quadrant of this tile.
+     *
+     * @param quad quadrant, from (0, 0) to (1, 1)
+     * @param inProc tile of the same size and type as this one
+     */
+    public void insertQuadrantImage(Point quad, ImageProcessor inProc) {
+        int width = proc_.getWidth();
+        int halfWidth = width / 2;
+        int halfHeight = proc_.getHeight() / 2;
+        int offset = quad.y * halfHeight * width + quad.x * halfWidth;
+        Object in = inProc.getPixels();
+        Object out = proc_.getPixels();
+        for (int y = 0; y < halfHeight; y++) {
+            int src = 2 * y * width;
+            int dst = offset + y * width;
+            if (out instanceof byte[]) {
+                shrinkRow((byte[]) in, src, width, (byte[]) out, dst, halfWidth);
+            } else if (out instanceof short[]) {
+                shrinkRow((short[]) in, src, width, (short[]) out, dst, halfWidth);
+            } else if (out instanceof float[]) {
+                shrinkRow((float[]) in, src, width, (float[]) out, dst, halfWidth);
             } else {
-                loadFromCache();
+                shrinkRow((int[]) in, src, width, (int[]) out, dst, halfWidth);
             }
         }
-        proc_.setInterpolationMethod(ImageProcessor.BILINEAR);
+        saved_ = false;
     }
 
-    public synchronized void setImage(ImageProcessor proc) {
-        getImageReady();
-        proc_.insert(proc, 0, 0);
+    boolean isSaved() {
+        return saved_;
     }
 
-    private void createCleanImage() {
-        proc_ = ImageUtils.makeProcessor(type_, width_, height_);
+    void setSaved() {
+        saved_ = true;
     }
 
-    public synchronized void insertQuadrantImage(Point quad, ImageProcessor inProc) {
-        // TODO: rewrite this as a fast algorithm. Should require only a single copy.
-        getImageReady();
-        inProc.setInterpolationMethod(ImageProcessor.BILINEAR);
-        ImageProcessor inProcSmall = inProc.resize(width_ / 2, height_ / 2);
-        proc_.insert(inProcSmall, quad.x * width_ / 2, quad.y * height_ / 2);
-        cached_ = false;
+    private static void shrinkRow(byte[] in, int src, int width, byte[] out,
+            int dst, int n) {
+        for (int x = 0; x < n; x++, src += 2) {
+            int sum = (in[src] & 0xff) + (in[src + 1] & 0xff)
+                    + (in[src + width] & 0xff) + (in[src + width + 1] & 0xff);
+            out[dst + x] = (byte) ((sum + 2) >> 2);
+        }
     }
 
-    public synchronized void dropFromMemory() {
-        if (!cached_) {
-            cacheOnDisk();
+    private static void shrinkRow(short[] in, int src, int width, short[] out,
+            int dst, int n) {
+        for (int x = 0; x < n; x++, src += 2) {
+            int sum = (in[src] & 0xffff) + (in[src + 1] & 0xffff)
+                    + (in[src + width] & 0xffff) + (in[src + width + 1] & 0xffff);
+            out[dst + x] = (short) ((sum + 2) >> 2);
         }
-
-        proc_ = null;
     }
 
-    private void cacheOnDisk() {
-        if (proc_ != null) {
-            ImagePlus imgp = new ImagePlus("", proc_);
-            FileSaver fs = new FileSaver(imgp);
-            if (fileName_ == null) {
-                fileName_ = tmpDirectory_ + "/" + Math.abs(randLong()) + ".tif";
-            }
-            fs.saveAsTiff(fileName_);
-            cached_ = true;
+    private static void shrinkRow(float[] in, int src, int width, float[] out,
+            int dst, int n) {
+        for (int x = 0; x < n; x++, src += 2) {
+            out[dst + x] = 0.25f * (in[src] + in[src + 1]
+                    + in[src + width] + in[src + width + 1]);
         }
     }
 
-    private void loadFromCache() {
-        ImagePlus imgp = IJ.openImage(fileName_);
-        if (imgp != null) {
-            proc_ = imgp.getProcessor();
-        } else { // Somehow the image got lost.
-            proc_ = null;
-            cached_ = false;
-            getImageReady();
+    // RGB: each 8-bit channel is averaged on its own
+    private static void shrinkRow(int[] in, int src, int width, int[] out,
+            int dst, int n) {
+        for (int x = 0; x < n; x++, src += 2) {
+            int a = in[src];
+            int b = in[src + 1];
+            int c = in[src + width];
+            int d = in[src + width + 1];
+            int rgb = 0;
+            for (int shift = 0; shift <= 16; shift += 8) {
+                int sum = ((a >> shift) & 0xff) + ((b >> shift) & 0xff)
+                        + ((c >> shift) & 0xff) + ((d >> shift) & 0xff);
+                rgb |= ((sum + 2) >> 2) << shift;
+            }
+            out[dst + x] = rgb;
         }
     }
 
     public String toString() {
         return "Tile";
     }
-    private static Random rand = null;
-
-    public static long randLong() {
-        if (rand == null) {
-            rand = new Random();
-        }
-        return rand.nextLong();
-    }
-
-    public void wipeFromDisk() {
-        if (fileName_ != null) {
-            File file = new File(fileName_);
-            if (file.exists()) {
-                file.delete();
-            }
-        }
-    }
 }
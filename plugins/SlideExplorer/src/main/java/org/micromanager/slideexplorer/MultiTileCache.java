@@ -4,122 +4,261 @@ import ij.process.ImageProcessor;
 
 import java.awt.Dimension;
 import java.awt.Point;
-import java.io.File;
-import java.util.Hashtable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 // Imports for MMStudio internal packages
 // Plugins should not access internal packages, to ensure modularity and
 // maintainability. However, this plugin code is older than the current
 // MMStudio API, so it still uses internal classes and interfaces. New code
 // should not imitate this practice.
+import org.micromanager.internal.utils.ReportingUtils;
 import org.micromanager.internal.utils.imageanalysis.ImageUtils;
 
+/**
+ * Pyramid of tiles: acquired images at level 0, and at each coarser level
+ * tiles that combine 2 x 2 tiles of the level below at half resolution.
+ *
+ * The most recently used tiles, up to a fixed amount of memory, are kept in
+ * memory; the others are written to a TileFile on disk.  Coarser levels are
+ * not updated when an image is added.  Instead, each tile remembers which of
+ * its quadrants changed, and a background thread brings stale tiles up to
+ * date in batches, finest level first, so that a tile is only recalculated
+ * once for all images added in the meantime.  A tile that is requested
+ * while still stale is brought up to date first.
+ */
 public class MultiTileCache {
-	
+
+	// memory for tiles; at most a quarter of the heap is used
+	private static final long MAX_MEMORY_BYTES = 512L * 1024 * 1024;
+	private static final ExecutorService UPDATER =
+			Executors.newSingleThreadExecutor(r -> {
+				Thread thread = new Thread(r, "SlideExplorer tile pyramid");
+				thread.setDaemon(true);
+				return thread;
+			});
+
 	protected int minZoomLevel_;
 	protected int width_ = 0;
 	protected int height_ = 0;
 	private int type_ = -1;
-	
-	protected Hashtable<Point3D,MultiTile> allTiles_ = new Hashtable<Point3D,MultiTile>();
-	protected Hashtable<Integer,Point3D> currentTiles_ = new Hashtable<Integer, Point3D>();
-	
+	private int maxTilesInMemory_;
+
+	// tiles that contain image data, at all levels
+	protected HashSet<Point3D> allTiles_ = new HashSet<Point3D>();
+	// tiles in memory, least recently used first
+	private final LinkedHashMap<Point3D,MultiTile> memoryTiles_ =
+			new LinkedHashMap<Point3D,MultiTile>(16, 0.75f, true);
+	private TileFile tileFile_;
+	// per tile above level 0, bits (1 << (2 * y + x)) of the quadrants whose
+	// tile changed since it was last copied in
+	private final HashMap<Point3D,Integer> staleQuadrants_ = new HashMap<Point3D,Integer>();
+	private boolean updateScheduled_ = false;
+
 	public MultiTileCache(int zoomLevels, Dimension tileDimensions) {
 		minZoomLevel_ = -zoomLevels+1;
 		width_ = tileDimensions.width;
 		height_ = tileDimensions.height;
-
-        File tmpDir = new File("/tmp");
-        if(!tmpDir.exists())
-                tmpDir.mkdir();
+		maxTilesInMemory_ = zoomLevels;
 	}
-	
-	public void addImage(Point idx, ImageProcessor proc) {
+
+	public synchronized void addImage(Point idx, ImageProcessor proc) {
 		if (type_ == -1) {
 			type_ = ImageUtils.getImageProcessorType(proc);
+			long tileBytes = (long) width_ * height_ * TileFile.bytesPerPixel(type_);
+			long memory = Math.min(MAX_MEMORY_BYTES, Runtime.getRuntime().maxMemory() / 4);
+			maxTilesInMemory_ = (int) Math.max(maxTilesInMemory_,
+					memory / Math.max(tileBytes, 1));
+		}
+
+		Point3D tileIdx = new Point3D(idx, 0);
+		getMultiTile(tileIdx).setImage(proc);
+		markChanged(tileIdx);
+		// the tiles above it now contain image data too
+		Point3D p = tileIdx;
+		while (allTiles_.add(p) && p.k > minZoomLevel_) {
+			p = getParentIndex(p);
 		}
-		
-		MultiTile tile = getTile(idx);
-		tile.setImage(proc);
-		propagateTile(idx, tile);
+		scheduleUpdate();
 	}
-	
-	public ImageProcessor getImage(Point3D multiTileIndex) {
+
+	public synchronized ImageProcessor getImage(Point3D multiTileIndex) {
 		return getMultiTile(multiTileIndex).getImage();
 	}
-	
-	public boolean hasImage(Point p) {
-		return allTiles_.containsKey(new Point3D(p,0));
-	}
-	
-	public boolean hasImage(Point3D p) {
-		return allTiles_.containsKey(p);
+
+	public synchronized boolean hasImage(Point p) {
+		return allTiles_.contains(new Point3D(p,0));
 	}
-		
-	protected void propagateTile(Point idx, MultiTile multiTile) {
-		propagateTile(new Point3D(idx, 0), multiTile);
+
+	public synchronized boolean hasImage(Point3D p) {
+		return allTiles_.contains(p);
 	}
-	
-	protected void propagateTile(Point3D idx, MultiTile multiTile) {
+
+	/**
+	 * Records in the parent of idx that the quadrant of idx changed.
+	 */
+	protected void markChanged(Point3D idx) {
 		if (idx.k>minZoomLevel_) {
 			Point3D pidx = getParentIndex(idx);
 			Point pquad = getParentQuadrant(idx);
-			MultiTile parentTile = getMultiTile(pidx);
-			
-			ImageProcessor proc = multiTile.getImage();
-			parentTile.insertQuadrantImage(pquad, proc);
-			propagateTile(pidx, parentTile);
+			Integer quadrants = staleQuadrants_.get(pidx);
+			staleQuadrants_.put(pidx, (quadrants == null ? 0 : quadrants)
+					| (1 << (2 * pquad.y + pquad.x)));
 		}
 	}
-		
+
 	protected MultiTile getMultiTile(int i, int j, int z) {
 		return getMultiTile(new Point3D(i,j,z));
 	}
-	
+
 	protected MultiTile getTile(Point idx) {
 		return getMultiTile(new Point3D(idx.x, idx.y, 0));
 	}
-	
-	protected synchronized MultiTile getMultiTile(Point3D idx) {
 
-		if (currentTiles_.containsKey(idx.k)) {
-			Point3D currentTile = currentTiles_.get(idx.k);
-			if (!currentTile.equals(idx)) {
-				allTiles_.get(currentTile).dropFromMemory();
-				currentTiles_.remove(currentTile.k);
+	/**
+	 * @return the tile, with the quadrants that changed below it copied in
+	 */
+	protected synchronized MultiTile getMultiTile(Point3D idx) {
+		Integer quadrants = staleQuadrants_.remove(idx);
+		if (quadrants == null) {
+			return loadTile(idx);
+		}
+		MultiTile tile = null;
+		for (int q = 0; q < 4; q++) {
+			if ((quadrants & (1 << q)) != 0) {
+				Point quad = new Point(q & 1, q >> 1);
+				ImageProcessor childProc = getMultiTile(new Point3D(
+						2 * idx.i + quad.x, 2 * idx.j + quad.y, idx.k + 1)).getImage();
+				// loaded after the child, which may push other tiles out of memory
+				tile = loadTile(idx);
+				tile.insertQuadrantImage(quad, childProc);
 			}
 		}
+		markChanged(idx);
+		return tile;
+	}
 
-		currentTiles_.put(idx.k, idx);
-		if (! allTiles_.containsKey(idx)) {
-			MultiTile tile = new MultiTile(type_, width_, height_);
-			allTiles_.put(idx, tile);
+	/**
+	 * @return the tile from memory, from disk or, if it has never been
+	 *         stored, a new black one
+	 */
+	private MultiTile loadTile(Point3D idx) {
+		MultiTile tile = memoryTiles_.get(idx);
+		if (tile != null) {
 			return tile;
+		}
+		ImageProcessor proc = null;
+		if (tileFile_ != null) {
+			try {
+				proc = tileFile_.read(idx);
+			} catch (IOException e) {
+				ReportingUtils.logError(e, "SlideExplorer: failed to read tile " + idx);
+			}
+		}
+		if (proc != null) {
+			tile = new MultiTile(proc);
+			tile.setSaved();
 		} else {
-			return allTiles_.get(idx);
+			tile = new MultiTile(type_, width_, height_);
+		}
+		memoryTiles_.put(idx, tile);
+		dropFromMemory();
+		return tile;
+	}
+
+	/**
+	 * Drops the least recently used tiles from memory until no more than
+	 * maxTilesInMemory_ are left, writing those with image data to disk.
+	 */
+	private void dropFromMemory() {
+		Iterator<Map.Entry<Point3D,MultiTile>> it = memoryTiles_.entrySet().iterator();
+		while (memoryTiles_.size() > maxTilesInMemory_ && it.hasNext()) {
+			Map.Entry<Point3D,MultiTile> entry = it.next();
+			MultiTile tile = entry.getValue();
+			if (!tile.isSaved() && allTiles_.contains(entry.getKey())) {
+				try {
+					if (tileFile_ == null) {
+						tileFile_ = new TileFile(type_, width_, height_);
+					}
+					tileFile_.write(entry.getKey(), tile.getImage());
+				} catch (IOException e) {
+					// keep the remaining tiles in memory rather than lose them
+					ReportingUtils.logError(e, "SlideExplorer: failed to write tile to disk");
+					return;
+				}
+			}
+			it.remove();
+		}
+	}
+
+	private void scheduleUpdate() {
+		if (!updateScheduled_) {
+			updateScheduled_ = true;
+			UPDATER.submit(this::updateStaleTiles);
 		}
 	}
-		
+
+	/**
+	 * Brings all stale tiles up to date, finest level first.  The lock is
+	 * taken for one tile at a time, so that the display and the acquisition
+	 * only wait for a single tile.
+	 */
+	private void updateStaleTiles() {
+		try {
+			while (true) {
+				List<Point3D> batch;
+				synchronized (this) {
+					if (staleQuadrants_.isEmpty()) {
+						updateScheduled_ = false;
+						return;
+					}
+					batch = new ArrayList<Point3D>(staleQuadrants_.keySet());
+				}
+				batch.sort((a, b) -> b.k - a.k);
+				for (Point3D idx : batch) {
+					synchronized (this) {
+						if (staleQuadrants_.containsKey(idx)) {
+							getMultiTile(idx);
+						}
+					}
+				}
+			}
+		} catch (RuntimeException e) {
+			ReportingUtils.logError(e, "SlideExplorer: failed to update tiles");
+			synchronized (this) {
+				updateScheduled_ = false;
+			}
+		}
+	}
+
 	protected Point3D getParentIndex(Point3D idx) {
 		return new Point3D(idx.i>>1, idx.j>>1, idx.k-1);
 	}
-	
+
 	protected Point getParentQuadrant(Point3D idx) {
 		return new Point(idx.i & 1, idx.j & 1);
 	}
-	
+
 	protected Point3D newPoint3D(int i, int j, int k) {
 		return new Point3D(i,j,k);
 	}
 
-	public void clear() {
-		for (MultiTile multiTile:allTiles_.values()) {
-			multiTile.wipeFromDisk();
+	public synchronized void clear() {
+		staleQuadrants_.clear();
+		memoryTiles_.clear();
+		allTiles_.clear();
+		if (tileFile_ != null) {
+			tileFile_.close();
+			tileFile_ = null;
 		}
-        currentTiles_.clear();
-        allTiles_.clear();
 	}
-	
-	
 
 }
@@ -32,6 +32,7 @@ public class Point3D {
 	}
 	
 	public int hashCode() {
-		return 10000*i + 100*j + k;
+		// spreads the bits; 10000*i + 100*j + k made large grids collide
+		return (31 * (31 * i + j) + k) * 0x9E3779B1;
 	}
 }
\ No newline at end of file
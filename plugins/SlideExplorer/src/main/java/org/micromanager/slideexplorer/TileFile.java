@@ -0,0 +1,134 @@
+package org.micromanager.slideexplorer;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+// Imports for MMStudio internal packages
+// Plugins should not access internal packages, to ensure modularity and
+// maintainability. However, this plugin code is older than the current
+// MMStudio API, so it still uses internal classes and interfaces. New code
+// should not imitate this practice.
+import org.micromanager.internal.utils.imageanalysis.ImageUtils;
+
+/**
+ * Temporary file with the raw pixels of the tiles MultiTileCache dropped
+ * from memory.  All tiles have the same size and type, so each takes the
+ * same number of bytes: a tile is appended to the file the first time it
+ * is written and overwritten in place after that.  An index of offsets
+ * finds it again.  Not thread-safe.
+ */
+class TileFile {
+
+	private final int type_;
+	private final int width_;
+	private final int height_;
+	private final int tileBytes_;
+	private final File file_;
+	private final RandomAccessFile randomAccessFile_;
+	private final FileChannel channel_;
+	private final ByteBuffer buffer_;
+	private final HashMap<Point3D,Long> offsets_ = new HashMap<Point3D,Long>();
+	private long end_ = 0;
+
+	TileFile(int type, int width, int height) throws IOException {
+		type_ = type;
+		width_ = width;
+		height_ = height;
+		tileBytes_ = width * height * bytesPerPixel(type);
+		file_ = File.createTempFile("SlideExplorer", ".tiles");
+		file_.deleteOnExit();
+		randomAccessFile_ = new RandomAccessFile(file_, "rw");
+		channel_ = randomAccessFile_.getChannel();
+		buffer_ = ByteBuffer.allocateDirect(tileBytes_).order(ByteOrder.nativeOrder());
+	}
+
+	static int bytesPerPixel(int type) {
+		if (type == ImagePlus.GRAY8) {
+			return 1;
+		} else if (type == ImagePlus.GRAY16) {
+			return 2;
+		}
+		return 4;
+	}
+
+	void write(Point3D idx, ImageProcessor proc) throws IOException {
+		Long offset = offsets_.get(idx);
+		if (offset == null) {
+			offset = end_;
+		}
+		buffer_.clear();
+		Object pixels = proc.getPixels();
+		if (pixels instanceof byte[]) {
+			buffer_.put((byte[]) pixels);
+		} else if (pixels instanceof short[]) {
+			buffer_.asShortBuffer().put((short[]) pixels);
+		} else if (pixels instanceof int[]) {
+			buffer_.asIntBuffer().put((int[]) pixels);
+		} else {
+			buffer_.asFloatBuffer().put((float[]) pixels);
+		}
+		buffer_.clear();
+		long position = offset;
+		while (buffer_.hasRemaining()) {
+			position += channel_.write(buffer_, position);
+		}
+		if (offset == end_) {
+			end_ += tileBytes_;
+		}
+		offsets_.put(idx, offset);
+	}
+
+	/**
+	 * @return the tile, or null if it was never written
+	 */
+	ImageProcessor read(Point3D idx) throws IOException {
+		Long offset = offsets_.get(idx);
+		if (offset == null) {
+			return null;
+		}
+		buffer_.clear();
+		long position = offset;
+		while (buffer_.hasRemaining()) {
+			int n = channel_.read(buffer_, position);
+			if (n < 0) {
+				throw new EOFException("Tile file is shorter than expected");
+			}
+			position += n;
+		}
+		buffer_.clear();
+		ImageProcessor proc = ImageUtils.makeProcessor(type_, width_, height_);
+		Object pixels = proc.getPixels();
+		if (pixels instanceof byte[]) {
+			buffer_.get((byte[]) pixels);
+		} else if (pixels instanceof short[]) {
+			buffer_.asShortBuffer().get((short[]) pixels);
+		} else if (pixels instanceof int[]) {
+			buffer_.asIntBuffer().get((int[]) pixels);
+		} else {
+			buffer_.asFloatBuffer().get((float[]) pixels);
+		}
+		return proc;
+	}
+
+	/**
+	 * Closes and deletes the file.
+	 */
+	void close() {
+		try {
+			randomAccessFile_.close();
+		} catch (IOException e) {
+			// the file is deleted on exit anyway
+		}
+		file_.delete();
+		offsets_.clear();
+	}
+}
@@ -0,0 +1,89 @@
+package org.micromanager.slideexplorer;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import java.awt.Point;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.micromanager.internal.utils.imageanalysis.ImageUtils;
+
+public class MultiTileTest {
+
+    static final int WIDTH = 10;
+    static final int HEIGHT = 6;
+
+    static ImageProcessor randomTile(int type, Random random) {
+        ImageProcessor proc = ImageUtils.makeProcessor(type, WIDTH, HEIGHT);
+        Object pixels = proc.getPixels();
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            if (pixels instanceof byte[]) {
+                ((byte[]) pixels)[i] = (byte) random.nextInt();
+            } else if (pixels instanceof short[]) {
+                ((short[]) pixels)[i] = (short) random.nextInt();
+            } else if (pixels instanceof float[]) {
+                ((float[]) pixels)[i] = (float) random.nextGaussian() * 1000f;
+            } else {
+                ((int[]) pixels)[i] = random.nextInt() & 0xffffff;
+            }
+        }
+        return proc;
+    }
+
+    // Rounded mean of the 2 x 2 block at (2x, 2y), channel by channel for RGB
+    private static float expected(ImageProcessor in, int type, int x, int y) {
+        if (type == ImagePlus.GRAY32) {
+            return 0.25f * (in.getf(2 * x, 2 * y) + in.getf(2 * x + 1, 2 * y)
+                    + in.getf(2 * x, 2 * y + 1) + in.getf(2 * x + 1, 2 * y + 1));
+        }
+        int result = 0;
+        int channels = type == ImagePlus.COLOR_RGB ? 3 : 1;
+        for (int c = 0; c < channels; c++) {
+            int shift = 8 * c;
+            int mask = type == ImagePlus.GRAY16 ? 0xffff : 0xff;
+            int sum = ((in.get(2 * x, 2 * y) >> shift) & mask)
+                    + ((in.get(2 * x + 1, 2 * y) >> shift) & mask)
+                    + ((in.get(2 * x, 2 * y + 1) >> shift) & mask)
+                    + ((in.get(2 * x + 1, 2 * y + 1) >> shift) & mask);
+            result |= (int) Math.round(sum / 4.0) << shift;
+        }
+        return result;
+    }
+
+    private static float valueAt(ImageProcessor proc, int type, int x, int y) {
+        return type == ImagePlus.GRAY32 ? proc.getf(x, y) : proc.get(x, y);
+    }
+
+    @Test
+    public void testInsertQuadrantImage() {
+        Random random = new Random(1);
+        for (int type : new int[] {ImagePlus.GRAY8, ImagePlus.GRAY16,
+                ImagePlus.GRAY32, ImagePlus.COLOR_RGB}) {
+            for (int qx = 0; qx <= 1; qx++) {
+                for (int qy = 0; qy <= 1; qy++) {
+                    ImageProcessor before = randomTile(type, random);
+                    MultiTile tile = new MultiTile(before.duplicate());
+                    tile.setSaved();
+                    ImageProcessor in = randomTile(type, random);
+                    tile.insertQuadrantImage(new Point(qx, qy), in);
+                    Assert.assertFalse(tile.isSaved());
+                    ImageProcessor out = tile.getImage();
+                    for (int y = 0; y < HEIGHT; y++) {
+                        for (int x = 0; x < WIDTH; x++) {
+                            int hx = x - qx * WIDTH / 2;
+                            int hy = y - qy * HEIGHT / 2;
+                            float want = hx >= 0 && hx < WIDTH / 2 && hy >= 0
+                                    && hy < HEIGHT / 2
+                                    ? expected(in, type, hx, hy)
+                                    : valueAt(before, type, x, y);
+                            Assert.assertEquals("type " + type + " at "
+                                    + x + "," + y, want,
+                                    valueAt(out, type, x, y), 0.0f);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
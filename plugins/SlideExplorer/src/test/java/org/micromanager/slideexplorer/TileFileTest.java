@@ -0,0 +1,56 @@
+package org.micromanager.slideexplorer;
+
+import ij.ImagePlus;
+import ij.process.ImageProcessor;
+import java.io.IOException;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TileFileTest {
+
+    private static void assertSamePixels(ImageProcessor expected,
+            ImageProcessor actual) {
+        Object a = expected.getPixels();
+        Object b = actual.getPixels();
+        if (a instanceof byte[]) {
+            Assert.assertArrayEquals((byte[]) a, (byte[]) b);
+        } else if (a instanceof short[]) {
+            Assert.assertArrayEquals((short[]) a, (short[]) b);
+        } else if (a instanceof float[]) {
+            Assert.assertArrayEquals((float[]) a, (float[]) b, 0.0f);
+        } else {
+            Assert.assertArrayEquals((int[]) a, (int[]) b);
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Random random = new Random(2);
+        for (int type : new int[] {ImagePlus.GRAY8, ImagePlus.GRAY16,
+                ImagePlus.GRAY32, ImagePlus.COLOR_RGB}) {
+            ImageProcessor[] tiles = new ImageProcessor[5];
+            TileFile file = new TileFile(type, MultiTileTest.WIDTH,
+                    MultiTileTest.HEIGHT);
+            try {
+                Assert.assertNull(file.read(new Point3D(0, 0, 0)));
+                for (int i = 0; i < tiles.length; i++) {
+                    tiles[i] = MultiTileTest.randomTile(type, random);
+                    file.write(new Point3D(i, -i, i % 2), tiles[i]);
+                }
+                // overwriting a tile in place leaves the others alone
+                tiles[2] = MultiTileTest.randomTile(type, random);
+                file.write(new Point3D(2, -2, 0), tiles[2]);
+                for (int i = tiles.length - 1; i >= 0; i--) {
+                    ImageProcessor read = file.read(new Point3D(i, -i, i % 2));
+                    Assert.assertEquals(tiles[i].getWidth(), read.getWidth());
+                    Assert.assertEquals(tiles[i].getHeight(), read.getHeight());
+                    assertSamePixels(tiles[i], read);
+                }
+                Assert.assertNull(file.read(new Point3D(1, 1, 1)));
+            } finally {
+                file.close();
+            }
+        }
+    }
+}
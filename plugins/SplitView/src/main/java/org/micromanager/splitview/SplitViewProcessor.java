@@ -23,8 +23,6 @@
 
 package org.micromanager.splitview;
 
-import ij.process.ImageProcessor;
-
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -95,7 +93,10 @@ public class SplitViewProcessor implements Processor {
 
    @Override
    public void processImage(Image image, ProcessorContext context) {
-      ImageProcessor proc = studio_.data().ij().createProcessor(image);
+      Object pixels = image.getRawPixels();
+      // Array elements per pixel (more than one for RGB)
+      int pixelSize = image.getBytesPerPixel() / image.getBytesPerComponent();
+      int sourceWidth = image.getWidth();
 
       int width = image.getWidth();
       int height = image.getHeight();
@@ -112,14 +113,27 @@ public class SplitViewProcessor implements Processor {
 
       int channelIndex = image.getCoords().getChannel();
       for (int i = 0; i < numSplits_; ++i) {
-         proc.setRoi(i * xStep, i * yStep, width, height);
+         // Copy the rows of this part of the image
+         Object split = context.allocatePixels(image, width, height);
+         for (int y = 0; y < height; ++y) {
+            System.arraycopy(pixels,
+                  ((i * yStep + y) * sourceWidth + i * xStep) * pixelSize,
+                  split, y * width * pixelSize, width * pixelSize);
+         }
 
          Coords coords = image.getCoords().copy()
             .channel(channelIndex * numSplits_ + i).build();
-         Image output = studio_.data().createImage(proc.crop().getPixels(),
+         Image output = studio_.data().wrapImage(split,
                width, height, image.getBytesPerPixel(),
                image.getNumComponents(), coords, image.getMetadata());
          context.outputImage(output);
       }
+      context.recyclePixels(pixels);
+   }
+
+   @Override
+   public boolean isParallelSafe() {
+      // Each image is split on its own
+      return true;
    }
 }
@@ -0,0 +1,233 @@
+///////////////////////////////////////////////////////////////////////////////
+//FILE:          ProjectionAccumulator.java
+//PROJECT:       Micro-Manager
+//SUBSYSTEM:     ZProjector plugin
+//-----------------------------------------------------------------------------
+//
+// AUTHOR:       Nico Stuurman
+//
+// COPYRIGHT:    Regents of the University of California 2020
+//
+// LICENSE:      This file is distributed under the BSD license.
+//               License text is included with the source distribution.
+//
+//               This file is distributed in the hope that it will be useful,
+//               but WITHOUT ANY WARRANTY; without even the implied warranty
+//               of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+//
+//               IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+//               CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,
+//               INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES.
+
+package org.micromanager.zprojector;
+
+import ij.plugin.ZProjector;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Projects 8 or 16 bit grayscale planes that are added one at a time, so that
+ * no ImageStack needs to be built.
+ *
+ * Max and min keep a running extremum, average and sum a running sum, and
+ * standard deviation a running mean and sum of squared deviations (Welford's
+ * method).  The median can not be computed from running values, so it keeps
+ * the pixel arrays of all planes and selects per pixel at the end.
+ *
+ * Results match ImageJ's ZProjector followed by conversion to the input type
+ * without scaling: values are rounded and clipped to the type's range.
+ *
+ * Not thread-safe; each projection uses its own accumulator.
+ */
+final class ProjectionAccumulator {
+
+   private final int method_;
+   private final int bytesPerPixel_;
+   private final int numPixels_;
+   private int count_ = 0;
+
+   // Max and min
+   private int[] extrema_;
+   // Average and sum: running sum.  Standard deviation: running mean.
+   private double[] sums_;
+   // Standard deviation: running sum of squared deviations from the mean
+   private double[] m2s_;
+   // Median: pixels of every plane added so far
+   private List<Object> planes_;
+
+   /**
+    * @param method projection method, as an ImageJ ZProjector int
+    * @param bytesPerPixel bytes per pixel of the planes
+    * @return true if this class can do the projection, false if ImageJ has
+    *         to be used instead
+    */
+   static boolean supports(int method, int bytesPerPixel) {
+      if (bytesPerPixel != 1 && bytesPerPixel != 2) {
+         return false;
+      }
+      switch (method) {
+         case ZProjector.MAX_METHOD:
+         case ZProjector.MIN_METHOD:
+         case ZProjector.AVG_METHOD:
+         case ZProjector.SUM_METHOD:
+         case ZProjector.SD_METHOD:
+         case ZProjector.MEDIAN_METHOD:
+            return true;
+         default:
+            return false;
+      }
+   }
+
+   /**
+    * @param method projection method, as an ImageJ ZProjector int
+    * @param numPixels number of pixels in each plane
+    * @param bytesPerPixel 1 or 2
+    * @throws IllegalArgumentException if supports() returns false
+    */
+   ProjectionAccumulator(int method, int numPixels, int bytesPerPixel) {
+      if (!supports(method, bytesPerPixel)) {
+         throw new IllegalArgumentException("Projection method " + method
+                 + " is not supported for " + bytesPerPixel
+                 + " bytes per pixel");
+      }
+      method_ = method;
+      bytesPerPixel_ = bytesPerPixel;
+      numPixels_ = numPixels;
+      switch (method_) {
+         case ZProjector.MAX_METHOD:
+         case ZProjector.MIN_METHOD:
+            extrema_ = new int[numPixels_];
+            break;
+         case ZProjector.AVG_METHOD:
+         case ZProjector.SUM_METHOD:
+            sums_ = new double[numPixels_];
+            break;
+         case ZProjector.SD_METHOD:
+            sums_ = new double[numPixels_];
+            m2s_ = new double[numPixels_];
+            break;
+         default:
+            planes_ = new ArrayList<>();
+            break;
+      }
+   }
+
+   int getCount() {
+      return count_;
+   }
+
+   /**
+    * Adds one plane to the projection.  For the median the array is kept, so
+    * it must not be changed afterwards.
+    *
+    * @param pixels byte[] or short[] pixels of a plane of this accumulator's
+    *        size and type
+    */
+   void add(Object pixels) {
+      int n = count_ + 1;
+      switch (method_) {
+         case ZProjector.MAX_METHOD:
+            for (int i = 0; i < numPixels_; i++) {
+               int value = getPixel(pixels, i);
+               if (count_ == 0 || value > extrema_[i]) {
+                  extrema_[i] = value;
+               }
+            }
+            break;
+         case ZProjector.MIN_METHOD:
+            for (int i = 0; i < numPixels_; i++) {
+               int value = getPixel(pixels, i);
+               if (count_ == 0 || value < extrema_[i]) {
+                  extrema_[i] = value;
+               }
+            }
+            break;
+         case ZProjector.AVG_METHOD:
+         case ZProjector.SUM_METHOD:
+            for (int i = 0; i < numPixels_; i++) {
+               sums_[i] += getPixel(pixels, i);
+            }
+            break;
+         case ZProjector.SD_METHOD:
+            for (int i = 0; i < numPixels_; i++) {
+               int value = getPixel(pixels, i);
+               double delta = value - sums_[i];
+               sums_[i] += delta / n;
+               m2s_[i] += delta * (value - sums_[i]);
+            }
+            break;
+         default:
+            planes_.add(pixels);
+            break;
+      }
+      count_ = n;
+   }
+
+   /**
+    * @return byte[] or short[] pixels of the projection of the planes added
+    *         so far
+    */
+   Object getResult() {
+      Object result = bytesPerPixel_ == 1
+              ? new byte[numPixels_] : new short[numPixels_];
+      switch (method_) {
+         case ZProjector.MAX_METHOD:
+         case ZProjector.MIN_METHOD:
+            for (int i = 0; i < numPixels_; i++) {
+               setPixel(result, i, extrema_[i]);
+            }
+            break;
+         case ZProjector.AVG_METHOD:
+            for (int i = 0; i < numPixels_; i++) {
+               setPixel(result, i, sums_[i] / count_);
+            }
+            break;
+         case ZProjector.SUM_METHOD:
+            for (int i = 0; i < numPixels_; i++) {
+               setPixel(result, i, sums_[i]);
+            }
+            break;
+         case ZProjector.SD_METHOD:
+            if (count_ > 1) {
+               for (int i = 0; i < numPixels_; i++) {
+                  setPixel(result, i, Math.sqrt(m2s_[i] / (count_ - 1)));
+               }
+            }
+            break;
+         default:
+            int[] values = new int[count_];
+            for (int i = 0; i < numPixels_ && count_ > 0; i++) {
+               for (int p = 0; p < count_; p++) {
+                  values[p] = getPixel(planes_.get(p), i);
+               }
+               Arrays.sort(values);
+               int middle = count_ / 2;
+               if ((count_ & 1) == 0) {
+                  setPixel(result, i, (values[middle - 1] + values[middle]) / 2.0);
+               } else {
+                  setPixel(result, i, values[middle]);
+               }
+            }
+            break;
+      }
+      return result;
+   }
+
+   private int getPixel(Object pixels, int i) {
+      if (bytesPerPixel_ == 1) {
+         return ((byte[]) pixels)[i] & 0xff;
+      }
+      return ((short[]) pixels)[i] & 0xffff;
+   }
+
+   private void setPixel(Object pixels, int i, double value) {
+      int max = bytesPerPixel_ == 1 ? 255 : 65535;
+      int rounded = (int) Math.min(max, Math.max(0.0, value) + 0.5);
+      if (bytesPerPixel_ == 1) {
+         ((byte[]) pixels)[i] = (byte) rounded;
+      } else {
+         ((short[]) pixels)[i] = (short) rounded;
+      }
+   }
+}
@@ -29,6 +29,13 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingUtilities;
 import javax.swing.SwingWorker;
 import org.micromanager.Studio;
 import org.micromanager.data.Coordinates;
@@ -50,9 +57,14 @@ import org.micromanager.display.DisplayWindow;
 // MMStudio API, so it still uses internal classes and interfaces. New code
 // should not imitate this practice.
 import org.micromanager.internal.utils.FileDialogs;
-import org.micromanager.internal.utils.ProgressBar;
 
 /**
+ * Projects a dataset along one axis.  The projections for all combinations
+ * of the other axes are independent of each other, so they run concurrently
+ * on a ForkJoinPool, and each one is put into the new Datastore as soon as
+ * it is done.  8 and 16 bit grayscale planes are read one at a time from the
+ * DataProvider into a ProjectionAccumulator; other pixel types still go
+ * through an ImageJ stack.
  *
  * @author nico
  */
@@ -61,9 +73,8 @@ public class ZProjectorPluginExecutor {
    private final Studio studio_;
    private final DisplayWindow window_;
    private final DataProvider oldStore_;
-   private int nrProjections_;
-   private int projectionNr_;
-   private ProgressBar progressBar_;
+   private ProgressMonitor monitor_;
+   private volatile boolean canceled_ = false;
 
    public ZProjectorPluginExecutor(Studio studio, DisplayWindow window) {
       studio_ = studio;
@@ -134,17 +145,17 @@ public class ZProjectorPluginExecutor {
                   copyDisplay.setDisplaySettings(
                           window_.getDisplaySettings().copyBuilder().build());
                   studio_.displays().manage(newStore);
-               } else {
-                  nrProjections_ = 1;
-                  for (String axis : axes) {
-                     nrProjections_ *= oldStore_.getNextIndex(axis);
-                  }
-                  progressBar_ = new ProgressBar (window_.getWindow(), 
-                                       "Projection Progress", 1, nrProjections_);
-                  progressBar_.setVisible(true);
                }
 
-               findAllProjections(newStore, axes, cb, projectionAxis,
+               List<Coords> projections = new ArrayList<>();
+               if (axes.isEmpty()) {
+                  projections.add(cb.build());
+               } else {
+                  findAllProjections(projections, axes, cb);
+               }
+               monitor_ = new ProgressMonitor(window_.getWindow(),
+                       "Projecting " + newName, "", 0, projections.size());
+               runProjections(newStore, projections, projectionAxis,
                        firstFrame, lastFrame, projectionMethod);
                
             } catch (DatastoreFrozenException ex) {
@@ -152,14 +163,15 @@ public class ZProjectorPluginExecutor {
             } catch (DatastoreRewriteException ex) {
                studio_.logs().showError("Can not overwrite data");
             } finally {
-               if (progressBar_ != null) {
-                  progressBar_.setVisible(false);
+               if (monitor_ != null) {
+                  final ProgressMonitor monitor = monitor_;
+                  SwingUtilities.invokeLater(() -> monitor.close());
                }
             }
 
             newStore.freeze();
             
-            if (save) {
+            if (save && !canceled_) {
                DisplayWindow copyDisplay = studio_.displays().createDisplay(newStore);
                copyDisplay.setCustomTitle(newName);
                copyDisplay.setDisplaySettings(
@@ -185,36 +197,87 @@ public class ZProjectorPluginExecutor {
     * Recursively figures out which projections need to be performed
     * It does so by taking the first remaining axes, cycle through all positions
     * in that axes, and recursively calling this function (omitting that axis).
-    * When no more axes are remining, the actual projection will be exected.
+    * When no more axes are remining, the coordinates of the projection are
+    * added to the list.
     * 
-    * @param newStore Datastore to put the new projected images into
+    * @param projections List to add the coordinates of each projection to
     * @param remainingAxes List with axes to look at
     * @param cbp      Coordinates build set to the correct position
-    * @param projectionAxis   Axis that needs to be projected
-    * @param min       lowest frame number to be included in the projection
-    * @param max        highest frame number to be included in the projection
-    * @param projectionMethod Projection method (as an ImageJ ZProjector int)
-    * @throws IOException Can arise when saving to disk
     */
-   private void findAllProjections(Datastore newStore, List<String> remainingAxes, 
-           Coords.CoordsBuilder cbp, String projectionAxis, int min, int max, 
-           int projectionMethod) throws IOException {
+   private void findAllProjections(List<Coords> projections,
+           List<String> remainingAxes, Coords.CoordsBuilder cbp) {
       String currentAxis = remainingAxes.get(0);
       List<String> rcAxes = new ArrayList<>(remainingAxes);
       rcAxes.remove(currentAxis);
       for (int i = 0; i < oldStore_.getNextIndex(currentAxis); i++) {
          cbp.index(currentAxis, i);
          if (rcAxes.isEmpty()) {
-            executeProjection(newStore, cbp, projectionAxis, min, max, projectionMethod);
-            projectionNr_++;
-            if (progressBar_ != null) {
-               progressBar_.setProgress(projectionNr_); 
-            }
+            projections.add(cbp.build());
          } else {
-            findAllProjections(newStore, rcAxes, cbp, projectionAxis,
+            findAllProjections(projections, rcAxes, cbp);
+         }
+      }
+   }
+
+   /**
+    * Runs all projections on a ForkJoinPool and waits for them to finish,
+    * updating the progress monitor as each one completes.  Stops early when
+    * the user cancels.
+    *
+    * @param newStore Datastore to put the new projected images into
+    * @param projections Coordinates (without the projection axis) of each
+    *                    projection
+    * @param projectionAxis Axis that needs to be projected
+    * @param min lowest frame number to be included in the projection
+    * @param max Highest frame number to be included in the projection
+    * @param projectionMethod Projection method (as an ImageJ ZProjector int)
+    * @throws IOException Can arise when saving to disk
+    */
+   private void runProjections(final Datastore newStore,
+           List<Coords> projections, final String projectionAxis,
+           final int min, final int max, final int projectionMethod)
+           throws IOException {
+      final AtomicInteger nrDone = new AtomicInteger(0);
+      List<Callable<Void>> tasks = new ArrayList<>(projections.size());
+      for (final Coords coords : projections) {
+         tasks.add(() -> {
+            if (isCanceled()) {
+               return null;
+            }
+            executeProjection(newStore, coords.copyBuilder(), projectionAxis,
                     min, max, projectionMethod);
+            final int done = nrDone.incrementAndGet();
+            SwingUtilities.invokeLater(() -> monitor_.setProgress(done));
+            return null;
+         });
+      }
+      ForkJoinPool pool = new ForkJoinPool();
+      try {
+         for (Future<Void> future : pool.invokeAll(tasks)) {
+            future.get();
+         }
+      } catch (InterruptedException ie) {
+         canceled_ = true;
+         Thread.currentThread().interrupt();
+      } catch (ExecutionException ee) {
+         canceled_ = true;
+         if (ee.getCause() instanceof IOException) {
+            throw (IOException) ee.getCause();
          }
+         if (ee.getCause() instanceof RuntimeException) {
+            throw (RuntimeException) ee.getCause();
+         }
+         throw new RuntimeException(ee.getCause());
+      } finally {
+         pool.shutdownNow();
+      }
+   }
+
+   private boolean isCanceled() {
+      if (!canceled_ && monitor_.isCanceled()) {
+         canceled_ = true;
       }
+      return canceled_;
    }
    
    /**
@@ -231,17 +294,70 @@ public class ZProjectorPluginExecutor {
    private void executeProjection(Datastore newStore, Coords.CoordsBuilder cbp, 
            String projectionAxis, int min, int max, int projectionMethod) 
            throws IOException {
-      cbp.index(projectionAxis, min);
       Image tmpImg = oldStore_.getAnyImage();
       if (tmpImg== null) {
          studio_.alerts().postAlert("Projection problem", this.getClass(),
                  "No images found while projecting");
          return;
       }
+      if (tmpImg.getNumComponents() != 1 || !ProjectionAccumulator.supports(
+              projectionMethod, tmpImg.getBytesPerPixel())) {
+         executeImageJProjection(newStore, cbp, projectionAxis, min, max,
+                 projectionMethod);
+         return;
+      }
+      ProjectionAccumulator accumulator = new ProjectionAccumulator(
+              projectionMethod, tmpImg.getWidth() * tmpImg.getHeight(),
+              tmpImg.getBytesPerPixel());
+      Metadata imgMetadata = null;
+      for (int i = min; i <= max; i++) {
+         if (isCanceled()) {
+            return;
+         }
+         Image img = oldStore_.getImage(cbp.index(projectionAxis, i).build());
+         if (img != null) {  // null happens when this image was skipped
+            if (imgMetadata == null) {
+               imgMetadata = img.getMetadata();
+            }
+            accumulator.add(img.getRawPixels());
+         }
+      }
+      if (accumulator.getCount() > 0 && imgMetadata != null) {
+         Image outImg = studio_.data().wrapImage(accumulator.getResult(),
+                 tmpImg.getWidth(), tmpImg.getHeight(),
+                 tmpImg.getBytesPerPixel(), 1,
+                 cbp.index(projectionAxis, 0).build(),
+                 imgMetadata.copyBuilderWithNewUUID().build());
+         putImage(newStore, outImg);
+      } else {
+         studio_.alerts().postAlert("Projection problem", this.getClass(), 
+                                             "No images found while projecting");
+      }
+   }
+
+   /**
+    * Projection through an ImageJ stack, for pixel types that
+    * ProjectionAccumulator does not handle
+    * 
+    * @param newStore Datastore to put the new projected images into
+    * @param cbp Coordinates build set to the correct position
+    * @param projectionAxis Axis that needs to be projected
+    * @param min lowest frame number to be included in the projection
+    * @param max Highest frame number to be included in the projection
+    * @param projectionMethod Projection method (as an ImageJ ZProjector int)
+    * @throws IOException Can arise when saving to disk
+    */
+   private void executeImageJProjection(Datastore newStore,
+           Coords.CoordsBuilder cbp, String projectionAxis, int min, int max,
+           int projectionMethod) throws IOException {
+      Image tmpImg = oldStore_.getAnyImage();
       ImageStack stack = new ImageStack(
                tmpImg.getWidth(), tmpImg.getHeight());
       Metadata imgMetadata = null;
       for (int i = min; i <= max; i++) {
+         if (isCanceled()) {
+            return;
+         }
          Image img = oldStore_.getImage(cbp.index(projectionAxis, i).build());
          if (img != null) {  // null happens when this image was skipped
             if (imgMetadata == null) {
@@ -268,11 +384,21 @@ public class ZProjectorPluginExecutor {
          Image outImg = studio_.data().getImageJConverter().createImage(
                  projection.getProcessor(), cbp.index(projectionAxis, 0).build(),
                  imgMetadata.copyBuilderWithNewUUID().build());
-         newStore.putImage(outImg);
+         putImage(newStore, outImg);
       } else {
          studio_.alerts().postAlert("Projection problem", this.getClass(), 
                                              "No images found while projecting");
       }
    }
+
+   /**
+    * Projections finish in any order on several threads, while storage
+    * expects one writer at a time.
+    */
+   private void putImage(Datastore newStore, Image image) throws IOException {
+      synchronized (newStore) {
+         newStore.putImage(image);
+      }
+   }
    
 }
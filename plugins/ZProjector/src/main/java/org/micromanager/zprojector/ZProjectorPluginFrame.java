@@ -169,10 +169,10 @@ public class ZProjectorPluginFrame extends JDialog {
          bg.getElements().nextElement().setSelected(true);
       }
       
-      // Note: Median and Std.Dev. yield 32-bit images
-      // Those would need to be converted to 16-bit to be shown...
+      // Note: Avg, Sum, Median and Std.Dev. are rounded and clipped to the
+      // pixel type of the input
       final String[] projectionMethods = new String[] 
-                                    {"Max", "Min", "Avg", "Median", "Std.Dev"};
+                             {"Max", "Min", "Avg", "Sum", "Median", "Std.Dev"};
       final JComboBox methodBox = new JComboBox(projectionMethods);
       methodBox.setSelectedItem(settings_.getString(
                                     ZProjectorPlugin.PROJECTION_METHOD, "Max"));
@@ -210,6 +210,9 @@ public class ZProjectorPluginFrame extends JDialog {
                case "Avg":
                   projectionMethod = ZProjector.AVG_METHOD;
                   break;
+               case "Sum":
+                  projectionMethod = ZProjector.SUM_METHOD;
+                  break;
                case "Median":
                   projectionMethod = ZProjector.MEDIAN_METHOD;
                   break;